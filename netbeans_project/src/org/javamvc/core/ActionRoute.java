@@ -0,0 +1,270 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.net.URLDecoder;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.commons.lang3.reflect.MethodUtils;
+import org.javamvc.core.annotations.Action;
+import org.javamvc.core.annotations.Authorize;
+import org.javamvc.core.annotations.OutputCache;
+import org.javamvc.core.annotations.PathParam;
+
+/**
+ * Resolved handler for a single controller action. A route is either loaded
+ * from a generated {@link RouteRegistry}, or created via reflection in which
+ * case all the reflective lookups (controller class, constructor,
+ * <code>init</code> and action methods, and the {@link Authorize} metadata)
+ * are done once when the route is created. Either way, dispatching a request
+ * needs no further reflection searches. Controller creation and method calls
+ * go through the direct call sites made by {@link Invokers} or generated by
+ * the annotation processor.
+ *
+ * @author Balwinder Sodhi
+ */
+final class ActionRoute {
+
+    private static final Logger logger = Logger.getLogger(ActionRoute.class.getName());
+    static final String[] NO_ARGS = new String[0];
+    final String controllerName;
+    final String actionName;
+    final Class<?> controllerType;
+    final Invokers.ControllerFactory factory;
+    final Invokers.ControllerInit initializer;
+    final Invokers.ActionCall invoker;
+    /**
+     * True if the action carries an {@link Authorize} annotation.
+     */
+    final boolean secured;
+    /**
+     * True if any authenticated user may invoke the action, i.e., the roles
+     * of {@link Authorize} annotation contain "*".
+     */
+    final boolean anyRole;
+    final String[] roles;
+    /**
+     * The roles as a bitset over the {@link RoleDictionary} of the route
+     * table, or null if the roles are not all present in the dictionary.
+     */
+    private long[] roleBits;
+    /**
+     * Path template of the action, or null if the action is only reachable
+     * via the default <code>Controller/action</code> URL.
+     */
+    final String path;
+    /**
+     * True if the action is to be run on the async executor.
+     */
+    final boolean async;
+    /**
+     * Output caching settings, or null if the responses are not cached.
+     */
+    final OutputCachePolicy outputCache;
+    /**
+     * For each argument of the action method, the index of the path parameter
+     * of the template bound to that argument.
+     */
+    private final int[] argCaptures;
+
+    ActionRoute(RouteRegistry.Route r) {
+        this.controllerName = r.controllerType.getSimpleName();
+        this.actionName = r.actionName;
+        this.controllerType = r.controllerType;
+        this.factory = r.factory;
+        this.initializer = r.initializer;
+        this.invoker = r.invoker;
+        this.secured = r.roles != null;
+        this.roles = r.roles != null ? r.roles : new String[0];
+        this.anyRole = Arrays.asList(roles).contains("*");
+        this.path = r.path;
+        this.async = r.async;
+        this.outputCache = r.outputCache;
+        String[] names = r.params != null ? r.params : new String[0];
+        if (names.length > 0 && path == null) {
+            throw new IllegalArgumentException("Action " + this
+                    + " has arguments but no path template");
+        }
+        List<String> templateParams = path != null
+                ? Arrays.asList(PathTrie.paramNames(path)) : Collections.<String>emptyList();
+        this.argCaptures = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            argCaptures[i] = templateParams.indexOf(names[i]);
+            if (argCaptures[i] < 0) {
+                throw new IllegalArgumentException("Path template " + path
+                        + " of action " + this + " has no parameter " + names[i]);
+            }
+        }
+    }
+
+    /**
+     * Compiles the roles of this route into a bitset over given dictionary.
+     *
+     * @param dictionary
+     */
+    void compileRoles(RoleDictionary dictionary) {
+        roleBits = dictionary.encodeAll(roles);
+    }
+
+    /**
+     * Returns the required roles of this route as a bitset.
+     *
+     * @return The bitset, or null if the roles could not be compiled.
+     */
+    long[] roleBits() {
+        return roleBits;
+    }
+
+    /**
+     * Returns true if this action has no arguments and so can be invoked via
+     * the default <code>Controller/action</code> URL.
+     *
+     * @return
+     */
+    boolean isConventional() {
+        return argCaptures.length == 0;
+    }
+
+    /**
+     * Extracts the arguments of the action from the given URI.
+     *
+     * @param uri Request URI matched against the path template of this route.
+     * @param captures Offsets of the path parameters in URI as found by
+     * {@link PathTrie#match}.
+     * @return Raw argument values.
+     * @throws UnsupportedEncodingException
+     * @throws Invokers.BadArgumentException If a value has a malformed escape.
+     */
+    String[] bindArguments(String uri, int[] captures) throws UnsupportedEncodingException {
+        if (argCaptures.length == 0) {
+            return NO_ARGS;
+        }
+        String[] args = new String[argCaptures.length];
+        for (int i = 0; i < args.length; i++) {
+            int k = argCaptures[i];
+            String v = uri.substring(captures[2 * k], captures[2 * k + 1]);
+            if (v.indexOf('%') >= 0) {
+                try {
+                    v = URLDecoder.decode(v.replace("+", "%2B"), "UTF-8");
+                } catch (IllegalArgumentException ex) {
+                    throw new Invokers.BadArgumentException(ex);
+                }
+            }
+            args[i] = v;
+        }
+        return args;
+    }
+
+    /**
+     * Creates the route for given action method of a controller class.
+     *
+     * @param type Controller class.
+     * @param actionName Name of the action method.
+     * @return The route, or null if the class does not have a public action
+     * method of given name or the class cannot be used as a controller.
+     */
+    static ActionRoute create(Class<?> type, String actionName) {
+        Method m = MethodUtils.getAccessibleMethod(type, actionName);
+        if (m == null || m.getAnnotation(Action.class) == null) {
+            return null;
+        }
+        return create(type, m);
+    }
+
+    /**
+     * Creates the route for given action method of a controller class.
+     *
+     * @param type Controller class.
+     * @param action A public method annotated with {@link Action}. All of its
+     * arguments, if any, must be annotated with {@link PathParam}.
+     * @return The route, or null if the class cannot be used as a controller.
+     */
+    static ActionRoute create(Class<?> type, Method action) {
+        action = MethodUtils.getAccessibleMethod(action);
+        Method init = MethodUtils.getAccessibleMethod(type, "init",
+                MemCacheProvider.class, ServletContext.class,
+                HttpServletRequest.class, HttpServletResponse.class,
+                ViewProvider.class);
+        if (action == null || init == null) {
+            return null;
+        }
+        Constructor<?> ctor;
+        try {
+            ctor = type.getConstructor();
+        } catch (NoSuchMethodException ex) {
+            return null;
+        }
+        try {
+            RouteRegistry.Route r = new RouteRegistry.Route(type, action.getName(),
+                    Invokers.factory(ctor), Invokers.initializer(init),
+                    Invokers.action(action));
+            Authorize a = action.getAnnotation(Authorize.class);
+            if (a != null) {
+                r.authorize(a.roles());
+            }
+            Action act = action.getAnnotation(Action.class);
+            if (!act.path().isEmpty()) {
+                r.path(act.path());
+            }
+            if (act.async()) {
+                r.async();
+            }
+            OutputCache oc = action.getAnnotation(OutputCache.class);
+            if (oc != null) {
+                r.outputCache(oc.ttl(), oc.hardTtl(), oc.varyByParams(),
+                        oc.varyByHeaders(), oc.varyByRole(), oc.tags());
+            }
+            Annotation[][] annotations = action.getParameterAnnotations();
+            String[] params = new String[annotations.length];
+            for (int i = 0; i < params.length; i++) {
+                for (Annotation pa : annotations[i]) {
+                    if (pa instanceof PathParam) {
+                        params[i] = ((PathParam) pa).value();
+                    }
+                }
+                if (params[i] == null) {
+                    logger.warning("Argument " + i + " of action " + type.getName()
+                            + "." + action.getName() + " is not a @PathParam");
+                    return null;
+                }
+            }
+            r.params(params);
+            return new ActionRoute(r);
+        } catch (IllegalArgumentException ex) {
+            logger.warning(ex.getMessage());
+            return null;
+        } catch (ReflectiveOperationException ex) {
+            logger.log(Level.WARNING, "Could not create invokers for "
+                    + type.getName() + "." + action.getName(), ex);
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return controllerName + "/" + actionName;
+    }
+}
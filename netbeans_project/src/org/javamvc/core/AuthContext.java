@@ -23,7 +23,9 @@ import org.javamvc.core.annotations.Authorize;
  * the application uses role based access to controller action methods via
  * {@link Authorize} annotation. The application on successfully authenticating
  * a user should create an instance of this class and store it in a session
- * attribute named <code>auth.context</code>.
+ * attribute named <code>auth.context</code>. Alternatively, the servlet can be
+ * configured with an {@link AuthContextResolver} which finds the context in
+ * some other way, e.g. {@link SignedTokenAuthContextResolver}.
  * 
  * @author Balwinder Sodhi
  */
@@ -49,6 +51,21 @@ public interface AuthContext {
      */
     boolean hasRole(String role);
 
+    /**
+     * Returns the roles granted to currently authenticated user as a bitset
+     * over given dictionary, e.g. <code>roles.encode(getRoles())</code>. This
+     * is an optional method. When it returns null, which is what the default
+     * implementation does, {@link #hasRole(String)} is called for each role
+     * required by an action instead. An implementation should compute the
+     * bitset once and keep it for the given dictionary, so that the check
+     * for {@link Authorize} becomes a single bitwise AND.
+     * @param roles Dictionary of the roles used by controller actions.
+     * @return The bitset, or null if not supported.
+     */
+    default long[] getRoleBits(RoleDictionary roles) {
+        return null;
+    }
+
     /**
      * Checks whether current user is in authenticated state.This is a 
      * required method for using RBAC via {@link Authorize} annotations.
@@ -0,0 +1,48 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import org.javamvc.core.annotations.Authorize;
+
+/**
+ * Finds the {@link AuthContext} of the user making a request. It is used by
+ * {@link ControllerServlet} when authorizing the actions annotated with
+ * {@link Authorize}. The implementation to be used is configured via servlet
+ * init parameter <code>auth.context.resolver.class</code>; default is
+ * {@link SessionAuthContextResolver}.
+ *
+ * @author Balwinder Sodhi
+ */
+public interface AuthContextResolver {
+
+    /**
+     * Implementer can make use of servlet and it environment related
+     * configuration objects to initialize this object.
+     * @param servletContext
+     * @param servletConfig
+     */
+    void init(ServletContext servletContext, ServletConfig servletConfig);
+
+    /**
+     * Returns the authentication context for given request.
+     * @param request Current HTTP request.
+     * @return The context, or null if the request does not carry any.
+     */
+    AuthContext resolve(HttpServletRequest request);
+}
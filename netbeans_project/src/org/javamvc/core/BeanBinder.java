@@ -0,0 +1,452 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import java.beans.PropertyDescriptor;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.commons.beanutils.BeanUtils;
+import org.apache.commons.beanutils.ConvertUtils;
+import org.apache.commons.beanutils.Converter;
+import org.apache.commons.beanutils.DynaBean;
+import org.apache.commons.beanutils.MethodUtils;
+import org.apache.commons.beanutils.PropertyUtils;
+
+/**
+ * Populates beans from request parameters, as done by
+ * <code>BeanUtils.populate</code>, but without introspecting the bean on every
+ * call. On first use for a bean class, the binder looks up its properties once
+ * and keeps, for each writable property, a method handle of the setter along
+ * with the converter for the property type. The binding of each parameter name
+ * is then remembered, so that populating a bean only needs map lookups.
+ * <p>
+ * Parameter names are interpreted in the same way as by
+ * <code>BeanUtils</code>. Names of unknown or read-only properties are
+ * ignored. A nested name such as <code>address.city</code> sets the property
+ * of the bean returned by the getter, and is skipped if that bean is null.
+ * Names having <code>class</code> as any of their parts, e.g.
+ * <code>class.classLoader</code>, are always ignored, so that clients cannot
+ * reach the class of a bean. Indexed and mapped names, e.g.
+ * <code>items[0]</code> or <code>attrs(color)</code>, as well as maps and
+ * <code>DynaBean</code>s, are handed over to <code>BeanUtils</code>.
+ * <p>
+ * Strings, primitives and their wrappers are converted here, with the same
+ * results as the default converters of <code>ConvertUtils</code>, i.e.,
+ * values which cannot be parsed become zero or false. Other types use the
+ * converter registered with <code>ConvertUtils</code> for them when the bean
+ * class is first bound. A custom converter registered for a primitive or
+ * wrapper type is used instead of the built-in conversion.
+ *
+ * @author Balwinder Sodhi
+ */
+final class BeanBinder {
+
+    private static final ClassValue<BeanBinder> BINDERS = new ClassValue<BeanBinder>() {
+        @Override
+        protected BeanBinder computeValue(Class<?> type) {
+            return new BeanBinder(type);
+        }
+    };
+    /**
+     * Maximum number of parameter names remembered per bean class, so that
+     * arbitrary names sent by clients cannot grow the cache without bound.
+     */
+    private static final int MAX_BINDINGS = 1024;
+    private static final String CONVERTERS = "org.apache.commons.beanutils.converters";
+    private static final MethodType SETTER = MethodType.methodType(void.class,
+            Object.class, Object.class);
+    private static final MethodType GETTER = MethodType.methodType(Object.class, Object.class);
+    /**
+     * Binding of the names which do not match a writable property.
+     */
+    private static final Binding IGNORED = new Binding() {
+        @Override
+        public void bind(Object bean, String name, String[] values) {
+        }
+    };
+    /**
+     * Binding of the names which are set via <code>BeanUtils</code>.
+     */
+    private static final Binding DELEGATED = new Binding() {
+        @Override
+        public void bind(Object bean, String name, String[] values)
+                throws IllegalAccessException, InvocationTargetException {
+            BeanUtils.setProperty(bean, name, values);
+        }
+    };
+    private final Map<String, Property> properties = new HashMap<String, Property>();
+    private final ConcurrentMap<String, Binding> bindings
+            = new ConcurrentHashMap<String, Binding>();
+
+    private BeanBinder(Class<?> type) {
+        for (PropertyDescriptor pd : PropertyUtils.getPropertyDescriptors(type)) {
+            if (pd.getPropertyType() != null && !"class".equals(pd.getName())) {
+                properties.put(pd.getName(), new Property(type, pd));
+            }
+        }
+    }
+
+    /**
+     * Sets the properties of given bean from the parameters.
+     *
+     * @param bean
+     * @param params Parameter values keyed by the property names.
+     * @throws IllegalAccessException
+     * @throws InvocationTargetException If a getter or setter throws an
+     * exception.
+     */
+    static void populate(Object bean, Map<String, String[]> params)
+            throws IllegalAccessException, InvocationTargetException {
+        if (bean == null || params == null) {
+            return;
+        }
+        for (Map.Entry<String, String[]> e : params.entrySet()) {
+            if (e.getKey() != null) {
+                bind(bean, e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    private static void bind(Object bean, String name, String[] values)
+            throws IllegalAccessException, InvocationTargetException {
+        if (bean instanceof Map || bean instanceof DynaBean) {
+            if (!suppressed(name)) {
+                BeanUtils.setProperty(bean, name, values);
+            }
+        } else {
+            BINDERS.get(bean.getClass()).binding(name).bind(bean, name, values);
+        }
+    }
+
+    private Binding binding(String name) {
+        Binding b = bindings.get(name);
+        if (b == null) {
+            b = plan(name);
+            if (bindings.size() < MAX_BINDINGS) {
+                bindings.putIfAbsent(name, b);
+            }
+        }
+        return b;
+    }
+
+    private Binding plan(String name) {
+        if (suppressed(name)) {
+            return IGNORED;
+        }
+        if (name.indexOf('[') >= 0 || name.indexOf('(') >= 0) {
+            return DELEGATED;
+        }
+        int dot = name.indexOf('.');
+        Property p = properties.get(dot < 0 ? name : name.substring(0, dot));
+        if (p == null) {
+            return IGNORED;
+        }
+        if (dot < 0) {
+            return p.setter != null ? p : p.writable ? DELEGATED : IGNORED;
+        }
+        if (p.getter == null) {
+            return p.readable ? DELEGATED : IGNORED;
+        }
+        return new Nested(p, name.substring(dot + 1));
+    }
+
+    /**
+     * Checks if given name has <code>class</code> as a part, ignoring any
+     * index or key of the part.
+     */
+    private static boolean suppressed(String name) {
+        int start = 0;
+        while (true) {
+            int i = name.indexOf("class", start);
+            if (i < 0) {
+                return false;
+            }
+            int end = i + 5;
+            if ((i == 0 || name.charAt(i - 1) == '.') && (end == name.length()
+                    || name.charAt(end) == '.' || name.charAt(end) == '['
+                    || name.charAt(end) == '(')) {
+                return true;
+            }
+            start = end;
+        }
+    }
+
+    private static InvocationTargetException failed(Throwable t, String name) {
+        return new InvocationTargetException(t, "Cannot access property " + name);
+    }
+
+    private interface Binding {
+
+        void bind(Object bean, String name, String[] values)
+                throws IllegalAccessException, InvocationTargetException;
+    }
+
+    /**
+     * A property of the bean class, along with the handles for accessing it.
+     */
+    private static final class Property implements Binding {
+
+        final boolean readable;
+        final boolean writable;
+        /**
+         * Handles of the accessible getter and setter, or null if the method
+         * is missing or not accessible.
+         */
+        final MethodHandle getter;
+        final MethodHandle setter;
+        final Conversion conversion;
+
+        Property(Class<?> type, PropertyDescriptor pd) {
+            readable = pd.getReadMethod() != null;
+            writable = pd.getWriteMethod() != null;
+            getter = unreflect(type, pd.getReadMethod(), GETTER);
+            setter = unreflect(type, pd.getWriteMethod(), SETTER);
+            conversion = setter != null ? conversion(pd.getPropertyType()) : null;
+        }
+
+        @Override
+        public void bind(Object bean, String name, String[] values)
+                throws IllegalAccessException, InvocationTargetException {
+            set(bean, name, conversion.convert(values));
+        }
+
+        void set(Object bean, String name, Object value) throws InvocationTargetException {
+            try {
+                setter.invokeExact(bean, value);
+            } catch (Throwable t) {
+                throw failed(t, name);
+            }
+        }
+
+        Object get(Object bean, String name) throws InvocationTargetException {
+            try {
+                return (Object) getter.invokeExact(bean);
+            } catch (Throwable t) {
+                throw failed(t, name);
+            }
+        }
+
+        private static MethodHandle unreflect(Class<?> type, Method m, MethodType mt) {
+            if (m == null) {
+                return null;
+            }
+            Method accessible = MethodUtils.getAccessibleMethod(type, m);
+            if (accessible == null) {
+                return null;
+            }
+            try {
+                return MethodHandles.publicLookup().unreflect(accessible).asType(mt);
+            } catch (IllegalAccessException ex) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Binding of a name of the form <code>property.rest</code>.
+     */
+    private static final class Nested implements Binding {
+
+        private final Property head;
+        private final String rest;
+
+        Nested(Property head, String rest) {
+            this.head = head;
+            this.rest = rest;
+        }
+
+        @Override
+        public void bind(Object bean, String name, String[] values)
+                throws IllegalAccessException, InvocationTargetException {
+            Object nested = head.get(bean, name);
+            if (nested != null) {
+                BeanBinder.bind(nested, rest, values);
+            }
+        }
+    }
+
+    /**
+     * Converts the parameter values to the type of a property.
+     */
+    private abstract static class Conversion {
+
+        abstract Object convert(String[] values);
+    }
+
+    /**
+     * Converts one parameter value.
+     */
+    private abstract static class Scalar extends Conversion {
+
+        abstract Object convert(String value);
+
+        @Override
+        Object convert(String[] values) {
+            return convert(values != null && values.length > 0 ? values[0] : null);
+        }
+    }
+
+    private static Conversion conversion(Class<?> type) {
+        if (!type.isArray()) {
+            return scalar(type);
+        }
+        final Class<?> component = type.getComponentType();
+        if (component == String.class) {
+            return new Conversion() {
+                @Override
+                Object convert(String[] values) {
+                    return values != null ? values.clone() : new String[0];
+                }
+            };
+        }
+        final Scalar scalar = scalar(component);
+        return new Conversion() {
+            @Override
+            Object convert(String[] values) {
+                int n = values != null ? values.length : 0;
+                Object array = Array.newInstance(component, n);
+                for (int i = 0; i < n; i++) {
+                    Array.set(array, i, scalar.convert(values[i]));
+                }
+                return array;
+            }
+        };
+    }
+
+    private static Scalar scalar(final Class<?> type) {
+        Converter c = ConvertUtils.lookup(type);
+        if (c == null) {
+            c = ConvertUtils.lookup(String.class);
+        }
+        if (c.getClass().getName().startsWith(CONVERTERS)) {
+            Class<?> wrapper = ConvertUtils.primitiveToWrapper(type);
+            if (wrapper == String.class) {
+                return new Scalar() {
+                    @Override
+                    Object convert(String value) {
+                        return value;
+                    }
+                };
+            }
+            if (wrapper == Boolean.class) {
+                return new Scalar() {
+                    @Override
+                    Object convert(String value) {
+                        return toBoolean(value);
+                    }
+                };
+            }
+            if (wrapper != Number.class && Number.class.isAssignableFrom(wrapper)
+                    && wrapper.getName().startsWith("java.lang.")) {
+                return new NumberScalar(wrapper);
+            }
+        }
+        final Converter converter = c;
+        return new Scalar() {
+            @Override
+            Object convert(String value) {
+                return converter.convert(type, value);
+            }
+        };
+    }
+
+    /**
+     * Same as the default <code>BooleanConverter</code>.
+     */
+    private static Boolean toBoolean(String value) {
+        if (value != null) {
+            String s = value.toLowerCase(Locale.ROOT);
+            if (s.equals("true") || s.equals("yes") || s.equals("y") || s.equals("on")
+                    || s.equals("1")) {
+                return Boolean.TRUE;
+            }
+        }
+        return Boolean.FALSE;
+    }
+
+    /**
+     * Same as the default number converters, which return zero for missing or
+     * malformed values.
+     */
+    private static final class NumberScalar extends Scalar {
+
+        private static final int BYTE = 0, SHORT = 1, INT = 2, LONG = 3, FLOAT = 4, DOUBLE = 5;
+        private final int kind;
+        private final Number zero;
+
+        NumberScalar(Class<?> wrapper) {
+            if (wrapper == Byte.class) {
+                kind = BYTE;
+                zero = Byte.valueOf((byte) 0);
+            } else if (wrapper == Short.class) {
+                kind = SHORT;
+                zero = Short.valueOf((short) 0);
+            } else if (wrapper == Integer.class) {
+                kind = INT;
+                zero = Integer.valueOf(0);
+            } else if (wrapper == Long.class) {
+                kind = LONG;
+                zero = Long.valueOf(0);
+            } else if (wrapper == Float.class) {
+                kind = FLOAT;
+                zero = Float.valueOf(0);
+            } else if (wrapper == Double.class) {
+                kind = DOUBLE;
+                zero = Double.valueOf(0);
+            } else {
+                throw new IllegalArgumentException("Not a primitive number type: " + wrapper);
+            }
+        }
+
+        @Override
+        Object convert(String value) {
+            if (value == null) {
+                return zero;
+            }
+            String s = value.trim();
+            if (s.isEmpty()) {
+                return zero;
+            }
+            try {
+                switch (kind) {
+                    case BYTE:
+                        return Byte.valueOf(s);
+                    case SHORT:
+                        return Short.valueOf(s);
+                    case INT:
+                        return Integer.valueOf(s);
+                    case LONG:
+                        return Long.valueOf(s);
+                    case FLOAT:
+                        return Float.valueOf(s);
+                    default:
+                        return Double.valueOf(s);
+                }
+            } catch (NumberFormatException ex) {
+                return zero;
+            }
+        }
+    }
+}
@@ -0,0 +1,334 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Snapshot of the entries of {@link LocalMemCache} in a directory, for
+ * starting with a warm cache after a restart. A snapshot is a generation of
+ * append-only segment files holding the serialized values, plus an index
+ * file holding the serialized keys, expiry times and the locations of the
+ * values. A file named <code>CURRENT</code> names the latest complete
+ * generation; it is replaced atomically once a new generation has been
+ * written, after which the older generations are deleted. The files of the
+ * generation and the directory are synced to the disk before
+ * <code>CURRENT</code> is replaced, and once more after, so that a crash
+ * cannot leave <code>CURRENT</code> naming a generation whose files were not
+ * fully written.
+ * <p>
+ * Restoring reads only the index. The segments are memory mapped and each
+ * value is deserialized from its segment only when it is first read.
+ *
+ * @author Balwinder Sodhi
+ */
+final class CacheSnapshot {
+
+    private static final Logger logger = Logger.getLogger(CacheSnapshot.class.getName());
+    private static final int MAGIC = 0x4A4D4353;
+    private static final int VERSION = 1;
+    private static final int SEGMENT_SIZE = 256 << 20;
+    private static final String CURRENT = "CURRENT";
+    private final File dir;
+
+    CacheSnapshot(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Receives the entries of a snapshot being restored.
+     */
+    interface Sink {
+
+        void entry(byte[] key, MappedValue value, long expiresAt);
+    }
+
+    /**
+     * Starts writing a new generation.
+     *
+     * @return
+     * @throws IOException
+     */
+    Writer newWriter() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create snapshot directory " + dir);
+        }
+        // Never reuse the name of an existing generation, which may be mapped
+        long gen = System.currentTimeMillis();
+        while (new File(dir, Long.toHexString(gen) + ".idx").exists()) {
+            gen++;
+        }
+        return new Writer(Long.toHexString(gen));
+    }
+
+    /**
+     * Passes all the entries of the latest generation to given sink.
+     *
+     * @param sink
+     * @return Number of entries restored.
+     * @throws IOException If the snapshot is corrupt. The entries passed to
+     * the sink until then are valid.
+     */
+    int read(Sink sink) throws IOException {
+        File current = new File(dir, CURRENT);
+        if (!current.isFile()) {
+            return 0;
+        }
+        String gen = new String(Files.readAllBytes(current.toPath()),
+                StandardCharsets.UTF_8).trim();
+        Map<Integer, ByteBuffer> segments = new HashMap<Integer, ByteBuffer>();
+        int count = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(new File(dir, gen + ".idx"))));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a cache snapshot index: " + gen);
+            }
+            for (int seg = in.readInt(); seg >= 0; seg = in.readInt()) {
+                int offset = in.readInt();
+                int length = in.readInt();
+                long expiresAt = in.readLong();
+                byte[] key = new byte[in.readInt()];
+                in.readFully(key);
+                ByteBuffer buf = segments.get(seg);
+                if (buf == null) {
+                    buf = map(new File(dir, gen + ".seg" + seg));
+                    segments.put(seg, buf);
+                }
+                if (offset < 0 || length < 0 || offset + length > buf.capacity()) {
+                    throw new IOException("Bad value location in snapshot " + gen);
+                }
+                sink.entry(key, new MappedValue(buf, offset, length), expiresAt);
+                count++;
+            }
+        } finally {
+            in.close();
+        }
+        return count;
+    }
+
+    private static ByteBuffer map(File file) throws IOException {
+        FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            // The mapping stays valid after the channel is closed
+            return ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        } finally {
+            ch.close();
+        }
+    }
+
+    /**
+     * Writes one generation of the snapshot.
+     */
+    final class Writer {
+
+        private final String gen;
+        private final FileOutputStream indexFile;
+        private final DataOutputStream index;
+        private FileOutputStream segmentFile;
+        private DataOutputStream segment;
+        private int segmentNo = -1;
+        private int offset;
+
+        private Writer(String gen) throws IOException {
+            this.gen = gen;
+            indexFile = new FileOutputStream(new File(dir, gen + ".idx"));
+            index = new DataOutputStream(new BufferedOutputStream(indexFile));
+            index.writeInt(MAGIC);
+            index.writeInt(VERSION);
+        }
+
+        /**
+         * Appends an entry.
+         *
+         * @param key Serialized key.
+         * @param value Serialized value.
+         * @param expiresAt Expiry time of the entry, or 0.
+         * @throws IOException
+         */
+        void add(byte[] key, byte[] value, long expiresAt) throws IOException {
+            if (value.length > SEGMENT_SIZE) {
+                return;
+            }
+            if (segment == null || offset > SEGMENT_SIZE - value.length) {
+                if (segment != null) {
+                    sync(segment, segmentFile);
+                    segment.close();
+                }
+                segmentNo++;
+                segmentFile = new FileOutputStream(new File(dir, gen + ".seg" + segmentNo));
+                segment = new DataOutputStream(new BufferedOutputStream(segmentFile, 65536));
+                offset = 0;
+            }
+            segment.write(value);
+            index.writeInt(segmentNo);
+            index.writeInt(offset);
+            index.writeInt(value.length);
+            index.writeLong(expiresAt);
+            index.writeInt(key.length);
+            index.write(key);
+            offset += value.length;
+        }
+
+        /**
+         * Completes this generation, makes it the current one and deletes the
+         * older generations.
+         *
+         * @throws IOException
+         */
+        void commit() throws IOException {
+            index.writeInt(-1);
+            sync(index, indexFile);
+            if (segment != null) {
+                sync(segment, segmentFile);
+            }
+            close();
+            File tmp = new File(dir, CURRENT + ".tmp");
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(gen.getBytes(StandardCharsets.UTF_8));
+                out.getChannel().force(true);
+            } finally {
+                out.close();
+            }
+            // The new files must be in the directory before CURRENT names them
+            syncDirectory();
+            try {
+                Files.move(tmp.toPath(), new File(dir, CURRENT).toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tmp.toPath(), new File(dir, CURRENT).toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+            syncDirectory();
+            deleteGenerations(gen);
+        }
+
+        /**
+         * Flushes given stream and forces its file to the disk.
+         */
+        private void sync(DataOutputStream out, FileOutputStream file) throws IOException {
+            out.flush();
+            file.getChannel().force(true);
+        }
+
+        /**
+         * Discards this generation.
+         */
+        void abort() {
+            try {
+                close();
+            } catch (IOException ex) {
+                // Deleted anyway
+            }
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    if (f.getName().startsWith(gen + ".")) {
+                        f.delete();
+                    }
+                }
+            }
+        }
+
+        private void close() throws IOException {
+            index.close();
+            if (segment != null) {
+                segment.close();
+            }
+        }
+    }
+
+    /**
+     * Forces the entries of the directory to the disk. Platforms which cannot
+     * open a directory, such as Windows, persist them with the files.
+     */
+    private void syncDirectory() throws IOException {
+        FileChannel ch;
+        try {
+            ch = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+        } catch (IOException ex) {
+            return;
+        }
+        try {
+            ch.force(true);
+        } catch (IOException ex) {
+            // Not supported for directories on this platform
+        } finally {
+            ch.close();
+        }
+    }
+
+    /**
+     * Deletes the files of all the generations except given one. Files still
+     * mapped by this process stay readable on most platforms; where they
+     * cannot be deleted, they are left for a later snapshot to delete.
+     */
+    private void deleteGenerations(String keep) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            String name = f.getName();
+            if ((name.endsWith(".idx") || name.contains(".seg"))
+                    && !name.startsWith(keep + ".") && !f.delete()) {
+                logger.fine("Could not delete old snapshot file " + f);
+            }
+        }
+    }
+
+    /**
+     * Serialized value in a mapped segment.
+     */
+    static final class MappedValue {
+
+        private final ByteBuffer segment;
+        private final int offset;
+        final int length;
+
+        MappedValue(ByteBuffer segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        byte[] bytes() {
+            ByteBuffer buf = segment.duplicate();
+            buf.position(offset);
+            byte[] bytes = new byte[length];
+            buf.get(bytes);
+            return bytes;
+        }
+    }
+}
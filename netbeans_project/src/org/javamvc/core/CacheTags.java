@@ -0,0 +1,152 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Groups the entries of a {@link MemCacheProvider} by tags and namespaces, so
+ * that all the entries of a group can be invalidated at once. Each tag has a
+ * generation stored in the provider itself, and the generations of its tags
+ * are part of the key under which an entry is stored. Invalidating a tag
+ * just gives it a new generation: the existing entries are no longer reached
+ * and are eventually evicted or expire. So invalidation takes constant time,
+ * does not scan the keys, and works the same way for remote providers shared
+ * by many nodes.
+ * <p>
+ * For example, after updating a product:
+ * <pre>
+ * CacheTags tags = new CacheTags(cache);
+ * tags.put("product/" + id, product, 60000, "products");
+ * ...
+ * tags.invalidateTag("products");
+ * </pre>
+ * A namespace is a tag under its own name space, meant for giving a whole
+ * category of keys a common prefix.
+ *
+ * @author Balwinder Sodhi
+ */
+public final class CacheTags {
+
+    private static final String GENERATION_PREFIX = "javamvc.generation:";
+    private static final String NAMESPACE_PREFIX = "ns:";
+    private final MemCacheProvider<Object, Object> cache;
+
+    /**
+     * @param cache The provider holding both the generations and the entries.
+     */
+    public CacheTags(MemCacheProvider<Object, Object> cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Returns the key under which the value for given key and tags is stored
+     * in the provider. The key changes whenever any of the tags is
+     * invalidated.
+     *
+     * @param key
+     * @param tags
+     * @return
+     */
+    public String key(Object key, String... tags) {
+        StringBuilder sb = new StringBuilder().append(key);
+        for (String tag : tags) {
+            sb.append('\u0000').append(tag).append('@')
+                    .append(Long.toHexString(generation(tag)));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the key under which the value for given key is stored in given
+     * namespace.
+     *
+     * @param namespace
+     * @param key
+     * @return
+     */
+    public String keyInNamespace(String namespace, Object key) {
+        String ns = NAMESPACE_PREFIX + namespace;
+        return ns + '@' + Long.toHexString(generation(ns)) + '\u0000' + key;
+    }
+
+    /**
+     * Returns the value stored for given key with given tags, unless any of
+     * the tags was invalidated since.
+     *
+     * @param key
+     * @param tags
+     * @return The value, or null.
+     */
+    public Object get(Object key, String... tags) {
+        return cache.get(key(key, tags));
+    }
+
+    /**
+     * Stores a value with given tags. The generations of the tags are read
+     * here, so a value computed before one of the tags was invalidated may
+     * still be stored; use {@link #key} before computing the value to avoid
+     * this.
+     *
+     * @param key
+     * @param value
+     * @param ttlMillis Milliseconds after which the entry expires; zero or
+     * less for the default of the provider.
+     * @param tags
+     */
+    public void put(Object key, Object value, long ttlMillis, String... tags) {
+        if (ttlMillis > 0) {
+            cache.put(key(key, tags), value, ttlMillis);
+        } else {
+            cache.put(key(key, tags), value);
+        }
+    }
+
+    /**
+     * Invalidates all the entries stored with given tag.
+     *
+     * @param tag
+     */
+    public void invalidateTag(String tag) {
+        newGeneration(tag);
+    }
+
+    /**
+     * Invalidates all the entries of given namespace.
+     *
+     * @param namespace
+     */
+    public void invalidateNamespace(String namespace) {
+        newGeneration(NAMESPACE_PREFIX + namespace);
+    }
+
+    /**
+     * Returns the current generation of given tag. A tag without generation,
+     * e.g. because it was evicted, gets a new one. Generations are random
+     * rather than counted, so that a tag losing its generation can never
+     * bring back the entries invalidated earlier.
+     */
+    private long generation(String tag) {
+        Object gen = cache.get(GENERATION_PREFIX + tag);
+        return gen instanceof Long ? (Long) gen : newGeneration(tag);
+    }
+
+    private long newGeneration(String tag) {
+        long gen = ThreadLocalRandom.current().nextLong();
+        cache.put(GENERATION_PREFIX + tag, gen, 0);
+        return gen;
+    }
+}
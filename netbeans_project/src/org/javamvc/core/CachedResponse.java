@@ -0,0 +1,101 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import java.io.IOException;
+import java.io.Serializable;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A complete response of an action stored in the {@link MemCacheProvider} by
+ * output caching. It is serializable so that it can be kept in remote caches.
+ *
+ * @see org.javamvc.core.annotations.OutputCache
+ * @author Balwinder Sodhi
+ */
+final class CachedResponse implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private final String contentType;
+    /**
+     * Header names and values, alternately.
+     */
+    private final String[] headers;
+    private final byte[] body;
+    private final long expiresAt;
+    private final long staleUntil;
+
+    CachedResponse(String contentType, String[] headers, byte[] body,
+            long expiresAt, long staleUntil) {
+        this.contentType = contentType;
+        this.headers = headers;
+        this.body = body;
+        this.expiresAt = expiresAt;
+        this.staleUntil = staleUntil;
+    }
+
+    /**
+     * Returns true if this response may still be served.
+     *
+     * @param now Current time in milliseconds.
+     * @return
+     */
+    boolean isFresh(long now) {
+        return now < expiresAt;
+    }
+
+    /**
+     * Returns true if this response may be served while it is refreshed.
+     *
+     * @param now Current time in milliseconds.
+     * @return
+     */
+    boolean isStaleUsable(long now) {
+        return now < staleUntil;
+    }
+
+    /**
+     * Returns the approximate number of bytes held by this response.
+     *
+     * @return
+     */
+    int weight() {
+        int w = body.length;
+        for (String h : headers) {
+            w += 2 * h.length();
+        }
+        return w;
+    }
+
+    /**
+     * Writes the status, headers and body of this response to given response.
+     *
+     * @param response
+     * @throws IOException
+     */
+    void writeTo(HttpServletResponse response) throws IOException {
+        response.setStatus(HttpServletResponse.SC_OK);
+        if (contentType != null) {
+            response.setContentType(contentType);
+        }
+        for (int i = 0; i < headers.length; i += 2) {
+            response.addHeader(headers[i], headers[i + 1]);
+        }
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
+        response.flushBuffer();
+    }
+}
@@ -0,0 +1,247 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Response wrapper used by output caching. The output is written through to
+ * the wrapped response as usual and a copy of it, along with the headers, is
+ * kept for creating a {@link CachedResponse}.
+ *
+ * @author Balwinder Sodhi
+ */
+final class CapturingResponse extends HttpServletResponseWrapper {
+
+    private final List<String> headers = new ArrayList<String>();
+    private int status = SC_OK;
+    private boolean uncacheable;
+    private ByteArrayOutputStream bytes;
+    private CharArrayWriter chars;
+    private PrintWriter writer;
+    private ServletOutputStream stream;
+
+    CapturingResponse(HttpServletResponse response) {
+        super(response);
+    }
+
+    /**
+     * Returns the captured response, or null if it must not be cached, i.e.,
+     * the status is not 200 or it sets cookies.
+     *
+     * @param expiresAt Time until which the response is fresh.
+     * @param staleUntil Time until which the response may be served while it
+     * is being refreshed.
+     * @return
+     * @throws UnsupportedEncodingException
+     */
+    CachedResponse toCachedResponse(long expiresAt, long staleUntil) throws UnsupportedEncodingException {
+        if (status != SC_OK || uncacheable) {
+            return null;
+        }
+        byte[] body;
+        if (chars != null) {
+            writer.flush();
+            String enc = getCharacterEncoding();
+            body = chars.toString().getBytes(enc != null ? enc : "ISO-8859-1");
+        } else if (bytes != null) {
+            body = bytes.toByteArray();
+        } else {
+            body = new byte[0];
+        }
+        return new CachedResponse(getContentType(),
+                headers.toArray(new String[headers.size()]), body,
+                expiresAt, staleUntil);
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        if (writer == null) {
+            final Writer target = super.getWriter();
+            chars = new CharArrayWriter();
+            writer = new PrintWriter(new Writer() {
+                @Override
+                public void write(char[] buf, int off, int len) throws IOException {
+                    target.write(buf, off, len);
+                    chars.write(buf, off, len);
+                }
+
+                @Override
+                public void write(String str, int off, int len) throws IOException {
+                    target.write(str, off, len);
+                    chars.write(str, off, len);
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    target.flush();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    target.close();
+                }
+            });
+        }
+        return writer;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        if (stream == null) {
+            final ServletOutputStream target = super.getOutputStream();
+            bytes = new ByteArrayOutputStream();
+            stream = new ServletOutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    target.write(b);
+                    bytes.write(b);
+                }
+
+                @Override
+                public void write(byte[] buf, int off, int len) throws IOException {
+                    target.write(buf, off, len);
+                    bytes.write(buf, off, len);
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    target.flush();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    target.close();
+                }
+            };
+        }
+        return stream;
+    }
+
+    @Override
+    public void setStatus(int sc) {
+        status = sc;
+        super.setStatus(sc);
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public void setStatus(int sc, String sm) {
+        status = sc;
+        super.setStatus(sc, sm);
+    }
+
+    @Override
+    public void sendError(int sc) throws IOException {
+        status = sc;
+        super.sendError(sc);
+    }
+
+    @Override
+    public void sendError(int sc, String msg) throws IOException {
+        status = sc;
+        super.sendError(sc, msg);
+    }
+
+    @Override
+    public void sendRedirect(String location) throws IOException {
+        status = SC_FOUND;
+        super.sendRedirect(location);
+    }
+
+    @Override
+    public void addCookie(Cookie cookie) {
+        uncacheable = true;
+        super.addCookie(cookie);
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+        removeHeader(name);
+        record(name, value);
+        super.setHeader(name, value);
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+        record(name, value);
+        super.addHeader(name, value);
+    }
+
+    @Override
+    public void setDateHeader(String name, long date) {
+        removeHeader(name);
+        record(name, formatDate(date));
+        super.setDateHeader(name, date);
+    }
+
+    @Override
+    public void addDateHeader(String name, long date) {
+        record(name, formatDate(date));
+        super.addDateHeader(name, date);
+    }
+
+    @Override
+    public void setIntHeader(String name, int value) {
+        removeHeader(name);
+        record(name, Integer.toString(value));
+        super.setIntHeader(name, value);
+    }
+
+    @Override
+    public void addIntHeader(String name, int value) {
+        record(name, Integer.toString(value));
+        super.addIntHeader(name, value);
+    }
+
+    private void record(String name, String value) {
+        if ("Set-Cookie".equalsIgnoreCase(name)) {
+            uncacheable = true;
+        }
+        headers.add(name);
+        headers.add(value);
+    }
+
+    private static String formatDate(long date) {
+        SimpleDateFormat f = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        f.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return f.format(new Date(date));
+    }
+
+    private void removeHeader(String name) {
+        for (int i = headers.size() - 2; i >= 0; i -= 2) {
+            if (headers.get(i).equalsIgnoreCase(name)) {
+                headers.remove(i + 1);
+                headers.remove(i);
+            }
+        }
+    }
+}
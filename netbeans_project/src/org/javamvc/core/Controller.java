@@ -18,14 +18,18 @@ package org.javamvc.core;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.util.Date;
 import java.util.Properties;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import org.apache.commons.beanutils.BeanUtils;
 
 /**
  * Base class for controllers. It implements some common convenience methods and
@@ -33,6 +37,16 @@ import org.apache.commons.beanutils.BeanUtils;
  * keep any per-request information, i.e., a controller is expected to be a
  * stateless object. A new instance of a controller will be created for each
  * HTTP request targeted to be handled by a controller.
+ * <p>
+ * A controller annotated with
+ * {@link org.javamvc.core.annotations.ControllerScope} may instead be reused
+ * across requests. Such a controller is not initialized via
+ * {@link #init}; its protected <code>request</code> and <code>response</code>
+ * fields hold placeholders which throw {@link IllegalStateException} when
+ * used, and it must use the getters, e.g. {@link #getRequest()}, which return
+ * the objects of the request being handled by the current thread (see
+ * {@link RequestContext}). All the convenience methods of this class work the
+ * same in either scope.
  * 
  * Any view rendered via a {@link #View()} method of this class will expect the
  * view templates to be present under <code>Views</code> directory under the web root. 
@@ -62,7 +76,8 @@ public abstract class Controller {
     protected HttpServletResponse response;
     protected ViewProvider viewProvider;
     protected MemCacheProvider cache;
-    private Logger logger = Logger.getLogger(Controller.class.getName());
+    private boolean reused;
+    private static final Logger logger = Logger.getLogger(Controller.class.getName());
 
     /**
      * Initializes the controller instance. It injects a suitable
@@ -82,6 +97,48 @@ public abstract class Controller {
         this.request = req;
         this.response = res;
         this.viewProvider = vp;
+        traceRequest();
+    }
+
+    /**
+     * Initializes a controller which is reused across requests with the
+     * objects shared by all the requests. The request and response fields are
+     * set to placeholders failing on use, as a reused controller must read
+     * them via the getters.
+     */
+    void initReused(MemCacheProvider<Object, Object> cache, ServletContext context,
+            ViewProvider vp) {
+        this.cache = cache;
+        this.context = context;
+        this.viewProvider = vp;
+        this.request = unusable(HttpServletRequest.class, getClass());
+        this.response = unusable(HttpServletResponse.class, getClass());
+        this.reused = true;
+    }
+
+    private static <T> T unusable(final Class<T> type, final Class<?> controller) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(),
+                new Class<?>[]{type}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if ("equals".equals(name) && method.getParameterTypes().length == 1) {
+                    return proxy == args[0];
+                } else if ("hashCode".equals(name) && method.getParameterTypes().length == 0) {
+                    return System.identityHashCode(proxy);
+                }
+                String getter = type == HttpServletRequest.class ? "getRequest()" : "getResponse()";
+                throw new IllegalStateException(controller.getName()
+                        + " is reused across requests, so it must call " + getter
+                        + " instead of reading the protected field");
+            }
+        }));
+    }
+
+    /**
+     * Calls {@link #trace()} for the request about to be handled.
+     */
+    void traceRequest() {
         try {
             trace();
         } catch (Exception ex) {
@@ -110,7 +167,7 @@ public abstract class Controller {
      */
     public String getConfigValue(String key) {
         String value=null;
-        Properties conf = (Properties) context.
+        Properties conf = (Properties) getContext().
                 getAttribute(ControllerServlet.EXTRA_CONFIG);
         if (conf != null) {
             value = conf.getProperty(key);
@@ -127,6 +184,7 @@ public abstract class Controller {
      * @throws IOException
      */
     public void sendJsonErrorResponse(int httpStatusCode, String message) throws IOException {
+        HttpServletResponse response = getResponse();
         response.setContentType("application/json");
         response.setStatus(httpStatusCode);
         response.getWriter().write(message);
@@ -140,7 +198,7 @@ public abstract class Controller {
      * @return
      */
     public boolean isJsonRequest() {
-        String accept = request.getHeader("Accept");
+        String accept = getRequest().getHeader("Accept");
         return accept.toLowerCase().contains("json");
     }
 
@@ -153,7 +211,7 @@ public abstract class Controller {
      */
     public String getJsonData() throws IOException {
         StringBuilder sb = new StringBuilder();
-        BufferedReader reader = request.getReader();
+        BufferedReader reader = getRequest().getReader();
         try {
             String line;
             while ((line = reader.readLine()) != null) {
@@ -163,7 +221,9 @@ public abstract class Controller {
             reader.close();
         }
         String json = sb.toString();
-        logger.fine("JSON data extracted from request: "+json);
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("JSON data extracted from request: "+json);
+        }
         return json;
     }
 
@@ -174,7 +234,11 @@ public abstract class Controller {
      * @return
      */
     public ViewProvider getViewProvider() {
-        return viewProvider;
+        if (viewProvider != null) {
+            return viewProvider;
+        }
+        RequestContext ctx = RequestContext.current();
+        return ctx != null ? ctx.getViewProvider() : null;
     }
 
     /**
@@ -183,7 +247,11 @@ public abstract class Controller {
      * @return
      */
     public HttpServletRequest getRequest() {
-        return request;
+        if (request != null && !reused) {
+            return request;
+        }
+        RequestContext ctx = RequestContext.current();
+        return ctx != null ? ctx.getRequest() : null;
     }
 
     /**
@@ -192,15 +260,38 @@ public abstract class Controller {
      * @return
      */
     public HttpServletResponse getResponse() {
-        return response;
+        if (response != null && !reused) {
+            return response;
+        }
+        RequestContext ctx = RequestContext.current();
+        return ctx != null ? ctx.getResponse() : null;
     }
 
     public MemCacheProvider getMemCache() {
-        return cache;
+        if (cache != null) {
+            return cache;
+        }
+        RequestContext ctx = RequestContext.current();
+        return ctx != null ? ctx.getMemCache() : null;
+    }
+
+    /**
+     * Returns the tags of the entries in memory cache, for invalidating groups
+     * of cached entries or responses.
+     *
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public CacheTags getCacheTags() {
+        return new CacheTags(getMemCache());
     }
 
     public ServletContext getContext() {
-        return context;
+        if (context != null) {
+            return context;
+        }
+        RequestContext ctx = RequestContext.current();
+        return ctx != null ? ctx.getContext() : null;
     }
 
     /**
@@ -211,24 +302,52 @@ public abstract class Controller {
      * @throws IOException 
      */
     public String populateTemplate(String templatePath, Object model) throws IOException {
-        logger.fine("Populating template "+templatePath+" with model: "+model);
-        return viewProvider.renderView(templatePath, model);
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("Populating template "+templatePath+" with model: "+model);
+        }
+        return getViewProvider().renderView(templatePath, model);
     }
 
     /**
      * Finds the template for given view name and fills it with the supplied
-     * model object's data. The filled template is then sent back to client as
-     * string response. View template must be present under 
-     * <code>{Web root}/Views/{Controller name}</code> folder.
+     * model object's data. The filled template is written into the response
+     * once it is rendered; up to the response's buffer size of it is held
+     * back meanwhile, and output beyond that is streamed. If rendering fails
+     * before the response is committed, its buffer is reset, so that the
+     * error can be sent instead of a partial page. View template must be
+     * present under <code>{Web root}/Views/{Controller name}</code> folder.
      *
      * @param viewName
      * @param model
      * @throws IOException
      */
     public void View(String viewName, Object model) throws IOException {
-        String result = viewProvider.renderView(findViewName(viewName), model);
-        logger.fine("Rendered view: "+result);
-        sendViewResponse(result);
+        String view = findViewName(viewName);
+        HttpServletResponse response = getResponse();
+        ViewProvider viewProvider = getViewProvider();
+        prepareViewResponse(response);
+        JfrEvents.Render event = new JfrEvents.Render();
+        event.begin();
+        ViewBuffer out = new ViewBuffer(response.getWriter(), response.getBufferSize());
+        try {
+            if (event.isEnabled()) {
+                JfrEvents.CountingWriter counting = new JfrEvents.CountingWriter(out);
+                viewProvider.renderView(view, model, counting);
+                out.finish();
+                commit(event, view, counting.count);
+            } else {
+                viewProvider.renderView(view, model, out);
+                out.finish();
+            }
+        } catch (IOException | RuntimeException ex) {
+            if (!response.isCommitted()) {
+                response.resetBuffer();
+            }
+            throw ex;
+        }
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("Rendered view: "+view);
+        }
     }
 
     /**
@@ -257,14 +376,11 @@ public abstract class Controller {
     }
 
     /**
-     * Sends the given string as response to the client. Suitable headers are
-     * set on response so as to prevent caching by browser. Content type is set
-     * as "text/html;charset=UTF-8".
-     *
-     * @param result
-     * @throws IOException
+     * Sets the headers of response for sending a view to the client. Suitable
+     * headers are set on response so as to prevent caching by browser. Content
+     * type is set as "text/html;charset=UTF-8".
      */
-    private void sendViewResponse(String result) throws IOException {
+    private void prepareViewResponse(HttpServletResponse response) {
         // No caching
         response.setHeader("Expires", "Tue, 03 Jul 1990 06:00:00 GMT");
         response.setDateHeader("Last-Modified", new Date().getTime());
@@ -272,9 +388,6 @@ public abstract class Controller {
         response.setHeader("Pragma", "no-cache");
 
         response.setContentType("text/html;charset=UTF-8");
-        PrintWriter w = response.getWriter();
-        w.write(result);
-        w.flush();
     }
 
     /**
@@ -284,11 +397,17 @@ public abstract class Controller {
      * @throws IOException
      */
     public void Json(String json) throws IOException {
+        JfrEvents.Render event = new JfrEvents.Render();
+        event.begin();
+        HttpServletResponse response = getResponse();
         response.setContentType("text/json;charset=UTF-8");
         PrintWriter w = response.getWriter();
         w.write(json);
         w.flush();
-        logger.fine("Sent JSON response: "+json);
+        commit(event, "text/json", json.length());
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("Sent JSON response of " + json.length() + " characters");
+        }
     }
 
     /**
@@ -298,10 +417,87 @@ public abstract class Controller {
      * @throws IOException
      */
     public void JsonScript(String json) throws IOException {
+        JfrEvents.Render event = new JfrEvents.Render();
+        event.begin();
+        HttpServletResponse response = getResponse();
         response.setContentType("text/javascript;charset=UTF-8");
         PrintWriter w = response.getWriter();
         w.write(json);
         w.flush();
+        commit(event, "text/javascript", json.length());
+    }
+
+    /**
+     * Holds back the start of a rendered view, up to the size of the response
+     * buffer, until the view is complete. Flushes by the view provider are
+     * ignored, so they cannot commit a partial response.
+     */
+    private static final class ViewBuffer extends Writer {
+
+        private final Writer target;
+        private final char[] buf;
+        private int count;
+        private boolean streaming;
+
+        ViewBuffer(Writer target, int size) {
+            this.target = target;
+            this.buf = new char[size > 0 ? size : 8192];
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            if (!streaming && count + len <= buf.length) {
+                System.arraycopy(cbuf, off, buf, count, len);
+                count += len;
+                return;
+            }
+            spill();
+            target.write(cbuf, off, len);
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            if (!streaming && count + len <= buf.length) {
+                str.getChars(off, off + len, buf, count);
+                count += len;
+                return;
+            }
+            spill();
+            target.write(str, off, len);
+        }
+
+        private void spill() throws IOException {
+            if (!streaming) {
+                target.write(buf, 0, count);
+                streaming = true;
+            }
+        }
+
+        /**
+         * Writes the held back output into the response.
+         */
+        void finish() throws IOException {
+            spill();
+        }
+
+        @Override
+        public void flush() {
+            // Deferred until the view is complete
+        }
+
+        @Override
+        public void close() {
+            // The response writer is closed by the container
+        }
+    }
+
+    private void commit(JfrEvents.Render event, String template, long written) {
+        if (event.shouldCommit()) {
+            event.controller = getClass().getSimpleName();
+            event.template = template;
+            event.written = written;
+            event.commit();
+        }
     }
 
     /**
@@ -320,13 +516,27 @@ public abstract class Controller {
         }
         String ct = getClass().getSimpleName();
         String view = "Views/" + ct + "/" + viewNm;
-        logger.fine("View path: "+view);
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("View path: "+view);
+        }
         return view;
     }
 
+    /**
+     * Sets the properties of given bean from the parameters of current
+     * request, in the same way as <code>BeanUtils.populate</code>. The
+     * setters of each bean class are looked up only once. Parameters of
+     * nested beans which are null, e.g. <code>address.city</code>, are
+     * skipped, and the <code>class</code> property is never accessed.
+     *
+     * @param <T>
+     * @param obj The bean to be populated.
+     * @throws IllegalAccessException
+     * @throws InvocationTargetException If a property could not be set.
+     */
     protected <T> void fromRequestParamsToObj(T obj)
             throws IllegalAccessException, InvocationTargetException {
-        BeanUtils.populate(obj, request.getParameterMap());
+        BeanBinder.populate(obj, getRequest().getParameterMap());
     }
 
 }
@@ -0,0 +1,166 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.ServletContext;
+import org.javamvc.core.annotations.ControllerScope;
+
+/**
+ * Supplies the controller instances of one controller class according to its
+ * {@link ControllerScope}.
+ *
+ * @author Balwinder Sodhi
+ */
+abstract class ControllerProvider {
+
+    /**
+     * True if each instance serves only one request, so that it is initialized
+     * with the request objects via <code>init</code>.
+     */
+    final boolean perRequest;
+    final Invokers.ControllerFactory factory;
+    private final MemCacheProvider<Object, Object> cache;
+    private final ServletContext context;
+    private final ViewProvider viewProvider;
+
+    private ControllerProvider(boolean perRequest, Invokers.ControllerFactory factory,
+            MemCacheProvider<Object, Object> cache, ServletContext context,
+            ViewProvider viewProvider) {
+        this.perRequest = perRequest;
+        this.factory = factory;
+        this.cache = cache;
+        this.context = context;
+        this.viewProvider = viewProvider;
+    }
+
+    /**
+     * Returns a controller for serving a request. It must be passed to
+     * {@link #release(Object)} after the request.
+     *
+     * @return
+     * @throws Exception
+     */
+    abstract Object acquire() throws Exception;
+
+    /**
+     * Returns a controller obtained by {@link #acquire()}.
+     *
+     * @param controller
+     */
+    void release(Object controller) {
+    }
+
+    /**
+     * Creates a controller to be reused across requests. A {@link Controller}
+     * is given the objects shared by all the requests, and its request and
+     * response fields are made unusable.
+     */
+    Object newReused() throws Exception {
+        Object c = factory.newInstance();
+        if (c instanceof Controller) {
+            ((Controller) c).initReused(cache, context, viewProvider);
+        }
+        return c;
+    }
+
+    /**
+     * Creates the provider for the controllers of given route.
+     */
+    static ControllerProvider create(ActionRoute route, MemCacheProvider<Object, Object> cache,
+            ServletContext context, ViewProvider viewProvider) {
+        ControllerScope scope = route.controllerType.getAnnotation(ControllerScope.class);
+        ControllerScope.Scope kind = scope != null ? scope.value() : ControllerScope.Scope.REQUEST;
+        switch (kind) {
+            case SINGLETON:
+                return new Singleton(route.factory, cache, context, viewProvider);
+            case POOLED:
+                int size = scope.poolSize() > 0 ? scope.poolSize()
+                        : 2 * Runtime.getRuntime().availableProcessors();
+                return new Pooled(route.factory, cache, context, viewProvider, size);
+            default:
+                return new ControllerProvider(true, route.factory, cache, context, viewProvider) {
+                    @Override
+                    Object acquire() throws Exception {
+                        return factory.newInstance();
+                    }
+                };
+        }
+    }
+
+    private static final class Singleton extends ControllerProvider {
+
+        private volatile Object instance;
+
+        Singleton(Invokers.ControllerFactory factory, MemCacheProvider<Object, Object> cache,
+                ServletContext context, ViewProvider viewProvider) {
+            super(false, factory, cache, context, viewProvider);
+        }
+
+        @Override
+        Object acquire() throws Exception {
+            Object c = instance;
+            if (c == null) {
+                synchronized (this) {
+                    c = instance;
+                    if (c == null) {
+                        c = newReused();
+                        instance = c;
+                    }
+                }
+            }
+            return c;
+        }
+    }
+
+    /**
+     * Keeps up to a fixed number of idle instances. When none is idle, a new
+     * one is created rather than waiting, and instances released while the
+     * pool is full are dropped.
+     */
+    private static final class Pooled extends ControllerProvider {
+
+        private final ConcurrentLinkedQueue<Object> idle = new ConcurrentLinkedQueue<Object>();
+        private final AtomicInteger idleCount = new AtomicInteger();
+        private final int size;
+
+        Pooled(Invokers.ControllerFactory factory, MemCacheProvider<Object, Object> cache,
+                ServletContext context, ViewProvider viewProvider, int size) {
+            super(false, factory, cache, context, viewProvider);
+            this.size = size;
+        }
+
+        @Override
+        Object acquire() throws Exception {
+            Object c = idle.poll();
+            if (c != null) {
+                idleCount.decrementAndGet();
+                return c;
+            }
+            return newReused();
+        }
+
+        @Override
+        void release(Object controller) {
+            if (idleCount.incrementAndGet() <= size) {
+                idle.offer(controller);
+            } else {
+                idleCount.decrementAndGet();
+            }
+        }
+    }
+}
@@ -18,20 +18,35 @@ package org.javamvc.core;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.util.Arrays;
-import java.util.List;
+import java.util.Collections;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
+import javax.management.ObjectName;
 import javax.servlet.annotation.MultipartConfig;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import org.apache.commons.lang3.reflect.MethodUtils;
-import org.javamvc.core.annotations.Action;
-import org.javamvc.core.annotations.Authorize;
 
 /**
  * In order to make use of ASP.NET MVC style view and controllers, you can use
@@ -39,11 +54,48 @@ import org.javamvc.core.annotations.Authorize;
  * <ol>
  * <li>memcache.provider.class -- Fully qualified name of the class which 
  * implements {@link MemCacheProvider}. If not provided then this servlet
- * will use {@link LocalMemCache} instance as default.
+ * will use {@link LocalMemCache} instance as default. The provider is given
+ * the servlet init parameters via
+ * {@link MemCacheProvider#init(ServletContext, ServletConfig)}; see
+ * {@link LocalMemCache} for the parameters it supports. For sharing the cache
+ * among nodes, {@link MemcachedMemCache} can be used, optionally behind a
+ * {@link NearMemCache}.
  * </li>
  * <li>controller.package.name -- Fully qualified name of the java package in
  * your application where controller classes will be placed. This is a required
- * parameter.</li>
+ * parameter. The controller actions are loaded once during initialization
+ * from the {@link RouteRegistry} generated for this package at compile time.
+ * If the package has no such registry then it is scanned for controllers;
+ * so are the classes of the package which were compiled separately from the
+ * registry, e.g. by an incremental build.
+ * Requests for unknown controllers or actions get a 404 response.</li>
+ * <li>controller.lazy.resolution -- Optionally, set to true to resolve
+ * controllers which are not in the route table on their first request. By
+ * default this is enabled only if no controller actions were found during
+ * initialization. Controller/action names which could not be resolved are
+ * remembered, up to <code>controller.lazy.negative.cache.size</code> (default
+ * 10000) of them, so that repeated requests for them are answered without
+ * loading classes. Beyond that, the oldest remembered names are dropped.</li>
+ * <li>auth.context.resolver.class -- Fully qualified name of the class which
+ * implements {@link AuthContextResolver}. If not specified, this servlet will
+ * use {@link SessionAuthContextResolver}. Use
+ * {@link SignedTokenAuthContextResolver} for authorizing requests without any
+ * server side session state.</li>
+ * <li>async.actions -- Optionally, set to true to run all the actions
+ * asynchronously. Otherwise only the actions marked with
+ * <code>@Action(async = true)</code> are. An asynchronous action is run on a
+ * separate executor via an {@link AsyncContext}, so the container's request
+ * thread is released while the action blocks. The servlet must be declared
+ * with async support for this; otherwise actions are run synchronously.</li>
+ * <li>async.executor.class -- Optionally, fully qualified name of the class
+ * which implements {@link ExecutorService}, used for asynchronous actions. By
+ * default a virtual thread per task executor is used on JDK 21 or later, and
+ * a fixed thread pool of <code>async.pool.size</code> threads (default is
+ * twice the number of processors) on older JDKs.</li>
+ * <li>async.timeout -- Optionally, the timeout in milliseconds of the
+ * asynchronous actions. Default is 30000. A request whose action is still
+ * running then gets a 503 response, and whatever the action writes later is
+ * discarded.</li>
  * <li>view.provider.class -- Fully qualified name of the class which implements
  * {@link ViewProvider}. If not specified, this servlet will use
  * {@link StringViewProvider} included in this library.</li>
@@ -55,6 +107,43 @@ import org.javamvc.core.annotations.Authorize;
  * loaded properties are set as servlet context attribute named by 
  * {@link #EXTRA_CONFIG}.</li>
  * </ol>
+ * Responses of actions annotated with
+ * {@link org.javamvc.core.annotations.OutputCache} are stored in the memory
+ * cache provider and served from there, without creating the controller,
+ * until the TTL of the annotation expires. Between the TTL and the hard TTL,
+ * the stale response is served while one background thread runs the action
+ * again to refresh it. The action then runs on a snapshot of the request;
+ * an action which reads the request body, creates a session or dispatches
+ * the request is not refreshed in background but run again on a stale hit.
+ * These refreshes run on a pool of
+ * <code>output.cache.refresh.threads</code> threads (default 2) with a queue
+ * of <code>output.cache.refresh.queue.size</code> (default 100) tasks.
+ * <p>
+ * If the init parameter <code>metrics.enabled</code> is true, the servlet
+ * keeps {@link Metrics}: latency histograms of each action, split into the
+ * phases of authorization, controller creation and <code>init</code>, the
+ * action itself and view rendering, along with counters of errors, memory
+ * cache hits and misses, output cache hits and stale serves, and the render
+ * times of views. Metrics are disabled by default. If <code>metrics.jmx</code>
+ * is also true, the metrics are registered as JMX MBeans in the domain
+ * <code>org.javamvc</code>. If
+ * <code>metrics.path</code> is given, e.g. <code>/metrics</code>, requests
+ * for that path relative to the context are answered with the metrics in the
+ * Prometheus text format; the servlet mapping must cover the path, and access
+ * to it should be restricted via the container's security constraints.
+ * <p>
+ * Each request is written to an access log, i.e., the logger
+ * <code>org.javamvc.core.RequestLog</code> at level INFO, by a background
+ * thread, so that request threads never wait for the log. Entries which do
+ * not fit in its buffer of <code>request.log.buffer.size</code> entries
+ * (default 4096) are dropped. Set <code>request.log.sample.rate</code> to a
+ * fraction for logging only some of the requests, or
+ * <code>request.log.enabled</code> to false for disabling the log.
+ * <p>
+ * A new controller is created for every request, unless the controller class
+ * is annotated with {@link org.javamvc.core.annotations.ControllerScope}
+ * for reusing one instance, or a pool of instances, across requests. While an
+ * action runs, its request is available via {@link RequestContext#current()}.
  *
  * @author Balwinder Sodhi
  */
@@ -63,12 +152,64 @@ public class ControllerServlet extends HttpServlet {
 
     private String controllerPkg;
     private ViewProvider viewProvider;
+    private AuthContextResolver authResolver;
+    private RouteTable routes;
+    /**
+     * Routes which were not found by the package scan but were resolved later
+     * on demand. Keyed by "controller/action".
+     */
+    private final ConcurrentMap<String, ActionRoute> lateRoutes
+            = new ConcurrentHashMap<String, ActionRoute>();
+    /**
+     * Controller/action names which could not be resolved on demand.
+     */
+    private final ConcurrentMap<String, Boolean> unknownRoutes
+            = new ConcurrentHashMap<String, Boolean>();
+    /**
+     * Keys of {@link #unknownRoutes} in the order they were added, for
+     * evicting the oldest one when the limit is reached.
+     */
+    private final ConcurrentLinkedQueue<String> unknownRoutesOrder
+            = new ConcurrentLinkedQueue<String>();
+    /**
+     * Providers of controller instances, keyed by controller class.
+     */
+    private final ConcurrentMap<Class<?>, ControllerProvider> controllerProviders
+            = new ConcurrentHashMap<Class<?>, ControllerProvider>();
+    private boolean lazyResolution;
+    private boolean asyncActions;
+    private long asyncTimeout;
+    private ExecutorService asyncExecutor;
+    private int unknownRoutesLimit;
+    /**
+     * Cache keys of the stale responses being refreshed.
+     */
+    private final ConcurrentMap<String, Boolean> refreshing
+            = new ConcurrentHashMap<String, Boolean>();
+    /**
+     * Actions which cannot be refreshed in background, as they use parts of
+     * the request which {@link DetachedExchange} does not support.
+     */
+    private final Set<ActionRoute> notRefreshable
+            = Collections.newSetFromMap(new ConcurrentHashMap<ActionRoute, Boolean>());
+    private ThreadPoolExecutor refreshExecutor;
+    private final AtomicLong staleServes = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+    private final AtomicLong refreshFailures = new AtomicLong();
+    private final AtomicLong freshServes = new AtomicLong();
+    private final AtomicLong outputCacheMisses = new AtomicLong();
+    private Metrics metrics;
+    private String metricsPath;
+    private LongAdder unmatchedRequests;
+    private RequestLog requestLog;
+    private static final String NOT_FOUND = "No such action.";
 
     /**
      *
      */
     public static final String EXTRA_CONFIG = "ControllerServlet.EXTRA_CONFIG";
-    private static MemCacheProvider memCache;
+    private MemCacheProvider<Object, Object> memCache;
+    private CacheTags cacheTags;
 
     /**
      *
@@ -79,25 +220,66 @@ public class ControllerServlet extends HttpServlet {
     public void init(ServletConfig config) throws ServletException {
         super.init(config);
 
+        if (Boolean.parseBoolean(config.getInitParameter("metrics.enabled"))) {
+            String jmxDomain = null;
+            if (Boolean.parseBoolean(config.getInitParameter("metrics.jmx"))) {
+                String context = config.getServletContext().getContextPath();
+                jmxDomain = "org.javamvc:type=ControllerServlet,context="
+                        + ObjectName.quote(context.isEmpty() ? "/" : context)
+                        + ",servlet=" + ObjectName.quote(config.getServletName());
+            }
+            metrics = new Metrics(jmxDomain);
+            metricsPath = config.getInitParameter("metrics.path");
+            if (metricsPath != null) {
+                metricsPath = metricsPath.trim();
+            }
+            registerMetrics();
+        }
+        requestLog = RequestLog.create(config);
+        if (requestLog != null && metrics != null) {
+            metrics.counter("javamvc_request_log_dropped_total",
+                    "Request log entries dropped since the log buffer was full.",
+                    new LongSupplier() {
+                @Override
+                public long getAsLong() {
+                    return requestLog.droppedCount();
+                }
+            });
+        }
+
         String memcacheClass = config.getInitParameter("memcache.provider.class");
         if (memcacheClass == null) {
             memCache = new LocalMemCache();
             log("Initialized memory cache provider: "+memCache);
         } else {
             try {
-                memCache = (MemCacheProvider) Class.forName(memcacheClass)
-                        .newInstance();
+                @SuppressWarnings("unchecked")
+                MemCacheProvider<Object, Object> provider = (MemCacheProvider<Object, Object>)
+                        Class.forName(memcacheClass).getDeclaredConstructor().newInstance();
+                memCache = provider;
             } catch (Exception ex) {
                 throw new ServletException("Could not initialize memory cache provider. ", ex);
             }
             log("Using "+memCache.getClass().getName()+" memory cache provider.");
         }
+        memCache.init(getServletContext(), config);
+        if (metrics != null) {
+            memCache = new MeteredMemCache<Object, Object>(memCache, metrics);
+        }
+        cacheTags = new CacheTags(memCache);
 
         
         controllerPkg = config.getInitParameter("controller.package.name");
         if (controllerPkg != null) {
             controllerPkg = controllerPkg.trim();
         }
+        routes = RouteTable.load(getControllerClassLoader(), controllerPkg);
+        log("Found "+routes.size()+" controller actions in package "+controllerPkg);
+        String lazy = config.getInitParameter("controller.lazy.resolution");
+        lazyResolution = lazy != null ? Boolean.parseBoolean(lazy.trim())
+                : routes.size() == 0;
+        String limit = config.getInitParameter("controller.lazy.negative.cache.size");
+        unknownRoutesLimit = limit != null ? Integer.parseInt(limit.trim()) : 10000;
         String extraConfig = config.getInitParameter("load.extra.config");
         if (extraConfig != null) {
             InputStream stream = getServletContext().getResourceAsStream(extraConfig);
@@ -119,10 +301,33 @@ public class ControllerServlet extends HttpServlet {
         try {
             viewProvider = (ViewProvider) Class.forName(viewProviderClass).newInstance();
             viewProvider.init(getServletContext(), config);
+            if (metrics != null) {
+                viewProvider = new MeteredViewProvider(viewProvider, metrics);
+            }
         } catch (Exception ex) {
             throw new ServletException("Could not initialize ViewProvider. ", ex);
         }
         log("Using "+viewProvider.getClass().getName()+" view provider.");
+
+        String resolverClass = config.getInitParameter("auth.context.resolver.class");
+        if (resolverClass == null) {
+            resolverClass = SessionAuthContextResolver.class.getName();
+        }
+        try {
+            authResolver = (AuthContextResolver) Class.forName(resolverClass.trim())
+                    .getDeclaredConstructor().newInstance();
+            authResolver.init(getServletContext(), config);
+        } catch (Exception ex) {
+            throw new ServletException("Could not initialize AuthContextResolver. ", ex);
+        }
+        log("Using "+authResolver.getClass().getName()+" auth context resolver.");
+
+        asyncActions = Boolean.parseBoolean(config.getInitParameter("async.actions"));
+        String timeout = config.getInitParameter("async.timeout");
+        asyncTimeout = timeout != null ? Long.parseLong(timeout.trim()) : 30000;
+        asyncExecutor = createAsyncExecutor(config);
+        log("Using "+asyncExecutor+" for asynchronous actions.");
+        refreshExecutor = createRefreshExecutor(config);
         log("+++++++++++++++++++++ Initialization complete +++++++++++++++++++++");
     }
 
@@ -141,11 +346,122 @@ public class ControllerServlet extends HttpServlet {
             delegateAction(request, response);
         } catch (Exception ex) {
             log("Could not process request. ", ex);
+            if (response.isCommitted()) {
+                // Part of the response was sent already, so the error cannot
+                // be; let the container abort the response
+                throw new ServletException("Request failed after the response was committed", ex);
+            }
+            response.resetBuffer();
             sendJsonErrorResponse(response,
                     HttpServletResponse.SC_INTERNAL_SERVER_ERROR, ex.getLocalizedMessage());
         }
     }
 
+    @Override
+    public void destroy() {
+        if (asyncExecutor != null) {
+            asyncExecutor.shutdown();
+        }
+        if (refreshExecutor != null) {
+            refreshExecutor.shutdown();
+        }
+        if (memCache != null) {
+            memCache.destroy();
+        }
+        if (metrics != null) {
+            metrics.close();
+        }
+        if (requestLog != null) {
+            requestLog.stop();
+        }
+        super.destroy();
+    }
+
+    /**
+     * Registers the metrics of the output cache and of the requests which did
+     * not match any action.
+     */
+    private void registerMetrics() {
+        unmatchedRequests = metrics.counter("javamvc_unmatched_requests_total",
+                "Requests which did not match any action.");
+        String name = "javamvc_output_cache_requests_total";
+        String help = "Requests for cached actions by how they were served.";
+        metrics.counter(name, help, valueOf(freshServes), "result", "hit");
+        metrics.counter(name, help, valueOf(staleServes), "result", "stale");
+        metrics.counter(name, help, valueOf(outputCacheMisses), "result", "miss");
+        name = "javamvc_output_cache_refreshes_total";
+        help = "Background refreshes of stale cached responses.";
+        metrics.counter(name, help, valueOf(refreshes), "result", "success");
+        metrics.counter(name, help, valueOf(refreshFailures), "result", "failure");
+    }
+
+    private static LongSupplier valueOf(final AtomicLong counter) {
+        return new LongSupplier() {
+            @Override
+            public long getAsLong() {
+                return counter.get();
+            }
+        };
+    }
+
+    /**
+     * Creates the executor for asynchronous actions.
+     */
+    private ExecutorService createAsyncExecutor(ServletConfig config) throws ServletException {
+        String executorClass = config.getInitParameter("async.executor.class");
+        if (executorClass != null) {
+            try {
+                return (ExecutorService) Class.forName(executorClass.trim())
+                        .getDeclaredConstructor().newInstance();
+            } catch (Exception ex) {
+                throw new ServletException("Could not initialize async executor. ", ex);
+            }
+        }
+        try {
+            // Available on JDK 21 and later
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception ex) {
+            // Use platform threads
+        }
+        String size = config.getInitParameter("async.pool.size");
+        int threads = size != null ? Integer.parseInt(size.trim())
+                : 2 * Runtime.getRuntime().availableProcessors();
+        final AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "javamvc-async-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Creates the bounded executor for refreshing stale cached responses.
+     * Refreshes submitted while its queue is full are dropped.
+     */
+    private ThreadPoolExecutor createRefreshExecutor(ServletConfig config) {
+        String value = config.getInitParameter("output.cache.refresh.threads");
+        int threads = value != null ? Integer.parseInt(value.trim()) : 2;
+        value = config.getInitParameter("output.cache.refresh.queue.size");
+        int queue = value != null ? Integer.parseInt(value.trim()) : 100;
+        final AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queue),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "javamvc-refresh-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     private void sendJsonErrorResponse(HttpServletResponse response,
             int httpStatus, String message) throws IOException {
         response.setContentType("application/json");
@@ -202,128 +518,513 @@ public class ControllerServlet extends HttpServlet {
     }// </editor-fold>
 
     /**
-     * We extract the name of controller and action from the given HTTP request.
-     * The request URL is expected to contain the controller and action name as
-     * the last two parts (excluding query parameters) in the URI. E.g.
-     * http://host.com:8080/MyApp/SomeController/FooBarAction.someExt?p1=v1&p2=v2
+     * Delegates the servlet request to suitable controller for processing. We
+     * first identify the controller action from current HTTP request URL. The
+     * URL is matched against the path templates of actions (see
+     * {@link org.javamvc.core.annotations.Action#path()}), taken relative to
+     * the context path. If none matches, the request URL is expected to
+     * contain the controller and action name as the last two parts (excluding
+     * query parameters) in the URI. E.g.
+     * http://host.com:8080/MyApp/SomeController/FooBarAction.someExt?p1=v1&amp;p2=v2
      * will result in the controller name as "SomeController", and action name
      * as "FooBarAction". Extension name, if present, of the action is excluded.
-     * Basically, last part (excluding extension) is action name and second-last
-     * part if the controller name.
-     * @param request Current HTTP request being handled by this servlet.
-     * @return A String array whose first element is action name and second
-     * element is the name of controller.
+     * If no such action exists, or a path parameter cannot be converted to the
+     * type of its action argument, a 404 response is sent. Otherwise, if the
+     * currently logged on application user is authorized to invoke the
+     * action, we instantiate the controller class and invoke action method on
+     * it.
+     *
+     * @param request Current HTTP request being processed by servlet.
+     * @param response Response to be sent for current HTTP request.
+     * @throws Exception Any exception thrown by the controller.
      */
-    private String[] extractControllerInfo(HttpServletRequest request) {
-
-        String uri = request.getRequestURI().substring(1); // URI without the starting slash
-        log("URI=" + uri);
-        String[] uriParts = uri.split("/");
-        String actionName = tryGetArrayElement(uriParts, uriParts.length-1);
-        actionName = actionName.substring(0, actionName.indexOf("."));
-        String controllerName = tryGetArrayElement(uriParts, uriParts.length-2);
-        return new String[]{actionName, controllerName};
+    private void delegateAction(HttpServletRequest request, HttpServletResponse response)
+            throws Exception {
+        JfrEvents.Dispatch event = new JfrEvents.Dispatch();
+        event.begin();
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            delegateAction(request, response, event);
+            failed = false;
+        } finally {
+            int status = failed ? HttpServletResponse.SC_INTERNAL_SERVER_ERROR
+                    : response.getStatus();
+            if (requestLog != null && !event.async) {
+                requestLog.log(request.getMethod(), request.getRequestURI(),
+                        event.controller, event.action, status, false, start);
+            }
+            if (event.shouldCommit()) {
+                event.uri = request.getRequestURI();
+                event.status = status;
+                event.commit();
+            }
+        }
     }
 
     /**
-     * Try to safely get the array element at given index. We just want to see
-     * if an element can be accessed without overshooting array bounds.
+     * Does the work of {@link #delegateAction(HttpServletRequest,
+     * HttpServletResponse)}, noting the route in the JFR event, from where it
+     * is also taken for the request log.
+     */
+    private void delegateAction(HttpServletRequest request, HttpServletResponse response,
+            JfrEvents.Dispatch event) throws Exception {
+
+        long start = System.nanoTime();
+        String uri = request.getRequestURI();
+        int end = RouteTable.pathEnd(uri);
+        int contextEnd = request.getContextPath().length();
+        if (metricsPath != null && end - contextEnd == metricsPath.length()
+                && uri.startsWith(metricsPath, contextEnd)) {
+            writeMetrics(response);
+            return;
+        }
+        int[] captures = routes.newCaptures();
+        ActionRoute route = routes.match(uri, contextEnd, end, captures);
+        String[] args = ActionRoute.NO_ARGS;
+        if (route != null) {
+            try {
+                args = route.bindArguments(uri, captures);
+            } catch (Invokers.BadArgumentException ex) {
+                // Not a resource, as for path parameters which fail conversion
+                route = null;
+            }
+        } else if (lazyResolution) {
+            String[] actCtrl = RouteTable.conventionalNames(uri, end);
+            route = findLateRoute(actCtrl[1], actCtrl[0]);
+        }
+        if (route == null) {
+            if (unmatchedRequests != null) {
+                unmatchedRequests.increment();
+            }
+            sendJsonErrorResponse(response, HttpServletResponse.SC_NOT_FOUND, NOT_FOUND);
+            return;
+        }
+        String actionName = route.actionName;
+        event.controller = route.controllerName;
+        event.action = actionName;
+
+        Metrics.RouteTimers timers = metrics != null ? metrics.route(route) : null;
+        boolean async = false;
+        try {
+            long authStart = System.nanoTime();
+            boolean authorized = isAuthorized(route, actionName, request);
+            if (timers != null) {
+                timers.auth.recordSince(authStart);
+            }
+            if (authorized) {
+                async = dispatch(route, args, request, response, timers, start);
+                event.async = async;
+            } else {
+                sendJsonErrorResponse(response, HttpServletResponse.SC_FORBIDDEN,
+                        actionName + " is not authorized.");
+                //response.sendError(HttpServletResponse.SC_FORBIDDEN, actionName + " is not authorized.");
+            }
+        } catch (Invokers.BadArgumentException ex) {
+            // The URI matched a template but does not name a resource
+            sendJsonErrorResponse(response, HttpServletResponse.SC_NOT_FOUND, NOT_FOUND);
+        } catch (Exception ex) {
+            if (timers != null) {
+                timers.errors.increment();
+            }
+            throw ex;
+        } finally {
+            if (timers != null && !async) {
+                timers.total.recordSince(start);
+            }
+        }
+    }
+
+    /**
+     * Serves the request from the output cache if possible, and otherwise
+     * invokes the action.
      *
-     * @param array
-     * @param index
-     * @return The element at given index if it exists. If element doesn't exist
-     * then null is returned.
+     * @return True if the action was started asynchronously.
+     */
+    private boolean dispatch(ActionRoute route, String[] args, HttpServletRequest request,
+            HttpServletResponse response, Metrics.RouteTimers timers, long start)
+            throws Exception {
+        String cacheKey = null;
+        if (route.outputCache != null && OutputCachePolicy.isCacheable(request)) {
+            cacheKey = route.outputCache.key(route, args, request, authResolver, cacheTags);
+            Object cached = memCache.get(cacheKey);
+            if (cached instanceof CachedResponse) {
+                CachedResponse cr = (CachedResponse) cached;
+                long now = System.currentTimeMillis();
+                if (cr.isFresh(now)) {
+                    freshServes.incrementAndGet();
+                    cr.writeTo(response);
+                    return false;
+                }
+                if (cr.isStaleUsable(now) && !notRefreshable.contains(route)) {
+                    staleServes.incrementAndGet();
+                    refreshInBackground(route, args, cacheKey, request);
+                    cr.writeTo(response);
+                    return false;
+                }
+            }
+            outputCacheMisses.incrementAndGet();
+        }
+        if ((route.async || asyncActions) && request.isAsyncSupported()) {
+            invokeAsync(route, args, cacheKey, request, response, timers, start);
+            return true;
+        }
+        invokeAction(route, args, cacheKey, request, response, timers);
+        return false;
+    }
+
+    private void writeMetrics(HttpServletResponse response) throws IOException {
+        response.setContentType("text/plain; version=0.0.4; charset=utf-8");
+        metrics.writeTo(response.getWriter());
+    }
+
+    /**
+     * Obtains the controller and invokes the action on it. If a cache key is
+     * given, the response is captured and stored under it in the memory cache.
+     * If timers are given, the time of each phase is recorded in them.
      */
-    private String tryGetArrayElement(String[] array, int index) {
-        String value = null;
+    private void invokeAction(ActionRoute route, String[] args, String cacheKey,
+            HttpServletRequest request, HttpServletResponse response,
+            Metrics.RouteTimers timers) throws Exception {
+        CapturingResponse capture = cacheKey != null ? new CapturingResponse(response) : null;
+        JfrEvents.Action event = new JfrEvents.Action();
+        event.begin();
+        long start = System.nanoTime();
+        HttpServletResponse res = capture != null ? capture : response;
+        ControllerProvider provider = controllerProvider(route);
+        Object obj = provider.acquire();
+        RequestContext previous = RequestContext.enter(new RequestContext(request, res,
+                getServletContext(), memCache, viewProvider));
+        boolean failed = true;
         try {
-            value = array[index];
-        } catch (Exception e) {
-            // Do nothing
+            if (provider.perRequest) {
+                route.initializer.init(obj, memCache, getServletContext(),
+                        request, res, viewProvider);
+            } else if (obj instanceof Controller) {
+                ((Controller) obj).traceRequest();
+            }
+            if (timers != null) {
+                long rendered = MeteredViewProvider.renderNanos()[0];
+                long now = System.nanoTime();
+                timers.init.record(now - start);
+                route.invoker.invoke(obj, args);
+                rendered = MeteredViewProvider.renderNanos()[0] - rendered;
+                if (rendered > 0) {
+                    timers.render.record(rendered);
+                }
+                timers.action.record(System.nanoTime() - now - rendered);
+            } else {
+                route.invoker.invoke(obj, args);
+            }
+            failed = false;
+        } finally {
+            RequestContext.exit(previous);
+            provider.release(obj);
+            if (event.shouldCommit()) {
+                event.controller = route.controllerName;
+                event.action = route.actionName;
+                event.captured = capture != null;
+                event.failed = failed;
+                event.commit();
+            }
         }
-        return value;
+        if (capture != null) {
+            long now = System.currentTimeMillis();
+            CachedResponse cached = capture.toCachedResponse(now + route.outputCache.ttlMillis,
+                    now + route.outputCache.hardTtlMillis);
+            if (cached != null) {
+                memCache.put(cacheKey, cached, route.outputCache.hardTtlMillis);
+            }
+        }
+    }
+
+    private ControllerProvider controllerProvider(ActionRoute route) {
+        ControllerProvider provider = controllerProviders.get(route.controllerType);
+        if (provider == null) {
+            provider = ControllerProvider.create(route, memCache,
+                    getServletContext(), viewProvider);
+            ControllerProvider existing = controllerProviders.putIfAbsent(
+                    route.controllerType, provider);
+            if (existing != null) {
+                provider = existing;
+            }
+        }
+        return provider;
     }
 
     /**
-     * Delegates the servlet request to suitable controller for processing. We
-     * first identify the names of controller class and action method from
-     * current HTTP request URL. Then, if the currently logged on application
-     * user is authorized to invoke the action, we instantiate the controller
-     * class and invoke action method on it.
+     * Runs the action on the async executor. Errors and timeouts are reported
+     * in the same way as for synchronous actions. The action writes through a
+     * {@link GuardedResponse}; on timeout it is closed before the error is
+     * sent, so the action's later output is dropped instead of reaching the
+     * response after the request was completed.
+     */
+    private void invokeAsync(final ActionRoute route, final String[] args,
+            final String cacheKey, final HttpServletRequest request, final HttpServletResponse response,
+            final Metrics.RouteTimers timers, final long start) {
+        final AsyncContext async = request.startAsync(request, response);
+        async.setTimeout(asyncTimeout);
+        final GuardedResponse guarded = new GuardedResponse(response);
+        final AtomicBoolean done = new AtomicBoolean();
+        async.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) throws IOException {
+                if (done.compareAndSet(false, true)) {
+                    guarded.close(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                    log("Action " + route + " timed out.");
+                    if (!response.isCommitted()) {
+                        response.resetBuffer();
+                        sendJsonErrorResponse(response,
+                                HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                                route.actionName + " timed out.");
+                    }
+                    async.complete();
+                }
+            }
+
+            @Override
+            public void onError(AsyncEvent event) throws IOException {
+                if (done.compareAndSet(false, true)) {
+                    guarded.close();
+                    async.complete();
+                }
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) {
+                done.set(true);
+                guarded.close();
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+                // Do nothing
+            }
+        });
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    invokeAction(route, args, cacheKey, request, guarded, timers);
+                } catch (Invokers.BadArgumentException ex) {
+                    sendAsyncError(guarded, HttpServletResponse.SC_NOT_FOUND, NOT_FOUND);
+                } catch (Exception ex) {
+                    if (timers != null) {
+                        timers.errors.increment();
+                    }
+                    if (!guarded.isClosed()) {
+                        log("Could not process request. ", ex);
+                        sendAsyncError(guarded, HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                                ex.getLocalizedMessage());
+                    }
+                } finally {
+                    if (timers != null) {
+                        timers.total.recordSince(start);
+                    }
+                    if (requestLog != null) {
+                        requestLog.log(request.getMethod(), request.getRequestURI(),
+                                route.controllerName, route.actionName, guarded.getStatus(),
+                                true, start);
+                    }
+                    if (done.compareAndSet(false, true)) {
+                        async.complete();
+                    }
+                }
+            }
+        };
+        try {
+            asyncExecutor.execute(task);
+        } catch (RejectedExecutionException ex) {
+            if (done.compareAndSet(false, true)) {
+                guarded.close();
+                try {
+                    sendJsonErrorResponse(response,
+                            HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                            route.actionName + " could not be scheduled.");
+                } catch (IOException ioe) {
+                    log("Could not send error response. ", ioe);
+                }
+                async.complete();
+            }
+        }
+    }
+
+    private void sendAsyncError(GuardedResponse response, int status, String message) {
+        try {
+            if (!response.isCommitted()) {
+                response.resetBuffer();
+                sendJsonErrorResponse(response, status, message);
+            }
+        } catch (IOException ex) {
+            log("Could not send error response. ", ex);
+        }
+    }
+
+    /**
+     * Runs the action on the refresh executor for replacing its stale cached
+     * response, unless a refresh of the same response is already under way.
+     * If the action fails or the executor is busy, the stale response stays
+     * in the cache until a later request refreshes it or its hard TTL ends.
+     * An action which fails because it needs more of the request than
+     * {@link DetachedExchange} provides, e.g. its body, is marked as not
+     * refreshable; its stale responses are then treated as misses.
+     */
+    private void refreshInBackground(final ActionRoute route, final String[] args,
+            final String cacheKey, HttpServletRequest request) {
+        if (refreshing.putIfAbsent(cacheKey, Boolean.TRUE) != null) {
+            return;
+        }
+        final HttpServletRequest detached = DetachedExchange.request(request);
+        try {
+            refreshExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        invokeAction(route, args, cacheKey, detached,
+                                DetachedExchange.response(), null);
+                        refreshes.incrementAndGet();
+                    } catch (Exception ex) {
+                        refreshFailures.incrementAndGet();
+                        if (DetachedExchange.isUnsupported(ex)) {
+                            notRefreshable.add(route);
+                            log("Action " + route + " needs its request and will not"
+                                    + " be refreshed in background: " + ex.getMessage());
+                        } else {
+                            log("Could not refresh cached response of " + route, ex);
+                        }
+                    } finally {
+                        refreshing.remove(cacheKey);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            refreshing.remove(cacheKey);
+        }
+    }
+
+    /**
+     * Returns the number of requests answered with a stale cached response
+     * while the response was being refreshed.
      *
-     * @param request Current HTTP request being processed by servlet.
-     * @param response Response to be sent for current HTTP request.
-     * @throws InstantiationException
-     * @throws IllegalAccessException
-     * @throws NoSuchMethodException
-     * @throws InvocationTargetException
-     * @throws ClassNotFoundException
-     * @throws IOException
+     * @return
      */
-    private void delegateAction(HttpServletRequest request, HttpServletResponse response)
-            throws InstantiationException, IllegalAccessException, NoSuchMethodException,
-            InvocationTargetException, ClassNotFoundException, IOException {
+    public long getStaleServeCount() {
+        return staleServes.get();
+    }
 
-        String[] actCtrl = extractControllerInfo(request);
-        log("Controller=" + actCtrl[1] + ", Action=" + actCtrl[0]);
+    /**
+     * Returns the number of background refreshes of cached responses which
+     * completed successfully.
+     *
+     * @return
+     */
+    public long getRefreshCount() {
+        return refreshes.get();
+    }
 
-        // Create and initialize the controller object
-        Class ctor = Class.forName((controllerPkg != null ? controllerPkg + "." : "") + actCtrl[1]);
+    /**
+     * Returns the number of background refreshes of cached responses which
+     * failed.
+     *
+     * @return
+     */
+    public long getRefreshFailureCount() {
+        return refreshFailures.get();
+    }
 
-        // Invoke the controller action method
-        if (isAuthorized(ctor, actCtrl[0], request)) {
-            Object obj = ctor.newInstance();
-            MethodUtils.invokeMethod(obj, "init", memCache, getServletContext(),
-                    request, response, viewProvider);
-            MethodUtils.invokeMethod(obj, actCtrl[0]);
-        } else {
-            sendJsonErrorResponse(response, HttpServletResponse.SC_FORBIDDEN,
-                    actCtrl[0] + " is not authorized.");
-            //response.sendError(HttpServletResponse.SC_FORBIDDEN, actCtrl[0] + " is not authorized.");
+    /**
+     * Returns the metrics of this servlet.
+     *
+     * @return The metrics, or null if they are disabled.
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Finds the route for given controller and action which is not present in
+     * the route table built during initialization. Such controllers are loaded
+     * here and their routes are remembered for subsequent requests. Names which
+     * cannot be resolved are remembered too, up to a limit beyond which the
+     * oldest are forgotten, so that repeated requests for them do not go
+     * through the class loader again.
+     *
+     * @param controller Name of the controller, may be null.
+     * @param action Name of the action.
+     * @return The route, or null if the controller or action does not exist.
+     */
+    private ActionRoute findLateRoute(String controller, String action) {
+        if (controller == null || controller.isEmpty() || action.isEmpty()) {
+            return null;
+        }
+        String key = controller + "/" + action;
+        ActionRoute route = lateRoutes.get(key);
+        if (route == null && !unknownRoutes.containsKey(key)) {
+            try {
+                Class<?> type = Class.forName(
+                        (controllerPkg != null ? controllerPkg + "." : "") + controller,
+                        true, getControllerClassLoader());
+                route = ActionRoute.create(type, action);
+            } catch (ClassNotFoundException ex) {
+                // Unknown controller, remembered below
+            } catch (LinkageError ex) {
+                // E.g. the name differs from the class only in case
+            }
+            if (route != null) {
+                route.compileRoles(routes.roles());
+                lateRoutes.putIfAbsent(key, route);
+            } else {
+                if (unknownRoutes.putIfAbsent(key, Boolean.TRUE) == null) {
+                    unknownRoutesOrder.add(key);
+                    while (unknownRoutes.size() > unknownRoutesLimit) {
+                        String eldest = unknownRoutesOrder.poll();
+                        if (eldest == null) {
+                            break;
+                        }
+                        unknownRoutes.remove(eldest);
+                    }
+                }
+            }
         }
+        return route;
+    }
+
+    private ClassLoader getControllerClassLoader() {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        return loader != null ? loader : getClass().getClassLoader();
     }
 
     /**
      * We check here whether the currently logged on application user is
-     * authorized to invoke the given method on a class.
+     * authorized to invoke the given action.
      *
-     * @param objType Type of class on which given method is being invoked.
+     * @param route Resolved route of the action.
      * @param methodName Name of the method being invoked.
      * @param request HTTP request received by this servlet.
      * @return Returns true if authorized, else false is returned.
      */
-    private boolean isAuthorized(Class objType, String methodName, HttpServletRequest request) {
-        Method m = MethodUtils.getAccessibleMethod(objType, methodName);
-        if (null == m) {
-            log("Attempt to invoke a non-existing action method ("+methodName+")"
-                    + ". Will not authorize request.");
-            return false;            
-        }
-        Action act = m.getAnnotation(Action.class);
-        if (null == act) {
-            log("Attempt to invoke a non-action method ("+methodName+")"
-                    + ". Will not authorize request.");
-            return false;
-        }
-        Authorize a = m.getAnnotation(Authorize.class);
+    private boolean isAuthorized(ActionRoute route, String methodName, HttpServletRequest request) {
         // If no annotation found then we assume that the action is authorized
-        if (null == a) {
+        if (!route.secured) {
             return true;
         }
         
-        AuthContext authCtx = (AuthContext) request.getSession().getAttribute("auth.context");
+        JfrEvents.Authorize event = new JfrEvents.Authorize();
+        event.begin();
+        AuthContext authCtx = authResolver.resolve(request);
         // User must be in authenticated state
         if (null == authCtx || !authCtx.isAuthenticated()) {
-            return false;
+            return commit(event, route, false);
         }
         
-        boolean authorized = false;
-        String[] roles = a.roles();
-        if (roles != null && roles.length > 0) {
-            List list = Arrays.asList(roles);
-            authorized = list.contains("*");
-            if (!authorized) {
-                for (String role : roles) {
+        boolean authorized = route.anyRole;
+        if (!authorized) {
+            long[] required = route.roleBits();
+            long[] granted = required != null ? authCtx.getRoleBits(routes.roles()) : null;
+            if (granted != null) {
+                authorized = RoleDictionary.intersects(required, granted);
+            } else {
+                for (String role : route.roles) {
                     if (authCtx.hasRole(role)) {
                         authorized = true;
                         break;
@@ -331,39 +1032,18 @@ public class ControllerServlet extends HttpServlet {
                 }
             }
         }
-        log("Action "+methodName+" is authorized: "+authorized);
+        return commit(event, route, authorized);
+    }
+
+    private static boolean commit(JfrEvents.Authorize event, ActionRoute route,
+            boolean authorized) {
+        if (event.shouldCommit()) {
+            event.controller = route.controllerName;
+            event.action = route.actionName;
+            event.authorized = authorized;
+            event.commit();
+        }
         return authorized;
-        
-//        /**
-//         * If annotation is found but no "roles" attribute in session then we
-//         * don't authorize. A properly authenticated user is expected to have a
-//         * "roles" attribute in session.
-//         */
-//        String[] userRoles = (String[]) request.getSession().getAttribute("roles");
-//        if (userRoles == null || userRoles.length < 1) {
-//            log("Attribute 'roles' not found in session. Will not authorize request.");
-//            return false;
-//        }
-//        /**
-//         * If a role matching the one specified in annotation is found then we
-//         * authorize, else we do not.
-//         */
-//        String[] roles = a.roles();
-//        if (roles != null && roles.length > 0) {
-//            List list = Arrays.asList(roles);
-//            boolean authorized = list.contains("*");
-//            if (!authorized) {
-//                for (String r : userRoles) {
-//                    authorized = list.contains(r);
-//                    if (authorized) {
-//                        break;
-//                    }
-//                }
-//            }
-//            return authorized;
-//        } else {
-//            return false;
-//        }
     }
 
 }
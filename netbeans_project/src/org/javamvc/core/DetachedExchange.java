@@ -0,0 +1,402 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.servlet.DispatcherType;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+/**
+ * Creates a request and a response which are not bound to any connection, for
+ * running an action after the request which triggered it has completed. This
+ * is used for refreshing stale cached responses in background. The request is
+ * a snapshot of the method, URL, parameters, headers, cookies, attributes,
+ * locales, addresses and existing session of the original request. The
+ * methods which would need the original request, such as reading its body,
+ * creating a session or dispatching it, throw {@link UnsupportedException}.
+ * The response discards all the output and only keeps track of its content
+ * type and status.
+ *
+ * @author Balwinder Sodhi
+ */
+final class DetachedExchange {
+
+    private DetachedExchange() {
+    }
+
+    /**
+     * Takes a snapshot of the given request.
+     *
+     * @param request A request being processed.
+     * @return A request that can be used after the original has completed.
+     */
+    static HttpServletRequest request(HttpServletRequest request) {
+        return (HttpServletRequest) Proxy.newProxyInstance(
+                DetachedExchange.class.getClassLoader(),
+                new Class<?>[]{HttpServletRequest.class}, new RequestSnapshot(request));
+    }
+
+    /**
+     * Creates a response which discards its output.
+     *
+     * @return
+     */
+    static HttpServletResponse response() {
+        return (HttpServletResponse) Proxy.newProxyInstance(
+                DetachedExchange.class.getClassLoader(),
+                new Class<?>[]{HttpServletResponse.class}, new DiscardingResponse());
+    }
+
+    /**
+     * Returns the default value for given return type, for the methods not
+     * supported by the proxies.
+     */
+    private static Object defaultValue(Class<?> type) {
+        if (!type.isPrimitive() || type == void.class) {
+            return null;
+        } else if (type == boolean.class) {
+            return Boolean.FALSE;
+        } else if (type == long.class) {
+            return 0L;
+        } else if (type == char.class) {
+            return '\0';
+        } else if (type == float.class) {
+            return 0f;
+        } else if (type == double.class) {
+            return 0d;
+        } else if (type == byte.class) {
+            return (byte) 0;
+        } else if (type == short.class) {
+            return (short) 0;
+        }
+        return 0;
+    }
+
+    /**
+     * Thrown by a detached request for the methods it cannot support, e.g.
+     * reading the request body, creating a session or forwarding the request.
+     * An action which calls them cannot be refreshed in background.
+     */
+    static final class UnsupportedException extends IllegalStateException {
+
+        private static final long serialVersionUID = 1L;
+
+        UnsupportedException(Method method) {
+            super(method.getDeclaringClass().getSimpleName() + "." + method.getName()
+                    + " is not supported while an action runs detached from its "
+                    + "request, e.g. for refreshing a cached response");
+        }
+    }
+
+    /**
+     * Returns true if given exception, or one of its causes, is an
+     * {@link UnsupportedException}.
+     *
+     * @param t
+     * @return
+     */
+    static boolean isUnsupported(Throwable t) {
+        for (; t != null; t = t.getCause()) {
+            if (t instanceof UnsupportedException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static final class RequestSnapshot implements InvocationHandler {
+
+        /**
+         * Values of the methods without arguments, by method name.
+         */
+        private final Map<String, Object> values = new HashMap<String, Object>();
+        private final Map<String, String[]> params;
+        private final Map<String, List<String>> headers
+                = new LinkedHashMap<String, List<String>>();
+        private final Map<String, Object> attributes = new ConcurrentHashMap<String, Object>();
+        private final Cookie[] cookies;
+        private final List<Locale> locales;
+        private final String requestUrl;
+        private final HttpSession session;
+        private volatile String encoding;
+
+        @SuppressWarnings("unchecked")
+        RequestSnapshot(HttpServletRequest r) {
+            values.put("getMethod", r.getMethod());
+            values.put("getRequestURI", r.getRequestURI());
+            values.put("getContextPath", r.getContextPath());
+            values.put("getServletPath", r.getServletPath());
+            values.put("getPathInfo", r.getPathInfo());
+            values.put("getPathTranslated", r.getPathTranslated());
+            values.put("getQueryString", r.getQueryString());
+            values.put("getProtocol", r.getProtocol());
+            values.put("getScheme", r.getScheme());
+            values.put("getServerName", r.getServerName());
+            values.put("getServerPort", r.getServerPort());
+            values.put("getRemoteAddr", r.getRemoteAddr());
+            values.put("getRemoteHost", r.getRemoteHost());
+            values.put("getRemotePort", r.getRemotePort());
+            values.put("getLocalName", r.getLocalName());
+            values.put("getLocalAddr", r.getLocalAddr());
+            values.put("getLocalPort", r.getLocalPort());
+            values.put("getRemoteUser", r.getRemoteUser());
+            values.put("getUserPrincipal", r.getUserPrincipal());
+            values.put("getAuthType", r.getAuthType());
+            values.put("getContentType", r.getContentType());
+            values.put("getContentLength", r.getContentLength());
+            values.put("getLocale", r.getLocale());
+            values.put("isSecure", r.isSecure());
+            values.put("getServletContext", r.getServletContext());
+            values.put("getRequestedSessionId", r.getRequestedSessionId());
+            values.put("isRequestedSessionIdValid", r.isRequestedSessionIdValid());
+            values.put("isRequestedSessionIdFromCookie", r.isRequestedSessionIdFromCookie());
+            values.put("isRequestedSessionIdFromURL", r.isRequestedSessionIdFromURL());
+            values.put("isRequestedSessionIdFromUrl", r.isRequestedSessionIdFromURL());
+            values.put("getDispatcherType", DispatcherType.REQUEST);
+            values.put("isAsyncSupported", Boolean.FALSE);
+            values.put("isAsyncStarted", Boolean.FALSE);
+            encoding = r.getCharacterEncoding();
+            session = r.getSession(false);
+            requestUrl = r.getRequestURL().toString();
+            params = new LinkedHashMap<String, String[]>(r.getParameterMap());
+            for (Enumeration<String> names = r.getHeaderNames();
+                    names != null && names.hasMoreElements();) {
+                String name = names.nextElement();
+                headers.put(name.toLowerCase(Locale.ENGLISH),
+                        Collections.list(r.getHeaders(name)));
+            }
+            for (Enumeration<String> names = r.getAttributeNames();
+                    names.hasMoreElements();) {
+                String name = names.nextElement();
+                Object value = r.getAttribute(name);
+                if (value != null) {
+                    attributes.put(name, value);
+                }
+            }
+            Enumeration<Locale> all = r.getLocales();
+            locales = all != null ? Collections.list(all) : Collections.<Locale>emptyList();
+            cookies = r.getCookies();
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            int arity = method.getParameterTypes().length;
+            if (arity == 0 && values.containsKey(name)) {
+                return values.get(name);
+            }
+            String arg = arity > 0 && args[0] instanceof String ? (String) args[0] : null;
+            switch (name + "/" + arity) {
+                case "getParameter/1": {
+                    String[] v = params.get(arg);
+                    return v != null && v.length > 0 ? v[0] : null;
+                }
+                case "getParameterValues/1": {
+                    String[] v = params.get(arg);
+                    return v != null ? v.clone() : null;
+                }
+                case "getParameterNames/0":
+                    return Collections.enumeration(params.keySet());
+                case "getParameterMap/0":
+                    return Collections.unmodifiableMap(params);
+                case "getHeader/1": {
+                    List<String> v = header(arg);
+                    return v != null && !v.isEmpty() ? v.get(0) : null;
+                }
+                case "getHeaders/1": {
+                    List<String> v = header(arg);
+                    return Collections.enumeration(v != null ? v : Collections.<String>emptyList());
+                }
+                case "getHeaderNames/0":
+                    return Collections.enumeration(headers.keySet());
+                case "getIntHeader/1": {
+                    List<String> v = header(arg);
+                    return v != null && !v.isEmpty() ? Integer.parseInt(v.get(0)) : -1;
+                }
+                case "getDateHeader/1": {
+                    List<String> v = header(arg);
+                    return v != null && !v.isEmpty() ? parseDate(v.get(0)) : -1L;
+                }
+                case "getCharacterEncoding/0":
+                    return encoding;
+                case "setCharacterEncoding/1":
+                    encoding = arg;
+                    return null;
+                case "getLocales/0":
+                    return Collections.enumeration(locales);
+                case "getAttribute/1":
+                    return attributes.get(arg);
+                case "getAttributeNames/0":
+                    return Collections.enumeration(new ArrayList<String>(attributes.keySet()));
+                case "setAttribute/2":
+                    if (args[1] != null) {
+                        attributes.put(arg, args[1]);
+                    } else {
+                        attributes.remove(arg);
+                    }
+                    return null;
+                case "removeAttribute/1":
+                    attributes.remove(arg);
+                    return null;
+                case "getCookies/0":
+                    return cookies != null ? cookies.clone() : null;
+                case "getRequestURL/0":
+                    return new StringBuffer(requestUrl);
+                case "getSession/0":
+                case "getSession/1":
+                    // Creating a session needs a response to send its cookie
+                    if (session == null && (arity == 0 || (Boolean) args[0])) {
+                        throw new UnsupportedException(method);
+                    }
+                    return session;
+                case "getRealPath/1": {
+                    ServletContext context = (ServletContext) values.get("getServletContext");
+                    return context != null ? context.getRealPath(arg) : null;
+                }
+                case "getAsyncContext/0":
+                    throw new IllegalStateException("Detached request is not asynchronous");
+                case "toString/0":
+                    return "Detached request for " + requestUrl;
+                case "hashCode/0":
+                    return System.identityHashCode(proxy);
+                case "equals/1":
+                    return proxy == args[0];
+                default:
+                    // The body, dispatching, async processing, login etc.
+                    throw new UnsupportedException(method);
+            }
+        }
+
+        private List<String> header(String name) {
+            return name != null ? headers.get(name.toLowerCase(Locale.ENGLISH)) : null;
+        }
+
+        /**
+         * Parses a date header in any of the formats allowed by HTTP/1.1.
+         */
+        private static long parseDate(String value) {
+            for (String pattern : DATE_FORMATS) {
+                SimpleDateFormat f = new SimpleDateFormat(pattern, Locale.US);
+                f.setTimeZone(TimeZone.getTimeZone("GMT"));
+                try {
+                    return f.parse(value).getTime();
+                } catch (ParseException ex) {
+                    // Try the next format
+                }
+            }
+            throw new IllegalArgumentException("Not a date header: " + value);
+        }
+    }
+
+    private static final String[] DATE_FORMATS = {
+        "EEE, dd MMM yyyy HH:mm:ss zzz",
+        "EEEEEE, dd-MMM-yy HH:mm:ss zzz",
+        "EEE MMMM d HH:mm:ss yyyy"
+    };
+
+    private static final class DiscardingResponse implements InvocationHandler {
+
+        private String contentType;
+        private String encoding = "ISO-8859-1";
+        private int status = HttpServletResponse.SC_OK;
+        private PrintWriter writer;
+        private ServletOutputStream stream;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if ("getWriter".equals(name)) {
+                if (writer == null) {
+                    writer = new PrintWriter(new Writer() {
+                        @Override
+                        public void write(char[] buf, int off, int len) {
+                            // Discard
+                        }
+
+                        @Override
+                        public void flush() {
+                        }
+
+                        @Override
+                        public void close() {
+                        }
+                    });
+                }
+                return writer;
+            } else if ("getOutputStream".equals(name)) {
+                if (stream == null) {
+                    stream = new ServletOutputStream() {
+                        @Override
+                        public void write(int b) {
+                            // Discard
+                        }
+                    };
+                }
+                return stream;
+            } else if ("setContentType".equals(name)) {
+                contentType = (String) args[0];
+                int i = contentType != null ? contentType.indexOf("charset=") : -1;
+                if (i >= 0) {
+                    encoding = contentType.substring(i + 8).trim();
+                }
+                return null;
+            } else if ("getContentType".equals(name)) {
+                return contentType;
+            } else if ("setCharacterEncoding".equals(name)) {
+                encoding = (String) args[0];
+                return null;
+            } else if ("getCharacterEncoding".equals(name)) {
+                return encoding;
+            } else if ("setStatus".equals(name) || "sendError".equals(name)) {
+                status = (Integer) args[0];
+                return null;
+            } else if ("getStatus".equals(name)) {
+                return status;
+            } else if ("encodeURL".equals(name) || "encodeRedirectURL".equals(name)
+                    || "encodeUrl".equals(name) || "encodeRedirectUrl".equals(name)) {
+                return args[0];
+            } else if ("toString".equals(name)) {
+                return "Detached response";
+            } else if ("hashCode".equals(name)) {
+                return System.identityHashCode(proxy);
+            } else if ("equals".equals(name)) {
+                return proxy == args[0];
+            }
+            return defaultValue(method.getReturnType());
+        }
+    }
+}
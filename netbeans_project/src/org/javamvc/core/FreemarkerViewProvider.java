@@ -15,6 +15,7 @@ limitations under the License.
 */
 package org.javamvc.core;
 
+import freemarker.cache.StrongCacheStorage;
 import freemarker.template.Configuration;
 import freemarker.template.DefaultObjectWrapper;
 import freemarker.template.Template;
@@ -23,6 +24,13 @@ import freemarker.template.TemplateExceptionHandler;
 import freemarker.template.Version;
 import java.io.IOException;
 import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletContext;
 
@@ -32,13 +40,33 @@ import javax.servlet.ServletContext;
  * Extension of template files can be configured via servlet init parameter
  * named <code>template.extension</code>. If not configured then .html is taken
  * as default extension of templates.
+ * <p>
+ * In production, set the servlet init parameter
+ * <code>template.production.mode</code> to true. All the templates under
+ * <code>Views</code> folder are then compiled during initialization, which
+ * also fails the initialization if any template has errors. The compiled
+ * templates are kept for the lifetime of the application and template files
+ * are not checked for modifications. Errors while processing a template are
+ * thrown to the caller as an <code>IOException</code>, instead of being
+ * printed into the rendered page as in the default (development) mode.
+ * Additionally, init parameter <code>template.warmup.iterations</code> can be
+ * set to render each template that many times with an empty model during
+ * initialization, so that the rendering code is already compiled by the JIT
+ * when the first users arrive. Templates which need a model for rendering are
+ * skipped by the warmup, and their number is logged.
  * 
  * @author Balwinder Sodhi
  */
 public class FreemarkerViewProvider implements ViewProvider {
 
     private static Configuration cfg = new Configuration();
+    private static final Logger logger = Logger.getLogger(FreemarkerViewProvider.class.getName());
     private String templateExtension;
+    /**
+     * Templates compiled during initialization in production mode, keyed by
+     * view path.
+     */
+    private Map<String, Template> pinned = Collections.emptyMap();
     
     @Override
     public void init(ServletContext servletContext, ServletConfig servletConfig) {
@@ -68,18 +96,103 @@ public class FreemarkerViewProvider implements ViewProvider {
         // 100% backward compatible too (these are very low-risk changes as far as the
         // 1st and 2nd version number remains):
         cfg.setIncompatibleImprovements(new Version(2, 3, 20));  // FreeMarker 2.3.20
+
+        if (Boolean.parseBoolean(servletConfig.getInitParameter("template.production.mode"))) {
+            cfg.setTemplateExceptionHandler(TemplateExceptionHandler.RETHROW_HANDLER);
+            cfg.setTemplateUpdateDelay(Integer.MAX_VALUE);
+            cfg.setCacheStorage(new StrongCacheStorage());
+            Map<String, Template> templates = new HashMap<String, Template>();
+            try {
+                compileTemplates(servletContext, "/Views/", templates);
+            } catch (IOException ex) {
+                throw new IllegalStateException("Could not compile templates. ", ex);
+            }
+            pinned = Collections.unmodifiableMap(templates);
+            logger.info("Compiled "+pinned.size()+" templates.");
+
+            String warmup = servletConfig.getInitParameter("template.warmup.iterations");
+            if (warmup != null) {
+                warmUp(Integer.parseInt(warmup.trim()));
+            }
+        }
+    }
+
+    /**
+     * Compiles all the templates found under given resource path.
+     */
+    private void compileTemplates(ServletContext servletContext, String dir,
+            Map<String, Template> templates) throws IOException {
+        Set<String> paths = servletContext.getResourcePaths(dir);
+        if (paths == null) {
+            return;
+        }
+        for (String path : paths) {
+            if (path.endsWith("/")) {
+                compileTemplates(servletContext, path, templates);
+            } else if (path.endsWith(templateExtension)) {
+                String view = path.substring(1, path.length() - templateExtension.length());
+                templates.put(view, cfg.getTemplate(path));
+            }
+        }
+    }
+
+    /**
+     * Renders every compiled template given number of times with an empty
+     * model. Templates which cannot be rendered without a model are skipped.
+     */
+    private void warmUp(int iterations) {
+        Writer sink = new Writer() {
+            @Override
+            public void write(char[] cbuf, int off, int len) {
+                // Discard
+            }
+
+            @Override
+            public void flush() {
+                // Do nothing
+            }
+
+            @Override
+            public void close() {
+                // Do nothing
+            }
+        };
+        Map<String, Object> model = Collections.emptyMap();
+        int rendered = 0;
+        int skipped = 0;
+        for (Template temp : pinned.values()) {
+            try {
+                for (int i = 0; i < iterations; i++) {
+                    temp.process(model, sink);
+                }
+                rendered++;
+            } catch (Exception ex) {
+                skipped++;
+                logger.log(Level.FINE, "Skipping warmup of "+temp.getName(), ex);
+            }
+        }
+        logger.info("Warmed up "+rendered+" templates with "+iterations+" renders each, skipped "
+                +skipped+" templates which could not be rendered with an empty model.");
     }
 
     @Override
     public String renderView(String view, Object model) throws IOException {
-        Template temp = cfg.getTemplate("/"+view+templateExtension);
         StringWriter writer = new StringWriter();
+        renderView(view, model, writer);
+        return writer.toString();
+    }
+
+    @Override
+    public void renderView(String view, Object model, Writer out) throws IOException {
+        Template temp = pinned.get(view);
+        if (temp == null) {
+            temp = cfg.getTemplate("/"+view+templateExtension);
+        }
         try {
-            temp.process(model, writer);
+            temp.process(model, out);
         } catch (TemplateException ex) {
             throw new IOException("Could not process template. ", ex);
         }
-        return writer.toString();
     }
 
 }
@@ -0,0 +1,128 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+/**
+ * Approximate access frequency of cache keys, kept in a count-min sketch of
+ * 4-bit counters. Each key is counted in four counters picked by different
+ * hashes, and its frequency is the smallest of them. When the number of
+ * increments reaches ten times the capacity, all the counters are halved so
+ * that the frequencies reflect recent history. This is the admission filter
+ * of the W-TinyLFU policy used by {@link LocalMemCache}.
+ * <p>
+ * This class is not thread safe.
+ *
+ * @author Balwinder Sodhi
+ */
+final class FrequencySketch {
+
+    private static final long[] SEEDS = {
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+        0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long ONE_MASK = 0x1111111111111111L;
+    private static final int MAX_TABLE_SIZE = 1 << 24;
+    private long[] table = new long[1];
+    private int tableMask;
+    private int sampleSize = 10;
+    private int size;
+
+    /**
+     * Grows the sketch, if needed, for tracking the frequencies of given
+     * number of keys. Growing the sketch forgets all the frequencies.
+     *
+     * @param capacity Expected number of keys.
+     */
+    void ensureCapacity(long capacity) {
+        int n = (int) Math.min(Math.max(capacity, 1), MAX_TABLE_SIZE);
+        if (table.length >= n) {
+            return;
+        }
+        int length = Integer.highestOneBit(n - 1) << 1;
+        table = new long[length];
+        tableMask = length - 1;
+        sampleSize = 10 * n;
+        size = 0;
+    }
+
+    /**
+     * Returns the estimated number of times given key was seen, up to 15.
+     *
+     * @param key
+     * @return
+     */
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            int count = (int) ((table[indexOf(hash, i)] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Counts one occurrence of given key.
+     *
+     * @param key
+     */
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if (added && ++size >= sampleSize) {
+            reset();
+        }
+    }
+
+    private boolean incrementAt(int i, int j) {
+        int offset = j << 2;
+        long mask = 0xfL << offset;
+        if ((table[i] & mask) != mask) {
+            table[i] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Halves all the counters.
+     */
+    private void reset() {
+        int odd = 0;
+        for (int i = 0; i < table.length; i++) {
+            odd += Long.bitCount(table[i] & ONE_MASK);
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size = (size >>> 1) - (odd >>> 2);
+    }
+
+    private int indexOf(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return (int) h & tableMask;
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
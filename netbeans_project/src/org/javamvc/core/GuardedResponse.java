@@ -0,0 +1,331 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.Locale;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Response wrapper given to an asynchronous action. All the changes and the
+ * output go through this wrapper under its lock, and are dropped once it has
+ * been {@link #close() closed}, e.g. when the request timed out. After that
+ * the thread which closed it is the only one using the wrapped response, which
+ * the container may recycle for another request as soon as the request is
+ * completed.
+ *
+ * @author Balwinder Sodhi
+ */
+final class GuardedResponse extends HttpServletResponseWrapper {
+
+    private boolean closed;
+    private int status = SC_OK;
+    private PrintWriter writer;
+    private ServletOutputStream stream;
+
+    GuardedResponse(HttpServletResponse response) {
+        super(response);
+    }
+
+    /**
+     * Stops passing anything to the wrapped response. Waits for the write in
+     * progress, if any, to finish.
+     *
+     * @return False if the wrapper was already closed.
+     */
+    synchronized boolean close() {
+        if (closed) {
+            return false;
+        }
+        closed = true;
+        return true;
+    }
+
+    /**
+     * Closes this wrapper as by {@link #close()}, noting the status which the
+     * closing thread sends instead of the action.
+     *
+     * @param sc
+     * @return False if the wrapper was already closed.
+     */
+    synchronized boolean close(int sc) {
+        if (close()) {
+            status = sc;
+            return true;
+        }
+        return false;
+    }
+
+    synchronized boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public synchronized PrintWriter getWriter() throws IOException {
+        if (writer == null) {
+            if (closed) {
+                throw new IOException("Response is closed");
+            }
+            final Writer target = super.getWriter();
+            writer = new PrintWriter(new Writer() {
+                @Override
+                public void write(char[] buf, int off, int len) throws IOException {
+                    synchronized (GuardedResponse.this) {
+                        if (!closed) {
+                            target.write(buf, off, len);
+                        }
+                    }
+                }
+
+                @Override
+                public void write(String str, int off, int len) throws IOException {
+                    synchronized (GuardedResponse.this) {
+                        if (!closed) {
+                            target.write(str, off, len);
+                        }
+                    }
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    synchronized (GuardedResponse.this) {
+                        if (!closed) {
+                            target.flush();
+                        }
+                    }
+                }
+
+                @Override
+                public void close() throws IOException {
+                    flush();
+                }
+            });
+        }
+        return writer;
+    }
+
+    @Override
+    public synchronized ServletOutputStream getOutputStream() throws IOException {
+        if (stream == null) {
+            if (closed) {
+                throw new IOException("Response is closed");
+            }
+            final ServletOutputStream target = super.getOutputStream();
+            stream = new ServletOutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    synchronized (GuardedResponse.this) {
+                        if (!closed) {
+                            target.write(b);
+                        }
+                    }
+                }
+
+                @Override
+                public void write(byte[] buf, int off, int len) throws IOException {
+                    synchronized (GuardedResponse.this) {
+                        if (!closed) {
+                            target.write(buf, off, len);
+                        }
+                    }
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    synchronized (GuardedResponse.this) {
+                        if (!closed) {
+                            target.flush();
+                        }
+                    }
+                }
+
+                @Override
+                public void close() throws IOException {
+                    flush();
+                }
+            };
+        }
+        return stream;
+    }
+
+    @Override
+    public synchronized void flushBuffer() throws IOException {
+        if (!closed) {
+            super.flushBuffer();
+        }
+    }
+
+    @Override
+    public synchronized void resetBuffer() {
+        if (!closed) {
+            super.resetBuffer();
+        }
+    }
+
+    @Override
+    public synchronized void reset() {
+        if (!closed) {
+            super.reset();
+            status = SC_OK;
+        }
+    }
+
+    @Override
+    public synchronized boolean isCommitted() {
+        return closed || super.isCommitted();
+    }
+
+    @Override
+    public synchronized void setBufferSize(int size) {
+        if (!closed) {
+            super.setBufferSize(size);
+        }
+    }
+
+    /**
+     * Returns the status set via this wrapper, which stays readable after the
+     * wrapper is closed.
+     *
+     * @return
+     */
+    @Override
+    public synchronized int getStatus() {
+        return status;
+    }
+
+    @Override
+    public synchronized void setStatus(int sc) {
+        if (!closed) {
+            status = sc;
+            super.setStatus(sc);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public synchronized void setStatus(int sc, String sm) {
+        if (!closed) {
+            status = sc;
+            super.setStatus(sc, sm);
+        }
+    }
+
+    @Override
+    public synchronized void sendError(int sc) throws IOException {
+        if (!closed) {
+            status = sc;
+            super.sendError(sc);
+        }
+    }
+
+    @Override
+    public synchronized void sendError(int sc, String msg) throws IOException {
+        if (!closed) {
+            status = sc;
+            super.sendError(sc, msg);
+        }
+    }
+
+    @Override
+    public synchronized void sendRedirect(String location) throws IOException {
+        if (!closed) {
+            status = SC_FOUND;
+            super.sendRedirect(location);
+        }
+    }
+
+    @Override
+    public synchronized void setContentType(String type) {
+        if (!closed) {
+            super.setContentType(type);
+        }
+    }
+
+    @Override
+    public synchronized void setCharacterEncoding(String charset) {
+        if (!closed) {
+            super.setCharacterEncoding(charset);
+        }
+    }
+
+    @Override
+    public synchronized void setContentLength(int len) {
+        if (!closed) {
+            super.setContentLength(len);
+        }
+    }
+
+    @Override
+    public synchronized void setLocale(Locale loc) {
+        if (!closed) {
+            super.setLocale(loc);
+        }
+    }
+
+    @Override
+    public synchronized void addCookie(Cookie cookie) {
+        if (!closed) {
+            super.addCookie(cookie);
+        }
+    }
+
+    @Override
+    public synchronized void setHeader(String name, String value) {
+        if (!closed) {
+            super.setHeader(name, value);
+        }
+    }
+
+    @Override
+    public synchronized void addHeader(String name, String value) {
+        if (!closed) {
+            super.addHeader(name, value);
+        }
+    }
+
+    @Override
+    public synchronized void setDateHeader(String name, long date) {
+        if (!closed) {
+            super.setDateHeader(name, date);
+        }
+    }
+
+    @Override
+    public synchronized void addDateHeader(String name, long date) {
+        if (!closed) {
+            super.addDateHeader(name, date);
+        }
+    }
+
+    @Override
+    public synchronized void setIntHeader(String name, int value) {
+        if (!closed) {
+            super.setIntHeader(name, value);
+        }
+    }
+
+    @Override
+    public synchronized void addIntHeader(String name, int value) {
+        if (!closed) {
+            super.addIntHeader(name, value);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+
+/**
+ * An {@link InvalidationChannel} which delivers the keys synchronously to the
+ * listeners within the current JVM. All the channels having the same topic
+ * are connected, so this is useful for tests, which can run several
+ * {@link NearMemCache} instances as if they were separate nodes, and for
+ * several servlets of one application sharing a cache. The topic is given by
+ * the servlet init parameter <code>invalidation.channel.topic</code>; default
+ * is <code>javamvc</code>.
+ *
+ * @author Balwinder Sodhi
+ */
+public class InMemoryInvalidationChannel implements InvalidationChannel {
+
+    private static final Logger logger = Logger.getLogger(InMemoryInvalidationChannel.class.getName());
+    private static final ConcurrentMap<String, List<Listener>> topics
+            = new ConcurrentHashMap<String, List<Listener>>();
+    private final List<Listener> subscribed = new CopyOnWriteArrayList<Listener>();
+    private String topic;
+
+    /**
+     * Creates a channel on the default topic.
+     */
+    public InMemoryInvalidationChannel() {
+        this("javamvc");
+    }
+
+    /**
+     * Creates a channel on given topic.
+     *
+     * @param topic
+     */
+    public InMemoryInvalidationChannel(String topic) {
+        this.topic = topic;
+    }
+
+    @Override
+    public void init(ServletContext servletContext, ServletConfig servletConfig) {
+        String value = servletConfig.getInitParameter("invalidation.channel.topic");
+        if (value != null) {
+            topic = value.trim();
+        }
+    }
+
+    @Override
+    public void subscribe(Listener listener) {
+        List<Listener> listeners = topics.get(topic);
+        if (listeners == null) {
+            topics.putIfAbsent(topic, new CopyOnWriteArrayList<Listener>());
+            listeners = topics.get(topic);
+        }
+        listeners.add(listener);
+        subscribed.add(listener);
+    }
+
+    @Override
+    public void publish(Object key) {
+        List<Listener> listeners = topics.get(topic);
+        if (listeners == null) {
+            return;
+        }
+        for (Listener listener : listeners) {
+            try {
+                listener.invalidate(key);
+            } catch (RuntimeException ex) {
+                logger.log(Level.WARNING, "Invalidation listener failed.", ex);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        List<Listener> listeners = topics.get(topic);
+        if (listeners != null) {
+            listeners.removeAll(subscribed);
+        }
+        subscribed.clear();
+    }
+}
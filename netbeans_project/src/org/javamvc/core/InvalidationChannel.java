@@ -0,0 +1,75 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+
+/**
+ * Carries the keys of changed cache entries among the nodes of an
+ * application, so that {@link NearMemCache} can evict its local copies of
+ * them. Delivery is best effort: a node which misses a message keeps its stale
+ * copy only until the copy expires.
+ *
+ * @see InMemoryInvalidationChannel
+ * @author Balwinder Sodhi
+ */
+public interface InvalidationChannel {
+
+    /**
+     * Called once after creating the channel, so that it can configure itself
+     * from the servlet init parameters. The default implementation does
+     * nothing.
+     *
+     * @param servletContext
+     * @param servletConfig
+     */
+    default void init(ServletContext servletContext, ServletConfig servletConfig) {
+    }
+
+    /**
+     * Registers a listener to be notified of the keys published by any node,
+     * including this one.
+     *
+     * @param listener
+     */
+    void subscribe(Listener listener);
+
+    /**
+     * Notifies all the nodes that the entry of given key has changed.
+     *
+     * @param key
+     */
+    void publish(Object key);
+
+    /**
+     * Unregisters the listeners and releases any resources of the channel.
+     * The default implementation does nothing.
+     */
+    default void close() {
+    }
+
+    /**
+     * Receives the keys published on a channel.
+     */
+    interface Listener {
+
+        /**
+         * @param key Key of the changed entry.
+         */
+        void invalidate(Object key);
+    }
+}
@@ -0,0 +1,309 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.UndeclaredThrowableException;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Direct call sites for creating controllers and invoking their
+ * <code>init</code> and action methods. The invokers are generated once per
+ * route via {@link LambdaMetafactory}, so that calling them costs about the
+ * same as a normal interface call and can be inlined by the JIT. If the
+ * controller class is not visible from the class loader of this library
+ * (e.g., the library is shared by several web applications), the invokers
+ * fall back to {@link MethodHandle}s.
+ *
+ * @author Balwinder Sodhi
+ */
+public final class Invokers {
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    private static final MethodHandle BAD_ARGUMENT;
+
+    static {
+        try {
+            BAD_ARGUMENT = LOOKUP.findStatic(Invokers.class, "badArgument",
+                    MethodType.methodType(Object.class,
+                            IllegalArgumentException.class, String.class));
+        } catch (ReflectiveOperationException ex) {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+    /**
+     * Invoker of {@link Controller#init} for any subclass of {@link Controller}.
+     */
+    public static final ControllerInit CONTROLLER_INIT = new ControllerInit() {
+        @Override
+        public void init(Object controller, MemCacheProvider<Object, Object> cache,
+                ServletContext context, HttpServletRequest req,
+                HttpServletResponse res, ViewProvider vp) {
+            ((Controller) controller).init(cache, context, req, res, vp);
+        }
+    };
+
+    /**
+     * Creates new instances of a controller.
+     */
+    public interface ControllerFactory {
+
+        Object newInstance() throws Exception;
+    }
+
+    /**
+     * Invokes the <code>init</code> method of a controller.
+     */
+    public interface ControllerInit {
+
+        void init(Object controller, MemCacheProvider<Object, Object> cache,
+                ServletContext context, HttpServletRequest req, HttpServletResponse res,
+                ViewProvider vp) throws Exception;
+    }
+
+    /**
+     * Invokes an action method of a controller. The arguments are the raw
+     * values of the path parameters, in the order of method parameters; the
+     * invoker converts them to the declared parameter types, throwing
+     * {@link BadArgumentException} if that fails.
+     */
+    public interface ActionCall {
+
+        void invoke(Object controller, String[] args) throws Exception;
+    }
+
+    /**
+     * Thrown by an {@link ActionCall} when a path parameter cannot be
+     * converted to the type of its action argument, e.g. a non-numeric segment
+     * bound to an <code>int</code>. The request is answered with 404, as the
+     * URI does not name any resource.
+     */
+    public static final class BadArgumentException extends IllegalArgumentException {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * @param cause The conversion failure.
+         */
+        public BadArgumentException(IllegalArgumentException cause) {
+            super("Invalid path parameter: " + cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * Target of the generated call sites for no-argument actions.
+     */
+    interface NoArgAction {
+
+        void invoke(Object controller) throws Exception;
+    }
+
+    private Invokers() {
+    }
+
+    static ControllerFactory factory(Constructor<?> ctor) throws ReflectiveOperationException {
+        MethodHandle mh = LOOKUP.unreflectConstructor(ctor);
+        if (isVisible(ctor.getDeclaringClass())) {
+            return (ControllerFactory) metafactory(ControllerFactory.class,
+                    "newInstance", mh, MethodType.methodType(Object.class));
+        }
+        final MethodHandle target = mh.asType(MethodType.methodType(Object.class));
+        return new ControllerFactory() {
+            @Override
+            public Object newInstance() throws Exception {
+                try {
+                    return target.invokeExact();
+                } catch (Throwable t) {
+                    throw rethrow(t);
+                }
+            }
+        };
+    }
+
+    static ControllerInit initializer(Method init) throws ReflectiveOperationException {
+        MethodHandle mh = LOOKUP.unreflect(init);
+        MethodType sam = MethodType.methodType(void.class, Object.class,
+                MemCacheProvider.class, ServletContext.class,
+                HttpServletRequest.class, HttpServletResponse.class,
+                ViewProvider.class);
+        if (isVisible(init.getDeclaringClass())) {
+            return (ControllerInit) metafactory(ControllerInit.class, "init", mh, sam);
+        }
+        final MethodHandle target = mh.asType(sam);
+        return new ControllerInit() {
+            @Override
+            public void init(Object controller, MemCacheProvider<Object, Object> cache,
+                    ServletContext context, HttpServletRequest req,
+                    HttpServletResponse res, ViewProvider vp) throws Exception {
+                try {
+                    target.invokeExact(controller, cache, context, req, res, vp);
+                } catch (Throwable t) {
+                    throw rethrow(t);
+                }
+            }
+        };
+    }
+
+    static ActionCall action(Method action) throws ReflectiveOperationException {
+        MethodHandle mh = LOOKUP.unreflect(action);
+        Class<?>[] params = action.getParameterTypes();
+        if (params.length == 0) {
+            final NoArgAction call;
+            if (isVisible(action.getDeclaringClass())) {
+                call = (NoArgAction) metafactory(NoArgAction.class, "invoke", mh,
+                        MethodType.methodType(void.class, Object.class));
+            } else {
+                final MethodHandle target = mh.asType(
+                        MethodType.methodType(void.class, Object.class));
+                call = new NoArgAction() {
+                    @Override
+                    public void invoke(Object controller) throws Exception {
+                        try {
+                            target.invokeExact(controller);
+                        } catch (Throwable t) {
+                            throw rethrow(t);
+                        }
+                    }
+                };
+            }
+            return new ActionCall() {
+                @Override
+                public void invoke(Object controller, String[] args) throws Exception {
+                    call.invoke(controller);
+                }
+            };
+        }
+        for (int i = 0; i < params.length; i++) {
+            if (params[i] != String.class) {
+                MethodHandle conv = converter(params[i]);
+                conv = MethodHandles.catchException(conv, IllegalArgumentException.class,
+                        BAD_ARGUMENT.asType(MethodType.methodType(params[i],
+                                IllegalArgumentException.class, String.class)));
+                mh = MethodHandles.filterArguments(mh, i + 1, conv);
+            }
+        }
+        final MethodHandle target = mh.asSpreader(String[].class, params.length)
+                .asType(MethodType.methodType(void.class, Object.class, String[].class));
+        return new ActionCall() {
+            @Override
+            public void invoke(Object controller, String[] args) throws Exception {
+                try {
+                    target.invokeExact(controller, args);
+                } catch (Throwable t) {
+                    throw rethrow(t);
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns a method handle which converts a String to given type.
+     */
+    private static MethodHandle converter(Class<?> type) throws ReflectiveOperationException {
+        if (type.isPrimitive()) {
+            if (type == char.class) {
+                return LOOKUP.findStatic(Invokers.class, "parseChar",
+                        MethodType.methodType(char.class, String.class));
+            }
+            if (type == boolean.class) {
+                type = Boolean.class;
+            } else if (type == void.class) {
+                throw new NoSuchMethodException("Cannot convert path parameter to " + type);
+            } else {
+                type = MethodType.methodType(type).wrap().returnType();
+            }
+            String name = "parse" + Character.toUpperCase(type.getSimpleName().charAt(0))
+                    + type.getSimpleName().substring(1);
+            if (type == Integer.class) {
+                name = "parseInt";
+            }
+            Class<?> prim = MethodType.methodType(type).unwrap().returnType();
+            return LOOKUP.findStatic(type, name, MethodType.methodType(prim, String.class));
+        }
+        return LOOKUP.findStatic(type, "valueOf", MethodType.methodType(type, String.class));
+    }
+
+    /**
+     * Converts a path parameter to a <code>char</code> argument.
+     *
+     * @param value The path parameter.
+     * @return The only character of the value.
+     * @throws IllegalArgumentException If the value is not a single character.
+     */
+    public static char parseChar(String value) {
+        if (value.length() != 1) {
+            throw new IllegalArgumentException("Not a single character: " + value);
+        }
+        return value.charAt(0);
+    }
+
+    private static Object badArgument(IllegalArgumentException ex, String value) {
+        throw new BadArgumentException(ex);
+    }
+
+    /**
+     * Spins a class implementing given functional interface which directly
+     * calls the target method handle.
+     */
+    private static Object metafactory(Class<?> iface, String name,
+            MethodHandle impl, MethodType sam) throws ReflectiveOperationException {
+        MethodType instantiated = impl.type();
+        if (sam.returnType() == void.class) {
+            instantiated = instantiated.changeReturnType(void.class);
+        }
+        try {
+            return LambdaMetafactory.metafactory(LOOKUP, name,
+                    MethodType.methodType(iface), sam, impl, instantiated)
+                    .getTarget().invoke();
+        } catch (ReflectiveOperationException ex) {
+            throw ex;
+        } catch (Throwable t) {
+            throw new ReflectiveOperationException("Could not create invoker for "
+                    + impl, t);
+        }
+    }
+
+    /**
+     * Generated invokers are defined in the class loader of this library, so
+     * they can only refer to the classes visible from that loader.
+     */
+    private static boolean isVisible(Class<?> type) {
+        try {
+            return Class.forName(type.getName(), false,
+                    Invokers.class.getClassLoader()) == type;
+        } catch (ClassNotFoundException ex) {
+            return false;
+        }
+    }
+
+    private static Exception rethrow(Throwable t) {
+        if (t instanceof Exception) {
+            return (Exception) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        throw new UndeclaredThrowableException(t);
+    }
+}
@@ -0,0 +1,149 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The default {@link ValueSerializer}. Strings and byte arrays are stored as
+ * they are; other values must be {@link java.io.Serializable} and are stored
+ * using Java serialization. Values are deserialized with the class loader of
+ * the current thread, so that application classes are found.
+ * <p>
+ * Since the bytes may come from a server which anyone on the network can
+ * write to, only the classes matching an allow-list are deserialized, and
+ * any other class fails the read with an <code>IOException</code>. The
+ * classes in {@link #DEFAULT_ALLOWED} are always allowed; an application
+ * storing its own classes must list them, e.g. <code>com.example.model.*</code>,
+ * via {@link #JavaValueSerializer(String)}, or via the init parameter of the
+ * cache provider which creates the serializer.
+ *
+ * @author Balwinder Sodhi
+ */
+public class JavaValueSerializer implements ValueSerializer {
+
+    /**
+     * Patterns, in the syntax of <code>ObjectInputFilter.Config.createFilter</code>,
+     * of the classes which can always be deserialized: the boxed primitives,
+     * strings, collections, dates and cached responses.
+     */
+    public static final String DEFAULT_ALLOWED = "java.lang.*;java.util.*;"
+            + "java.util.concurrent.*;java.time.*;java.math.*;"
+            + "org.javamvc.core.CachedResponse";
+    private static final byte BYTES = 0;
+    private static final byte STRING = 1;
+    private static final byte OBJECT = 2;
+    private final ObjectInputFilter filter;
+
+    /**
+     * Creates a serializer allowing only the classes in
+     * {@link #DEFAULT_ALLOWED}.
+     */
+    public JavaValueSerializer() {
+        this(null);
+    }
+
+    /**
+     * Creates a serializer allowing given classes in addition to
+     * {@link #DEFAULT_ALLOWED}.
+     *
+     * @param allowed Semicolon separated patterns of the classes, in the syntax
+     * of <code>ObjectInputFilter.Config.createFilter</code>, or null.
+     */
+    public JavaValueSerializer(String allowed) {
+        String pattern = "maxdepth=64;";
+        if (allowed != null && !allowed.trim().isEmpty()) {
+            pattern += allowed.trim() + ";";
+        }
+        filter = ObjectInputFilter.Config.createFilter(pattern + DEFAULT_ALLOWED + ";!*");
+    }
+
+    @Override
+    public byte[] serialize(Object value) throws IOException {
+        byte[] data;
+        byte type;
+        if (value instanceof byte[]) {
+            data = (byte[]) value;
+            type = BYTES;
+        } else if (value instanceof String) {
+            data = ((String) value).getBytes(StandardCharsets.UTF_8);
+            type = STRING;
+        } else {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(256);
+            bos.write(OBJECT);
+            ObjectOutputStream out = new ObjectOutputStream(bos);
+            out.writeObject(value);
+            out.close();
+            return bos.toByteArray();
+        }
+        byte[] bytes = new byte[data.length + 1];
+        bytes[0] = type;
+        System.arraycopy(data, 0, bytes, 1, data.length);
+        return bytes;
+    }
+
+    @Override
+    public Object deserialize(byte[] bytes) throws IOException {
+        if (bytes.length == 0) {
+            throw new IOException("Cached value is empty.");
+        }
+        switch (bytes[0]) {
+            case BYTES:
+                return Arrays.copyOfRange(bytes, 1, bytes.length);
+            case STRING:
+                return new String(bytes, 1, bytes.length - 1, StandardCharsets.UTF_8);
+            default:
+                ObjectInputStream in = new ContextObjectInputStream(
+                        new ByteArrayInputStream(bytes, 1, bytes.length - 1));
+                in.setObjectInputFilter(filter);
+                try {
+                    return in.readObject();
+                } catch (ClassNotFoundException ex) {
+                    throw new IOException("Could not deserialize cached value. ", ex);
+                } finally {
+                    in.close();
+                }
+        }
+    }
+
+    private static final class ContextObjectInputStream extends ObjectInputStream {
+
+        ContextObjectInputStream(ByteArrayInputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected Class<?> resolveClass(java.io.ObjectStreamClass desc)
+                throws IOException, ClassNotFoundException {
+            ClassLoader loader = Thread.currentThread().getContextClassLoader();
+            if (loader != null) {
+                try {
+                    return Class.forName(desc.getName(), false, loader);
+                } catch (ClassNotFoundException ex) {
+                    // Try the default resolution
+                }
+            }
+            return super.resolveClass(desc);
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import java.io.IOException;
+import java.io.Writer;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events of the request pipeline, so that the time spent
+ * in the framework shows up in recordings by phase rather than as anonymous
+ * frames. All the events are in the <i>JavaMVC</i> category and have
+ * durations. When no recording is running, creating and committing an event
+ * costs next to nothing, since the JIT compiler removes the event object; the
+ * fields are only filled if {@link Event#shouldCommit()} is true.
+ *
+ * @author Balwinder Sodhi
+ */
+final class JfrEvents {
+
+    private JfrEvents() {
+    }
+
+    /**
+     * Handling of one request by {@link ControllerServlet}, from routing to the
+     * response, or to the start of an asynchronous action.
+     */
+    @Name("org.javamvc.Dispatch")
+    @Label("Dispatch")
+    @Category("JavaMVC")
+    @Description("Request handled by ControllerServlet")
+    @StackTrace(false)
+    static final class Dispatch extends Event {
+
+        @Label("URI")
+        String uri;
+        @Label("Controller")
+        String controller;
+        @Label("Action")
+        String action;
+        @Label("Status")
+        int status;
+        @Label("Asynchronous")
+        boolean async;
+    }
+
+    /**
+     * Authorization of a request for a secured action.
+     */
+    @Name("org.javamvc.Authorize")
+    @Label("Authorize")
+    @Category("JavaMVC")
+    @Description("Authorization of an action request")
+    @StackTrace(false)
+    static final class Authorize extends Event {
+
+        @Label("Controller")
+        String controller;
+        @Label("Action")
+        String action;
+        @Label("Authorized")
+        boolean authorized;
+    }
+
+    /**
+     * Creation and initialization of the controller and the call of the
+     * action method, including the rendering of views.
+     */
+    @Name("org.javamvc.Action")
+    @Label("Action")
+    @Category("JavaMVC")
+    @Description("Controller action invocation")
+    @StackTrace(false)
+    static final class Action extends Event {
+
+        @Label("Controller")
+        String controller;
+        @Label("Action")
+        String action;
+        @Label("Response Captured")
+        @Description("True if the response is captured for the output cache")
+        boolean captured;
+        @Label("Failed")
+        @Description("True if the controller or the action threw an exception")
+        boolean failed;
+    }
+
+    /**
+     * Rendering of a view or JSON response by a {@link Controller}.
+     */
+    @Name("org.javamvc.Render")
+    @Label("Render")
+    @Category("JavaMVC")
+    @Description("View or JSON response written by a controller")
+    @StackTrace(false)
+    static final class Render extends Event {
+
+        @Label("Controller")
+        String controller;
+        @Label("Template")
+        @Description("View template, or the content type for JSON responses")
+        String template;
+        @Label("Characters Written")
+        long written;
+    }
+
+    /**
+     * An operation of a bundled {@link MemCacheProvider}.
+     */
+    @Name("org.javamvc.Cache")
+    @Label("Cache Operation")
+    @Category("JavaMVC")
+    @Description("Operation of a memory cache provider")
+    @StackTrace(false)
+    static final class Cache extends Event {
+
+        @Label("Provider")
+        String provider;
+        @Label("Operation")
+        String operation;
+        @Label("Key")
+        String key;
+        @Label("Keys")
+        int keys;
+        @Label("Hits")
+        int hits;
+    }
+
+    /**
+     * Starts a cache event. Commit it via
+     * {@link #commit(Cache, Object, String, Object, int, int)}.
+     */
+    static Cache cache() {
+        Cache event = new Cache();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Commits a cache event if it is enabled and took long enough.
+     *
+     * @param event
+     * @param provider The cache provider.
+     * @param operation Name of the operation.
+     * @param key The key, or null for operations on many keys.
+     * @param keys Number of keys.
+     * @param hits Number of keys found.
+     */
+    static void commit(Cache event, Object provider, String operation, Object key,
+            int keys, int hits) {
+        if (event.shouldCommit()) {
+            event.provider = provider.getClass().getSimpleName();
+            event.operation = operation;
+            event.key = key != null ? String.valueOf(key) : null;
+            event.keys = keys;
+            event.hits = hits;
+            event.commit();
+        }
+    }
+
+    /**
+     * A writer counting the characters written through it, for
+     * {@link Render#written}.
+     */
+    static final class CountingWriter extends Writer {
+
+        private final Writer out;
+        long count;
+
+        CountingWriter(Writer out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            out.write(c);
+            count++;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            out.write(cbuf, off, len);
+            count += len;
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            out.write(str, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of durations in nanoseconds, with buckets laid out as
+ * in HdrHistogram: each power of two range is split into 8 equal sub-buckets,
+ * so that any percentile is reported within 12.5% of the true value while the
+ * whole range from 1 ns to about 18 minutes takes 312 counters. Recording a
+ * value is a few atomic increments and never blocks; percentiles are computed
+ * from a snapshot of the counters, which is consistent enough for monitoring.
+ *
+ * @see Metrics
+ * @author Balwinder Sodhi
+ */
+public final class LatencyHistogram implements LatencyHistogramMBean {
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int MAX_EXPONENT = 40;
+    private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS) * SUB + 2 * SUB;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a duration.
+     *
+     * @param nanos Duration in nanoseconds. Negative values are counted as
+     * zero, and values over the range as the largest value of the range.
+     */
+    public void record(long nanos) {
+        long v = nanos < 0 ? 0 : Math.min(nanos, MAX_VALUE);
+        counts.incrementAndGet(index(v));
+        count.increment();
+        sum.add(v);
+        long m = max.get();
+        while (v > m && !max.compareAndSet(m, v)) {
+            m = max.get();
+        }
+    }
+
+    /**
+     * Records the time elapsed since given start.
+     *
+     * @param startNanos Start time as given by {@link System#nanoTime()}.
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Returns the sum of the recorded values.
+     *
+     * @return Sum in nanoseconds.
+     */
+    public long getSumNanos() {
+        return sum.sum();
+    }
+
+    /**
+     * Returns the value below which given fraction of the recorded values
+     * fall, i.e., the upper bound of the bucket holding that rank.
+     *
+     * @param q Fraction between 0 and 1.
+     * @return Value in nanoseconds, or 0 if nothing was recorded.
+     */
+    public long percentileNanos(double q) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(q * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+    @Override
+    public double getMeanMillis() {
+        long n = count.sum();
+        return n > 0 ? sum.sum() / 1e6 / n : 0;
+    }
+
+    @Override
+    public double getP50Millis() {
+        return percentileNanos(0.5) / 1e6;
+    }
+
+    @Override
+    public double getP90Millis() {
+        return percentileNanos(0.9) / 1e6;
+    }
+
+    @Override
+    public double getP99Millis() {
+        return percentileNanos(0.99) / 1e6;
+    }
+
+    @Override
+    public double getP999Millis() {
+        return percentileNanos(0.999) / 1e6;
+    }
+
+    @Override
+    public double getMaxMillis() {
+        return max.get() / 1e6;
+    }
+
+    static int index(long v) {
+        if (v < 2 * SUB) {
+            return (int) v;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(v);
+        int shift = exponent - SUB_BITS;
+        return shift * SUB + SUB + (int) ((v >>> shift) & (SUB - 1));
+    }
+
+    /**
+     * Returns the largest value falling in given bucket.
+     */
+    static long upperBound(int index) {
+        if (index < 2 * SUB) {
+            return index;
+        }
+        int shift = index / SUB - 1;
+        long sub = index % SUB;
+        return ((SUB + sub + 1) << shift) - 1;
+    }
+}
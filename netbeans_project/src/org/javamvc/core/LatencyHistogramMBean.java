@@ -0,0 +1,60 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+/**
+ * Management interface of a {@link LatencyHistogram}. All the times are in
+ * milliseconds.
+ *
+ * @author Balwinder Sodhi
+ */
+public interface LatencyHistogramMBean {
+
+    /**
+     * @return Number of recorded values.
+     */
+    long getCount();
+
+    /**
+     * @return Mean of the recorded values.
+     */
+    double getMeanMillis();
+
+    /**
+     * @return Median of the recorded values.
+     */
+    double getP50Millis();
+
+    /**
+     * @return 90th percentile of the recorded values.
+     */
+    double getP90Millis();
+
+    /**
+     * @return 99th percentile of the recorded values.
+     */
+    double getP99Millis();
+
+    /**
+     * @return 99.9th percentile of the recorded values.
+     */
+    double getP999Millis();
+
+    /**
+     * @return Largest recorded value.
+     */
+    double getMaxMillis();
+}
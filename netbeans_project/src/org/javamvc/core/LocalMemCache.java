@@ -15,27 +15,463 @@ limitations under the License.
 */
 package org.javamvc.core;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
 
 /**
+ * The default {@link MemCacheProvider}: an in-process cache with expiry,
+ * which is unbounded unless a maximum is configured. Following servlet init
+ * parameters are supported:
+ * <ol>
+ * <li>memcache.max.entries -- Optionally, the maximum number of entries, e.g.
+ * 100000. Default is 0, i.e., unbounded.</li>
+ * <li>memcache.max.weight -- Optionally, the maximum total weight of the
+ * entries, in approximate bytes, used instead of the entry count. Subclasses
+ * may override {@link #weigh(Object, Object)} for better estimates.</li>
+ * <li>memcache.default.ttl -- Seconds after which the entries stored via
+ * {@link #put(Object, Object)} expire. Default is 0, i.e., no expiry.</li>
+ * <li>memcache.offheap.capacity -- Optionally, number of bytes of memory
+ * outside the Java heap for storing large values. Suffixes k, m and g may be
+ * used, e.g. <code>4g</code>. Off-heap storage is disabled by default. The
+ * JVM must be allowed that much direct memory via
+ * <code>-XX:MaxDirectMemorySize</code>, which defaults to the maximum heap
+ * size; once that limit is hit, large values are kept on the heap.</li>
+ * <li>memcache.offheap.threshold -- Values weighing at least this many bytes
+ * are stored off-heap. Default is 16384.</li>
+ * <li>memcache.offheap.block.size -- Size of the blocks in which off-heap
+ * memory is allocated. Default is 4096.</li>
+ * <li>memcache.offheap.serializer.class -- Fully qualified name of the class
+ * which implements {@link ValueSerializer}, used for storing values off-heap
+ * and in snapshots. Default is {@link JavaValueSerializer}.</li>
+ * <li>memcache.offheap.serializer.allow -- For the default serializer,
+ * semicolon separated patterns of the application classes which may be
+ * deserialized, e.g. <code>com.example.model.*</code>. Off-heap and
+ * snapshot values of other classes, apart from
+ * {@link JavaValueSerializer#DEFAULT_ALLOWED}, are read as missing.</li>
+ * <li>memcache.snapshot.dir -- Optionally, a directory in which the entries
+ * are saved periodically and when the servlet is destroyed, and from which
+ * they are restored on initialization.</li>
+ * <li>memcache.snapshot.interval -- Seconds between the snapshots. Default
+ * is 300. Use 0 for saving only when the servlet is destroyed.</li>
+ * </ol>
+ * When a bounded cache is full, entries are evicted using the W-TinyLFU policy: new
+ * entries enter a small LRU window, and are admitted to the main LRU area
+ * (split into probation and protected segments) only if they were seen more
+ * often recently than the entry they would replace, as estimated by a
+ * {@link FrequencySketch}. This keeps popular entries cached even when many
+ * entries are used just once.
+ * <p>
+ * Reads never block: they are served from a {@link ConcurrentHashMap} and
+ * only record the access in a lossy buffer. The eviction policy is updated
+ * from these buffers, in batches, by whichever thread gets hold of the
+ * eviction lock. Expired entries are removed via a timer wheel, so each
+ * maintenance run only visits the entries expiring in the elapsed seconds.
+ * {@link #getOrCompute} keeps the loads in progress in a map keyed by the
+ * cache key, so that callers missing the same key wait for the one load and
+ * get its value or exception, while loads of other keys run in parallel
+ * without holding any lock and reads never wait for them.
+ * <p>
+ * With off-heap storage enabled, small values stay on the heap as they are,
+ * while large values, as estimated by {@link #weigh(Object, Object)}, are
+ * serialized into an {@link OffHeapStore}. Only a small handle of such values
+ * stays on the heap, so the heap and the GC pauses do not grow with the
+ * cached bytes. Reading an off-heap value deserializes a new copy of it.
+ * Values which cannot be serialized are kept on the heap. When the off-heap
+ * memory is full, the least recently used off-heap entries are evicted to
+ * make room.
+ * <p>
+ * Entries restored from a snapshot keep their keys on the heap, while their
+ * values stay in the memory mapped snapshot files until first read. So a
+ * restarted node serves from a warm cache right away, without deserializing
+ * all of it up front. Keys and values which cannot be serialized are not
+ * saved.
  *
  * @author Balwinder Sodhi
  */
-public class LocalMemCache implements MemCacheProvider {
+public class LocalMemCache implements MemCacheProvider<Object, Object> {
 
-    private final ConcurrentHashMap data = new ConcurrentHashMap();
+    private static final Logger logger = Logger.getLogger(LocalMemCache.class.getName());
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+    private static final long TICK_MILLIS = 1000;
+    private static final int WHEEL_SIZE = 256;
+    private static final int READ_BUFFER_SIZE = 64;
+    private static final int READ_DRAIN_THRESHOLD = 32;
+    private static final int WRITE_BUFFER_LIMIT = 1024;
+    private static final int READ_STRIPES = Integer.highestOneBit(
+            Math.max(1, Runtime.getRuntime().availableProcessors()) * 2 - 1) << 1;
+
+    private final ConcurrentHashMap<Object, Node> data = new ConcurrentHashMap<Object, Node>();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final ReadBuffer[] readBuffers = new ReadBuffer[READ_STRIPES];
+    private final ConcurrentLinkedQueue<Node> writeBuffer = new ConcurrentLinkedQueue<Node>();
+    private final AtomicInteger pendingWrites = new AtomicInteger();
+    private final ConcurrentHashMap<Object, Load> loads = new ConcurrentHashMap<Object, Load>();
+    // Following are guarded by evictionLock
+    private final FrequencySketch sketch = new FrequencySketch();
+    private final NodeList window = new NodeList();
+    private final NodeList probation = new NodeList();
+    private final NodeList protectedList = new NodeList();
+    private final Node[] wheel = new Node[WHEEL_SIZE];
+    private long processedTick;
+    private long maximum;
+    private long windowMaximum;
+    private long protectedMaximum;
+    private boolean weighted;
+    private volatile long defaultTtlMillis;
+    private volatile OffHeapStore offHeap;
+    private ValueSerializer serializer;
+    private int offHeapThreshold = 16384;
+    private CacheSnapshot snapshot;
+    private ScheduledExecutorService snapshotTimer;
+
+    /**
+     * Creates an unbounded cache without expiry.
+     */
+    public LocalMemCache() {
+        for (int i = 0; i < readBuffers.length; i++) {
+            readBuffers[i] = new ReadBuffer();
+        }
+        for (int i = 0; i < wheel.length; i++) {
+            wheel[i] = new Node(null, null, 0, 0);
+            wheel[i].timerPrev = wheel[i];
+            wheel[i].timerNext = wheel[i];
+        }
+        processedTick = System.currentTimeMillis() / TICK_MILLIS - 1;
+    }
+
+    /**
+     * Creates a cache bounded to given number of entries without expiry. Zero
+     * means unbounded.
+     *
+     * @param maxEntries
+     */
+    LocalMemCache(long maxEntries) {
+        this();
+        setMaximum(maxEntries, false);
+    }
+
+    @Override
+    public void init(ServletContext servletContext, ServletConfig servletConfig) {
+        String entries = servletConfig.getInitParameter("memcache.max.entries");
+        String weight = servletConfig.getInitParameter("memcache.max.weight");
+        if (weight != null) {
+            setMaximum(Long.parseLong(weight.trim()), true);
+        } else if (entries != null) {
+            setMaximum(Long.parseLong(entries.trim()), false);
+        }
+        String ttl = servletConfig.getInitParameter("memcache.default.ttl");
+        if (ttl != null) {
+            defaultTtlMillis = Long.parseLong(ttl.trim()) * 1000;
+        }
+        String capacity = servletConfig.getInitParameter("memcache.offheap.capacity");
+        String snapshotDir = servletConfig.getInitParameter("memcache.snapshot.dir");
+        if (capacity != null || snapshotDir != null) {
+            String value = servletConfig.getInitParameter("memcache.offheap.serializer.class");
+            try {
+                serializer = value != null
+                        ? (ValueSerializer) Class.forName(value.trim())
+                                .getDeclaredConstructor().newInstance()
+                        : new JavaValueSerializer(servletConfig.getInitParameter(
+                                "memcache.offheap.serializer.allow"));
+            } catch (ReflectiveOperationException ex) {
+                throw new IllegalArgumentException("Could not create value serializer "
+                        + value, ex);
+            }
+        }
+        if (capacity != null) {
+            String value = servletConfig.getInitParameter("memcache.offheap.threshold");
+            if (value != null) {
+                offHeapThreshold = Integer.parseInt(value.trim());
+            }
+            value = servletConfig.getInitParameter("memcache.offheap.block.size");
+            int blockSize = value != null ? Integer.parseInt(value.trim()) : 4096;
+            offHeap = new OffHeapStore(parseBytes(capacity), blockSize);
+        }
+        if (snapshotDir != null) {
+            snapshot = new CacheSnapshot(new File(snapshotDir.trim()));
+            restoreSnapshot();
+            String value = servletConfig.getInitParameter("memcache.snapshot.interval");
+            long interval = value != null ? Long.parseLong(value.trim()) : 300;
+            if (interval > 0) {
+                snapshotTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "javamvc-cache-snapshot");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+                snapshotTimer.scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        writeSnapshot();
+                    }
+                }, interval, interval, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    /**
+     * Writes a final snapshot, if snapshots are enabled, and releases the
+     * off-heap memory. The entries stored off-heap are removed.
+     */
+    @Override
+    public void destroy() {
+        if (snapshot != null) {
+            if (snapshotTimer != null) {
+                snapshotTimer.shutdown();
+            }
+            writeSnapshot();
+        }
+        OffHeapStore store = offHeap;
+        if (store != null) {
+            store.destroy();
+            for (Node node : data.values()) {
+                if (node.value instanceof OffHeapStore.Handle && data.remove(node.key, node)) {
+                    afterWrite(node);
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses a number of bytes with an optional k, m or g suffix.
+     */
+    private static long parseBytes(String value) {
+        String v = value.trim().toLowerCase(Locale.ENGLISH);
+        int shift = 0;
+        if (v.endsWith("k")) {
+            shift = 10;
+        } else if (v.endsWith("m")) {
+            shift = 20;
+        } else if (v.endsWith("g")) {
+            shift = 30;
+        }
+        if (shift > 0) {
+            v = v.substring(0, v.length() - 1).trim();
+        }
+        return Long.parseLong(v) << shift;
+    }
+
+    private void setMaximum(long max, boolean weighted) {
+        evictionLock.lock();
+        try {
+            this.maximum = Math.max(0, max);
+            this.weighted = weighted;
+            this.windowMaximum = Math.max(1, maximum / 100);
+            this.protectedMaximum = (maximum - windowMaximum) * 8 / 10;
+            if (!weighted) {
+                sketch.ensureCapacity(maximum);
+            }
+            evict();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the weight of an entry when the cache is bounded by
+     * <code>memcache.max.weight</code>, which also decides whether the value
+     * is stored off-heap. The default implementation estimates the bytes used
+     * by strings, byte arrays, cached action responses, collections, maps and
+     * arrays, and counts 64 for other values.
+     *
+     * @param key
+     * @param value
+     * @return The weight, at least 1.
+     */
+    protected int weigh(Object key, Object value) {
+        int w;
+        if (value instanceof byte[]) {
+            w = ((byte[]) value).length;
+        } else if (value instanceof CharSequence) {
+            w = 2 * ((CharSequence) value).length();
+        } else if (value instanceof CachedResponse) {
+            w = ((CachedResponse) value).weight();
+        } else if (value instanceof Collection) {
+            w = 64 * ((Collection) value).size();
+        } else if (value instanceof Map) {
+            w = 96 * ((Map) value).size();
+        } else if (value instanceof Object[]) {
+            w = 64 * ((Object[]) value).length;
+        } else {
+            w = 48;
+        }
+        return 16 + w;
+    }
 
     @Override
     public void put(Object key, Object value) {
-        data.put(key, value);
+        put(key, value, defaultTtlMillis);
+    }
+
+    @Override
+    public void put(Object key, Object value, long ttlMillis) {
+        JfrEvents.Cache event = JfrEvents.cache();
+        long expiresAt = ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : 0;
+        Node node = newNode(key, value, expiresAt);
+        Node prior = data.put(key, node);
+        if (prior != null) {
+            retire(prior);
+            writeBuffer.add(prior);
+            pendingWrites.incrementAndGet();
+        }
+        afterWrite(node);
+        JfrEvents.commit(event, this, "put", key, 1, 0);
+    }
+
+    /**
+     * Creates the node for a new entry, moving the value off-heap if it is
+     * large.
+     */
+    private Node newNode(Object key, Object value, long expiresAt) {
+        Object stored = value;
+        int weight = 1;
+        if (weighted || offHeap != null) {
+            int w = Math.max(1, weigh(key, value));
+            if (offHeap != null && w >= offHeapThreshold) {
+                OffHeapStore.Handle handle = storeOffHeap(value);
+                if (handle != null) {
+                    stored = handle;
+                    w = 64 + 4 * handle.blocks.length;
+                }
+            }
+            if (weighted) {
+                weight = w;
+            }
+        }
+        return new Node(key, stored, weight, expiresAt);
     }
 
     @Override
     public Object get(Object key) {
-        return data.get(key);
+        JfrEvents.Cache event = JfrEvents.cache();
+        Object value = read(key);
+        JfrEvents.commit(event, this, "get", key, 1, value != null ? 1 : 0);
+        return value;
+    }
+
+    private Object read(Object key) {
+        Node node = data.get(key);
+        if (node == null) {
+            return null;
+        }
+        if (node.isExpired(System.currentTimeMillis())) {
+            if (data.remove(key, node)) {
+                retire(node);
+                afterWrite(node);
+            }
+            return null;
+        }
+        afterRead(node);
+        return valueOf(node);
+    }
+
+    @Override
+    public Object getOrCompute(Object key, Loader<? super Object, ?> loader)
+            throws Exception {
+        return getOrCompute(key, loader, defaultTtlMillis);
     }
 
+    /**
+     * Returns the value of key, loading it if missing. Concurrent callers
+     * missing the same key share one load: they all get the value it
+     * returned, even if the value was null or not admitted to the cache, or
+     * the exception it threw.
+     *
+     * @throws IllegalStateException If the loader asks for the key it is
+     * loading.
+     */
+    @Override
+    public Object getOrCompute(final Object key, final Loader<? super Object, ?> loader,
+            final long ttlMillis) throws Exception {
+        Object value = get(key);
+        if (value != null) {
+            return value;
+        }
+        Load load = new Load(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                // Loaded by a load which has just finished
+                Object value = read(key);
+                if (value == null) {
+                    JfrEvents.Cache event = JfrEvents.cache();
+                    value = loader.load(key);
+                    JfrEvents.commit(event, LocalMemCache.this, "load", key, 1, 0);
+                    if (value != null) {
+                        put(key, value, ttlMillis);
+                    }
+                }
+                return value;
+            }
+        });
+        Load running = loads.putIfAbsent(key, load);
+        if (running == null) {
+            running = load;
+            try {
+                load.run();
+            } finally {
+                loads.remove(key, load);
+            }
+        } else if (running.owner == Thread.currentThread()) {
+            throw new IllegalStateException("Recursive load of key " + key);
+        }
+        try {
+            return running.get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * A load in progress, run by the thread which started it.
+     */
+    private static final class Load extends FutureTask<Object> {
+
+        final Thread owner = Thread.currentThread();
+
+        Load(Callable<Object> callable) {
+            super(callable);
+        }
+    }
+
+    /**
+     * Returns the number of entries, which may include expired entries not
+     * yet removed.
+     *
+     * @return
+     */
     @Override
     public int size() {
         return data.size();
@@ -43,17 +479,507 @@ public class LocalMemCache implements MemCacheProvider {
 
     @Override
     public boolean containsKey(Object key) {
-        return data.containsKey(key);
+        Node node = data.get(key);
+        return node != null && !node.isExpired(System.currentTimeMillis());
     }
 
     @Override
     public Object remove(Object key) {
-        return data.remove(key);
+        JfrEvents.Cache event = JfrEvents.cache();
+        Node node = data.remove(key);
+        Object value = null;
+        if (node != null) {
+            value = node.isExpired(System.currentTimeMillis()) ? null : valueOf(node);
+            retire(node);
+            afterWrite(node);
+        }
+        JfrEvents.commit(event, this, "remove", key, 1, value != null ? 1 : 0);
+        return value;
     }
 
+    /**
+     * Returns a read only view of the keys.
+     *
+     * @return
+     */
     @Override
-    public Set keySet() {
-        return data.keySet();
+    public Set<Object> keySet() {
+        return Collections.unmodifiableSet(data.keySet());
+    }
+
+    /**
+     * Returns the value of a node, reading it from the off-heap store if
+     * needed.
+     *
+     * @return The value, or null if the off-heap value was removed meanwhile
+     * or could not be deserialized.
+     */
+    private Object valueOf(Node node) {
+        if (node.value instanceof CacheSnapshot.MappedValue) {
+            return loadMapped(node);
+        }
+        if (!(node.value instanceof OffHeapStore.Handle)) {
+            return node.value;
+        }
+        byte[] bytes = offHeap.read((OffHeapStore.Handle) node.value);
+        if (bytes == null) {
+            return null;
+        }
+        try {
+            return serializer.deserialize(bytes);
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Could not read off-heap value of " + node.key, ex);
+            return null;
+        }
+    }
+
+    /**
+     * Deserializes a value restored from the snapshot and replaces its node
+     * with one holding the value, so that it is deserialized only once.
+     */
+    private Object loadMapped(Node node) {
+        Object value;
+        try {
+            value = serializer.deserialize(((CacheSnapshot.MappedValue) node.value).bytes());
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Could not read snapshot value of " + node.key, ex);
+            if (data.remove(node.key, node)) {
+                afterWrite(node);
+            }
+            return null;
+        }
+        Node loaded = newNode(node.key, value, node.expiresAt);
+        if (data.replace(node.key, node, loaded)) {
+            writeBuffer.add(node);
+            pendingWrites.incrementAndGet();
+            afterWrite(loaded);
+        } else {
+            retire(loaded);
+        }
+        return value;
+    }
+
+    /**
+     * Returns the serialized value of a node, for writing it to a snapshot.
+     *
+     * @return The bytes, or null if the value cannot be serialized.
+     */
+    private byte[] bytesOf(Node node) {
+        if (node.value instanceof CacheSnapshot.MappedValue) {
+            return ((CacheSnapshot.MappedValue) node.value).bytes();
+        } else if (node.value instanceof OffHeapStore.Handle) {
+            return offHeap.read((OffHeapStore.Handle) node.value);
+        }
+        try {
+            return serializer.serialize(node.value);
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes all the entries which can be serialized to a new snapshot.
+     */
+    private synchronized void writeSnapshot() {
+        long start = System.currentTimeMillis();
+        int count = 0;
+        CacheSnapshot.Writer writer = null;
+        try {
+            writer = snapshot.newWriter();
+            for (Node node : data.values()) {
+                if (node.isExpired(start)) {
+                    continue;
+                }
+                byte[] key;
+                try {
+                    key = serializer.serialize(node.key);
+                } catch (IOException ex) {
+                    continue;
+                }
+                byte[] value = bytesOf(node);
+                if (value != null) {
+                    writer.add(key, value, node.expiresAt);
+                    count++;
+                }
+            }
+            writer.commit();
+            logger.info("Wrote " + count + " cache entries to snapshot in "
+                    + (System.currentTimeMillis() - start) + " ms");
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Could not write cache snapshot. ", ex);
+            if (writer != null) {
+                writer.abort();
+            }
+        }
+    }
+
+    /**
+     * Restores the entries of the latest snapshot. Only the keys are read
+     * here; the values are read from the mapped segments when first used.
+     */
+    private void restoreSnapshot() {
+        final long now = System.currentTimeMillis();
+        try {
+            int count = snapshot.read(new CacheSnapshot.Sink() {
+                @Override
+                public void entry(byte[] key, CacheSnapshot.MappedValue value, long expiresAt) {
+                    if (expiresAt != 0 && expiresAt <= now) {
+                        return;
+                    }
+                    Object k;
+                    try {
+                        k = serializer.deserialize(key);
+                    } catch (IOException ex) {
+                        return;
+                    }
+                    Node node = new Node(k, value, weighted ? 16 + value.length : 1, expiresAt);
+                    if (data.putIfAbsent(k, node) == null) {
+                        afterWrite(node);
+                    }
+                }
+            });
+            logger.info("Restored " + count + " cache entries from snapshot in "
+                    + (System.currentTimeMillis() - now) + " ms");
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Could not restore cache snapshot. ", ex);
+        }
+    }
+
+    /**
+     * Serializes the value into the off-heap store, evicting other off-heap
+     * values if there is no room.
+     *
+     * @return The handle, or null if the value is to be kept on the heap.
+     */
+    private OffHeapStore.Handle storeOffHeap(Object value) {
+        byte[] bytes;
+        try {
+            bytes = serializer.serialize(value);
+        } catch (IOException ex) {
+            // Not serializable, stays on heap
+            return null;
+        }
+        OffHeapStore.Handle handle = offHeap.store(bytes);
+        if (handle == null) {
+            evictionLock.lock();
+            try {
+                makeRoom(offHeap.blocksFor(bytes.length));
+            } finally {
+                evictionLock.unlock();
+            }
+            handle = offHeap.store(bytes);
+        }
+        return handle;
+    }
+
+    /**
+     * Evicts off-heap values, least recently used first, until given number
+     * of blocks is available.
+     */
+    private void makeRoom(int blocks) {
+        maintenance();
+        for (NodeList list : new NodeList[]{probation, window, protectedList}) {
+            Node node = list.first();
+            while (node != null && offHeap.available() < blocks) {
+                Node next = node.next;
+                if (node.value instanceof OffHeapStore.Handle) {
+                    evictNode(node);
+                }
+                node = next;
+            }
+        }
+    }
+
+    /**
+     * Called once for every node removed from the map.
+     */
+    private void retire(Node node) {
+        if (node.value instanceof OffHeapStore.Handle) {
+            offHeap.release((OffHeapStore.Handle) node.value);
+        }
+    }
+
+    private void afterRead(Node node) {
+        ReadBuffer buffer = readBuffers[(int) Thread.currentThread().getId() & (READ_STRIPES - 1)];
+        long tail = buffer.tail.getAndIncrement();
+        buffer.slots.lazySet((int) tail & (READ_BUFFER_SIZE - 1), node);
+        if ((tail & (READ_DRAIN_THRESHOLD - 1)) == READ_DRAIN_THRESHOLD - 1) {
+            tryMaintenance();
+        }
+    }
+
+    private void afterWrite(Node node) {
+        writeBuffer.add(node);
+        if (pendingWrites.incrementAndGet() > WRITE_BUFFER_LIMIT) {
+            // Writers are faster than maintenance; make them wait for it
+            evictionLock.lock();
+            try {
+                maintenance();
+            } finally {
+                evictionLock.unlock();
+            }
+        } else {
+            tryMaintenance();
+        }
+    }
+
+    private void tryMaintenance() {
+        while (evictionLock.tryLock()) {
+            try {
+                maintenance();
+            } finally {
+                evictionLock.unlock();
+            }
+            // Writes added while the lock was being released
+            if (pendingWrites.get() == 0) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Applies the buffered reads and writes to the eviction policy, removes
+     * expired entries and evicts entries above the maximum.
+     */
+    private void maintenance() {
+        for (ReadBuffer buffer : readBuffers) {
+            for (int i = 0; i < READ_BUFFER_SIZE; i++) {
+                Node node = buffer.slots.get(i);
+                if (node != null) {
+                    buffer.slots.lazySet(i, null);
+                    onAccess(node);
+                }
+            }
+        }
+        Node node;
+        while ((node = writeBuffer.poll()) != null) {
+            pendingWrites.decrementAndGet();
+            boolean present = data.get(node.key) == node;
+            if (present && node.queue < 0) {
+                link(node);
+            } else if (!present && node.queue >= 0) {
+                unlink(node);
+            }
+        }
+        expire(System.currentTimeMillis());
+        evict();
+    }
+
+    private void onAccess(Node node) {
+        if (node.queue < 0) {
+            return;
+        }
+        if (maximum > 0) {
+            sketch.increment(node.key);
+        }
+        if (node.queue == WINDOW) {
+            window.moveToLast(node);
+        } else if (node.queue == PROBATION) {
+            probation.remove(node);
+            protectedList.addLast(node);
+            node.queue = PROTECTED;
+            while (protectedList.weight > protectedMaximum) {
+                Node demoted = protectedList.first();
+                protectedList.remove(demoted);
+                probation.addLast(demoted);
+                demoted.queue = PROBATION;
+            }
+        } else {
+            protectedList.moveToLast(node);
+        }
+    }
+
+    private void link(Node node) {
+        if (maximum > 0) {
+            if (weighted) {
+                sketch.ensureCapacity(data.size());
+            }
+            sketch.increment(node.key);
+        }
+        window.addLast(node);
+        node.queue = WINDOW;
+        if (node.expiresAt != 0) {
+            long tick = Math.max(node.expiresAt / TICK_MILLIS, processedTick + 1);
+            Node head = wheel[(int) tick & (WHEEL_SIZE - 1)];
+            node.timerNext = head;
+            node.timerPrev = head.timerPrev;
+            head.timerPrev.timerNext = node;
+            head.timerPrev = node;
+        }
+    }
+
+    private void unlink(Node node) {
+        if (node.queue == WINDOW) {
+            window.remove(node);
+        } else if (node.queue == PROBATION) {
+            probation.remove(node);
+        } else if (node.queue == PROTECTED) {
+            protectedList.remove(node);
+        }
+        node.queue = -1;
+        if (node.timerNext != null) {
+            node.timerPrev.timerNext = node.timerNext;
+            node.timerNext.timerPrev = node.timerPrev;
+            node.timerPrev = null;
+            node.timerNext = null;
+        }
+    }
+
+    private void evictNode(Node node) {
+        unlink(node);
+        if (data.remove(node.key, node)) {
+            retire(node);
+        }
+    }
+
+    /**
+     * Removes the entries in the buckets of the timer wheel for the seconds
+     * elapsed since the last run. Entries expiring more than a full turn of
+     * the wheel later are left in place until their turn.
+     */
+    private void expire(long now) {
+        long tick = now / TICK_MILLIS;
+        long last = tick - 1;
+        long from = Math.max(processedTick + 1, last - WHEEL_SIZE + 1);
+        for (long t = from; t <= last; t++) {
+            Node head = wheel[(int) t & (WHEEL_SIZE - 1)];
+            Node node = head.timerNext;
+            while (node != head) {
+                Node next = node.timerNext;
+                if (node.isExpired(now)) {
+                    evictNode(node);
+                }
+                node = next;
+            }
+        }
+        processedTick = Math.max(processedTick, last);
+    }
+
+    /**
+     * Evicts entries until the total weight is within the maximum. Entries
+     * leaving the window are admitted to the main area only if they are used
+     * more frequently than the least recently used entry on probation.
+     */
+    private void evict() {
+        if (maximum <= 0) {
+            return;
+        }
+        long mainMaximum = maximum - windowMaximum;
+        while (window.weight > windowMaximum) {
+            Node candidate = window.first();
+            window.remove(candidate);
+            candidate.queue = -1;
+            if (candidate.weight > mainMaximum) {
+                evictNode(candidate);
+                continue;
+            }
+            while (probation.weight + protectedList.weight + candidate.weight > mainMaximum) {
+                Node victim = probation.first() != null ? probation.first() : protectedList.first();
+                if (sketch.frequency(candidate.key) > sketch.frequency(victim.key)) {
+                    evictNode(victim);
+                } else {
+                    break;
+                }
+            }
+            if (probation.weight + protectedList.weight + candidate.weight > mainMaximum) {
+                evictNode(candidate);
+            } else {
+                probation.addLast(candidate);
+                candidate.queue = PROBATION;
+            }
+        }
+        while (window.weight + probation.weight + protectedList.weight > maximum) {
+            Node victim = probation.first() != null ? probation.first()
+                    : protectedList.first() != null ? protectedList.first() : window.first();
+            evictNode(victim);
+        }
+    }
+
+    private static final class Node {
+
+        final Object key;
+        final Object value;
+        final int weight;
+        /**
+         * Expiry time in milliseconds, or 0 if the entry does not expire.
+         */
+        final long expiresAt;
+        // Following are guarded by evictionLock
+        int queue = -1;
+        Node prev;
+        Node next;
+        Node timerPrev;
+        Node timerNext;
+
+        Node(Object key, Object value, int weight, long expiresAt) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired(long now) {
+            return expiresAt != 0 && expiresAt <= now;
+        }
+    }
+
+    /**
+     * Doubly linked list of nodes in access order, least recent first.
+     */
+    private static final class NodeList {
+
+        private Node head;
+        private Node tail;
+        long weight;
+
+        Node first() {
+            return head;
+        }
+
+        void addLast(Node node) {
+            node.prev = tail;
+            node.next = null;
+            if (tail == null) {
+                head = node;
+            } else {
+                tail.next = node;
+            }
+            tail = node;
+            weight += node.weight;
+        }
+
+        void remove(Node node) {
+            if (node.prev == null) {
+                head = node.next;
+            } else {
+                node.prev.next = node.next;
+            }
+            if (node.next == null) {
+                tail = node.prev;
+            } else {
+                node.next.prev = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+            weight -= node.weight;
+        }
+
+        void moveToLast(Node node) {
+            if (node != tail) {
+                remove(node);
+                addLast(node);
+            }
+        }
+    }
+
+    /**
+     * Lossy ring buffer of recently read nodes. Slots may be overwritten
+     * before they are drained, losing some accesses, which only makes the
+     * frequency estimates slightly less accurate.
+     */
+    private static final class ReadBuffer {
+
+        final AtomicLong tail = new AtomicLong();
+        final AtomicReferenceArray<Node> slots = new AtomicReferenceArray<Node>(READ_BUFFER_SIZE);
     }
-    
 }
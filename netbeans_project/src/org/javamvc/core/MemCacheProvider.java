@@ -15,19 +15,56 @@ limitations under the License.
 */
 package org.javamvc.core;
 
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
 
 /**
  *
  * @author Balwinder Sodhi
  */
 public interface MemCacheProvider<K, V> {
+    /**
+     * Called by {@link ControllerServlet} once after creating the provider,
+     * so that it can configure itself from the servlet init parameters. The
+     * default implementation does nothing.
+     * @param servletContext
+     * @param servletConfig 
+     */
+    default void init(ServletContext servletContext, ServletConfig servletConfig) {
+    }
+
+    /**
+     * Called by {@link ControllerServlet} when it is taken out of service. The
+     * default implementation does nothing.
+     */
+    default void destroy() {
+    }
+
     /**
      * Adds or replaces a key value pair in the shared data store.
      * @param key
      * @param value 
      */
     void put(K key, V value);
+
+    /**
+     * Adds or replaces a key value pair which expires after given time. The
+     * default implementation ignores the time and stores the pair with
+     * {@link #put(Object, Object)}, so providers supporting expiry should
+     * override it.
+     * @param key
+     * @param value
+     * @param ttlMillis Milliseconds after which the entry expires. Zero or
+     * less means the entry does not expire.
+     */
+    default void put(K key, V value, long ttlMillis) {
+        put(key, value);
+    }
     
     /**
      * Returns the value for given key from shared data store. Given key is
@@ -38,6 +75,88 @@ public interface MemCacheProvider<K, V> {
      */
     V get(K key);
     
+    /**
+     * Returns the values of given keys. Providers with remote storage should
+     * override this to fetch the keys in as few round trips as possible; the
+     * default implementation calls {@link #get(Object)} for each key.
+     * @param keys
+     * @return Map of the keys found to their values. Missing keys are not
+     * included.
+     */
+    default Map<K, V> getAll(Collection<? extends K> keys) {
+        Map<K, V> result = new HashMap<K, V>();
+        for (K key : keys) {
+            V value = get(key);
+            if (value != null) {
+                result.put(key, value);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Adds or replaces all the given key value pairs. The default
+     * implementation calls {@link #put(Object, Object)} for each pair.
+     * @param entries 
+     */
+    default void putAll(Map<? extends K, ? extends V> entries) {
+        for (Map.Entry<? extends K, ? extends V> e : entries.entrySet()) {
+            put(e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * Same as {@link #get(Object)}, except that the caller need not wait for
+     * the value. The default implementation gets the value in the calling
+     * thread and returns a completed future.
+     * @param key
+     * @return Future of the value, or of null if the key is not present.
+     */
+    default CompletableFuture<V> getAsync(K key) {
+        CompletableFuture<V> result = new CompletableFuture<V>();
+        try {
+            result.complete(get(key));
+        } catch (RuntimeException ex) {
+            result.completeExceptionally(ex);
+        }
+        return result;
+    }
+
+    /**
+     * Same as {@link #getAll(Collection)}, except that the caller need not
+     * wait for the values. The default implementation gets the values in the
+     * calling thread and returns a completed future.
+     * @param keys
+     * @return Future of the keys found and their values.
+     */
+    default CompletableFuture<Map<K, V>> getAllAsync(Collection<? extends K> keys) {
+        CompletableFuture<Map<K, V>> result = new CompletableFuture<Map<K, V>>();
+        try {
+            result.complete(getAll(keys));
+        } catch (RuntimeException ex) {
+            result.completeExceptionally(ex);
+        }
+        return result;
+    }
+
+    /**
+     * Same as {@link #putAll(Map)}, except that the caller need not wait for
+     * the entries to be stored. The default implementation stores them in the
+     * calling thread and returns a completed future.
+     * @param entries
+     * @return Future completed once the entries are stored.
+     */
+    default CompletableFuture<Void> putAllAsync(Map<? extends K, ? extends V> entries) {
+        CompletableFuture<Void> result = new CompletableFuture<Void>();
+        try {
+            putAll(entries);
+            result.complete(null);
+        } catch (RuntimeException ex) {
+            result.completeExceptionally(ex);
+        }
+        return result;
+    }
+
     /**
      * Return the number of items in the shared data store.
      * @return 
@@ -64,4 +183,51 @@ public interface MemCacheProvider<K, V> {
      * @return 
      */
     Set<K> keySet();
+
+    /**
+     * Returns the value for given key, loading and storing it via the loader
+     * if the key is not present. Concurrent calls for the same missing key
+     * run the loader only once; the other callers wait for its result. The
+     * default implementation does this within the current JVM, for any
+     * provider. A null value returned by the loader is not stored.
+     * @param key
+     * @param loader Computes the value of a missing key.
+     * @return The present or loaded value.
+     * @throws Exception Thrown by the loader. All the callers waiting for the
+     * same key get it.
+     */
+    default V getOrCompute(K key, Loader<? super K, ? extends V> loader) throws Exception {
+        V value = get(key);
+        return value != null ? value : SingleFlight.load(this, key, loader, false, 0);
+    }
+
+    /**
+     * Same as {@link #getOrCompute(Object, Loader)}, except that a loaded
+     * value expires after given time, as with
+     * {@link #put(Object, Object, long)}.
+     * @param key
+     * @param loader Computes the value of a missing key.
+     * @param ttlMillis Milliseconds after which a loaded value expires.
+     * @return The present or loaded value.
+     * @throws Exception Thrown by the loader.
+     */
+    default V getOrCompute(K key, Loader<? super K, ? extends V> loader, long ttlMillis)
+            throws Exception {
+        V value = get(key);
+        return value != null ? value : SingleFlight.load(this, key, loader, true, ttlMillis);
+    }
+
+    /**
+     * Computes the value of a key missing in the cache.
+     * @param <K>
+     * @param <V> 
+     */
+    interface Loader<K, V> {
+        /**
+         * @param key
+         * @return The value of key, or null if it has none.
+         * @throws Exception 
+         */
+        V load(K key) throws Exception;
+    }
 }
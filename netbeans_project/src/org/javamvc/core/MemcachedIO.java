@@ -0,0 +1,496 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Non-blocking I/O for {@link MemcachedMemCache}. A single thread runs a
+ * {@link Selector} over all the connections. Requests from any thread are
+ * queued on a connection and written by the I/O thread, as many at a time as
+ * the socket takes, without waiting for the earlier responses. Since memcached
+ * answers the requests of a connection in order, each response read is
+ * matched to the oldest request in flight.
+ * <p>
+ * A connection which fails or whose request times out is closed, failing all
+ * its pending requests, and is connected again on its next request. After a
+ * failed connection attempt, requests fail at once for a second, so that a
+ * server which is down does not hold up the callers.
+ *
+ * @author Balwinder Sodhi
+ */
+final class MemcachedIO implements Runnable {
+
+    private static final Logger logger = Logger.getLogger(MemcachedIO.class.getName());
+    private static final long RETRY_DELAY_MILLIS = 1000;
+    private final Selector selector;
+    private final long connectTimeoutMillis;
+    private final long requestTimeoutMillis;
+    private final List<Connection> connections = new CopyOnWriteArrayList<Connection>();
+    private final ConcurrentLinkedQueue<Connection> scheduled
+            = new ConcurrentLinkedQueue<Connection>();
+    private volatile boolean running = true;
+    private final Thread thread;
+
+    MemcachedIO(long connectTimeoutMillis, long requestTimeoutMillis) throws IOException {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.requestTimeoutMillis = requestTimeoutMillis;
+        this.selector = Selector.open();
+        this.thread = new Thread(this, "javamvc-memcached-io");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Creates a connection to given server. The connection is established on
+     * its first request.
+     *
+     * @param address
+     * @return
+     */
+    Connection newConnection(InetSocketAddress address) {
+        Connection c = new Connection(address);
+        connections.add(c);
+        return c;
+    }
+
+    /**
+     * Stops the I/O thread and closes all the connections.
+     */
+    void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select(100);
+                Connection c;
+                while ((c = scheduled.poll()) != null) {
+                    c.onScheduled();
+                }
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    ((Connection) key.attachment()).onReady(key);
+                }
+                long now = System.currentTimeMillis();
+                for (Connection conn : connections) {
+                    conn.checkTimeouts(now);
+                }
+            }
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Memcached I/O thread failed. ", ex);
+        } catch (ClosedSelectorException ex) {
+            // Stopped
+        } finally {
+            IOException closed = new IOException("Memcached client stopped.");
+            for (Connection c : connections) {
+                c.close(closed);
+            }
+            try {
+                selector.close();
+            } catch (IOException ex) {
+                // Ignore
+            }
+        }
+    }
+
+    /**
+     * A connection to one memcached server. {@link #send} and
+     * {@link #markBroken} may be called from any thread; all other methods
+     * run on the I/O thread.
+     */
+    final class Connection {
+
+        final InetSocketAddress address;
+        private final ConcurrentLinkedQueue<Request> outbound = new ConcurrentLinkedQueue<Request>();
+        private final AtomicBoolean isScheduled = new AtomicBoolean();
+        private volatile boolean broken;
+        private SocketChannel channel;
+        private SelectionKey key;
+        private long connectDeadline;
+        private long retryAt;
+        private final ArrayDeque<Request> inflight = new ArrayDeque<Request>();
+        private final ArrayDeque<ByteBuffer> writes = new ArrayDeque<ByteBuffer>();
+        private ByteBuffer readBuffer = ByteBuffer.allocate(16384);
+
+        private Connection(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        /**
+         * Queues a request to be written to the server.
+         *
+         * @param request
+         */
+        void send(Request request) {
+            if (!running) {
+                request.result.completeExceptionally(new IOException("Memcached client stopped."));
+                return;
+            }
+            request.connection = this;
+            request.deadline = System.currentTimeMillis() + requestTimeoutMillis;
+            outbound.add(request);
+            schedule();
+        }
+
+        /**
+         * Closes the connection since its responses can no longer be matched
+         * to the requests, e.g. after a request timed out.
+         */
+        void markBroken() {
+            broken = true;
+            schedule();
+        }
+
+        private void schedule() {
+            if (isScheduled.compareAndSet(false, true)) {
+                scheduled.add(this);
+                selector.wakeup();
+            }
+        }
+
+        void onScheduled() {
+            isScheduled.set(false);
+            if (broken) {
+                broken = false;
+                close(new IOException("Connection to " + address + " was reset."));
+                if (outbound.isEmpty()) {
+                    return;
+                }
+            }
+            if (channel == null) {
+                connect();
+            } else if (channel.isConnected() && key.isValid()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+
+        private void connect() {
+            if (System.currentTimeMillis() < retryAt) {
+                failAll(new IOException("Memcached server " + address + " is unavailable."));
+                return;
+            }
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+                if (channel.connect(address)) {
+                    key = channel.register(selector,
+                            SelectionKey.OP_READ | SelectionKey.OP_WRITE, this);
+                } else {
+                    key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+                    connectDeadline = System.currentTimeMillis() + connectTimeoutMillis;
+                }
+            } catch (IOException ex) {
+                fail(ex);
+            }
+        }
+
+        void checkTimeouts(long now) {
+            if (channel != null && channel.isConnectionPending() && now > connectDeadline) {
+                fail(new IOException("Timed out connecting to " + address));
+            } else if (!inflight.isEmpty() && now > inflight.peek().deadline) {
+                fail(new IOException("Request to " + address + " timed out."));
+            }
+        }
+
+        void onReady(SelectionKey key) {
+            try {
+                if (key.isConnectable()) {
+                    channel.finishConnect();
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                if (key.isReadable()) {
+                    read();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    write();
+                }
+            } catch (IOException ex) {
+                fail(ex);
+            }
+        }
+
+        /**
+         * Writes the queued requests, as many as the socket takes. Requests
+         * move to the in-flight queue before their bytes are sent, so that
+         * the order of in-flight requests is the order of their responses.
+         */
+        private void write() throws IOException {
+            Request r;
+            while ((r = outbound.poll()) != null) {
+                inflight.add(r);
+                writes.add(ByteBuffer.wrap(r.command));
+            }
+            ByteBuffer[] batch = new ByteBuffer[64];
+            while (!writes.isEmpty()) {
+                int n = 0;
+                for (ByteBuffer b : writes) {
+                    if (n == batch.length) {
+                        break;
+                    }
+                    batch[n++] = b;
+                }
+                long written = channel.write(batch, 0, n);
+                while (!writes.isEmpty() && !writes.peek().hasRemaining()) {
+                    writes.poll();
+                }
+                if (written == 0) {
+                    // Socket buffer is full
+                    break;
+                }
+            }
+            key.interestOps(writes.isEmpty() ? SelectionKey.OP_READ
+                    : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+
+        private void read() throws IOException {
+            if (channel.read(readBuffer) < 0) {
+                throw new IOException("Connection to " + address + " was closed by server.");
+            }
+            readBuffer.flip();
+            while (!inflight.isEmpty() && inflight.peek().parse(readBuffer)) {
+                inflight.poll();
+            }
+            if (inflight.isEmpty() && readBuffer.hasRemaining()) {
+                throw new IOException("Unexpected response from " + address);
+            }
+            readBuffer.compact();
+            if (!readBuffer.hasRemaining()) {
+                // A large value; grow the buffer
+                ByteBuffer grown = ByteBuffer.allocate(readBuffer.capacity() * 2);
+                readBuffer.flip();
+                grown.put(readBuffer);
+                readBuffer = grown;
+            }
+        }
+
+        private void fail(IOException ex) {
+            logger.log(Level.WARNING, "Memcached connection to " + address + " failed: "
+                    + ex.getMessage());
+            close(ex);
+            retryAt = System.currentTimeMillis() + RETRY_DELAY_MILLIS;
+        }
+
+        void close(IOException ex) {
+            if (key != null) {
+                key.cancel();
+                key = null;
+            }
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ioe) {
+                    // Ignore
+                }
+                channel = null;
+            }
+            for (Request r : inflight) {
+                r.result.completeExceptionally(ex);
+            }
+            inflight.clear();
+            writes.clear();
+            readBuffer.clear();
+            failAll(ex);
+        }
+
+        private void failAll(IOException ex) {
+            Request r;
+            while ((r = outbound.poll()) != null) {
+                r.result.completeExceptionally(ex);
+            }
+        }
+    }
+
+    /**
+     * A request and the parser of its response.
+     */
+    abstract static class Request {
+
+        final byte[] command;
+        final CompletableFuture<Object> result = new CompletableFuture<Object>();
+        long deadline;
+        Connection connection;
+
+        Request(byte[] command) {
+            this.command = command;
+        }
+
+        /**
+         * Parses the response from given buffer, completing the result once
+         * the whole response has been read.
+         *
+         * @param buf
+         * @return True if the response is complete.
+         * @throws IOException If the response is malformed.
+         */
+        abstract boolean parse(ByteBuffer buf) throws IOException;
+
+        /**
+         * Reads a line ending in CRLF, or returns null without consuming
+         * anything if the line is not complete yet.
+         */
+        static String readLine(ByteBuffer buf) {
+            int start = buf.position();
+            for (int i = start; i < buf.limit() - 1; i++) {
+                if (buf.get(i) == '\r' && buf.get(i + 1) == '\n') {
+                    byte[] line = new byte[i - start];
+                    buf.get(line);
+                    buf.position(i + 2);
+                    return new String(line, StandardCharsets.US_ASCII);
+                }
+            }
+            return null;
+        }
+
+        static boolean isError(String line) {
+            return line.equals("ERROR") || line.startsWith("CLIENT_ERROR")
+                    || line.startsWith("SERVER_ERROR");
+        }
+    }
+
+    /**
+     * A request answered with a single line, e.g. <code>set</code> or
+     * <code>delete</code>. The result is the line.
+     */
+    static final class LineRequest extends Request {
+
+        LineRequest(byte[] command) {
+            super(command);
+        }
+
+        @Override
+        boolean parse(ByteBuffer buf) {
+            String line = readLine(buf);
+            if (line == null) {
+                return false;
+            }
+            if (isError(line)) {
+                result.completeExceptionally(new IOException(line));
+            } else {
+                result.complete(line);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A <code>get</code> of one or more keys. The result is a map of the keys
+     * found to their bytes.
+     */
+    static final class GetRequest extends Request {
+
+        private final Map<String, byte[]> values = new HashMap<String, byte[]>();
+        private String pendingKey;
+        private int pendingLength = -1;
+
+        GetRequest(byte[] command) {
+            super(command);
+        }
+
+        @Override
+        boolean parse(ByteBuffer buf) throws IOException {
+            for (;;) {
+                if (pendingLength >= 0) {
+                    if (buf.remaining() < pendingLength + 2) {
+                        return false;
+                    }
+                    byte[] value = new byte[pendingLength];
+                    buf.get(value);
+                    buf.position(buf.position() + 2);
+                    values.put(pendingKey, value);
+                    pendingLength = -1;
+                }
+                String line = readLine(buf);
+                if (line == null) {
+                    return false;
+                }
+                if (line.equals("END")) {
+                    result.complete(values);
+                    return true;
+                } else if (line.startsWith("VALUE ")) {
+                    String[] parts = line.split(" ");
+                    if (parts.length < 4) {
+                        throw new IOException("Bad response: " + line);
+                    }
+                    pendingKey = parts[1];
+                    pendingLength = Integer.parseInt(parts[3]);
+                } else if (isError(line)) {
+                    result.completeExceptionally(new IOException(line));
+                    return true;
+                } else {
+                    throw new IOException("Bad response: " + line);
+                }
+            }
+        }
+    }
+
+    /**
+     * A <code>stats</code> request. The result is a map of the statistics.
+     */
+    static final class StatsRequest extends Request {
+
+        private final Map<String, String> stats = new HashMap<String, String>();
+
+        StatsRequest() {
+            super("stats\r\n".getBytes(StandardCharsets.US_ASCII));
+        }
+
+        @Override
+        boolean parse(ByteBuffer buf) {
+            for (String line = readLine(buf); line != null; line = readLine(buf)) {
+                if (line.equals("END")) {
+                    result.complete(stats);
+                    return true;
+                } else if (isError(line)) {
+                    result.completeExceptionally(new IOException(line));
+                    return true;
+                }
+                String[] parts = line.split(" ", 3);
+                if (parts.length == 3) {
+                    stats.put(parts[1], parts[2]);
+                }
+            }
+            return false;
+        }
+    }
+}
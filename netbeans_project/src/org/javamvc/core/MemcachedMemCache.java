@@ -0,0 +1,520 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+
+/**
+ * A {@link MemCacheProvider} storing the entries in memcached servers, so
+ * that they are shared by all the nodes of an application. It speaks the
+ * memcached text protocol over a small pool of non-blocking connections per
+ * server; concurrent requests on a connection are pipelined, i.e., sent
+ * without waiting for the earlier responses. Keys are spread over the servers
+ * by hash. Following servlet init parameters are supported:
+ * <ol>
+ * <li>memcached.servers -- Comma separated <code>host:port</code> of the
+ * servers. Default is <code>localhost:11211</code>.</li>
+ * <li>memcached.pool.size -- Number of connections per server. Default is
+ * 2.</li>
+ * <li>memcached.timeout -- Milliseconds to wait for a response. Default is
+ * 500.</li>
+ * <li>memcached.connect.timeout -- Milliseconds to wait for connecting to a
+ * server. Default is 1000.</li>
+ * <li>memcached.key.prefix -- Optional prefix of all the keys, for sharing
+ * the servers among applications.</li>
+ * <li>memcached.default.ttl -- Seconds after which the entries stored via
+ * {@link #put(Object, Object)} expire. Default is 0, i.e., no expiry.</li>
+ * <li>memcached.serializer.class -- Fully qualified name of the class which
+ * implements {@link ValueSerializer}. Default is
+ * {@link JavaValueSerializer}.</li>
+ * <li>memcached.serializer.allow -- For the default serializer, semicolon
+ * separated patterns of the application classes which may be deserialized,
+ * e.g. <code>com.example.model.*</code>. Values of other classes, apart from
+ * {@link JavaValueSerializer#DEFAULT_ALLOWED}, are read as missing.</li>
+ * </ol>
+ * Keys are converted to strings via <code>toString</code>; keys which are not
+ * valid memcached keys are replaced by their SHA-1 hash. Since this is a
+ * cache, failures of the servers are not reported to the callers: reads
+ * return null and writes are dropped, and a warning is logged. Memcached
+ * cannot list its keys, so {@link #keySet()} is always empty.
+ * <p>
+ * The bulk operations send all their requests before waiting for any
+ * response, so that fetching many keys costs about one round trip per
+ * server. The futures returned by the asynchronous operations complete in
+ * the common {@link java.util.concurrent.ForkJoinPool}, never in the I/O
+ * thread.
+ *
+ * @author Balwinder Sodhi
+ */
+public class MemcachedMemCache implements MemCacheProvider<Object, Object> {
+
+    private static final Logger logger = Logger.getLogger(MemcachedMemCache.class.getName());
+    private static final long MAX_RELATIVE_EXPIRY = 30L * 24 * 3600;
+    private static final int MAX_KEYS_PER_GET = 100;
+    private static final byte[] CRLF = {'\r', '\n'};
+    private MemcachedIO io;
+    private MemcachedIO.Connection[][] servers;
+    private final AtomicInteger next = new AtomicInteger();
+    private long timeoutMillis = 500;
+    private long defaultTtlMillis;
+    private String prefix = "";
+    private ValueSerializer serializer;
+
+    @Override
+    public void init(ServletContext servletContext, ServletConfig servletConfig) {
+        String value = servletConfig.getInitParameter("memcached.servers");
+        String[] addresses = (value != null ? value : "localhost:11211").split(",");
+        value = servletConfig.getInitParameter("memcached.pool.size");
+        int poolSize = value != null ? Integer.parseInt(value.trim()) : 2;
+        value = servletConfig.getInitParameter("memcached.timeout");
+        if (value != null) {
+            timeoutMillis = Long.parseLong(value.trim());
+        }
+        value = servletConfig.getInitParameter("memcached.connect.timeout");
+        long connectTimeout = value != null ? Long.parseLong(value.trim()) : 1000;
+        value = servletConfig.getInitParameter("memcached.key.prefix");
+        if (value != null) {
+            prefix = value.trim();
+        }
+        value = servletConfig.getInitParameter("memcached.default.ttl");
+        if (value != null) {
+            defaultTtlMillis = Long.parseLong(value.trim()) * 1000;
+        }
+        value = servletConfig.getInitParameter("memcached.serializer.class");
+        if (value != null) {
+            try {
+                serializer = (ValueSerializer) Class.forName(value.trim())
+                        .getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException ex) {
+                throw new IllegalArgumentException("Could not create value serializer "
+                        + value, ex);
+            }
+        } else {
+            serializer = new JavaValueSerializer(
+                    servletConfig.getInitParameter("memcached.serializer.allow"));
+        }
+        try {
+            io = new MemcachedIO(connectTimeout, timeoutMillis);
+        } catch (IOException ex) {
+            throw new IllegalStateException("Could not start memcached client. ", ex);
+        }
+        servers = new MemcachedIO.Connection[addresses.length][poolSize];
+        for (int i = 0; i < addresses.length; i++) {
+            String address = addresses[i].trim();
+            int colon = address.lastIndexOf(':');
+            InetSocketAddress isa = colon > 0
+                    ? new InetSocketAddress(address.substring(0, colon),
+                            Integer.parseInt(address.substring(colon + 1)))
+                    : new InetSocketAddress(address, 11211);
+            for (int j = 0; j < poolSize; j++) {
+                servers[i][j] = io.newConnection(isa);
+            }
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (io != null) {
+            io.stop();
+        }
+    }
+
+    @Override
+    public void put(Object key, Object value) {
+        put(key, value, defaultTtlMillis);
+    }
+
+    @Override
+    public void put(Object key, Object value, long ttlMillis) {
+        JfrEvents.Cache event = JfrEvents.cache();
+        MemcachedIO.Request request = sendSet(key, value, ttlMillis);
+        if (request != null) {
+            await(request);
+        }
+        JfrEvents.commit(event, this, "put", key, 1, 0);
+    }
+
+    /**
+     * Stores the entries with pipelined requests, waiting for all the
+     * responses only at the end.
+     *
+     * @param entries
+     */
+    @Override
+    public void putAll(Map<?, ?> entries) {
+        JfrEvents.Cache event = JfrEvents.cache();
+        for (MemcachedIO.Request request : sendSets(entries)) {
+            await(request);
+        }
+        JfrEvents.commit(event, this, "putAll", null, entries.size(), 0);
+    }
+
+    @Override
+    public CompletableFuture<Void> putAllAsync(Map<?, ?> entries) {
+        List<MemcachedIO.Request> requests = sendSets(entries);
+        return CompletableFuture.allOf(futures(requests)).handleAsync(
+                new BiFunction<Void, Throwable, Void>() {
+            @Override
+            public Void apply(Void ignored, Throwable ex) {
+                if (ex != null) {
+                    logger.log(Level.FINE, "Memcached set failed: " + ex.getMessage());
+                }
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public Object get(Object key) {
+        JfrEvents.Cache event = JfrEvents.cache();
+        String k = encodeKey(key);
+        MemcachedIO.GetRequest request = getRequest(Collections.singletonList(k));
+        connection(k).send(request);
+        Object value = value(key, k, await(request));
+        JfrEvents.commit(event, this, "get", key, 1, value != null ? 1 : 0);
+        return value;
+    }
+
+    @Override
+    public CompletableFuture<Object> getAsync(final Object key) {
+        final String k = encodeKey(key);
+        MemcachedIO.GetRequest request = getRequest(Collections.singletonList(k));
+        connection(k).send(request);
+        return request.result.handleAsync(new BiFunction<Object, Throwable, Object>() {
+            @Override
+            public Object apply(Object found, Throwable ex) {
+                if (ex != null) {
+                    logger.log(Level.FINE, "Memcached get failed: " + ex.getMessage());
+                    return null;
+                }
+                return value(key, k, found);
+            }
+        });
+    }
+
+    /**
+     * Returns the values of given keys, getting the keys of each server with
+     * one request. The requests to different servers run concurrently.
+     *
+     * @param keys
+     * @return Values of the keys found.
+     */
+    @Override
+    public Map<Object, Object> getAll(Collection<?> keys) {
+        JfrEvents.Cache event = JfrEvents.cache();
+        Map<String, Object> originals = new HashMap<String, Object>();
+        List<MemcachedIO.Request> requests = sendGets(keys, originals);
+        for (MemcachedIO.Request request : requests) {
+            await(request);
+        }
+        Map<Object, Object> result = collect(requests, originals);
+        JfrEvents.commit(event, this, "getAll", null, keys.size(), result.size());
+        return result;
+    }
+
+    @Override
+    public CompletableFuture<Map<Object, Object>> getAllAsync(Collection<?> keys) {
+        final Map<String, Object> originals = new HashMap<String, Object>();
+        final List<MemcachedIO.Request> requests = sendGets(keys, originals);
+        return CompletableFuture.allOf(futures(requests)).handleAsync(
+                new BiFunction<Void, Throwable, Map<Object, Object>>() {
+            @Override
+            public Map<Object, Object> apply(Void ignored, Throwable ex) {
+                if (ex != null) {
+                    logger.log(Level.FINE, "Memcached get failed: " + ex.getMessage());
+                }
+                return collect(requests, originals);
+            }
+        });
+    }
+
+    /**
+     * Returns the number of items on all the servers, which may include the
+     * items of other applications.
+     *
+     * @return
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public int size() {
+        long total = 0;
+        for (MemcachedIO.Connection[] pool : servers) {
+            MemcachedIO.StatsRequest request = new MemcachedIO.StatsRequest();
+            pool[0].send(request);
+            Object stats = await(request);
+            if (stats != null) {
+                String items = ((Map<String, String>) stats).get("curr_items");
+                if (items != null) {
+                    total += Long.parseLong(items.trim());
+                }
+            }
+        }
+        return (int) Math.min(total, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public Object remove(Object key) {
+        String k = encodeKey(key);
+        MemcachedIO.Connection c = connection(k);
+        MemcachedIO.GetRequest get = getRequest(Collections.singletonList(k));
+        MemcachedIO.LineRequest delete = new MemcachedIO.LineRequest(
+                ("delete " + k + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        // Pipelined on the same connection, so the get sees the value
+        JfrEvents.Cache event = JfrEvents.cache();
+        c.send(get);
+        c.send(delete);
+        Object found = await(get);
+        await(delete);
+        Object value = value(key, k, found);
+        JfrEvents.commit(event, this, "remove", key, 1, value != null ? 1 : 0);
+        return value;
+    }
+
+    /**
+     * Always returns an empty set, since memcached cannot list its keys.
+     *
+     * @return
+     */
+    @Override
+    public Set<Object> keySet() {
+        return Collections.emptySet();
+    }
+
+    /**
+     * Sends a set request for given entry.
+     *
+     * @return The request, or null if the value could not be serialized.
+     */
+    private MemcachedIO.Request sendSet(Object key, Object value, long ttlMillis) {
+        byte[] data;
+        try {
+            data = serializer.serialize(value);
+        } catch (IOException ex) {
+            logger.log(Level.FINE, "Could not serialize value of " + key, ex);
+            return null;
+        }
+        String k = encodeKey(key);
+        ByteArrayOutputStream cmd = new ByteArrayOutputStream(data.length + k.length() + 40);
+        byte[] header = ("set " + k + " 0 " + expiry(ttlMillis) + " " + data.length + "\r\n")
+                .getBytes(StandardCharsets.US_ASCII);
+        cmd.write(header, 0, header.length);
+        cmd.write(data, 0, data.length);
+        cmd.write(CRLF, 0, 2);
+        MemcachedIO.LineRequest request = new MemcachedIO.LineRequest(cmd.toByteArray());
+        connection(k).send(request);
+        return request;
+    }
+
+    private List<MemcachedIO.Request> sendSets(Map<?, ?> entries) {
+        List<MemcachedIO.Request> requests = new ArrayList<MemcachedIO.Request>(entries.size());
+        for (Map.Entry<?, ?> e : entries.entrySet()) {
+            MemcachedIO.Request request = sendSet(e.getKey(), e.getValue(), defaultTtlMillis);
+            if (request != null) {
+                requests.add(request);
+            }
+        }
+        return requests;
+    }
+
+    /**
+     * Sends the get requests for given keys, grouping them by server.
+     *
+     * @param keys
+     * @param originals Receives the original keys by their encoded keys.
+     * @return The requests.
+     */
+    private List<MemcachedIO.Request> sendGets(Collection<?> keys, Map<String, Object> originals) {
+        Map<Integer, List<String>> byServer = new LinkedHashMap<Integer, List<String>>();
+        for (Object key : keys) {
+            String k = encodeKey(key);
+            originals.put(k, key);
+            Integer server = server(k);
+            List<String> list = byServer.get(server);
+            if (list == null) {
+                list = new ArrayList<String>();
+                byServer.put(server, list);
+            }
+            list.add(k);
+        }
+        List<MemcachedIO.Request> requests = new ArrayList<MemcachedIO.Request>();
+        for (Map.Entry<Integer, List<String>> e : byServer.entrySet()) {
+            List<String> list = e.getValue();
+            MemcachedIO.Connection[] pool = servers[e.getKey()];
+            for (int i = 0; i < list.size(); i += MAX_KEYS_PER_GET) {
+                MemcachedIO.GetRequest request = getRequest(
+                        list.subList(i, Math.min(list.size(), i + MAX_KEYS_PER_GET)));
+                pool[(next.getAndIncrement() & 0x7fffffff) % pool.length].send(request);
+                requests.add(request);
+            }
+        }
+        return requests;
+    }
+
+    /**
+     * Collects the values from completed get requests. Failed requests are
+     * skipped.
+     */
+    @SuppressWarnings("unchecked")
+    private Map<Object, Object> collect(List<MemcachedIO.Request> requests,
+            Map<String, Object> originals) {
+        Map<Object, Object> result = new HashMap<Object, Object>();
+        for (MemcachedIO.Request request : requests) {
+            if (!request.result.isDone() || request.result.isCompletedExceptionally()) {
+                continue;
+            }
+            Map<String, byte[]> found = (Map<String, byte[]>) request.result.getNow(null);
+            for (Map.Entry<String, byte[]> e : found.entrySet()) {
+                Object original = originals.get(e.getKey());
+                Object value = deserialize(original, e.getValue());
+                if (original != null && value != null) {
+                    result.put(original, value);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static CompletableFuture<?>[] futures(List<MemcachedIO.Request> requests) {
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[requests.size()];
+        for (int i = 0; i < futures.length; i++) {
+            futures[i] = requests.get(i).result;
+        }
+        return futures;
+    }
+
+    private MemcachedIO.GetRequest getRequest(List<String> keys) {
+        StringBuilder sb = new StringBuilder("get");
+        for (String k : keys) {
+            sb.append(' ').append(k);
+        }
+        sb.append("\r\n");
+        return new MemcachedIO.GetRequest(sb.toString().getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object value(Object key, String k, Object found) {
+        byte[] bytes = found != null ? ((Map<String, byte[]>) found).get(k) : null;
+        return bytes != null ? deserialize(key, bytes) : null;
+    }
+
+    private Object deserialize(Object key, byte[] bytes) {
+        try {
+            return serializer.deserialize(bytes);
+        } catch (IOException ex) {
+            logger.log(Level.FINE, "Could not deserialize value of " + key, ex);
+            return null;
+        }
+    }
+
+    /**
+     * Waits for the response of a request.
+     *
+     * @return The result, or null if the request failed or timed out.
+     */
+    private Object await(MemcachedIO.Request request) {
+        MemcachedIO.Connection c = request.connection;
+        try {
+            return request.result.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException ex) {
+            logger.warning("Memcached request to " + c.address + " timed out.");
+            c.markBroken();
+        } catch (ExecutionException ex) {
+            logger.log(Level.FINE, "Memcached request to " + c.address + " failed: "
+                    + ex.getCause().getMessage());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
+
+    private MemcachedIO.Connection connection(String key) {
+        MemcachedIO.Connection[] pool = servers[server(key)];
+        return pool[(next.getAndIncrement() & 0x7fffffff) % pool.length];
+    }
+
+    private int server(String key) {
+        return (key.hashCode() & 0x7fffffff) % servers.length;
+    }
+
+    /**
+     * Returns the expiry time in the form memcached expects: relative seconds
+     * up to 30 days, and absolute UNIX time beyond that.
+     */
+    private static long expiry(long ttlMillis) {
+        if (ttlMillis <= 0) {
+            return 0;
+        }
+        long seconds = (ttlMillis + 999) / 1000;
+        return seconds <= MAX_RELATIVE_EXPIRY ? seconds
+                : System.currentTimeMillis() / 1000 + seconds;
+    }
+
+    /**
+     * Converts a key to a valid memcached key: at most 250 printable ASCII
+     * characters without spaces.
+     */
+    private String encodeKey(Object key) {
+        String k = prefix + key;
+        boolean valid = k.length() <= 250;
+        for (int i = 0; valid && i < k.length(); i++) {
+            char ch = k.charAt(i);
+            valid = ch > ' ' && ch < 127;
+        }
+        if (valid) {
+            return k;
+        }
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1")
+                    .digest(k.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(prefix.length() + 41).append(prefix).append('#');
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16))
+                        .append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
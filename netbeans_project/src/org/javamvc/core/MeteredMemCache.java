@@ -0,0 +1,222 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.LongSupplier;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+
+/**
+ * Decorates a {@link MemCacheProvider} for counting the hits, misses, loads,
+ * puts and removes, and recording the times of reads.
+ *
+ * @author Balwinder Sodhi
+ */
+final class MeteredMemCache<K, V> implements MemCacheProvider<K, V> {
+
+    private final MemCacheProvider<K, V> delegate;
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder loads;
+    private final LongAdder puts;
+    private final LongAdder removes;
+    private final LatencyHistogram reads;
+
+    MeteredMemCache(MemCacheProvider<K, V> delegate, Metrics metrics) {
+        this.delegate = delegate;
+        String name = "javamvc_cache_requests_total";
+        String help = "Reads of the memory cache by result.";
+        hits = metrics.counter(name, help, "result", "hit");
+        misses = metrics.counter(name, help, "result", "miss");
+        loads = metrics.counter("javamvc_cache_loads_total",
+                "Values loaded by getOrCompute for missing keys.");
+        puts = metrics.counter("javamvc_cache_puts_total", "Writes to the memory cache.");
+        removes = metrics.counter("javamvc_cache_removes_total",
+                "Removals from the memory cache.");
+        reads = metrics.histogram("javamvc_cache_read_duration_seconds",
+                "Time taken by reads of the memory cache.",
+                "provider", delegate.getClass().getSimpleName());
+        metrics.gauge("javamvc_cache_hit_ratio_percent",
+                "Percentage of the memory cache reads which were hits.",
+                new LongSupplier() {
+            @Override
+            public long getAsLong() {
+                long h = hits.sum();
+                long total = h + misses.sum();
+                return total > 0 ? 100 * h / total : 0;
+            }
+        });
+    }
+
+    /**
+     * Returns the decorated provider.
+     */
+    MemCacheProvider<K, V> delegate() {
+        return delegate;
+    }
+
+    @Override
+    public void init(ServletContext servletContext, ServletConfig servletConfig) {
+        delegate.init(servletContext, servletConfig);
+    }
+
+    @Override
+    public void destroy() {
+        delegate.destroy();
+    }
+
+    @Override
+    public void put(K key, V value) {
+        puts.increment();
+        delegate.put(key, value);
+    }
+
+    @Override
+    public void put(K key, V value, long ttlMillis) {
+        puts.increment();
+        delegate.put(key, value, ttlMillis);
+    }
+
+    @Override
+    public V get(K key) {
+        long start = System.nanoTime();
+        V value = delegate.get(key);
+        reads.recordSince(start);
+        (value != null ? hits : misses).increment();
+        return value;
+    }
+
+    @Override
+    public Map<K, V> getAll(Collection<? extends K> keys) {
+        long start = System.nanoTime();
+        Map<K, V> found = delegate.getAll(keys);
+        reads.recordSince(start);
+        count(keys.size(), found.size());
+        return found;
+    }
+
+    @Override
+    public void putAll(Map<? extends K, ? extends V> entries) {
+        puts.add(entries.size());
+        delegate.putAll(entries);
+    }
+
+    @Override
+    public CompletableFuture<V> getAsync(K key) {
+        final long start = System.nanoTime();
+        CompletableFuture<V> result = delegate.getAsync(key);
+        return result.whenComplete(new BiConsumer<V, Throwable>() {
+            @Override
+            public void accept(V value, Throwable ex) {
+                reads.recordSince(start);
+                (value != null ? hits : misses).increment();
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Map<K, V>> getAllAsync(final Collection<? extends K> keys) {
+        final long start = System.nanoTime();
+        CompletableFuture<Map<K, V>> result = delegate.getAllAsync(keys);
+        return result.whenComplete(new BiConsumer<Map<K, V>, Throwable>() {
+            @Override
+            public void accept(Map<K, V> found, Throwable ex) {
+                reads.recordSince(start);
+                count(keys.size(), found != null ? found.size() : 0);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> putAllAsync(Map<? extends K, ? extends V> entries) {
+        puts.add(entries.size());
+        return delegate.putAllAsync(entries);
+    }
+
+    @Override
+    public V getOrCompute(K key, Loader<? super K, ? extends V> loader) throws Exception {
+        long start = System.nanoTime();
+        Counting counting = new Counting(loader);
+        V value = delegate.getOrCompute(key, counting);
+        reads.recordSince(start);
+        (counting.loaded ? misses : hits).increment();
+        return value;
+    }
+
+    @Override
+    public V getOrCompute(K key, Loader<? super K, ? extends V> loader, long ttlMillis)
+            throws Exception {
+        long start = System.nanoTime();
+        Counting counting = new Counting(loader);
+        V value = delegate.getOrCompute(key, counting, ttlMillis);
+        reads.recordSince(start);
+        (counting.loaded ? misses : hits).increment();
+        return value;
+    }
+
+    @Override
+    public int size() {
+        return delegate.size();
+    }
+
+    @Override
+    public boolean containsKey(K key) {
+        return delegate.containsKey(key);
+    }
+
+    @Override
+    public V remove(K key) {
+        removes.increment();
+        return delegate.remove(key);
+    }
+
+    @Override
+    public Set<K> keySet() {
+        return delegate.keySet();
+    }
+
+    private void count(int requested, int found) {
+        hits.add(found);
+        misses.add(requested - found);
+    }
+
+    /**
+     * Counts the loads of a loader. The loader may run on another thread,
+     * e.g. in a provider which loads asynchronously, hence the volatile flag.
+     */
+    private final class Counting implements Loader<K, V> {
+
+        private final Loader<? super K, ? extends V> loader;
+        volatile boolean loaded;
+
+        Counting(Loader<? super K, ? extends V> loader) {
+            this.loader = loader;
+        }
+
+        @Override
+        public V load(K key) throws Exception {
+            loaded = true;
+            loads.increment();
+            return loader.load(key);
+        }
+    }
+}
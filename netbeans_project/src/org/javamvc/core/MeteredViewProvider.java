@@ -0,0 +1,95 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import java.io.IOException;
+import java.io.Writer;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+
+/**
+ * Decorates a {@link ViewProvider} for recording the render times. Besides the
+ * overall histogram, the time is added to a per thread total, so that
+ * {@link ControllerServlet} can tell how much of an action's time went into
+ * rendering its views.
+ *
+ * @author Balwinder Sodhi
+ */
+final class MeteredViewProvider implements ViewProvider {
+
+    private static final ThreadLocal<long[]> renderNanos = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+    private final ViewProvider delegate;
+    private final LatencyHistogram renders;
+
+    MeteredViewProvider(ViewProvider delegate, Metrics metrics) {
+        this.delegate = delegate;
+        this.renders = metrics.histogram("javamvc_view_render_duration_seconds",
+                "Time spent rendering views.",
+                "provider", delegate.getClass().getSimpleName());
+    }
+
+    /**
+     * Returns the render time accumulator of the current thread. Its only
+     * element is the total time in nanoseconds spent by the thread in
+     * rendering views.
+     */
+    static long[] renderNanos() {
+        return renderNanos.get();
+    }
+
+    /**
+     * Returns the decorated provider.
+     */
+    ViewProvider delegate() {
+        return delegate;
+    }
+
+    @Override
+    public void init(ServletContext servletContext, ServletConfig servletConfig) {
+        delegate.init(servletContext, servletConfig);
+    }
+
+    @Override
+    public String renderView(String view, Object model) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return delegate.renderView(view, model);
+        } finally {
+            recordSince(start);
+        }
+    }
+
+    @Override
+    public void renderView(String view, Object model, Writer out) throws IOException {
+        long start = System.nanoTime();
+        try {
+            delegate.renderView(view, model, out);
+        } finally {
+            recordSince(start);
+        }
+    }
+
+    private void recordSince(long start) {
+        long elapsed = System.nanoTime() - start;
+        renders.record(elapsed);
+        renderNanos.get()[0] += elapsed;
+    }
+}
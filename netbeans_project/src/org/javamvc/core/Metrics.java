@@ -0,0 +1,351 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Registry of the metrics of a {@link ControllerServlet}: latency histograms
+ * and counters, each identified by a name and a set of labels. The metrics
+ * can be written in the Prometheus text exposition format, where histograms
+ * appear as summaries with the 0.5, 0.9, 0.99 and 0.999 quantiles. If created
+ * with a JMX domain, each metric is also registered as an MBean in the
+ * platform MBean server, under an object name made of the domain, the metric
+ * name and its labels.
+ * <p>
+ * Looking up a metric takes a map lookup, so code on a hot path should look
+ * it up once and keep it. Applications may add their own metrics via
+ * {@link ControllerServlet#getMetrics()}.
+ *
+ * @author Balwinder Sodhi
+ */
+public final class Metrics {
+
+    private static final Logger logger = Logger.getLogger(Metrics.class.getName());
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private final ConcurrentMap<String, Family> families = new ConcurrentHashMap<String, Family>();
+    private final ConcurrentMap<ActionRoute, RouteTimers> routes
+            = new ConcurrentHashMap<ActionRoute, RouteTimers>();
+    private final String jmxDomain;
+    private final List<ObjectName> registered = new ArrayList<ObjectName>();
+
+    /**
+     * @param jmxDomain Domain and key properties prefixed to the object names
+     * of the MBeans, e.g. <code>org.javamvc:servlet=app</code>. Null for not
+     * registering MBeans.
+     */
+    Metrics(String jmxDomain) {
+        this.jmxDomain = jmxDomain;
+    }
+
+    /**
+     * Returns the histogram of given name and labels, creating it if needed.
+     *
+     * @param name Metric name, e.g. <code>myapp_query_duration_seconds</code>.
+     * @param help Description of the metric.
+     * @param labels Alternating label names and values.
+     * @return
+     */
+    public LatencyHistogram histogram(String name, String help, String... labels) {
+        return (LatencyHistogram) family(name, help, "summary").get(labels, null);
+    }
+
+    /**
+     * Returns the counter of given name and labels, creating it if needed.
+     *
+     * @param name Metric name, e.g. <code>myapp_logins_total</code>.
+     * @param help Description of the metric.
+     * @param labels Alternating label names and values.
+     * @return
+     */
+    public LongAdder counter(String name, String help, String... labels) {
+        return (LongAdder) family(name, help, "counter").get(labels, null);
+    }
+
+    /**
+     * Registers a counter whose value is given by a function, e.g. one
+     * maintained elsewhere.
+     *
+     * @param name Metric name.
+     * @param help Description of the metric.
+     * @param value Returns the current value.
+     * @param labels Alternating label names and values.
+     */
+    public void counter(String name, String help, LongSupplier value, String... labels) {
+        family(name, help, "counter").get(labels, value);
+    }
+
+    /**
+     * Registers a gauge whose value is given by a function.
+     *
+     * @param name Metric name.
+     * @param help Description of the metric.
+     * @param value Returns the current value.
+     * @param labels Alternating label names and values.
+     */
+    public void gauge(String name, String help, LongSupplier value, String... labels) {
+        family(name, help, "gauge").get(labels, value);
+    }
+
+    /**
+     * Writes all the metrics in the Prometheus text exposition format.
+     *
+     * @param out
+     * @throws IOException
+     */
+    public void writeTo(Writer out) throws IOException {
+        StringBuilder sb = new StringBuilder(256);
+        for (Family f : families.values()) {
+            sb.setLength(0);
+            sb.append("# HELP ").append(f.name).append(' ').append(f.help).append('\n');
+            sb.append("# TYPE ").append(f.name).append(' ').append(f.type).append('\n');
+            for (Map.Entry<String, Object> e : f.metrics.entrySet()) {
+                String labels = e.getKey();
+                Object m = e.getValue();
+                if (m instanceof LatencyHistogram) {
+                    LatencyHistogram h = (LatencyHistogram) m;
+                    long count = h.getCount();
+                    for (double q : QUANTILES) {
+                        sample(sb, f.name, labels, "quantile=\"" + q + "\"",
+                                h.percentileNanos(q) / 1e9);
+                    }
+                    sample(sb, f.name + "_sum", labels, null, h.getSumNanos() / 1e9);
+                    sample(sb, f.name + "_count", labels, null, count);
+                } else if (m instanceof LongAdder) {
+                    sample(sb, f.name, labels, null, ((LongAdder) m).sum());
+                } else {
+                    sample(sb, f.name, labels, null, ((LongSupplier) m).getAsLong());
+                }
+            }
+            out.write(sb.toString());
+        }
+    }
+
+    /**
+     * Unregisters all the MBeans of this registry.
+     */
+    void close() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        synchronized (registered) {
+            for (ObjectName name : registered) {
+                try {
+                    server.unregisterMBean(name);
+                } catch (JMException ex) {
+                    // Already gone
+                }
+            }
+            registered.clear();
+        }
+    }
+
+    /**
+     * Returns the timers of given route, creating them on its first request.
+     */
+    RouteTimers route(ActionRoute route) {
+        RouteTimers t = routes.get(route);
+        if (t == null) {
+            RouteTimers created = new RouteTimers(this, route);
+            t = routes.putIfAbsent(route, created);
+            if (t == null) {
+                t = created;
+            }
+        }
+        return t;
+    }
+
+    private Family family(String name, String help, String type) {
+        Family f = families.get(name);
+        if (f == null) {
+            Family created = new Family(name, help, type);
+            f = families.putIfAbsent(name, created);
+            if (f == null) {
+                f = created;
+            }
+        }
+        if (!f.type.equals(type)) {
+            throw new IllegalArgumentException("Metric " + name + " is a " + f.type);
+        }
+        return f;
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels,
+            String extra, double value) {
+        sb.append(name);
+        if (!labels.isEmpty() || extra != null) {
+            sb.append('{').append(labels);
+            if (extra != null) {
+                sb.append(labels.isEmpty() ? "" : ",").append(extra);
+            }
+            sb.append('}');
+        }
+        sb.append(' ');
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            sb.append((long) value);
+        } else {
+            sb.append(value);
+        }
+        sb.append('\n');
+    }
+
+    private static String labelString(String[] labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be name value pairs.");
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(labels[i]).append("=\"");
+            String v = labels[i + 1];
+            for (int j = 0; j < v.length(); j++) {
+                char c = v.charAt(j);
+                if (c == '\\' || c == '"') {
+                    sb.append('\\').append(c);
+                } else if (c == '\n') {
+                    sb.append("\\n");
+                } else {
+                    sb.append(c);
+                }
+            }
+            sb.append('"');
+        }
+        return sb.toString();
+    }
+
+    private void register(String name, String[] labels, Object metric) {
+        if (jmxDomain == null) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder(jmxDomain).append(",name=").append(name);
+        for (int i = 0; i < labels.length; i += 2) {
+            sb.append(',').append(labels[i]).append('=').append(ObjectName.quote(labels[i + 1]));
+        }
+        try {
+            ObjectName on = new ObjectName(sb.toString());
+            Object mbean = metric instanceof LatencyHistogram
+                    ? new StandardMBean((LatencyHistogram) metric, LatencyHistogramMBean.class)
+                    : new StandardMBean(new Counter(metric), CounterMBean.class);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, on);
+            synchronized (registered) {
+                registered.add(on);
+            }
+        } catch (JMException ex) {
+            logger.log(Level.FINE, "Could not register MBean " + sb, ex);
+        }
+    }
+
+    /**
+     * Management interface of a counter or gauge.
+     */
+    public interface CounterMBean {
+
+        /**
+         * @return The current value.
+         */
+        long getValue();
+    }
+
+    private static final class Counter implements CounterMBean {
+
+        private final Object metric;
+
+        Counter(Object metric) {
+            this.metric = metric;
+        }
+
+        @Override
+        public long getValue() {
+            return metric instanceof LongAdder ? ((LongAdder) metric).sum()
+                    : ((LongSupplier) metric).getAsLong();
+        }
+    }
+
+    /**
+     * Metrics of the same name, keyed by their label strings.
+     */
+    private final class Family {
+
+        final String name;
+        final String help;
+        final String type;
+        final ConcurrentMap<String, Object> metrics = new ConcurrentHashMap<String, Object>();
+
+        Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+
+        Object get(String[] labels, LongSupplier function) {
+            String key = labelString(labels);
+            Object m = metrics.get(key);
+            if (m == null) {
+                Object created = function != null ? function
+                        : type.equals("summary") ? new LatencyHistogram() : new LongAdder();
+                m = metrics.putIfAbsent(key, created);
+                if (m == null) {
+                    m = created;
+                    register(name, labels, m);
+                }
+            }
+            return m;
+        }
+    }
+
+    /**
+     * The timers of one route, one per phase of handling its requests.
+     */
+    static final class RouteTimers {
+
+        final LatencyHistogram total;
+        final LatencyHistogram auth;
+        final LatencyHistogram init;
+        final LatencyHistogram action;
+        final LatencyHistogram render;
+        final LongAdder errors;
+
+        RouteTimers(Metrics metrics, ActionRoute route) {
+            String help = "Time spent in each phase of handling action requests.";
+            String name = "javamvc_action_duration_seconds";
+            String c = route.controllerName;
+            String a = route.actionName;
+            total = metrics.histogram(name, help, "controller", c, "action", a, "phase", "total");
+            auth = metrics.histogram(name, help, "controller", c, "action", a, "phase", "auth");
+            init = metrics.histogram(name, help, "controller", c, "action", a, "phase", "init");
+            action = metrics.histogram(name, help, "controller", c, "action", a, "phase", "action");
+            render = metrics.histogram(name, help, "controller", c, "action", a, "phase", "render");
+            errors = metrics.counter("javamvc_action_errors_total",
+                    "Action requests which failed with an exception.",
+                    "controller", c, "action", a);
+        }
+    }
+}
@@ -0,0 +1,344 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+
+/**
+ * A two level {@link MemCacheProvider}: a small, bounded in-process cache (L1)
+ * in front of another provider (L2), typically a remote one such as
+ * {@link MemcachedMemCache}. Reads of hot keys are served from L1 without a
+ * network round trip. Entries stay in L1 only for a short time, and are
+ * evicted from L1 on all the nodes when they are put or removed on any node,
+ * via an {@link InvalidationChannel}. So a node may see a stale value at most
+ * until its L1 copy expires, and only if it missed the invalidation. Following
+ * servlet init parameters are supported, and are also passed on to the L2
+ * provider and the channel:
+ * <ol>
+ * <li>nearcache.l2.class -- Fully qualified name of the class which
+ * implements the L2 {@link MemCacheProvider}. This is a required
+ * parameter.</li>
+ * <li>nearcache.l1.max.entries -- Maximum number of entries in L1. Default is
+ * 10000.</li>
+ * <li>nearcache.l1.ttl -- Seconds for which an entry stays in L1. Default is
+ * 5. Entries loaded via {@link #getOrCompute(Object, Loader, long)} with a
+ * shorter TTL stay in L1 only for that TTL.</li>
+ * <li>nearcache.invalidation.channel.class -- Fully qualified name of the
+ * class which implements {@link InvalidationChannel}. Default is
+ * {@link InMemoryInvalidationChannel}, which only reaches the caches within
+ * the current JVM.</li>
+ * </ol>
+ * {@link #size()}, {@link #keySet()} and the loads of
+ * {@link #getOrCompute(Object, Loader)} are delegated to L2.
+ *
+ * @author Balwinder Sodhi
+ */
+public class NearMemCache<K, V> implements MemCacheProvider<K, V> {
+
+    private LocalMemCache l1;
+    private MemCacheProvider<K, V> l2;
+    private InvalidationChannel channel;
+    private long l1TtlMillis = 5000;
+    /**
+     * Counts the invalidations, so that a value read from L2 is not put in L1
+     * if the key may have been invalidated during the read.
+     */
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * Creates an uninitialized cache. {@link #init} must be called before use.
+     */
+    public NearMemCache() {
+    }
+
+    /**
+     * Creates a cache with given L2 provider and channel, both of which must
+     * be initialized already.
+     *
+     * @param l2 The L2 provider.
+     * @param channel Channel shared with the other nodes.
+     * @param l1MaxEntries Maximum number of entries in L1.
+     * @param l1TtlMillis Milliseconds for which an entry stays in L1.
+     */
+    public NearMemCache(MemCacheProvider<K, V> l2, InvalidationChannel channel,
+            int l1MaxEntries, long l1TtlMillis) {
+        this.l2 = l2;
+        this.channel = channel;
+        this.l1TtlMillis = l1TtlMillis;
+        this.l1 = new LocalMemCache(l1MaxEntries);
+        subscribe();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void init(ServletContext servletContext, ServletConfig servletConfig) {
+        String l2Class = servletConfig.getInitParameter("nearcache.l2.class");
+        if (l2Class == null || l2Class.trim().isEmpty()) {
+            throw new IllegalArgumentException("nearcache.l2.class is not configured.");
+        }
+        String value = servletConfig.getInitParameter("nearcache.l1.max.entries");
+        l1 = new LocalMemCache(value != null ? Long.parseLong(value.trim()) : 10000);
+        value = servletConfig.getInitParameter("nearcache.l1.ttl");
+        if (value != null) {
+            l1TtlMillis = Long.parseLong(value.trim()) * 1000;
+        }
+        value = servletConfig.getInitParameter("nearcache.invalidation.channel.class");
+        try {
+            l2 = (MemCacheProvider<K, V>) Class.forName(l2Class.trim())
+                    .getDeclaredConstructor().newInstance();
+            channel = value != null
+                    ? (InvalidationChannel) Class.forName(value.trim())
+                            .getDeclaredConstructor().newInstance()
+                    : new InMemoryInvalidationChannel();
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalArgumentException("Could not create near cache. ", ex);
+        }
+        l2.init(servletContext, servletConfig);
+        channel.init(servletContext, servletConfig);
+        subscribe();
+    }
+
+    private void subscribe() {
+        channel.subscribe(new InvalidationChannel.Listener() {
+            @Override
+            public void invalidate(Object key) {
+                evict(key);
+            }
+        });
+    }
+
+    @Override
+    public void destroy() {
+        channel.close();
+        l1.destroy();
+        l2.destroy();
+    }
+
+    @Override
+    public void put(K key, V value) {
+        l2.put(key, value);
+        changed(key);
+    }
+
+    @Override
+    public void put(K key, V value, long ttlMillis) {
+        l2.put(key, value, ttlMillis);
+        changed(key);
+    }
+
+    @Override
+    public V get(K key) {
+        V value = fromL1(key);
+        if (value == null) {
+            long seen = invalidations.get();
+            value = l2.get(key);
+            cache(key, value, seen);
+        }
+        return value;
+    }
+
+    /**
+     * Returns the values found in L1, getting only the other keys from L2.
+     *
+     * @param keys
+     * @return
+     */
+    @Override
+    public Map<K, V> getAll(Collection<? extends K> keys) {
+        Map<K, V> result = new HashMap<K, V>();
+        List<K> missing = missing(keys, result);
+        if (!missing.isEmpty()) {
+            long seen = invalidations.get();
+            merge(l2.getAll(missing), result, seen);
+        }
+        return result;
+    }
+
+    @Override
+    public CompletableFuture<Map<K, V>> getAllAsync(Collection<? extends K> keys) {
+        final Map<K, V> result = new HashMap<K, V>();
+        List<K> missing = missing(keys, result);
+        if (missing.isEmpty()) {
+            return CompletableFuture.completedFuture(result);
+        }
+        final long seen = invalidations.get();
+        CompletableFuture<Map<K, V>> found = l2.getAllAsync(missing);
+        return found.thenApply(new Function<Map<K, V>, Map<K, V>>() {
+            @Override
+            public Map<K, V> apply(Map<K, V> found) {
+                merge(found, result, seen);
+                return result;
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<V> getAsync(final K key) {
+        V value = fromL1(key);
+        if (value != null) {
+            return CompletableFuture.completedFuture(value);
+        }
+        final long seen = invalidations.get();
+        CompletableFuture<V> found = l2.getAsync(key);
+        return found.thenApply(new Function<V, V>() {
+            @Override
+            public V apply(V value) {
+                cache(key, value, seen);
+                return value;
+            }
+        });
+    }
+
+    @Override
+    public void putAll(Map<? extends K, ? extends V> entries) {
+        l2.putAll(entries);
+        for (Object key : entries.keySet()) {
+            changed(key);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> putAllAsync(final Map<? extends K, ? extends V> entries) {
+        CompletableFuture<Void> stored = l2.putAllAsync(entries);
+        return stored.thenRun(new Runnable() {
+            @Override
+            public void run() {
+                for (Object key : entries.keySet()) {
+                    changed(key);
+                }
+            }
+        });
+    }
+
+    @Override
+    public V getOrCompute(K key, Loader<? super K, ? extends V> loader) throws Exception {
+        V value = fromL1(key);
+        if (value == null) {
+            long seen = invalidations.get();
+            value = l2.getOrCompute(key, loader);
+            cache(key, value, seen);
+        }
+        return value;
+    }
+
+    @Override
+    public V getOrCompute(K key, Loader<? super K, ? extends V> loader, long ttlMillis)
+            throws Exception {
+        V value = fromL1(key);
+        if (value == null) {
+            long seen = invalidations.get();
+            value = l2.getOrCompute(key, loader, ttlMillis);
+            cache(key, value, seen, ttlMillis);
+        }
+        return value;
+    }
+
+    @Override
+    public int size() {
+        return l2.size();
+    }
+
+    @Override
+    public boolean containsKey(K key) {
+        return l1.containsKey(key) || l2.containsKey(key);
+    }
+
+    @Override
+    public V remove(K key) {
+        V value = l2.remove(key);
+        changed(key);
+        return value;
+    }
+
+    @Override
+    public Set<K> keySet() {
+        return l2.keySet();
+    }
+
+    /**
+     * Puts the values found in L1 into the result, and returns the other keys.
+     */
+    private List<K> missing(Collection<? extends K> keys, Map<K, V> result) {
+        List<K> missing = new ArrayList<K>();
+        for (K key : keys) {
+            V value = fromL1(key);
+            if (value != null) {
+                result.put(key, value);
+            } else {
+                missing.add(key);
+            }
+        }
+        return missing;
+    }
+
+    private void merge(Map<K, V> found, Map<K, V> result, long seen) {
+        for (Map.Entry<K, V> e : found.entrySet()) {
+            result.put(e.getKey(), e.getValue());
+            cache(e.getKey(), e.getValue(), seen);
+        }
+    }
+
+    /**
+     * Returns the value of key in L1, which holds only the values read from
+     * L2.
+     */
+    @SuppressWarnings("unchecked")
+    private V fromL1(K key) {
+        return (V) l1.get(key);
+    }
+
+    private void cache(Object key, Object value, long seen) {
+        cache(key, value, seen, 0);
+    }
+
+    /**
+     * Puts a value read from L2 into L1, unless the key may have been
+     * invalidated since the read started.
+     *
+     * @param seen Count of invalidations before the read started.
+     * @param ttlMillis TTL of the value in L2 if known, else 0. The value
+     * stays in L1 for no longer than that.
+     */
+    private void cache(Object key, Object value, long seen, long ttlMillis) {
+        if (value != null && invalidations.get() == seen) {
+            l1.put(key, value, ttlMillis > 0 ? Math.min(ttlMillis, l1TtlMillis) : l1TtlMillis);
+            if (invalidations.get() != seen) {
+                // Raced with an invalidation, which may have missed the put
+                l1.remove(key);
+            }
+        }
+    }
+
+    private void changed(Object key) {
+        evict(key);
+        channel.publish(key);
+    }
+
+    private void evict(Object key) {
+        invalidations.incrementAndGet();
+        l1.remove(key);
+    }
+}
@@ -0,0 +1,246 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Byte storage outside the Java heap for the large values of
+ * {@link LocalMemCache}. The memory is allocated as direct {@link ByteBuffer}
+ * slabs of fixed size blocks, created on demand up to the capacity. A value
+ * occupies as many blocks as needed, which need not be contiguous, so the
+ * store never fragments. Since the garbage collector does not scan this
+ * memory, the cached bytes do not add to GC pauses.
+ * <p>
+ * Readers do not lock: a {@link Handle} counts the readers using it, and its
+ * blocks are returned to the free list only after the cache has released it
+ * and the last reader is done.
+ * <p>
+ * Direct buffers count against the JVM limit set by
+ * <code>-XX:MaxDirectMemorySize</code>, which defaults to the maximum heap
+ * size. If a slab cannot be allocated within that limit, the store stops
+ * growing at its current size instead of failing the cache operation, so the
+ * values which do not fit are kept on the heap.
+ *
+ * @author Balwinder Sodhi
+ */
+final class OffHeapStore {
+
+    private static final Logger logger = Logger.getLogger(OffHeapStore.class.getName());
+
+    private final int blockSize;
+    private final int blocksPerSlab;
+    private final List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+    private volatile ByteBuffer[] slabArray = new ByteBuffer[0];
+    // Following are guarded by this
+    private int maxBlocks;
+    private int[] freeBlocks = new int[0];
+    private int freeCount;
+    private int createdBlocks;
+
+    /**
+     * @param capacity Maximum number of bytes to allocate.
+     * @param blockSize Size of the blocks in bytes.
+     */
+    OffHeapStore(long capacity, int blockSize) {
+        this.blockSize = blockSize;
+        long slab = Math.max(blockSize, Math.min(capacity, 64L << 20));
+        this.blocksPerSlab = (int) (slab / blockSize);
+        this.maxBlocks = (int) Math.min(capacity / blockSize, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns the number of blocks needed for given number of bytes.
+     *
+     * @param length
+     * @return
+     */
+    int blocksFor(int length) {
+        return Math.max(1, (length + blockSize - 1) / blockSize);
+    }
+
+    /**
+     * Returns the number of blocks which can still be allocated.
+     *
+     * @return
+     */
+    synchronized int available() {
+        return freeCount + maxBlocks - createdBlocks;
+    }
+
+    /**
+     * Copies given bytes into the store.
+     *
+     * @param bytes
+     * @return Handle of the stored bytes, or null if there is not enough
+     * space.
+     */
+    Handle store(byte[] bytes) {
+        int[] blocks = allocate(blocksFor(bytes.length));
+        if (blocks == null) {
+            return null;
+        }
+        ByteBuffer[] all = slabArray;
+        if (all.length == 0) {
+            // Destroyed meanwhile
+            return null;
+        }
+        for (int i = 0, off = 0; i < blocks.length; i++, off += blockSize) {
+            ByteBuffer buf = all[blocks[i] / blocksPerSlab].duplicate();
+            buf.position((blocks[i] % blocksPerSlab) * blockSize);
+            buf.put(bytes, off, Math.min(blockSize, bytes.length - off));
+        }
+        return new Handle(blocks, bytes.length);
+    }
+
+    /**
+     * Copies the bytes of given handle out of the store.
+     *
+     * @param handle
+     * @return The bytes, or null if the handle has been released or the
+     * store destroyed.
+     */
+    byte[] read(Handle handle) {
+        if (!handle.acquire()) {
+            return null;
+        }
+        try {
+            ByteBuffer[] all = slabArray;
+            if (all.length == 0) {
+                return null;
+            }
+            byte[] bytes = new byte[handle.length];
+            int[] blocks = handle.blocks;
+            for (int i = 0, off = 0; i < blocks.length; i++, off += blockSize) {
+                ByteBuffer buf = all[blocks[i] / blocksPerSlab].duplicate();
+                buf.position((blocks[i] % blocksPerSlab) * blockSize);
+                buf.get(bytes, off, Math.min(blockSize, bytes.length - off));
+            }
+            return bytes;
+        } finally {
+            release(handle);
+        }
+    }
+
+    /**
+     * Drops one reference to the handle. The blocks are freed when no
+     * references remain.
+     *
+     * @param handle
+     */
+    void release(Handle handle) {
+        if (handle.refs.decrementAndGet() == 0) {
+            free(handle.blocks);
+        }
+    }
+
+    private synchronized int[] allocate(int count) {
+        if (count > available()) {
+            return null;
+        }
+        // Create the slabs first, so that a failure leaves the free list as is
+        int newBlocks = count - Math.min(count, freeCount);
+        while (createdBlocks + newBlocks > slabs.size() * blocksPerSlab) {
+            ByteBuffer slab;
+            try {
+                slab = ByteBuffer.allocateDirect(Math.min(blocksPerSlab,
+                        maxBlocks - slabs.size() * blocksPerSlab) * blockSize);
+            } catch (OutOfMemoryError ex) {
+                maxBlocks = Math.min(maxBlocks, slabs.size() * blocksPerSlab);
+                logger.log(Level.WARNING, "Could not allocate direct memory, off-heap"
+                        + " storage is limited to " + ((long) maxBlocks * blockSize)
+                        + " bytes. Raise -XX:MaxDirectMemorySize above the off-heap"
+                        + " capacity. ", ex);
+                return null;
+            }
+            slabs.add(slab);
+            slabArray = slabs.toArray(new ByteBuffer[slabs.size()]);
+        }
+        int[] blocks = new int[count];
+        int i = 0;
+        while (i < count && freeCount > 0) {
+            blocks[i++] = freeBlocks[--freeCount];
+        }
+        while (i < count) {
+            blocks[i++] = createdBlocks++;
+        }
+        return blocks;
+    }
+
+    /**
+     * Releases the slabs and stops storing values. The direct memory is
+     * returned once the garbage collector finds the slabs unused, i.e., after
+     * any reads still in progress. Later reads return null.
+     */
+    synchronized void destroy() {
+        slabArray = new ByteBuffer[0];
+        slabs.clear();
+        freeBlocks = new int[0];
+        freeCount = 0;
+        createdBlocks = 0;
+        maxBlocks = 0;
+    }
+
+    private synchronized void free(int[] blocks) {
+        if (slabs.isEmpty()) {
+            // Destroyed
+            return;
+        }
+        if (freeCount + blocks.length > freeBlocks.length) {
+            int[] grown = new int[Math.max(freeBlocks.length * 2, freeCount + blocks.length)];
+            System.arraycopy(freeBlocks, 0, grown, 0, freeCount);
+            freeBlocks = grown;
+        }
+        for (int b : blocks) {
+            freeBlocks[freeCount++] = b;
+        }
+    }
+
+    /**
+     * Bytes of one cached value in the store.
+     */
+    static final class Handle {
+
+        final int[] blocks;
+        final int length;
+        /**
+         * One reference held by the cache plus one per active reader.
+         */
+        final AtomicInteger refs = new AtomicInteger(1);
+
+        Handle(int[] blocks, int length) {
+            this.blocks = blocks;
+            this.length = length;
+        }
+
+        boolean acquire() {
+            for (;;) {
+                int r = refs.get();
+                if (r <= 0) {
+                    return false;
+                }
+                if (refs.compareAndSet(r, r + 1)) {
+                    return true;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import javax.servlet.http.HttpServletRequest;
+import org.javamvc.core.annotations.OutputCache;
+
+/**
+ * Output caching settings of an action, as given by its {@link OutputCache}
+ * annotation. Builds the {@link MemCacheProvider} keys under which the
+ * responses of the action are stored.
+ *
+ * @author Balwinder Sodhi
+ */
+final class OutputCachePolicy {
+
+    static final String KEY_PREFIX = "javamvc.output:";
+    private static final char SEPARATOR = '\u0000';
+    private static final char VALUE_SEPARATOR = '\u0001';
+    final long ttlMillis;
+    /**
+     * Age up to which a stale response is served while it is refreshed. Same
+     * as {@link #ttlMillis} if stale responses are not served.
+     */
+    final long hardTtlMillis;
+    private final String[] params;
+    private final String[] headers;
+    private final boolean byRole;
+    private final String[] tags;
+
+    OutputCachePolicy(int ttl, int hardTtl, String[] params, String[] headers,
+            boolean byRole, String[] tags) {
+        if (ttl <= 0) {
+            throw new IllegalArgumentException("Output cache TTL must be positive: " + ttl);
+        }
+        this.ttlMillis = ttl * 1000L;
+        this.hardTtlMillis = Math.max(ttl, hardTtl) * 1000L;
+        this.params = params != null ? params : new String[0];
+        this.headers = headers != null ? headers : new String[0];
+        this.byRole = byRole;
+        this.tags = tags != null ? tags : new String[0];
+    }
+
+    /**
+     * Returns true if responses to given request may be served from or stored
+     * in the cache. Only GET and HEAD requests are cached.
+     *
+     * @param request
+     * @return
+     */
+    static boolean isCacheable(HttpServletRequest request) {
+        String method = request.getMethod();
+        return "GET".equals(method) || "HEAD".equals(method);
+    }
+
+    /**
+     * Builds the cache key of the response to given request.
+     *
+     * @param route The action being invoked.
+     * @param args Path parameters bound to the action arguments.
+     * @param request Current request.
+     * @param resolver Used for finding the roles of the user, if the response
+     * varies by role.
+     * @param cacheTags Adds the current generations of the tags to the key.
+     * @return The key.
+     */
+    String key(ActionRoute route, String[] args, HttpServletRequest request,
+            AuthContextResolver resolver, CacheTags cacheTags) {
+        StringBuilder sb = new StringBuilder(64).append(KEY_PREFIX)
+                .append(route.controllerType.getName()).append('/').append(route.actionName);
+        for (String arg : args) {
+            sb.append(SEPARATOR).append(arg);
+        }
+        for (String param : params) {
+            sb.append(SEPARATOR);
+            String[] values = request.getParameterValues(param);
+            if (values != null) {
+                for (String v : values) {
+                    sb.append(VALUE_SEPARATOR).append(v);
+                }
+            }
+        }
+        for (String header : headers) {
+            sb.append(SEPARATOR);
+            Enumeration<String> values = request.getHeaders(header);
+            while (values != null && values.hasMoreElements()) {
+                sb.append(VALUE_SEPARATOR).append(values.nextElement());
+            }
+        }
+        if (byRole) {
+            sb.append(SEPARATOR);
+            AuthContext ctx = resolver.resolve(request);
+            if (ctx != null && ctx.isAuthenticated() && ctx.getRoles() != null) {
+                List<String> roles = new ArrayList<String>(ctx.getRoles());
+                Collections.sort(roles);
+                for (String role : roles) {
+                    sb.append(VALUE_SEPARATOR).append(role);
+                }
+            }
+        }
+        return tags.length > 0 ? cacheTags.key(sb, tags) : sb.toString();
+    }
+}
@@ -0,0 +1,218 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A trie of path templates keyed by path segments. Templates are of the form
+ * <code>/Orders/view/{id}</code>, where a segment in braces matches any single
+ * segment. Matching works directly on the characters of the request URI: the
+ * segments are hashed and compared in place, so no intermediate strings are
+ * created. Literal segments take precedence over parameters.
+ *
+ * @author Balwinder Sodhi
+ */
+final class PathTrie {
+
+    private final Node root = new Node();
+    private int maxParams;
+
+    /**
+     * Adds the given template to this trie.
+     *
+     * @param template Path template.
+     * @param route Route to be returned when the template matches.
+     * @return False if the trie already has a route for an equivalent template,
+     * in which case the trie is not changed.
+     */
+    boolean insert(String template, ActionRoute route) {
+        Node node = root;
+        int params = 0;
+        for (String seg : template.split("/")) {
+            if (seg.isEmpty()) {
+                continue;
+            }
+            if (isParam(seg)) {
+                if (node.param == null) {
+                    node.param = new Node();
+                }
+                node = node.param;
+                params++;
+            } else {
+                if (node.building == null) {
+                    node.building = new HashMap<String, Node>();
+                }
+                Node child = node.building.get(seg);
+                if (child == null) {
+                    child = new Node();
+                    node.building.put(seg, child);
+                }
+                node = child;
+            }
+        }
+        if (node.route != null) {
+            return false;
+        }
+        node.route = route;
+        maxParams = Math.max(maxParams, params);
+        return true;
+    }
+
+    /**
+     * Must be called after all the templates have been inserted and before
+     * the trie is used for matching.
+     */
+    void freeze() {
+        root.freeze();
+    }
+
+    /**
+     * Returns the maximum number of parameters in any template of this trie.
+     *
+     * @return
+     */
+    int maxParams() {
+        return maxParams;
+    }
+
+    /**
+     * Matches the given region of a URI against the templates.
+     *
+     * @param uri The URI.
+     * @param from Start of the region to be matched.
+     * @param to End of the region, exclusive.
+     * @param captures Receives the start and end offsets of each parameter
+     * segment in the URI. Must be of length at least 2*{@link #maxParams()}.
+     * @return The matching route, or null if no template matches.
+     */
+    ActionRoute match(String uri, int from, int to, int[] captures) {
+        return match(root, uri, from, to, captures, 0);
+    }
+
+    /**
+     * Returns the names of parameters in given template, in order of their
+     * occurrence.
+     *
+     * @param template
+     * @return
+     */
+    static String[] paramNames(String template) {
+        int n = 0;
+        String[] segs = template.split("/");
+        for (String seg : segs) {
+            if (isParam(seg)) {
+                n++;
+            }
+        }
+        String[] names = new String[n];
+        n = 0;
+        for (String seg : segs) {
+            if (isParam(seg)) {
+                names[n++] = seg.substring(1, seg.length() - 1);
+            }
+        }
+        return names;
+    }
+
+    private static boolean isParam(String seg) {
+        return seg.length() > 2 && seg.charAt(0) == '{'
+                && seg.charAt(seg.length() - 1) == '}';
+    }
+
+    private static ActionRoute match(Node node, String uri, int pos, int end,
+            int[] captures, int depth) {
+        while (pos < end && uri.charAt(pos) == '/') {
+            pos++;
+        }
+        if (pos >= end) {
+            return node.route;
+        }
+        int segEnd = pos;
+        while (segEnd < end && uri.charAt(segEnd) != '/') {
+            segEnd++;
+        }
+        Node child = node.find(uri, pos, segEnd);
+        if (child != null) {
+            ActionRoute r = match(child, uri, segEnd, end, captures, depth);
+            if (r != null) {
+                return r;
+            }
+        }
+        if (node.param != null) {
+            captures[2 * depth] = pos;
+            captures[2 * depth + 1] = segEnd;
+            return match(node.param, uri, segEnd, end, captures, depth + 1);
+        }
+        return null;
+    }
+
+    private static final class Node {
+
+        Map<String, Node> building;
+        /**
+         * Open addressed table of literal children, keyed by segment.
+         */
+        String[] keys;
+        Node[] children;
+        Node param;
+        ActionRoute route;
+
+        void freeze() {
+            if (building != null) {
+                int size = Integer.highestOneBit(building.size() * 2 + 1) << 1;
+                keys = new String[size];
+                children = new Node[size];
+                for (Map.Entry<String, Node> e : building.entrySet()) {
+                    int i = e.getKey().hashCode() & (size - 1);
+                    while (keys[i] != null) {
+                        i = (i + 1) & (size - 1);
+                    }
+                    keys[i] = e.getKey();
+                    children[i] = e.getValue();
+                    e.getValue().freeze();
+                }
+                building = null;
+            }
+            if (param != null) {
+                param.freeze();
+            }
+        }
+
+        Node find(String uri, int from, int to) {
+            if (keys == null) {
+                return null;
+            }
+            // Same as String.hashCode of the segment
+            int h = 0;
+            for (int i = from; i < to; i++) {
+                h = 31 * h + uri.charAt(i);
+            }
+            int len = to - from;
+            int mask = keys.length - 1;
+            for (int i = h & mask;; i = (i + 1) & mask) {
+                String k = keys[i];
+                if (k == null) {
+                    return null;
+                }
+                if (k.length() == len && uri.regionMatches(from, k, 0, len)) {
+                    return children[i];
+                }
+            }
+        }
+    }
+}
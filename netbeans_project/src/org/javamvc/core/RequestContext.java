@@ -0,0 +1,101 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * The objects associated with the request being handled by the current thread.
+ * {@link ControllerServlet} makes the context current while it runs an
+ * action, so that controllers reused across requests (see
+ * {@link org.javamvc.core.annotations.ControllerScope}), and any code called
+ * by an action, can reach the request without it being stored in fields.
+ *
+ * @author Balwinder Sodhi
+ */
+public final class RequestContext {
+
+    private static final ThreadLocal<RequestContext> current = new ThreadLocal<RequestContext>();
+    private final HttpServletRequest request;
+    private final HttpServletResponse response;
+    private final ServletContext context;
+    private final MemCacheProvider<Object, Object> cache;
+    private final ViewProvider viewProvider;
+
+    RequestContext(HttpServletRequest request, HttpServletResponse response,
+            ServletContext context, MemCacheProvider<Object, Object> cache,
+            ViewProvider viewProvider) {
+        this.request = request;
+        this.response = response;
+        this.context = context;
+        this.cache = cache;
+        this.viewProvider = viewProvider;
+    }
+
+    /**
+     * Returns the context of the request being handled by the current thread.
+     *
+     * @return The context, or null if the thread is not running an action.
+     */
+    public static RequestContext current() {
+        return current.get();
+    }
+
+    /**
+     * Makes given context current.
+     *
+     * @return The context which was current before, to be passed to
+     * {@link #exit(RequestContext)}.
+     */
+    static RequestContext enter(RequestContext ctx) {
+        RequestContext previous = current.get();
+        current.set(ctx);
+        return previous;
+    }
+
+    /**
+     * Restores the context which was current before {@link #enter}.
+     */
+    static void exit(RequestContext previous) {
+        if (previous != null) {
+            current.set(previous);
+        } else {
+            current.remove();
+        }
+    }
+
+    public HttpServletRequest getRequest() {
+        return request;
+    }
+
+    public HttpServletResponse getResponse() {
+        return response;
+    }
+
+    public ServletContext getContext() {
+        return context;
+    }
+
+    public MemCacheProvider<Object, Object> getMemCache() {
+        return cache;
+    }
+
+    public ViewProvider getViewProvider() {
+        return viewProvider;
+    }
+}
@@ -0,0 +1,283 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+
+/**
+ * Access log of {@link ControllerServlet}, written off the request threads.
+ * Request threads put one entry per request into a bounded ring buffer,
+ * without taking any lock; a background thread drains the buffer in batches
+ * and writes each batch as one record to the logger named after this class,
+ * at level INFO. Each line has the form
+ * <pre>
+ * time=2015-06-01T10:00:00.123Z method=GET uri=/app/Orders/list controller=Orders action=list status=200 async=false millis=3.215
+ * </pre>
+ * When the buffer is full, e.g. because the log handler cannot keep up, new
+ * entries are dropped and counted rather than blocking the requests.
+ * Following servlet init parameters are supported:
+ * <ol>
+ * <li>request.log.enabled -- Set to false to disable the log. Default is
+ * true. The log is also skipped while the logger does not log INFO.</li>
+ * <li>request.log.sample.rate -- Fraction of the requests logged, between 0
+ * and 1. Default is 1. Requests failing with a server error are always
+ * logged.</li>
+ * <li>request.log.buffer.size -- Number of entries the buffer holds, rounded
+ * up to a power of two. Default is 4096.</li>
+ * <li>request.log.batch.size -- Maximum number of entries written in one log
+ * record. Default is 256.</li>
+ * </ol>
+ *
+ * @author Balwinder Sodhi
+ */
+final class RequestLog implements Runnable {
+
+    private static final Logger logger = Logger.getLogger(RequestLog.class.getName());
+    private static final long IDLE_NANOS = 50000000L;
+    private final Entry[] buffer;
+    /**
+     * Per slot sequence: equals the tail position while the slot is free for
+     * that position, and the position plus one once its entry is published.
+     */
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private long head;
+    private final int batchSize;
+    private final double sampleRate;
+    private final LongAdder dropped = new LongAdder();
+    private volatile boolean running = true;
+    private final Thread thread;
+
+    /**
+     * Creates a log whose background thread is not yet started.
+     */
+    RequestLog(int capacity, int batchSize, double sampleRate) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.buffer = new Entry[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.mask = size - 1;
+        this.batchSize = Math.max(1, batchSize);
+        this.sampleRate = sampleRate;
+        this.thread = new Thread(this, "javamvc-request-log");
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Creates the log configured by the servlet init parameters.
+     *
+     * @param config
+     * @return The log, or null if it is disabled.
+     * @throws ServletException If an init parameter is not a number.
+     */
+    static RequestLog create(ServletConfig config) throws ServletException {
+        if ("false".equals(config.getInitParameter("request.log.enabled"))) {
+            return null;
+        }
+        String name = "request.log.sample.rate";
+        try {
+            String value = config.getInitParameter(name);
+            double rate = value != null ? Double.parseDouble(value.trim()) : 1;
+            name = "request.log.buffer.size";
+            value = config.getInitParameter(name);
+            int capacity = value != null ? Integer.parseInt(value.trim()) : 4096;
+            name = "request.log.batch.size";
+            value = config.getInitParameter(name);
+            int batch = value != null ? Integer.parseInt(value.trim()) : 256;
+            RequestLog log = new RequestLog(capacity, batch, rate);
+            log.start();
+            return log;
+        } catch (NumberFormatException ex) {
+            throw new ServletException("Could not initialize request log, invalid value of "
+                    + name + ". ", ex);
+        }
+    }
+
+    /**
+     * Starts the background thread writing the log.
+     */
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Logs a request, subject to sampling. Never blocks.
+     *
+     * @param method HTTP method.
+     * @param uri Request URI.
+     * @param controller Controller name, or null if no action matched.
+     * @param action Action name, or null if no action matched.
+     * @param status Response status.
+     * @param async True if the action ran asynchronously.
+     * @param startNanos Start of the request, as given by
+     * {@link System#nanoTime()}.
+     */
+    void log(String method, String uri, String controller, String action, int status,
+            boolean async, long startNanos) {
+        if (status < 500 && sampleRate < 1
+                && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return;
+        }
+        if (!logger.isLoggable(Level.INFO)) {
+            return;
+        }
+        Entry e = new Entry(System.currentTimeMillis(), method, uri, controller, action,
+                status, async, System.nanoTime() - startNanos);
+        if (!offer(e)) {
+            dropped.increment();
+        }
+    }
+
+    /**
+     * Returns the number of entries dropped since the buffer was full.
+     *
+     * @return
+     */
+    long droppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Stops the background thread after writing the pending entries.
+     */
+    void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(1000);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    boolean offer(Entry e) {
+        long t;
+        while (true) {
+            t = tail.get();
+            long seq = sequences.get((int) t & mask);
+            if (seq == t) {
+                if (tail.compareAndSet(t, t + 1)) {
+                    break;
+                }
+            } else if (seq < t) {
+                // Slot not yet drained from the previous lap: full
+                return false;
+            }
+        }
+        int i = (int) t & mask;
+        buffer[i] = e;
+        sequences.lazySet(i, t + 1);
+        return true;
+    }
+
+    Entry poll() {
+        int i = (int) head & mask;
+        if (sequences.get(i) != head + 1) {
+            return null;
+        }
+        Entry e = buffer[i];
+        buffer[i] = null;
+        sequences.lazySet(i, head + buffer.length);
+        head++;
+        return e;
+    }
+
+    @Override
+    public void run() {
+        StringBuilder sb = new StringBuilder(batchSize * 128);
+        while (running) {
+            if (drain(sb) == 0) {
+                LockSupport.parkNanos(IDLE_NANOS);
+            }
+        }
+        while (drain(sb) > 0) {
+            // Write what is left
+        }
+    }
+
+    /**
+     * Writes up to one batch of entries.
+     *
+     * @return Number of entries written.
+     */
+    private int drain(StringBuilder sb) {
+        sb.setLength(0);
+        int n = 0;
+        Entry e;
+        while (n < batchSize && (e = poll()) != null) {
+            if (n > 0) {
+                sb.append('\n');
+            }
+            e.appendTo(sb);
+            n++;
+        }
+        if (n > 0) {
+            try {
+                logger.log(Level.INFO, sb.toString());
+            } catch (RuntimeException ex) {
+                // A failing handler must not stop the log
+            }
+        }
+        return n;
+    }
+
+    static final class Entry {
+
+        final long time;
+        final String method;
+        final String uri;
+        final String controller;
+        final String action;
+        final int status;
+        final boolean async;
+        final long nanos;
+
+        Entry(long time, String method, String uri, String controller, String action,
+                int status, boolean async, long nanos) {
+            this.time = time;
+            this.method = method;
+            this.uri = uri;
+            this.controller = controller;
+            this.action = action;
+            this.status = status;
+            this.async = async;
+            this.nanos = nanos;
+        }
+
+        void appendTo(StringBuilder sb) {
+            sb.append("time=").append(Instant.ofEpochMilli(time))
+                    .append(" method=").append(method)
+                    .append(" uri=").append(uri)
+                    .append(" controller=").append(controller != null ? controller : "-")
+                    .append(" action=").append(action != null ? action : "-")
+                    .append(" status=").append(status)
+                    .append(" async=").append(async)
+                    .append(" millis=").append(nanos / 1000 / 1000.0);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.javamvc.core.annotations.Authorize;
+
+/**
+ * Dictionary of all the role names used in {@link Authorize} annotations of
+ * the controller actions. Each role is given a bit position, so that a set of
+ * roles can be represented as a bitset (an array of <code>long</code> words).
+ * The dictionary is built once by {@link ControllerServlet} at initialization
+ * time and does not change afterwards.
+ *
+ * @see AuthContext#getRoleBits(RoleDictionary)
+ * @author Balwinder Sodhi
+ */
+public final class RoleDictionary {
+
+    private final Map<String, Integer> index;
+    private final int words;
+
+    RoleDictionary(Collection<String> roles) {
+        Map<String, Integer> map = new HashMap<String, Integer>();
+        for (String role : roles) {
+            if (!map.containsKey(role)) {
+                map.put(role, map.size());
+            }
+        }
+        this.index = Collections.unmodifiableMap(map);
+        this.words = Math.max(1, (map.size() + 63) / 64);
+    }
+
+    /**
+     * Returns the number of roles in this dictionary.
+     *
+     * @return
+     */
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * Encodes the given role names as a bitset over this dictionary. Roles not
+     * present in the dictionary are ignored since no action requires them.
+     *
+     * @param roles Role names.
+     * @return The bitset. Never null.
+     */
+    public long[] encode(Collection<String> roles) {
+        long[] bits = new long[words];
+        if (roles != null) {
+            for (String role : roles) {
+                Integer i = index.get(role);
+                if (i != null) {
+                    bits[i >>> 6] |= 1L << i;
+                }
+            }
+        }
+        return bits;
+    }
+
+    /**
+     * Encodes the given role names as a bitset over this dictionary.
+     *
+     * @param roles Role names.
+     * @return The bitset, or null if any of the roles is not present in this
+     * dictionary.
+     */
+    long[] encodeAll(String[] roles) {
+        long[] bits = new long[words];
+        for (String role : roles) {
+            Integer i = index.get(role);
+            if (i == null) {
+                return null;
+            }
+            bits[i >>> 6] |= 1L << i;
+        }
+        return bits;
+    }
+
+    /**
+     * Checks whether the two bitsets have any role in common.
+     *
+     * @param required Bitset of roles required by an action.
+     * @param granted Bitset of roles granted to a user.
+     * @return
+     */
+    static boolean intersects(long[] required, long[] granted) {
+        int n = Math.min(required.length, granted.length);
+        for (int i = 0; i < n; i++) {
+            if ((required[i] & granted[i]) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
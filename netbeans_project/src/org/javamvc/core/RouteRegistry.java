@@ -0,0 +1,170 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import java.util.Collection;
+import org.javamvc.core.annotations.Action;
+import org.javamvc.core.annotations.Authorize;
+import org.javamvc.core.annotations.OutputCache;
+
+/**
+ * A registry of controller actions known ahead of time. An implementation
+ * named {@value #CLASS_NAME} is generated in each controller package by
+ * {@link org.javamvc.core.processor.RouteRegistryProcessor} when the
+ * application is compiled with this library on the annotation processor path.
+ * If {@link ControllerServlet} finds the registry in its controller package,
+ * the routes are loaded from it instead of scanning the package at runtime.
+ *
+ * @author Balwinder Sodhi
+ */
+public interface RouteRegistry {
+
+    /**
+     * Simple name of the generated registry class.
+     */
+    String CLASS_NAME = "JavaMvcRoutes";
+
+    /**
+     * Adds all the routes of this registry to given collection.
+     *
+     * @param routes
+     */
+    void registerRoutes(Collection<Route> routes);
+
+    /**
+     * Returns the simple names of the top level classes of the package which
+     * were compiled along with this registry. A class of the package not
+     * listed here was compiled separately, e.g. by an incremental build, so
+     * the registry may lack its actions; such classes are scanned for
+     * controllers when the routes are loaded. Classes having actions but not
+     * registered as controllers, e.g. those not extending
+     * {@link Controller}, are left out for the same reason.
+     *
+     * @return The names, or null if not known, in which case every class of
+     * the package not registered as a controller is scanned.
+     */
+    default String[] compiledTypes() {
+        return null;
+    }
+
+    /**
+     * Description of one controller action along with the invokers to be used
+     * for calling it.
+     */
+    final class Route {
+
+        final Class<?> controllerType;
+        final String actionName;
+        final Invokers.ControllerFactory factory;
+        final Invokers.ControllerInit initializer;
+        final Invokers.ActionCall invoker;
+        String[] roles;
+        String path;
+        String[] params;
+        boolean async;
+        OutputCachePolicy outputCache;
+
+        /**
+         * @param controllerType Controller class.
+         * @param actionName Name of the {@link Action} method.
+         * @param factory Creates the controller instances.
+         * @param initializer Calls <code>init</code> on the controller.
+         * @param invoker Calls the action method on the controller, converting
+         * the path parameters to the argument types.
+         */
+        public Route(Class<?> controllerType, String actionName,
+                Invokers.ControllerFactory factory,
+                Invokers.ControllerInit initializer, Invokers.ActionCall invoker) {
+            this.controllerType = controllerType;
+            this.actionName = actionName;
+            this.factory = factory;
+            this.initializer = initializer;
+            this.invoker = invoker;
+        }
+
+        /**
+         * Marks the action as requiring one of the given roles, as done by
+         * the {@link Authorize} annotation.
+         *
+         * @param roles
+         * @return This route.
+         */
+        public Route authorize(String... roles) {
+            this.roles = roles != null ? roles : new String[0];
+            return this;
+        }
+
+        /**
+         * Sets the path template of the action, as given by
+         * {@link Action#path()}.
+         *
+         * @param template
+         * @return This route.
+         */
+        public Route path(String template) {
+            this.path = template;
+            return this;
+        }
+
+        /**
+         * Sets the names of path parameters bound to the action arguments, in
+         * the order of arguments.
+         *
+         * @param names
+         * @return This route.
+         */
+        public Route params(String... names) {
+            this.params = names;
+            return this;
+        }
+
+        /**
+         * Marks the action to be run asynchronously, as given by
+         * {@link Action#async()}.
+         *
+         * @return This route.
+         */
+        public Route async() {
+            this.async = true;
+            return this;
+        }
+
+        /**
+         * Enables output caching of the action, as done by the
+         * {@link OutputCache} annotation.
+         *
+         * @param ttl Seconds for which a cached response is fresh.
+         * @param hardTtl Seconds for which a stale response is served while
+         * it is refreshed in background.
+         * @param params Request parameters by which the response varies.
+         * @param headers Request headers by which the response varies.
+         * @param byRole True if the response varies by the user's roles.
+         * @param tags Tags for invalidating the cached responses.
+         * @return This route.
+         */
+        public Route outputCache(int ttl, int hardTtl, String[] params,
+                String[] headers, boolean byRole, String[] tags) {
+            this.outputCache = new OutputCachePolicy(ttl, hardTtl, params, headers,
+                    byRole, tags);
+            return this;
+        }
+
+        @Override
+        public String toString() {
+            return controllerType.getName() + "." + actionName;
+        }
+    }
+}
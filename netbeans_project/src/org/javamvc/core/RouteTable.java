@@ -0,0 +1,354 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.javamvc.core.annotations.Action;
+
+/**
+ * Immutable table of controller actions. The table is built once by
+ * {@link ControllerServlet} at initialization time, either from the
+ * {@link RouteRegistry} generated for the controller package or by scanning
+ * the package. Request URIs are matched against the table in place via
+ * {@link PathTrie}s: one for the explicit {@link Action#path()} templates and
+ * one for the default <code>Controller/action</code> URLs.
+ *
+ * @author Balwinder Sodhi
+ */
+final class RouteTable {
+
+    private static final Logger logger = Logger.getLogger(RouteTable.class.getName());
+    private static final int[] NO_CAPTURES = new int[0];
+    private final PathTrie explicit;
+    private final PathTrie conventional;
+    private final RoleDictionary roles;
+    private final int size;
+
+    private RouteTable(PathTrie explicit, PathTrie conventional,
+            RoleDictionary roles, int size) {
+        this.explicit = explicit;
+        this.conventional = conventional;
+        this.roles = roles;
+        this.size = size;
+    }
+
+    /**
+     * Returns the dictionary of roles used by the actions in this table.
+     *
+     * @return
+     */
+    RoleDictionary roles() {
+        return roles;
+    }
+
+    /**
+     * Returns an array suitable for receiving the path parameter offsets
+     * in {@link #match}.
+     *
+     * @return
+     */
+    int[] newCaptures() {
+        int n = explicit.maxParams();
+        return n == 0 ? NO_CAPTURES : new int[2 * n];
+    }
+
+    /**
+     * Finds the route for given request URI. The URI is first matched against
+     * the path templates, taken relative to the context path. If none matches,
+     * the last two segments of the URI are taken as controller and action
+     * names.
+     *
+     * @param uri Request URI.
+     * @param start Length of the context path in the URI.
+     * @param end End of the URI path as found by {@link #pathEnd(String)}.
+     * @param captures Array obtained from {@link #newCaptures()}.
+     * @return The route if found, else null.
+     */
+    ActionRoute match(String uri, int start, int end, int[] captures) {
+        ActionRoute route = explicit.match(uri, start, end, captures);
+        if (route == null) {
+            int from = controllerStart(uri, end);
+            if (from >= 0) {
+                route = conventional.match(uri, from, end, captures);
+            }
+        }
+        return route;
+    }
+
+    /**
+     * Returns the end of the path to be routed, i.e., excluding the extension
+     * and path parameters (e.g. <code>;jsessionid=...</code>) of the last
+     * segment.
+     *
+     * @param uri Request URI.
+     * @return
+     */
+    static int pathEnd(String uri) {
+        int slash = uri.lastIndexOf('/');
+        for (int i = slash + 1; i < uri.length(); i++) {
+            char c = uri.charAt(i);
+            if (c == '.' || c == ';') {
+                return i;
+            }
+        }
+        return uri.length();
+    }
+
+    /**
+     * Returns the names of the controller and the action given by the last two
+     * segments of the URI.
+     *
+     * @param uri Request URI.
+     * @param end End of the URI path as found by {@link #pathEnd(String)}.
+     * @return A String array whose first element is action name and second
+     * element is the name of controller. The controller name is null if the
+     * URI has only one segment.
+     */
+    static String[] conventionalNames(String uri, int end) {
+        int slash = uri.lastIndexOf('/', end - 1);
+        String action = uri.substring(slash + 1, end);
+        int from = controllerStart(uri, end);
+        String controller = from >= 0 ? uri.substring(from + 1, slash) : null;
+        return new String[]{action, controller};
+    }
+
+    /**
+     * Returns the index of the slash preceding the controller name, or -1 if
+     * the URI has only one segment.
+     */
+    private static int controllerStart(String uri, int end) {
+        int slash = uri.lastIndexOf('/', end - 1);
+        return slash > 0 ? uri.lastIndexOf('/', slash - 1) : -1;
+    }
+
+    /**
+     * Returns the number of actions in this table.
+     *
+     * @return
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Loads the route table for given controller package. If the package
+     * contains a generated {@link RouteRegistry}, the routes are taken from it,
+     * and only the classes of the package which the registry does not know
+     * of (see {@link RouteRegistry#compiledTypes()}) are scanned. Otherwise
+     * the package is scanned via {@link #scan(ClassLoader, String)}.
+     *
+     * @param loader Class loader used for finding and loading the classes.
+     * @param pkg Controller package name.
+     * @return The route table.
+     */
+    static RouteTable load(ClassLoader loader, String pkg) {
+        if (pkg != null) {
+            String name = pkg + "." + RouteRegistry.CLASS_NAME;
+            RouteRegistry registry = null;
+            try {
+                registry = (RouteRegistry) Class.forName(name, true, loader)
+                        .getDeclaredConstructor().newInstance();
+            } catch (ClassNotFoundException ex) {
+                logger.fine("No route registry found in package " + pkg);
+            } catch (Exception ex) {
+                logger.log(Level.WARNING, "Could not load route registry " + name, ex);
+            }
+            if (registry != null) {
+                List<RouteRegistry.Route> list = new ArrayList<RouteRegistry.Route>();
+                registry.registerRoutes(list);
+                List<ActionRoute> found = new ArrayList<ActionRoute>(list.size());
+                Set<String> known = new HashSet<String>();
+                known.add(name);
+                for (RouteRegistry.Route r : list) {
+                    found.add(new ActionRoute(r));
+                    known.add(r.controllerType.getName());
+                }
+                logger.info("Loaded " + found.size() + " routes from " + name);
+                String[] compiled = registry.compiledTypes();
+                if (compiled != null) {
+                    for (String type : compiled) {
+                        known.add(pkg + "." + type);
+                    }
+                }
+                List<String> stale = new ArrayList<String>();
+                for (String type : findClassNames(loader, pkg)) {
+                    if (!known.contains(type)) {
+                        stale.add(type);
+                    }
+                }
+                if (!stale.isEmpty()) {
+                    if (compiled != null) {
+                        logger.info("Route registry " + name + " does not cover "
+                                + stale + ", scanning them for actions");
+                    }
+                    found.addAll(scan(loader, stale));
+                }
+                return build(found);
+            }
+        }
+        return scan(loader, pkg);
+    }
+
+    /**
+     * Builds the route table for all the controller classes found directly
+     * under the given package. A class is considered a controller if it is
+     * a public concrete class having at least one public method annotated
+     * with {@link Action}.
+     *
+     * @param loader Class loader used for finding and loading the classes.
+     * @param pkg Controller package name. If null, an empty table is returned.
+     * @return The route table.
+     */
+    static RouteTable scan(ClassLoader loader, String pkg) {
+        return build(pkg != null ? scan(loader, findClassNames(loader, pkg))
+                : Collections.<ActionRoute>emptyList());
+    }
+
+    /**
+     * Creates the routes for the actions of all the controllers among the
+     * given classes.
+     */
+    private static List<ActionRoute> scan(ClassLoader loader, Collection<String> names) {
+        List<Class<?>> types = new ArrayList<Class<?>>();
+        for (String name : names) {
+            try {
+                types.add(Class.forName(name, false, loader));
+            } catch (Throwable ex) {
+                logger.log(Level.WARNING, "Skipping class " + name, ex);
+            }
+        }
+        List<ActionRoute> found = new ArrayList<ActionRoute>();
+        for (Class<?> type : types) {
+            int mod = type.getModifiers();
+            if (!Modifier.isPublic(mod) || Modifier.isAbstract(mod)
+                    || type.isInterface()) {
+                continue;
+            }
+            for (Method m : type.getMethods()) {
+                if (m.getAnnotation(Action.class) == null) {
+                    continue;
+                }
+                ActionRoute route = ActionRoute.create(type, m);
+                if (route != null) {
+                    found.add(route);
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Builds the route table from given routes.
+     *
+     * @param found Routes to be included in the table.
+     * @return The route table.
+     */
+    static RouteTable build(Collection<ActionRoute> found) {
+        PathTrie explicit = new PathTrie();
+        PathTrie conventional = new PathTrie();
+        List<String> names = new ArrayList<String>();
+        for (ActionRoute route : found) {
+            names.addAll(Arrays.asList(route.roles));
+        }
+        RoleDictionary roles = new RoleDictionary(names);
+        for (ActionRoute route : found) {
+            route.compileRoles(roles);
+            if (route.path != null && !explicit.insert(route.path, route)) {
+                logger.warning("Ignoring duplicate path " + route.path
+                        + " of action " + route);
+            }
+            if (route.isConventional()) {
+                conventional.insert("/" + route.controllerName + "/"
+                        + route.actionName, route);
+            }
+        }
+        explicit.freeze();
+        conventional.freeze();
+        return new RouteTable(explicit, conventional, roles, found.size());
+    }
+
+    private static Set<String> findClassNames(ClassLoader loader, String pkg) {
+        Set<String> names = new LinkedHashSet<String>();
+        String path = pkg.replace('.', '/');
+        try {
+            Enumeration<URL> urls = loader.getResources(path);
+            while (urls.hasMoreElements()) {
+                URL url = urls.nextElement();
+                if ("file".equals(url.getProtocol())) {
+                    File dir = new File(URLDecoder.decode(url.getPath(), "UTF-8"));
+                    String[] files = dir.list();
+                    if (files == null) {
+                        continue;
+                    }
+                    for (String f : files) {
+                        addClassName(names, pkg, f);
+                    }
+                } else {
+                    URLConnection conn = url.openConnection();
+                    if (conn instanceof JarURLConnection) {
+                        conn.setUseCaches(false);
+                        JarFile jar = ((JarURLConnection) conn).getJarFile();
+                        try {
+                            Enumeration<JarEntry> entries = jar.entries();
+                            String prefix = path + "/";
+                            while (entries.hasMoreElements()) {
+                                String e = entries.nextElement().getName();
+                                if (e.startsWith(prefix)
+                                        && e.indexOf('/', prefix.length()) < 0) {
+                                    addClassName(names, pkg, e.substring(prefix.length()));
+                                }
+                            }
+                        } finally {
+                            jar.close();
+                        }
+                    } else {
+                        logger.warning("Cannot scan controllers in " + url);
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Could not scan package " + pkg, ex);
+        }
+        return names;
+    }
+
+    private static void addClassName(Set<String> names, String pkg, String file) {
+        // Nested classes cannot be addressed by a controller URL
+        if (file.endsWith(".class") && file.indexOf('$') < 0) {
+            names.add(pkg + "." + file.substring(0, file.length() - 6));
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+/**
+ * Takes the {@link AuthContext} from the session attribute named
+ * {@value #AUTH_CONTEXT}. A session is never created by this resolver, so
+ * anonymous requests do not cost any session state.
+ *
+ * @author Balwinder Sodhi
+ */
+public class SessionAuthContextResolver implements AuthContextResolver {
+
+    /**
+     * Name of the session attribute holding the {@link AuthContext}.
+     */
+    public static final String AUTH_CONTEXT = "auth.context";
+
+    @Override
+    public void init(ServletContext servletContext, ServletConfig servletConfig) {
+        // Do nothing
+    }
+
+    @Override
+    public AuthContext resolve(HttpServletRequest request) {
+        HttpSession session = request.getSession(false);
+        return session != null ? (AuthContext) session.getAttribute(AUTH_CONTEXT) : null;
+    }
+}
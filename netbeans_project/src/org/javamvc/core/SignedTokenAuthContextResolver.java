@@ -0,0 +1,305 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * A stateless {@link AuthContextResolver} which decodes the {@link AuthContext}
+ * from a token signed with HMAC-SHA256. Since nothing is kept in the server
+ * side session, any node sharing the secret can authorize the requests. The
+ * token is looked up in the request header and then in the cookie configured
+ * via following servlet init parameters:
+ * <ol>
+ * <li>auth.token.secret -- The shared secret used for signing tokens. This is
+ * a required parameter.</li>
+ * <li>auth.token.header -- Name of the request header carrying the token.
+ * Default is <code>X-Auth-Token</code>.</li>
+ * <li>auth.token.cookie -- Name of the cookie carrying the token. Default is
+ * <code>auth.token</code>.</li>
+ * <li>auth.token.cache.ttl -- Number of seconds for which a verified token is
+ * remembered, so that its signature need not be checked on every request.
+ * Default is 60. Use 0 to disable.</li>
+ * </ol>
+ * An application creates the token via {@link #issue} after authenticating a
+ * user, and sends it to the client as the cookie or header. The token has the
+ * form <code>base64url(payload).base64url(signature)</code>, where payload
+ * holds the login name, the expiry time and the comma separated roles.
+ *
+ * @author Balwinder Sodhi
+ */
+public class SignedTokenAuthContextResolver implements AuthContextResolver {
+
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int MAX_CACHED = 10000;
+    private SecretKeySpec key;
+    private String header = "X-Auth-Token";
+    private String cookie = "auth.token";
+    private long cacheMillis = 60000;
+    private final ConcurrentMap<String, Verified> verified
+            = new ConcurrentHashMap<String, Verified>();
+    private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>();
+
+    /**
+     * Creates an uninitialized resolver. {@link #init} must be called before
+     * use.
+     */
+    public SignedTokenAuthContextResolver() {
+    }
+
+    /**
+     * Creates a resolver with given secret. This can be used by an application
+     * for issuing tokens.
+     * @param secret The shared secret.
+     */
+    public SignedTokenAuthContextResolver(String secret) {
+        this.key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), ALGORITHM);
+    }
+
+    @Override
+    public void init(ServletContext servletContext, ServletConfig servletConfig) {
+        String secret = servletConfig.getInitParameter("auth.token.secret");
+        if (secret == null || secret.isEmpty()) {
+            throw new IllegalArgumentException("auth.token.secret is not configured.");
+        }
+        key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), ALGORITHM);
+        String value = servletConfig.getInitParameter("auth.token.header");
+        if (value != null) {
+            header = value.trim();
+        }
+        value = servletConfig.getInitParameter("auth.token.cookie");
+        if (value != null) {
+            cookie = value.trim();
+        }
+        value = servletConfig.getInitParameter("auth.token.cache.ttl");
+        if (value != null) {
+            cacheMillis = Long.parseLong(value.trim()) * 1000;
+        }
+    }
+
+    /**
+     * Creates a signed token for given user.
+     * @param loginName Login name of the user. Must not contain control
+     * characters.
+     * @param roles Roles granted to the user. Must not be empty or contain
+     * commas or control characters.
+     * @param expiresAt Time in milliseconds since epoch after which the token
+     * is no longer accepted.
+     * @return The token.
+     * @throws IllegalArgumentException If the login name or a role contains
+     * a character which would let it be read back as another field.
+     */
+    public String issue(String loginName, Collection<String> roles, long expiresAt) {
+        check("login name", loginName, false);
+        StringBuilder sb = new StringBuilder();
+        sb.append(loginName).append('\n').append(expiresAt).append('\n');
+        boolean first = true;
+        for (String role : roles) {
+            check("role", role, true);
+            if (!first) {
+                sb.append(',');
+            }
+            sb.append(role);
+            first = false;
+        }
+        byte[] payload = sb.toString().getBytes(StandardCharsets.UTF_8);
+        Base64.Encoder enc = Base64.getUrlEncoder().withoutPadding();
+        return enc.encodeToString(payload) + "." + enc.encodeToString(sign(payload));
+    }
+
+    /**
+     * Rejects the values which cannot be encoded in the payload as they are,
+     * since the new lines and commas separate its fields.
+     */
+    private static void check(String what, String value, boolean role) {
+        if (value == null || (role && value.isEmpty())) {
+            throw new IllegalArgumentException("Missing " + what + ".");
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (Character.isISOControl(c) || (role && c == ',')) {
+                throw new IllegalArgumentException("Invalid character in " + what
+                        + ": " + value);
+            }
+        }
+    }
+
+    @Override
+    public AuthContext resolve(HttpServletRequest request) {
+        String token = request.getHeader(header);
+        if (token == null) {
+            Cookie[] cookies = request.getCookies();
+            if (cookies != null) {
+                for (Cookie c : cookies) {
+                    if (cookie.equals(c.getName())) {
+                        token = c.getValue();
+                        break;
+                    }
+                }
+            }
+        }
+        if (token == null || token.isEmpty()) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        Verified v = verified.get(token);
+        if (v != null && v.until > now) {
+            return v.context;
+        }
+        TokenAuthContext ctx = verify(token);
+        if (ctx != null && cacheMillis > 0) {
+            if (verified.size() >= MAX_CACHED) {
+                verified.clear();
+            }
+            verified.put(token, new Verified(ctx, Math.min(now + cacheMillis, ctx.expiresAt)));
+        }
+        return ctx;
+    }
+
+    /**
+     * Verifies the signature and expiry of given token.
+     * @return The context, or null if the token is not valid.
+     */
+    private TokenAuthContext verify(String token) {
+        int dot = token.indexOf('.');
+        if (dot < 0) {
+            return null;
+        }
+        byte[] payload;
+        byte[] signature;
+        try {
+            Base64.Decoder dec = Base64.getUrlDecoder();
+            payload = dec.decode(token.substring(0, dot));
+            signature = dec.decode(token.substring(dot + 1));
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+        if (!MessageDigest.isEqual(sign(payload), signature)) {
+            return null;
+        }
+        String[] parts = new String(payload, StandardCharsets.UTF_8).split("\n", 3);
+        if (parts.length != 3) {
+            return null;
+        }
+        long expiresAt;
+        try {
+            expiresAt = Long.parseLong(parts[1]);
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+        if (expiresAt <= System.currentTimeMillis()) {
+            return null;
+        }
+        List<String> roles = parts[2].isEmpty() ? Collections.<String>emptyList()
+                : Collections.unmodifiableList(new ArrayList<String>(
+                        Arrays.asList(parts[2].split(","))));
+        return new TokenAuthContext(parts[0], roles, expiresAt);
+    }
+
+    private byte[] sign(byte[] payload) {
+        if (key == null) {
+            throw new IllegalStateException("Resolver is not initialized.");
+        }
+        try {
+            Mac mac = macs.get();
+            if (mac == null) {
+                mac = Mac.getInstance(ALGORITHM);
+                macs.set(mac);
+            }
+            mac.init(key);
+            return mac.doFinal(payload);
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException("Could not sign token. ", ex);
+        }
+    }
+
+    private static final class Verified {
+
+        final TokenAuthContext context;
+        final long until;
+
+        Verified(TokenAuthContext context, long until) {
+            this.context = context;
+            this.until = until;
+        }
+    }
+
+    /**
+     * Authentication context decoded from a verified token.
+     */
+    private static final class TokenAuthContext implements AuthContext {
+
+        private final String loginName;
+        private final List<String> roles;
+        final long expiresAt;
+        /**
+         * Role bitset along with the dictionary it was encoded for.
+         */
+        private volatile Object[] roleBits;
+
+        TokenAuthContext(String loginName, List<String> roles, long expiresAt) {
+            this.loginName = loginName;
+            this.roles = roles;
+            this.expiresAt = expiresAt;
+        }
+
+        @Override
+        public String getLoginName() {
+            return loginName;
+        }
+
+        @Override
+        public List<String> getRoles() {
+            return roles;
+        }
+
+        @Override
+        public boolean hasRole(String role) {
+            return roles.contains(role);
+        }
+
+        @Override
+        public boolean isAuthenticated() {
+            return expiresAt > System.currentTimeMillis();
+        }
+
+        @Override
+        public long[] getRoleBits(RoleDictionary dict) {
+            Object[] cached = roleBits;
+            if (cached == null || cached[0] != dict) {
+                cached = new Object[]{dict, dict.encode(roles)};
+                roleBits = cached;
+            }
+            return (long[]) cached[1];
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Default implementation of {@link MemCacheProvider#getOrCompute}. The loads
+ * in progress are kept in a map shared by all providers, keyed by the
+ * provider and the cache key, so that the callers missing the same key wait
+ * for the one load in progress instead of starting their own.
+ *
+ * @author Balwinder Sodhi
+ */
+final class SingleFlight {
+
+    private static final ConcurrentMap<FlightKey, FutureTask<Object>> flights
+            = new ConcurrentHashMap<FlightKey, FutureTask<Object>>();
+
+    private SingleFlight() {
+    }
+
+    /**
+     * Loads the value of given key and stores it in the provider, unless a
+     * load of the same key is already in progress in which case its result
+     * is returned.
+     */
+    @SuppressWarnings("unchecked")
+    static <K, V> V load(final MemCacheProvider<K, V> provider, final K key,
+            final MemCacheProvider.Loader<? super K, ? extends V> loader,
+            final boolean expires, final long ttlMillis) throws Exception {
+        FlightKey fk = new FlightKey(provider, key);
+        FutureTask<Object> task = new FutureTask<Object>(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                // A load which just finished may have stored the value
+                V value = provider.get(key);
+                if (value == null) {
+                    value = loader.load(key);
+                    if (value != null) {
+                        if (expires) {
+                            provider.put(key, value, ttlMillis);
+                        } else {
+                            provider.put(key, value);
+                        }
+                    }
+                }
+                return value;
+            }
+        });
+        FutureTask<Object> running = flights.putIfAbsent(fk, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                flights.remove(fk, task);
+            }
+        }
+        try {
+            return (V) running.get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw ex;
+        }
+    }
+
+    private static final class FlightKey {
+
+        private final Object provider;
+        private final Object key;
+
+        FlightKey(Object provider, Object key) {
+            this.provider = provider;
+            this.key = key;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(provider) + key.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof FlightKey)) {
+                return false;
+            }
+            FlightKey other = (FlightKey) obj;
+            return provider == other.provider && key.equals(other.key);
+        }
+    }
+}
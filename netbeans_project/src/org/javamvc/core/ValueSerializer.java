@@ -0,0 +1,43 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import java.io.IOException;
+
+/**
+ * Converts cached values to bytes and back, for caches which keep their
+ * values outside the Java heap or outside the JVM. Implementations must be
+ * thread safe.
+ *
+ * @see JavaValueSerializer
+ * @author Balwinder Sodhi
+ */
+public interface ValueSerializer {
+
+    /**
+     * @param value A non-null value.
+     * @return The bytes of value.
+     * @throws IOException If the value cannot be serialized.
+     */
+    byte[] serialize(Object value) throws IOException;
+
+    /**
+     * @param bytes Bytes returned by {@link #serialize(Object)}.
+     * @return The value.
+     * @throws IOException If the value cannot be deserialized.
+     */
+    Object deserialize(byte[] bytes) throws IOException;
+}
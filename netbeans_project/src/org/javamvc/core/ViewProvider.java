@@ -16,6 +16,7 @@ limitations under the License.
 package org.javamvc.core;
 
 import java.io.IOException;
+import java.io.Writer;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletContext;
 
@@ -44,4 +45,20 @@ public interface ViewProvider {
      * @throws IOException 
      */
     String renderView(String view, Object model) throws IOException;
+
+    /**
+     * Renders the view directly into given writer, e.g. the writer of the HTTP
+     * response, so that the rendered markup need not be held in memory as a
+     * whole. The default implementation writes the string returned by
+     * {@link #renderView(String, Object)}; a view provider based on a
+     * templating engine should override it to stream its output.
+     * @param view Full path of the view template, as for
+     * {@link #renderView(String, Object)}.
+     * @param model Model object to be used to populate the template.
+     * @param out Writer receiving the final view markup.
+     * @throws IOException 
+     */
+    default void renderView(String view, Object model, Writer out) throws IOException {
+        out.write(renderView(view, model));
+    }
 }
@@ -31,4 +31,20 @@ import java.lang.annotation.Target;
 @Inherited
 @Retention(RetentionPolicy.RUNTIME)
 public @interface Action {
+    /**
+     * Optional path template of the action relative to the context path, e.g.
+     * <code>/Orders/view/{id}</code>. Segments in braces are path parameters
+     * which are bound to the action method arguments annotated with
+     * {@link PathParam}. A no-argument action remains reachable via the
+     * default <code>Controller/action</code> URL as well.
+     */
+    String path() default "";
+
+    /**
+     * If true, the action is run on the async executor of the
+     * {@link org.javamvc.core.ControllerServlet} instead of the container's
+     * request thread. Useful for actions which block on I/O. Requires the
+     * servlet to be declared with async support.
+     */
+    boolean async() default false;
 }
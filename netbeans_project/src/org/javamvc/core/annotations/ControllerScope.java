@@ -0,0 +1,69 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core.annotations;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Sets how the instances of a controller class are reused across requests.
+ * By default a new controller is created and initialized for every request.
+ * With {@link Scope#SINGLETON} or {@link Scope#POOLED}, controllers are
+ * reused and their <code>init</code> method is not called, so the request,
+ * response and other per-request objects must be obtained via the getters of
+ * {@link org.javamvc.core.Controller}, or via
+ * {@link org.javamvc.core.RequestContext#current()}. The protected
+ * <code>request</code> and <code>response</code> fields of such a controller
+ * throw <code>IllegalStateException</code> when used.
+ *
+ * @author theuser
+ */
+@Documented
+@Target(ElementType.TYPE)
+@Inherited
+@Retention(RetentionPolicy.RUNTIME)
+public @interface ControllerScope {
+
+    Scope value() default Scope.REQUEST;
+
+    /**
+     * For {@link Scope#POOLED}, the maximum number of idle instances kept.
+     * Zero means twice the number of processors.
+     */
+    int poolSize() default 0;
+
+    enum Scope {
+        /**
+         * A new instance for every request.
+         */
+        REQUEST,
+        /**
+         * One instance serving all the requests concurrently. The controller
+         * must be thread-safe.
+         */
+        SINGLETON,
+        /**
+         * Instances reused from a pool, each serving one request at a time.
+         * For controllers holding state which is expensive to create but not
+         * thread-safe.
+         */
+        POOLED
+    }
+}
@@ -0,0 +1,77 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core.annotations;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Caches the complete response of an {@link Action} in the
+ * {@link org.javamvc.core.MemCacheProvider} of the servlet. While a cached
+ * response is fresh, GET requests for the action are answered from the cache
+ * without creating the controller or rendering the view. Only successful
+ * (200) responses are cached. Authorization, if any, is still checked on
+ * every request.
+ * <p>
+ * If {@link #hardTtl()} is larger than {@link #ttl()}, a response older than
+ * <code>ttl</code> but younger than <code>hardTtl</code> is still served while
+ * the action is run once in the background to refresh it. So a popular page
+ * expiring does not send all of its requests to the controller at once.
+ * @author theuser
+ */
+@Documented
+@Target(ElementType.METHOD)
+@Inherited
+@Retention(RetentionPolicy.RUNTIME)
+public @interface OutputCache {
+    /**
+     * Number of seconds for which a cached response is served.
+     */
+    int ttl() default 60;
+
+    /**
+     * Number of seconds after which a cached response is no longer served,
+     * not even while it is being refreshed. Values not larger than
+     * {@link #ttl()} disable serving of stale responses, which is the default.
+     */
+    int hardTtl() default 0;
+
+    /**
+     * Names of request parameters whose values distinguish cached responses.
+     */
+    String[] varyByParams() default {};
+
+    /**
+     * Names of request headers whose values distinguish cached responses.
+     */
+    String[] varyByHeaders() default {};
+
+    /**
+     * If true, users with different roles get different cached responses.
+     */
+    boolean varyByRole() default false;
+
+    /**
+     * Tags of the cached responses. All the responses with a tag can be
+     * invalidated at once via {@link org.javamvc.core.CacheTags#invalidateTag},
+     * e.g. after the data shown by them has been updated.
+     */
+    String[] tags() default {};
+}
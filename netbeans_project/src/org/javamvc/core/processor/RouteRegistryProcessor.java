@@ -0,0 +1,391 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core.processor;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import org.javamvc.core.RouteRegistry;
+import org.javamvc.core.annotations.Action;
+import org.javamvc.core.annotations.Authorize;
+import org.javamvc.core.annotations.OutputCache;
+import org.javamvc.core.annotations.PathParam;
+
+/**
+ * Annotation processor which generates a {@link RouteRegistry} named
+ * {@value RouteRegistry#CLASS_NAME} in every package containing controllers.
+ * A controller here is a public, concrete, top level subclass of
+ * {@link org.javamvc.core.Controller} having a public no-argument constructor
+ * and at least one public method annotated with {@link Action}, whose
+ * arguments, if any, are all annotated with {@link PathParam} and are of a
+ * type the path parameter can be converted to. Other actions are skipped with
+ * a warning, as they are when the routes are resolved via reflection.
+ * Other classes having actions are left out of the registry's
+ * {@link RouteRegistry#compiledTypes()}, so that they are still scanned at
+ * runtime. The generated code creates the controllers and calls their actions directly,
+ * so no reflection is needed at runtime.
+ * <p>
+ * The processor is registered via <code>META-INF/services</code>, so it runs
+ * automatically when this library is on the compile classpath.
+ *
+ * @author Balwinder Sodhi
+ */
+@SupportedAnnotationTypes("org.javamvc.core.annotations.Action")
+public class RouteRegistryProcessor extends AbstractProcessor {
+
+    private static final String CONTROLLER = "org.javamvc.core.Controller";
+    private final Set<String> generated = new HashSet<String>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment env) {
+        TypeElement controller = processingEnv.getElementUtils().getTypeElement(CONTROLLER);
+        if (controller == null || env.processingOver()) {
+            return false;
+        }
+        Map<String, List<TypeElement>> packages = new LinkedHashMap<String, List<TypeElement>>();
+        Map<String, List<String>> compiled = new HashMap<String, List<String>>();
+        for (TypeElement type : ElementFilter.typesIn(env.getRootElements())) {
+            String pkg = processingEnv.getElementUtils().getPackageOf(type)
+                    .getQualifiedName().toString();
+            List<String> names = compiled.get(pkg);
+            if (names == null) {
+                names = new ArrayList<String>();
+                compiled.put(pkg, names);
+            }
+            boolean registered = isController(type, controller.asType());
+            // Classes with actions which are not registered here, e.g. those
+            // not extending Controller but having a matching init method, are
+            // left out of compiledTypes() so that they are still scanned
+            if (registered || !hasActions(type)) {
+                names.add(type.getSimpleName().toString());
+            }
+            if (!registered) {
+                continue;
+            }
+            List<TypeElement> list = packages.get(pkg);
+            if (list == null) {
+                list = new ArrayList<TypeElement>();
+                packages.put(pkg, list);
+            }
+            list.add(type);
+        }
+        for (Map.Entry<String, List<TypeElement>> e : packages.entrySet()) {
+            if (!generated.add(e.getKey())) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,
+                        "Route registry for package " + e.getKey() + " was already "
+                        + "generated. Controllers created in later rounds will "
+                        + "be resolved at runtime.");
+                continue;
+            }
+            try {
+                write(e.getKey(), e.getValue(), compiled.get(e.getKey()));
+            } catch (IOException ex) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                        "Could not generate route registry: " + ex);
+            }
+        }
+        return false;
+    }
+
+    private boolean isController(TypeElement type, TypeMirror controller) {
+        Set<Modifier> mods = type.getModifiers();
+        if (type.getKind() != ElementKind.CLASS
+                || type.getNestingKind() != NestingKind.TOP_LEVEL
+                || !mods.contains(Modifier.PUBLIC) || mods.contains(Modifier.ABSTRACT)
+                || !processingEnv.getTypeUtils().isSubtype(type.asType(), controller)) {
+            return false;
+        }
+        boolean ctor = false;
+        for (ExecutableElement c : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+            if (c.getParameters().isEmpty() && c.getModifiers().contains(Modifier.PUBLIC)) {
+                ctor = true;
+            }
+        }
+        return ctor && !actions(type, true).isEmpty();
+    }
+
+    private boolean hasActions(TypeElement type) {
+        for (ExecutableElement m : ElementFilter.methodsIn(
+                processingEnv.getElementUtils().getAllMembers(type))) {
+            if (m.getAnnotation(Action.class) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private List<ExecutableElement> actions(TypeElement type, boolean report) {
+        List<ExecutableElement> list = new ArrayList<ExecutableElement>();
+        Set<String> names = new HashSet<String>();
+        List<? extends Element> members = processingEnv.getElementUtils().getAllMembers(type);
+        for (ExecutableElement m : ElementFilter.methodsIn(members)) {
+            Set<Modifier> mods = m.getModifiers();
+            if (m.getAnnotation(Action.class) != null && hasPathParams(m, report)
+                    && mods.contains(Modifier.PUBLIC) && !mods.contains(Modifier.STATIC)
+                    && names.add(m.getSimpleName().toString())) {
+                list.add(m);
+            }
+        }
+        return list;
+    }
+
+    private boolean hasPathParams(ExecutableElement m, boolean report) {
+        for (VariableElement p : m.getParameters()) {
+            String problem = null;
+            if (p.getAnnotation(PathParam.class) == null) {
+                problem = "Action argument is not a @PathParam";
+            } else if (!isConvertible(p.asType())) {
+                problem = "Path parameter of type " + p.asType() + " cannot be "
+                        + "converted from a String";
+            }
+            if (problem != null) {
+                if (report) {
+                    processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,
+                            problem + ", action ignored", p);
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if a path parameter can be bound to given type, i.e., it is
+     * a String, a primitive or a class having a public static
+     * <code>valueOf(String)</code> method returning that class. These are the
+     * types supported by {@link org.javamvc.core.Invokers} too.
+     */
+    private boolean isConvertible(TypeMirror type) {
+        if (type.getKind().isPrimitive()) {
+            return true;
+        }
+        if (type.getKind() != TypeKind.DECLARED) {
+            return false;
+        }
+        TypeElement element = (TypeElement) ((DeclaredType) type).asElement();
+        if (element.getQualifiedName().contentEquals("java.lang.String")) {
+            return true;
+        }
+        Types types = processingEnv.getTypeUtils();
+        for (ExecutableElement m : ElementFilter.methodsIn(
+                processingEnv.getElementUtils().getAllMembers(element))) {
+            Set<Modifier> mods = m.getModifiers();
+            if (m.getSimpleName().contentEquals("valueOf")
+                    && mods.contains(Modifier.PUBLIC) && mods.contains(Modifier.STATIC)
+                    && m.getParameters().size() == 1
+                    && types.isSameType(m.getParameters().get(0).asType(),
+                            processingEnv.getElementUtils()
+                                    .getTypeElement("java.lang.String").asType())
+                    && types.isSameType(types.erasure(m.getReturnType()),
+                            types.erasure(type))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void write(String pkg, List<TypeElement> types, List<String> compiled)
+            throws IOException {
+        String name = pkg.isEmpty() ? RouteRegistry.CLASS_NAME
+                : pkg + "." + RouteRegistry.CLASS_NAME;
+        JavaFileObject file = processingEnv.getFiler().createSourceFile(name,
+                types.toArray(new Element[types.size()]));
+        PrintWriter w = new PrintWriter(file.openWriter());
+        try {
+            if (!pkg.isEmpty()) {
+                w.println("package " + pkg + ";");
+                w.println();
+            }
+            w.println("/**");
+            w.println(" * Generated by " + getClass().getName() + ". Do not edit.");
+            w.println(" */");
+            w.println("public final class " + RouteRegistry.CLASS_NAME
+                    + " implements org.javamvc.core.RouteRegistry {");
+            w.println();
+            w.println("    @Override");
+            w.println("    public void registerRoutes(java.util.Collection<Route> routes) {");
+            for (TypeElement type : types) {
+                String cls = type.getQualifiedName().toString();
+                for (ExecutableElement m : actions(type, false)) {
+                    String action = m.getSimpleName().toString();
+                    w.println("        routes.add(new Route(" + cls + ".class, \""
+                            + action + "\", " + cls + "::new,");
+                    List<? extends VariableElement> params = m.getParameters();
+                    String[] names = new String[params.size()];
+                    StringBuilder args = new StringBuilder();
+                    List<String> declared = new ArrayList<String>();
+                    List<String> converted = new ArrayList<String>();
+                    for (int i = 0; i < names.length; i++) {
+                        names[i] = params.get(i).getAnnotation(PathParam.class).value();
+                        TypeMirror t = params.get(i).asType();
+                        String expr = conversion(t, "a[" + i + "]");
+                        if (!expr.equals("a[" + i + "]")) {
+                            declared.add(t + " p" + i + ";");
+                            converted.add("p" + i + " = " + expr + ";");
+                            expr = "p" + i;
+                        }
+                        args.append(i > 0 ? ", " : "").append(expr);
+                    }
+                    String call = "((" + cls + ") c)." + action + "(" + args + ")";
+                    w.print("                org.javamvc.core.Invokers.CONTROLLER_INIT, ");
+                    if (converted.isEmpty()) {
+                        w.print("(c, a) -> " + call + ")");
+                    } else {
+                        // Only the conversion errors are reported as bad arguments
+                        w.println("(c, a) -> {");
+                        for (String d : declared) {
+                            w.println("                    " + d);
+                        }
+                        w.println("                    try {");
+                        for (String c : converted) {
+                            w.println("                        " + c);
+                        }
+                        w.println("                    } catch (IllegalArgumentException ex) {");
+                        w.println("                        throw new org.javamvc.core.Invokers.BadArgumentException(ex);");
+                        w.println("                    }");
+                        w.println("                    " + call + ";");
+                        w.print("                })");
+                    }
+                    Authorize a = m.getAnnotation(Authorize.class);
+                    if (a != null) {
+                        w.print(".authorize(" + literals(a.roles()) + ")");
+                    }
+                    Action act = m.getAnnotation(Action.class);
+                    if (!act.path().isEmpty()) {
+                        w.print(".path(" + literal(act.path()) + ")");
+                    }
+                    if (act.async()) {
+                        w.print(".async()");
+                    }
+                    OutputCache oc = m.getAnnotation(OutputCache.class);
+                    if (oc != null) {
+                        w.print(".outputCache(" + oc.ttl() + ", " + oc.hardTtl()
+                                + ", " + literals(oc.varyByParams())
+                                + ", " + literals(oc.varyByHeaders()) + ", " + oc.varyByRole()
+                                + ", " + literals(oc.tags()) + ")");
+                    }
+                    if (names.length > 0) {
+                        w.print(".params(" + literals(names) + ")");
+                    }
+                    w.println(");");
+                }
+            }
+            w.println("    }");
+            w.println();
+            w.println("    @Override");
+            w.println("    public String[] compiledTypes() {");
+            w.println("        return " + literals(compiled.toArray(new String[compiled.size()])) + ";");
+            w.println("    }");
+            w.println("}");
+        } finally {
+            w.close();
+        }
+    }
+
+    /**
+     * Returns the expression converting given String expression to the type.
+     */
+    private String conversion(TypeMirror type, String expr) {
+        switch (type.getKind()) {
+            case BOOLEAN:
+                return "Boolean.parseBoolean(" + expr + ")";
+            case CHAR:
+                return "org.javamvc.core.Invokers.parseChar(" + expr + ")";
+            case BYTE:
+                return "Byte.parseByte(" + expr + ")";
+            case SHORT:
+                return "Short.parseShort(" + expr + ")";
+            case INT:
+                return "Integer.parseInt(" + expr + ")";
+            case LONG:
+                return "Long.parseLong(" + expr + ")";
+            case FLOAT:
+                return "Float.parseFloat(" + expr + ")";
+            case DOUBLE:
+                return "Double.parseDouble(" + expr + ")";
+            default:
+                String name = processingEnv.getTypeUtils().erasure(type).toString();
+                return "java.lang.String".equals(name) ? expr
+                        : name + ".valueOf(" + expr + ")";
+        }
+    }
+
+    private static String literals(String[] values) {
+        StringBuilder sb = new StringBuilder("new String[]{");
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(literal(values[i]));
+        }
+        return sb.append('}').toString();
+    }
+
+    /**
+     * Returns the Java string literal of given value. Control characters are
+     * escaped, as a line break cannot appear in a literal; line breaks are
+     * not written as unicode escapes, which the compiler would translate
+     * before reading the literal.
+     */
+    private static String literal(String value) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c == '\n') {
+                sb.append("\\n");
+            } else if (c == '\r') {
+                sb.append("\\r");
+            } else if (c == '\t') {
+                sb.append("\\t");
+            } else if (Character.isISOControl(c)) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
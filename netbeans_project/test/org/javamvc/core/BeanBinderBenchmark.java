@@ -0,0 +1,91 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.beanutils.BeanUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares populating a bean from request parameters via
+ * <code>BeanUtils.populate</code>, as done before, with {@link BeanBinder}.
+ * The parameters set a string, an int, a boolean, an array, a property of a
+ * nested bean and an unknown name. Run with:
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ * java -cp target/test-classes:target/classes:$(cat target/cp.txt) \
+ *     org.openjdk.jmh.Main BeanBinderBenchmark
+ * </pre>
+ * Results on JDK 17.0.9, 1 CPU (average time, lower is better):
+ * <pre>
+ * Benchmark                      Mode  Cnt      Score       Error  Units
+ * BeanBinderBenchmark.beanUtils  avgt    5  19831.861 ± 13446.431  ns/op
+ * BeanBinderBenchmark.binder     avgt    5    814.608 ±   125.424  ns/op
+ * </pre>
+ *
+ * @author Balwinder Sodhi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BeanBinderBenchmark {
+
+    private final Map<String, String[]> params = new LinkedHashMap<String, String[]>();
+
+    @Setup
+    public void setup() {
+        params.put("name", new String[]{"Ann"});
+        params.put("age", new String[]{"42"});
+        params.put("active", new String[]{"on"});
+        params.put("scores", new String[]{"1", "2", "3"});
+        params.put("address.city", new String[]{"Pune"});
+        params.put("unknown", new String[]{"x"});
+    }
+
+    private static BeanBinderTest.Person person() {
+        BeanBinderTest.Person p = new BeanBinderTest.Person();
+        p.setAddress(new BeanBinderTest.Address());
+        return p;
+    }
+
+    @Benchmark
+    public Object beanUtils() throws Exception {
+        BeanBinderTest.Person p = person();
+        BeanUtils.populate(p, params);
+        return p;
+    }
+
+    @Benchmark
+    public Object binder() throws Exception {
+        BeanBinderTest.Person p = person();
+        BeanBinder.populate(p, params);
+        return p;
+    }
+}
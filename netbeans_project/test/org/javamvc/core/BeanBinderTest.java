@@ -0,0 +1,220 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.commons.beanutils.BeanUtils;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests of populating beans from request parameters via {@link BeanBinder}.
+ *
+ * @author Balwinder Sodhi
+ */
+public class BeanBinderTest {
+
+    public static class Address {
+
+        private String city;
+
+        public String getCity() {
+            return city;
+        }
+
+        public void setCity(String city) {
+            this.city = city;
+        }
+    }
+
+    public static class Person {
+
+        private String name;
+        private int age;
+        private boolean active;
+        private long[] scores;
+        private String[] tags;
+        private Address address;
+        private Object holder;
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        public int getAge() {
+            return age;
+        }
+
+        public void setAge(int age) {
+            this.age = age;
+        }
+
+        public boolean isActive() {
+            return active;
+        }
+
+        public void setActive(boolean active) {
+            this.active = active;
+        }
+
+        public long[] getScores() {
+            return scores;
+        }
+
+        public void setScores(long[] scores) {
+            this.scores = scores;
+        }
+
+        public String[] getTags() {
+            return tags;
+        }
+
+        public void setTags(String[] tags) {
+            this.tags = tags;
+        }
+
+        public Address getAddress() {
+            return address;
+        }
+
+        public void setAddress(Address address) {
+            this.address = address;
+        }
+
+        public Object getHolder() {
+            return holder;
+        }
+
+        public void setHolder(Object holder) {
+            this.holder = holder;
+        }
+    }
+
+    /**
+     * Defines its own copy of a class, and records whether the default
+     * assertion status, a write-only property, was set on it.
+     */
+    static final class RecordingLoader extends ClassLoader {
+
+        volatile boolean touched;
+
+        RecordingLoader() {
+            super(BeanBinderTest.class.getClassLoader());
+        }
+
+        Object newInstance(Class<?> type) throws Exception {
+            InputStream in = getParent().getResourceAsStream(
+                    type.getName().replace('.', '/') + ".class");
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try {
+                byte[] buf = new byte[4096];
+                for (int n; (n = in.read(buf)) > 0;) {
+                    out.write(buf, 0, n);
+                }
+            } finally {
+                in.close();
+            }
+            byte[] b = out.toByteArray();
+            return defineClass(type.getName(), b, 0, b.length)
+                    .getDeclaredConstructor().newInstance();
+        }
+
+        @Override
+        public void setDefaultAssertionStatus(boolean enabled) {
+            touched = true;
+        }
+    }
+
+    private static Map<String, String[]> params(String... nameValues) {
+        Map<String, String[]> params = new LinkedHashMap<String, String[]>();
+        for (int i = 0; i < nameValues.length; i += 2) {
+            params.put(nameValues[i], nameValues[i + 1].split(","));
+        }
+        return params;
+    }
+
+    @Test
+    public void convertsAsBeanUtils() throws Exception {
+        Map<String, String[]> params = params("name", "Ann", "age", "x", "active", "yes",
+                "scores", "1,2,z", "tags", "a,b", "unknown", "1", "holder", "h");
+        Person expected = new Person();
+        BeanUtils.populate(expected, params);
+        Person p = new Person();
+        BeanBinder.populate(p, params);
+        assertEquals("Ann", p.getName());
+        assertEquals(expected.getAge(), p.getAge());
+        assertTrue(p.isActive());
+        assertArrayEquals(expected.getScores(), p.getScores());
+        assertArrayEquals(new long[]{1, 2, 0}, p.getScores());
+        assertEquals(Arrays.asList("a", "b"), Arrays.asList(p.getTags()));
+        assertEquals(expected.getHolder(), p.getHolder());
+    }
+
+    @Test
+    public void nullNestedBeanIsSkipped() throws Exception {
+        Person p = new Person();
+        BeanBinder.populate(p, params("address.city", "Pune"));
+        assertNull(p.getAddress());
+        p.setAddress(new Address());
+        BeanBinder.populate(p, params("address.city", "Pune"));
+        assertEquals("Pune", p.getAddress().getCity());
+    }
+
+    @Test
+    public void classPropertyIsNotReachable() throws Exception {
+        RecordingLoader loader = new RecordingLoader();
+        Person p = new Person();
+        p.setHolder(loader.newInstance(Address.class));
+        Map<String, String[]> params = params(
+                "holder.class.classLoader.defaultAssertionStatus", "true");
+        // Without suppressing the class property, the loader is reached
+        BeanUtils.populate(p, params);
+        assertTrue(loader.touched);
+
+        loader = new RecordingLoader();
+        p.setHolder(loader.newInstance(Address.class));
+        BeanBinder.populate(p, params);
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("p", p);
+        BeanBinder.populate(map, params("p.holder.class.classLoader.defaultAssertionStatus",
+                "true"));
+        BeanBinder.populate(p, params("holder.class[0]", "x", "class", "x",
+                "class.name", "x"));
+        assertFalse(loader.touched);
+    }
+
+    @Test
+    public void namesContainingClassAreBound() throws Exception {
+        Map<String, Object> map = new HashMap<String, Object>();
+        BeanBinder.populate(map, params("classes", "a", "subclass", "b"));
+        assertEquals("a", map.get("classes"));
+        assertEquals("b", map.get("subclass"));
+    }
+}
@@ -0,0 +1,103 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of the snapshots of {@link LocalMemCache}.
+ *
+ * @author Balwinder Sodhi
+ */
+public class CacheSnapshotTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void commitReplacesTheCurrentGeneration() throws IOException {
+        File dir = folder.getRoot();
+        CacheSnapshot snapshot = new CacheSnapshot(dir);
+        CacheSnapshot.Writer w = snapshot.newWriter();
+        w.add(new byte[]{1}, new byte[]{10, 11}, 0);
+        w.commit();
+        w = snapshot.newWriter();
+        w.add(new byte[]{2}, new byte[]{20}, 5);
+        w.add(new byte[]{3}, new byte[]{30, 31, 32}, 0);
+        w.commit();
+        final List<byte[]> values = new ArrayList<byte[]>();
+        assertEquals(2, snapshot.read(new CacheSnapshot.Sink() {
+            @Override
+            public void entry(byte[] key, CacheSnapshot.MappedValue value, long expiresAt) {
+                values.add(value.bytes());
+            }
+        }));
+        assertArrayEquals(new byte[]{20}, values.get(0));
+        assertArrayEquals(new byte[]{30, 31, 32}, values.get(1));
+        List<String> names = Arrays.asList(dir.list());
+        // CURRENT, the index and one segment of the second generation
+        assertEquals(names.toString(), 3, names.size());
+        assertFalse(names.contains("CURRENT.tmp"));
+    }
+
+    @Test
+    public void abortKeepsTheCurrentGeneration() throws IOException {
+        CacheSnapshot snapshot = new CacheSnapshot(folder.getRoot());
+        CacheSnapshot.Writer w = snapshot.newWriter();
+        w.add(new byte[]{1}, new byte[]{10}, 0);
+        w.commit();
+        String current = new String(Files.readAllBytes(
+                new File(folder.getRoot(), "CURRENT").toPath()), "UTF-8");
+        w = snapshot.newWriter();
+        w.add(new byte[]{2}, new byte[]{20}, 0);
+        w.abort();
+        assertEquals(current, new String(Files.readAllBytes(
+                new File(folder.getRoot(), "CURRENT").toPath()), "UTF-8"));
+        assertEquals(3, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void restartedCacheServesTheSavedEntries() throws IOException {
+        String dir = folder.getRoot().getPath();
+        LocalMemCache cache = new LocalMemCache();
+        cache.init(null, FakeExchange.config("memcache.snapshot.dir", dir,
+                "memcache.snapshot.interval", "0"));
+        cache.put("a", "1");
+        cache.put("b", new ArrayList<String>(Arrays.asList("x", "y")));
+        cache.put("gone", "2", 1);
+        cache.put(new Object(), "not serializable");
+        cache.destroy();
+        LocalMemCache restarted = new LocalMemCache();
+        restarted.init(null, FakeExchange.config("memcache.snapshot.dir", dir,
+                "memcache.snapshot.interval", "0"));
+        assertEquals("1", restarted.get("a"));
+        assertEquals(Arrays.asList("x", "y"), restarted.get("b"));
+        assertFalse(restarted.containsKey("gone"));
+        assertTrue(restarted.size() == 2);
+    }
+}
@@ -0,0 +1,90 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+
+/**
+ * Tests of grouping cached entries via {@link CacheTags}.
+ *
+ * @author Balwinder Sodhi
+ */
+public class CacheTagsTest {
+
+    private final LocalMemCache cache = new LocalMemCache();
+    private final CacheTags tags = new CacheTags(cache);
+
+    @Test
+    public void invalidatingTagHidesItsEntries() {
+        tags.put("a", "1", 0, "x");
+        tags.put("b", "2", 0, "x", "y");
+        tags.put("c", "3", 60000, "y");
+        assertEquals("1", tags.get("a", "x"));
+        assertEquals("2", tags.get("b", "x", "y"));
+        // Entries are reached only with the tags they were stored with
+        assertNull(tags.get("a"));
+        assertNull(tags.get("a", "y"));
+        tags.invalidateTag("x");
+        assertNull(tags.get("a", "x"));
+        assertNull(tags.get("b", "x", "y"));
+        assertEquals("3", tags.get("c", "y"));
+        tags.put("a", "4", 0, "x");
+        assertEquals("4", tags.get("a", "x"));
+    }
+
+    @Test
+    public void keyChangesOnlyWithItsTags() {
+        String key = tags.key("k", "x", "y");
+        assertEquals(key, tags.key("k", "x", "y"));
+        tags.invalidateTag("z");
+        assertEquals(key, tags.key("k", "x", "y"));
+        tags.invalidateTag("y");
+        assertFalse(key.equals(tags.key("k", "x", "y")));
+    }
+
+    @Test
+    public void invalidatingNamespaceHidesItsKeys() {
+        String orders = tags.keyInNamespace("orders", 1);
+        String users = tags.keyInNamespace("users", 1);
+        cache.put(orders, "o");
+        cache.put(users, "u");
+        assertEquals(orders, tags.keyInNamespace("orders", 1));
+        tags.invalidateNamespace("orders");
+        assertNull(cache.get(tags.keyInNamespace("orders", 1)));
+        assertEquals("u", cache.get(tags.keyInNamespace("users", 1)));
+        // A tag of the same name is a separate group
+        tags.put("t", "v", 0, "users");
+        tags.invalidateNamespace("users");
+        assertEquals("v", tags.get("t", "users"));
+    }
+
+    @Test
+    public void lostGenerationDoesNotRestoreInvalidatedEntries() {
+        tags.put("a", "1", 0, "x");
+        String key = tags.key("a", "x");
+        tags.invalidateTag("x");
+        for (Object k : cache.keySet()) {
+            if (k.toString().startsWith("javamvc.generation:")) {
+                cache.remove(k);
+            }
+        }
+        assertFalse(key.equals(tags.key("a", "x")));
+        assertNull(tags.get("a", "x"));
+    }
+}
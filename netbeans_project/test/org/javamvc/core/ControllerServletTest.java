@@ -0,0 +1,524 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.ObjectName;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.javamvc.core.sample.ChunkedViewProvider;
+import org.javamvc.core.sample.Counter;
+import org.javamvc.core.sample.Feed;
+import org.javamvc.core.sample.Pooled;
+import org.javamvc.core.sample.Slow;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of dispatching requests through {@link ControllerServlet}.
+ *
+ * @author Balwinder Sodhi
+ */
+public class ControllerServletTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+    private ControllerServlet servlet;
+
+    private void init(String... params) throws Exception {
+        String[] all = new String[params.length + 4];
+        all[0] = "controller.package.name";
+        all[1] = "org.javamvc.core.sample";
+        all[2] = "request.log.enabled";
+        all[3] = "false";
+        System.arraycopy(params, 0, all, 4, params.length);
+        servlet = new ControllerServlet();
+        servlet.init(FakeExchange.config(all));
+    }
+
+    @After
+    public void tearDown() {
+        if (servlet != null) {
+            servlet.destroy();
+        }
+    }
+
+    private FakeExchange.Response get(FakeExchange.Request request) throws Exception {
+        FakeExchange.Response response = new FakeExchange.Response();
+        servlet.service(request.proxy(), response.proxy());
+        return response;
+    }
+
+    private FakeExchange.Response get(String uri) throws Exception {
+        return get(new FakeExchange.Request(uri));
+    }
+
+    @Test
+    public void dispatchesConventionalAndTemplateRoutes() throws Exception {
+        init();
+        FakeExchange.Response res = get("/app/Shop/hello.a");
+        assertEquals(HttpServletResponse.SC_OK, res.status);
+        assertEquals("hello", res.body());
+        assertEquals("item 12", get("/app/items/12").body());
+    }
+
+    @Test
+    public void unknownRouteIsNotFound() throws Exception {
+        init();
+        assertEquals(HttpServletResponse.SC_NOT_FOUND, get("/app/Shop/nothing").status);
+        assertEquals(HttpServletResponse.SC_NOT_FOUND, get("/app/items/1/2").status);
+    }
+
+    @Test
+    public void unconvertiblePathParameterIsNotFound() throws Exception {
+        init();
+        assertEquals(HttpServletResponse.SC_NOT_FOUND, get("/app/items/twelve").status);
+        assertEquals(HttpServletResponse.SC_NOT_FOUND, get("/app/items/%zz").status);
+        // Failures of the action itself are still server errors
+        assertEquals(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                get("/app/fail/1").status);
+    }
+
+    @Test
+    public void asyncActionRunsOffTheRequestThread() throws Exception {
+        init();
+        Slow.release = new CountDownLatch(0);
+        Slow.finished = new CountDownLatch(1);
+        FakeExchange.Request req = new FakeExchange.Request("/app/Slow/late");
+        req.asyncSupported = true;
+        FakeExchange.Response res = get(req);
+        assertTrue(req.async.awaitCompletion());
+        assertEquals("late", res.body());
+        assertEquals("yes", res.headers.get("X-Late"));
+    }
+
+    @Test
+    public void timedOutActionCannotWriteToResponse() throws Exception {
+        init();
+        Slow.release = new CountDownLatch(1);
+        Slow.finished = new CountDownLatch(1);
+        FakeExchange.Request req = new FakeExchange.Request("/app/Slow/late");
+        req.asyncSupported = true;
+        FakeExchange.Response res = get(req);
+        req.async.timeout();
+        assertTrue(req.async.awaitCompletion());
+        assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, res.status);
+        String body = res.body();
+        // The worker now writes into a response the container may have recycled
+        Slow.release.countDown();
+        assertTrue(Slow.finished.await(10, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        assertEquals(body, res.body());
+        assertEquals("late timed out.", body);
+        assertNull(res.headers.get("X-Late"));
+    }
+
+    @Test
+    public void viewIsWrittenOnceRendered() throws Exception {
+        init("view.provider.class", ChunkedViewProvider.class.getName());
+        FakeExchange.Response res = get("/app/pages/3/false");
+        assertEquals(HttpServletResponse.SC_OK, res.status);
+        // The flushes of the view provider did not commit the response
+        assertFalse(res.committed);
+        assertEquals("<p>0123456789</p><p>0123456789</p><p>0123456789</p>", res.body());
+    }
+
+    @Test
+    public void failedViewIsReplacedByError() throws Exception {
+        init("view.provider.class", ChunkedViewProvider.class.getName());
+        FakeExchange.Response res = get("/app/pages/3/true");
+        assertEquals(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, res.status);
+        assertEquals("Template error in Views/Pages/page", res.body());
+    }
+
+    @Test
+    public void failedViewAfterCommitAbortsResponse() throws Exception {
+        init("view.provider.class", ChunkedViewProvider.class.getName());
+        FakeExchange.Response res = new FakeExchange.Response();
+        res.bufferSize = 50;
+        try {
+            servlet.service(new FakeExchange.Request("/app/pages/10/true").proxy(),
+                    res.proxy());
+            fail();
+        } catch (ServletException ex) {
+            assertTrue(res.committed);
+            assertEquals(HttpServletResponse.SC_OK, res.status);
+            assertFalse(res.body().contains("Template error"));
+        }
+    }
+
+    @Test
+    public void actionNeedingItsRequestIsNotRefreshedInBackground() throws Exception {
+        init();
+        Feed.runs.set(0);
+        assertEquals("run 1", get("/app/Feed/latest").body());
+        Thread.sleep(1100);
+        // Stale, the refresh fails as the detached request has no body
+        assertEquals("run 1", get("/app/Feed/latest").body());
+        for (int i = 0; i < 100 && servlet.getRefreshFailureCount() == 0; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(1, servlet.getRefreshFailureCount());
+        // The action now runs on the request instead of serving a stale response
+        assertEquals("run 2", get("/app/Feed/latest").body());
+        assertEquals(1, servlet.getStaleServeCount());
+        assertEquals(0, servlet.getRefreshCount());
+    }
+
+    private static Set<ObjectName> mbeans() throws Exception {
+        return ManagementFactory.getPlatformMBeanServer().queryNames(
+                new ObjectName("org.javamvc:*"), null);
+    }
+
+    @Test
+    public void metricsAreOffByDefault() throws Exception {
+        init("metrics.path", "/metrics");
+        assertNull(servlet.getMetrics());
+        assertEquals(HttpServletResponse.SC_NOT_FOUND, get("/app/metrics").status);
+        assertTrue(mbeans().isEmpty());
+    }
+
+    @Test
+    public void metricsEndpointReportsRequests() throws Exception {
+        init("metrics.enabled", "true", "metrics.path", "/metrics");
+        Feed.runs.set(0);
+        get("/app/Shop/hello");
+        get("/app/Shop/nothing");
+        get("/app/Feed/latest");
+        get("/app/Feed/latest");
+        FakeExchange.Response res = get("/app/metrics");
+        assertEquals(HttpServletResponse.SC_OK, res.status);
+        assertTrue(res.contentType.startsWith("text/plain; version=0.0.4"));
+        String body = res.body();
+        assertTrue(body, body.contains("# TYPE javamvc_action_duration_seconds summary"));
+        assertTrue(body, body.contains("action=\"hello\""));
+        assertTrue(body, body.contains("javamvc_unmatched_requests_total 1\n"));
+        assertTrue(body, body.contains("javamvc_cache_requests_total{result=\"hit\"} 1\n"));
+        assertTrue(body, body.contains("javamvc_cache_requests_total{result=\"miss\"} 1\n"));
+        // Registered as MBeans only on request
+        assertTrue(mbeans().isEmpty());
+    }
+
+    @Test
+    public void metricsAreRegisteredWithJmxOnRequest() throws Exception {
+        init("metrics.enabled", "true", "metrics.jmx", "true");
+        assertFalse(mbeans().isEmpty());
+        servlet.destroy();
+        servlet = null;
+        assertTrue(mbeans().isEmpty());
+    }
+
+    @Test
+    public void singletonControllerServesAllRequests() throws Exception {
+        init();
+        Counter.instances.clear();
+        assertEquals("n=1", get(new FakeExchange.Request("/app/Counter/count").param("n", "1")).body());
+        assertEquals("n=2", get(new FakeExchange.Request("/app/Counter/count").param("n", "2")).body());
+        assertEquals(1, Counter.instances.size());
+        assertNull(RequestContext.current());
+    }
+
+    @Test
+    public void pooledControllerIsReused() throws Exception {
+        init();
+        Pooled.instances.clear();
+        for (int i = 0; i < 3; i++) {
+            assertEquals("n=" + i,
+                    get(new FakeExchange.Request("/app/Pooled/who").param("n", "" + i)).body());
+        }
+        assertEquals(1, Pooled.instances.size());
+    }
+
+    @Test
+    public void asyncActionOfReusedControllerSeesItsRequest() throws Exception {
+        init();
+        Pooled.instances.clear();
+        FakeExchange.Request req = new FakeExchange.Request("/app/Pooled/later").param("n", "7");
+        req.asyncSupported = true;
+        FakeExchange.Response res = get(req);
+        assertTrue(req.async.awaitCompletion());
+        assertTrue(res.body(), res.body().startsWith("n=7 on javamvc-async-"));
+        // The context does not leak into the next request on the worker
+        req = new FakeExchange.Request("/app/Pooled/later").param("n", "8");
+        req.asyncSupported = true;
+        res = get(req);
+        assertTrue(req.async.awaitCompletion());
+        assertTrue(res.body(), res.body().startsWith("n=8 on "));
+    }
+
+    @Test
+    public void reusedControllerCannotReadRequestField() throws Exception {
+        init();
+        FakeExchange.Response res = get(new FakeExchange.Request("/app/Counter/field").param("n", "1"));
+        assertEquals(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, res.status);
+        assertFalse(res.body().contains("n=1"));
+    }
+
+    @Test
+    public void eachServletOwnsItsMemoryCache() throws Exception {
+        File dirA = tmp.newFolder();
+        File dirB = tmp.newFolder();
+        init("memcache.snapshot.dir", dirA.getPath(), "memcache.snapshot.interval", "0");
+        ControllerServlet first = servlet;
+        init("memcache.snapshot.dir", dirB.getPath(), "memcache.snapshot.interval", "0");
+        Feed.runs.set(0);
+        assertEquals("run 1", get("/app/Feed/latest").body());
+        // Undeploying the first servlet leaves the cache of the second alone
+        first.destroy();
+        assertTrue(new File(dirA, "CURRENT").exists());
+        assertFalse(new File(dirB, "CURRENT").exists());
+        assertEquals("run 1", get("/app/Feed/latest").body());
+        servlet.destroy();
+        servlet = null;
+        assertTrue(new File(dirB, "CURRENT").exists());
+    }
+
+    private String headlines(String page) throws Exception {
+        return get(new FakeExchange.Request("/app/Feed/headlines").param("page", page)).body();
+    }
+
+    @Test
+    public void taggedResponsesAreInvalidatedTogether() throws Exception {
+        init();
+        Feed.headlineRuns.set(0);
+        assertEquals("page 1 run 1", headlines("1"));
+        assertEquals("page 2 run 2", headlines("2"));
+        assertEquals("page 1 run 1", headlines("1"));
+        assertEquals("page 2 run 2", headlines("2"));
+        assertEquals("published", get("/app/Feed/publish").body());
+        assertEquals("page 1 run 3", headlines("1"));
+        assertEquals("page 2 run 4", headlines("2"));
+        assertEquals("page 1 run 3", headlines("1"));
+    }
+
+    @Test
+    public void freshCachedResponseIsServedWithoutRunningTheAction() throws Exception {
+        init();
+        Feed.headlineRuns.set(0);
+        FakeExchange.Response first = get(new FakeExchange.Request("/app/Feed/headlines")
+                .param("page", "3"));
+        FakeExchange.Response cached = get(new FakeExchange.Request("/app/Feed/headlines")
+                .param("page", "3"));
+        assertEquals(1, Feed.headlineRuns.get());
+        assertEquals(HttpServletResponse.SC_OK, cached.status);
+        assertEquals("page 3 run 1", cached.body());
+        assertEquals(first.contentType, cached.contentType);
+        assertEquals("3", cached.headers.get("X-Page"));
+        // Other parameter values are cached separately
+        assertEquals("page 4 run 2", headlines("4"));
+        assertEquals(0, servlet.getStaleServeCount());
+    }
+
+    /**
+     * Creates an authenticated context with given roles, which answers the
+     * role bitset only if asked to.
+     */
+    private static AuthContext user(final boolean bits, String... roles) {
+        final List<String> granted = Arrays.asList(roles);
+        return new AuthContext() {
+            @Override
+            public String getLoginName() {
+                return "ann";
+            }
+
+            @Override
+            public List<String> getRoles() {
+                return granted;
+            }
+
+            @Override
+            public boolean hasRole(String role) {
+                return granted.contains(role);
+            }
+
+            @Override
+            public long[] getRoleBits(RoleDictionary roles) {
+                return bits ? roles.encode(granted) : null;
+            }
+
+            @Override
+            public boolean isAuthenticated() {
+                return true;
+            }
+        };
+    }
+
+    private int status(String uri, AuthContext auth) throws Exception {
+        FakeExchange.Request req = new FakeExchange.Request(uri);
+        if (auth != null) {
+            req.proxy().getSession().setAttribute(SessionAuthContextResolver.AUTH_CONTEXT, auth);
+        }
+        return get(req).status;
+    }
+
+    @Test
+    public void actionNeedsAnyOfItsRoles() throws Exception {
+        init();
+        for (boolean bits : new boolean[]{true, false}) {
+            assertEquals(HttpServletResponse.SC_OK, status("/app/Admin/edit", user(bits, "editor")));
+            assertEquals(HttpServletResponse.SC_OK,
+                    status("/app/Admin/edit", user(bits, "guest", "admin", "editor")));
+            // Roles which no action requires do not authorize
+            assertEquals(HttpServletResponse.SC_FORBIDDEN,
+                    status("/app/Admin/edit", user(bits, "guest")));
+            assertEquals(HttpServletResponse.SC_FORBIDDEN, status("/app/Admin/edit", user(bits)));
+            // Any authenticated user may call an action without roles
+            assertEquals(HttpServletResponse.SC_OK, status("/app/Admin/home", user(bits)));
+        }
+        assertEquals(HttpServletResponse.SC_FORBIDDEN, status("/app/Admin/home", null));
+    }
+
+    @Test
+    public void actionEventsAreRecordedAlsoForFailures() throws Exception {
+        init();
+        Path file = tmp.newFile("actions.jfr").toPath();
+        try (Recording recording = new Recording()) {
+            recording.enable("org.javamvc.Action").withThreshold(Duration.ZERO);
+            recording.enable("org.javamvc.Dispatch").withThreshold(Duration.ZERO);
+            recording.start();
+            get("/app/Shop/hello.a");
+            get("/app/fail/1");
+            recording.stop();
+            recording.dump(file);
+        }
+        List<String> actions = new ArrayList<String>();
+        List<String> dispatches = new ArrayList<String>();
+        for (RecordedEvent e : RecordingFile.readAllEvents(file)) {
+            String name = e.getEventType().getName();
+            if ("org.javamvc.Action".equals(name)) {
+                actions.add(e.getString("controller") + "." + e.getString("action")
+                        + " failed=" + e.getBoolean("failed"));
+            } else if ("org.javamvc.Dispatch".equals(name)) {
+                dispatches.add(e.getString("uri") + " " + e.getInt("status"));
+            }
+        }
+        assertEquals(Arrays.asList("Shop.hello failed=false", "Shop.fail failed=true"), actions);
+        assertEquals(Arrays.asList("/app/Shop/hello.a 200", "/app/fail/1 500"), dispatches);
+    }
+
+    /**
+     * Class loader counting the loads of classes in the sample package.
+     */
+    private static final class CountingLoader extends ClassLoader {
+
+        final Map<String, AtomicInteger> loads = new ConcurrentHashMap<String, AtomicInteger>();
+
+        CountingLoader() {
+            super(ControllerServletTest.class.getClassLoader());
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (name.startsWith("org.javamvc.core.sample.")) {
+                AtomicInteger n = loads.get(name);
+                if (n == null) {
+                    loads.putIfAbsent(name, new AtomicInteger());
+                    n = loads.get(name);
+                }
+                n.incrementAndGet();
+            }
+            return super.loadClass(name, resolve);
+        }
+
+        int loads(String simpleName) {
+            AtomicInteger n = loads.get("org.javamvc.core.sample." + simpleName);
+            return n != null ? n.get() : 0;
+        }
+    }
+
+    /**
+     * Serves a request with given class loader as the context class loader,
+     * which the servlet uses for loading controllers.
+     */
+    private int statusWith(ClassLoader loader, String uri) throws Exception {
+        Thread thread = Thread.currentThread();
+        ClassLoader previous = thread.getContextClassLoader();
+        thread.setContextClassLoader(loader);
+        try {
+            return get(uri).status;
+        } finally {
+            thread.setContextClassLoader(previous);
+        }
+    }
+
+    @Test
+    public void routesAreResolvedAtStartup() throws Exception {
+        init();
+        CountingLoader loader = new CountingLoader();
+        assertEquals(HttpServletResponse.SC_OK, statusWith(loader, "/app/Shop/hello.a"));
+        assertEquals(HttpServletResponse.SC_OK, statusWith(loader, "/app/items/7"));
+        assertEquals(HttpServletResponse.SC_OK, statusWith(loader, "/app/Counter/count"));
+        // Unknown names are not looked up either, since the table was found
+        assertEquals(HttpServletResponse.SC_NOT_FOUND, statusWith(loader, "/app/Foo/bar"));
+        assertEquals(HttpServletResponse.SC_NOT_FOUND, statusWith(loader, "/app/Shop/nothing"));
+        assertTrue(loader.loads.toString(), loader.loads.isEmpty());
+    }
+
+    @Test
+    public void unknownNamesAreLookedUpOnce() throws Exception {
+        init("controller.lazy.resolution", "true");
+        CountingLoader loader = new CountingLoader();
+        assertEquals(HttpServletResponse.SC_NOT_FOUND, statusWith(loader, "/app/Foo/bar"));
+        assertEquals(1, loader.loads("Foo"));
+        assertEquals(HttpServletResponse.SC_NOT_FOUND, statusWith(loader, "/app/Foo/bar"));
+        assertEquals(HttpServletResponse.SC_NOT_FOUND, statusWith(loader, "/app/Foo/bar"));
+        assertEquals(1, loader.loads("Foo"));
+    }
+
+    @Test
+    public void negativeCacheForgetsOldestNames() throws Exception {
+        init("controller.lazy.resolution", "true",
+                "controller.lazy.negative.cache.size", "2");
+        CountingLoader loader = new CountingLoader();
+        statusWith(loader, "/app/Foo/a");
+        statusWith(loader, "/app/Bar/a");
+        statusWith(loader, "/app/Baz/a");
+        // Foo was dropped to make room for Baz, the others are remembered
+        statusWith(loader, "/app/Bar/a");
+        statusWith(loader, "/app/Baz/a");
+        assertEquals(1, loader.loads("Bar"));
+        assertEquals(1, loader.loads("Baz"));
+        assertEquals(HttpServletResponse.SC_NOT_FOUND, statusWith(loader, "/app/Foo/a"));
+        assertEquals(2, loader.loads("Foo"));
+        // Remembering Foo again dropped Bar only
+        statusWith(loader, "/app/Baz/a");
+        statusWith(loader, "/app/Bar/a");
+        assertEquals(1, loader.loads("Baz"));
+        assertEquals(2, loader.loads("Bar"));
+    }
+}
@@ -0,0 +1,119 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Tests of how a {@link Controller} reaches the objects of its request.
+ *
+ * @author Balwinder Sodhi
+ */
+public class ControllerTest {
+
+    private static final class Plain extends Controller {
+    }
+
+    private final HttpServletRequest request = new FakeExchange.Request("/app/a").proxy();
+    private final HttpServletResponse response = new FakeExchange.Response().proxy();
+    private final ServletContext context = FakeExchange.config().getServletContext();
+    private final LocalMemCache cache = new LocalMemCache();
+
+    private RequestContext context(HttpServletRequest req, HttpServletResponse res) {
+        return new RequestContext(req, res, context, cache, null);
+    }
+
+    @Test
+    public void gettersFallBackToCurrentContext() {
+        Plain c = new Plain();
+        assertNull(c.getRequest());
+        assertNull(c.getMemCache());
+        RequestContext previous = RequestContext.enter(context(request, response));
+        try {
+            assertSame(request, c.getRequest());
+            assertSame(response, c.getResponse());
+            assertSame(context, c.getContext());
+            assertSame(cache, c.getMemCache());
+        } finally {
+            RequestContext.exit(previous);
+        }
+        assertNull(RequestContext.current());
+        assertNull(c.getRequest());
+    }
+
+    @Test
+    public void initializedControllerKeepsItsOwnRequest() {
+        Plain c = new Plain();
+        c.init(cache, context, request, response, null);
+        HttpServletRequest other = new FakeExchange.Request("/app/b").proxy();
+        RequestContext previous = RequestContext.enter(context(other, response));
+        try {
+            assertSame(request, c.getRequest());
+        } finally {
+            RequestContext.exit(previous);
+        }
+    }
+
+    @Test
+    public void nestedContextIsRestoredOnExit() {
+        RequestContext outer = context(request, response);
+        RequestContext previous = RequestContext.enter(outer);
+        RequestContext inner = RequestContext.enter(context(null, null));
+        assertSame(outer, inner);
+        RequestContext.exit(inner);
+        assertSame(outer, RequestContext.current());
+        RequestContext.exit(previous);
+        assertNull(RequestContext.current());
+    }
+
+    @Test
+    public void reusedControllerFieldsFailFast() throws Exception {
+        Plain c = new Plain();
+        c.initReused(cache, context, null);
+        assertSame(cache, c.getMemCache());
+        assertSame(context, c.getContext());
+        try {
+            c.request.getParameter("n");
+            fail();
+        } catch (IllegalStateException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("getRequest()"));
+        }
+        try {
+            c.response.getWriter();
+            fail();
+        } catch (IllegalStateException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("getResponse()"));
+        }
+        // The getters ignore the placeholders
+        assertNull(c.getRequest());
+        RequestContext previous = RequestContext.enter(context(request, response));
+        try {
+            assertSame(request, c.getRequest());
+            assertSame(response, c.getResponse());
+        } finally {
+            RequestContext.exit(previous);
+        }
+        assertEquals(c.request, c.request);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import java.util.Collections;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Tests of the detached requests used for refreshing cached responses.
+ *
+ * @author Balwinder Sodhi
+ */
+public class DetachedExchangeTest {
+
+    private static HttpServletRequest detach(FakeExchange.Request original) {
+        return DetachedExchange.request(original.proxy());
+    }
+
+    @Test
+    public void copiesTheRequest() {
+        FakeExchange.Request original = new FakeExchange.Request("/app/Shop/hello")
+                .param("q", "a", "b");
+        original.headers.put("If-Modified-Since", "Sun, 06 Nov 1994 08:49:37 GMT");
+        original.headers.put("X-Count", "7");
+        original.attributes.put("user", "joe");
+        HttpServletRequest r = detach(original);
+        assertEquals("GET", r.getMethod());
+        assertEquals("/app/Shop/hello", r.getRequestURI());
+        assertEquals("http://localhost/app/Shop/hello", r.getRequestURL().toString());
+        assertEquals("a", r.getParameter("q"));
+        assertEquals(2, r.getParameterValues("q").length);
+        assertEquals("joe", r.getAttribute("user"));
+        assertEquals("7", r.getHeader("x-count"));
+        assertEquals(7, r.getIntHeader("X-Count"));
+        assertEquals(784111777000L, r.getDateHeader("If-Modified-Since"));
+        assertEquals(-1L, r.getDateHeader("Date"));
+        assertEquals(-1, r.getIntHeader("X-None"));
+        assertFalse(r.isAsyncSupported());
+    }
+
+    @Test
+    public void usesTheExistingSession() {
+        FakeExchange.Request original = new FakeExchange.Request("/app/Shop/hello");
+        HttpSession session = original.proxy().getSession();
+        session.setAttribute("cart", "3 items");
+        HttpServletRequest r = detach(original);
+        assertEquals("3 items", r.getSession().getAttribute("cart"));
+        assertEquals("3 items", r.getSession(true).getAttribute("cart"));
+        assertEquals("3 items", r.getSession(false).getAttribute("cart"));
+    }
+
+    @Test
+    public void cannotCreateSession() {
+        HttpServletRequest r = detach(new FakeExchange.Request("/app/Shop/hello"));
+        assertNull(r.getSession(false));
+        try {
+            r.getSession();
+            fail("Created a session");
+        } catch (DetachedExchange.UnsupportedException ex) {
+            assertTrue(ex.getMessage().contains("getSession"));
+        }
+        try {
+            r.getSession(true);
+            fail("Created a session");
+        } catch (DetachedExchange.UnsupportedException expected) {
+        }
+    }
+
+    @Test
+    public void failsForWhatNeedsTheOriginalRequest() throws Exception {
+        HttpServletRequest r = detach(new FakeExchange.Request("/app/Shop/hello"));
+        for (String method : new String[]{"getInputStream", "getReader", "logout",
+            "getParts", "startAsync"}) {
+            try {
+                HttpServletRequest.class.getMethod(method).invoke(r);
+                fail(method + " did not fail");
+            } catch (java.lang.reflect.InvocationTargetException ex) {
+                assertTrue(method, DetachedExchange.isUnsupported(ex.getCause()));
+            }
+        }
+        try {
+            r.getRequestDispatcher("/other.jsp");
+            fail("Got a dispatcher");
+        } catch (IllegalStateException ex) {
+            assertTrue(DetachedExchange.isUnsupported(
+                    new RuntimeException(ex)));
+        }
+        try {
+            r.isUserInRole("admin");
+            fail("Checked a role");
+        } catch (DetachedExchange.UnsupportedException expected) {
+        }
+    }
+
+    @Test
+    public void attributesAreLocal() {
+        FakeExchange.Request original = new FakeExchange.Request("/app/Shop/hello");
+        HttpServletRequest r = detach(original);
+        r.setAttribute("x", 1);
+        assertEquals(1, r.getAttribute("x"));
+        assertEquals(Collections.singletonList("x"), Collections.list(r.getAttributeNames()));
+        assertNull(original.attributes.get("x"));
+        r.removeAttribute("x");
+        assertNull(r.getAttribute("x"));
+    }
+}
@@ -0,0 +1,463 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+/**
+ * In-memory stand-ins of the servlet container objects, for the tests. The
+ * response buffers its output and commits it the way a container does, so
+ * that tests can tell what reached the client.
+ *
+ * @author Balwinder Sodhi
+ */
+final class FakeExchange {
+
+    private FakeExchange() {
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(FakeExchange.class.getClassLoader(),
+                new Class<?>[]{type}, handler);
+    }
+
+    private static Object defaultValue(Object proxy, Method method, Object[] args) {
+        String name = method.getName();
+        if ("hashCode".equals(name)) {
+            return System.identityHashCode(proxy);
+        } else if ("equals".equals(name)) {
+            return proxy == args[0];
+        } else if ("toString".equals(name)) {
+            return "Fake " + method.getDeclaringClass().getSimpleName();
+        }
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class) {
+            return Boolean.FALSE;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+
+    /**
+     * Creates a servlet config with given init parameters, of a servlet in a
+     * context with path <code>/app</code>.
+     *
+     * @param params Names and values, alternately.
+     * @return
+     */
+    static ServletConfig config(String... params) {
+        return config(null, params);
+    }
+
+    /**
+     * Creates a servlet config with given init parameters, of a servlet in a
+     * context with path <code>/app</code> whose resources are the files under
+     * given folder.
+     *
+     * @param webRoot Web root folder of the context, or null if the context
+     * has no resources.
+     * @param params Names and values, alternately.
+     * @return
+     */
+    static ServletConfig config(final File webRoot, String... params) {
+        final Map<String, String> init = new LinkedHashMap<String, String>();
+        for (int i = 0; i < params.length; i += 2) {
+            init.put(params[i], params[i + 1]);
+        }
+        final Map<String, Object> attributes = new ConcurrentHashMap<String, Object>();
+        final ServletContext context = proxy(ServletContext.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws IOException {
+                String name = method.getName();
+                if ("getContextPath".equals(name)) {
+                    return "/app";
+                } else if ("getAttribute".equals(name)) {
+                    return attributes.get((String) args[0]);
+                } else if ("setAttribute".equals(name)) {
+                    attributes.put((String) args[0], args[1]);
+                    return null;
+                } else if ("getInitParameter".equals(name)) {
+                    return init.get((String) args[0]);
+                } else if (webRoot != null && "getRealPath".equals(name)) {
+                    return new File(webRoot, (String) args[0]).getPath();
+                } else if (webRoot != null && "getResource".equals(name)) {
+                    File file = new File(webRoot, (String) args[0]);
+                    return file.exists() ? file.toURI().toURL() : null;
+                } else if (webRoot != null && "getResourcePaths".equals(name)) {
+                    String dir = (String) args[0];
+                    File[] files = new File(webRoot, dir).listFiles();
+                    if (files == null) {
+                        return null;
+                    }
+                    Set<String> paths = new HashSet<String>();
+                    for (File file : files) {
+                        paths.add(dir + file.getName() + (file.isDirectory() ? "/" : ""));
+                    }
+                    return paths;
+                }
+                return defaultValue(proxy, method, args);
+            }
+        });
+        return proxy(ServletConfig.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if ("getInitParameter".equals(name)) {
+                    return init.get((String) args[0]);
+                } else if ("getInitParameterNames".equals(name)) {
+                    return Collections.enumeration(init.keySet());
+                } else if ("getServletContext".equals(name)) {
+                    return context;
+                } else if ("getServletName".equals(name)) {
+                    return "test";
+                }
+                return defaultValue(proxy, method, args);
+            }
+        });
+    }
+
+    /**
+     * A GET request in context <code>/app</code>.
+     */
+    static final class Request implements InvocationHandler {
+
+        final String uri;
+        final Map<String, String[]> params = new LinkedHashMap<String, String[]>();
+        final Map<String, String> headers = new LinkedHashMap<String, String>();
+        final Map<String, Object> attributes = new ConcurrentHashMap<String, Object>();
+        boolean asyncSupported;
+        Async async;
+        Map<String, Object> session;
+        private HttpServletRequest proxy;
+
+        Request(String uri) {
+            this.uri = uri;
+        }
+
+        Request param(String name, String... values) {
+            params.put(name, values);
+            return this;
+        }
+
+        HttpServletRequest proxy() {
+            if (proxy == null) {
+                proxy = FakeExchange.proxy(HttpServletRequest.class, this);
+            }
+            return proxy;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if ("getRequestURI".equals(name)) {
+                return uri;
+            } else if ("getRequestURL".equals(name)) {
+                return new StringBuffer("http://localhost").append(uri);
+            } else if ("getContextPath".equals(name)) {
+                return "/app";
+            } else if ("getMethod".equals(name)) {
+                return "GET";
+            } else if ("getParameter".equals(name)) {
+                String[] v = params.get((String) args[0]);
+                return v != null ? v[0] : null;
+            } else if ("getParameterValues".equals(name)) {
+                return params.get((String) args[0]);
+            } else if ("getParameterMap".equals(name)) {
+                return Collections.unmodifiableMap(params);
+            } else if ("getParameterNames".equals(name)) {
+                return Collections.enumeration(params.keySet());
+            } else if ("getHeader".equals(name)) {
+                return headers.get((String) args[0]);
+            } else if ("getHeaderNames".equals(name)) {
+                return Collections.enumeration(headers.keySet());
+            } else if ("getHeaders".equals(name)) {
+                String v = headers.get((String) args[0]);
+                return Collections.enumeration(v != null ? Collections.singletonList(v)
+                        : Collections.<String>emptyList());
+            } else if ("getAttribute".equals(name)) {
+                return attributes.get((String) args[0]);
+            } else if ("getAttributeNames".equals(name)) {
+                return Collections.enumeration(new ArrayList<String>(attributes.keySet()));
+            } else if ("setAttribute".equals(name)) {
+                attributes.put((String) args[0], args[1]);
+                return null;
+            } else if ("getSession".equals(name)) {
+                boolean create = args == null || (Boolean) args[0];
+                if (session == null && create) {
+                    session = new ConcurrentHashMap<String, Object>();
+                }
+                return session != null ? session(session) : null;
+            } else if ("isAsyncSupported".equals(name)) {
+                return asyncSupported;
+            } else if ("startAsync".equals(name)) {
+                async = new Async((HttpServletRequest) proxy,
+                        args != null ? (HttpServletResponse) args[1] : null);
+                return async.proxy;
+            } else if ("isAsyncStarted".equals(name)) {
+                return async != null;
+            }
+            return defaultValue(proxy, method, args);
+        }
+    }
+
+    private static HttpSession session(final Map<String, Object> values) {
+        return proxy(HttpSession.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if ("getAttribute".equals(name)) {
+                    return values.get((String) args[0]);
+                } else if ("setAttribute".equals(name)) {
+                    values.put((String) args[0], args[1]);
+                    return null;
+                } else if ("removeAttribute".equals(name)) {
+                    values.remove((String) args[0]);
+                    return null;
+                } else if ("getId".equals(name)) {
+                    return "session-" + System.identityHashCode(values);
+                }
+                return defaultValue(proxy, method, args);
+            }
+        });
+    }
+
+    /**
+     * The async context of a request. The timeout is fired by the test.
+     */
+    static final class Async implements InvocationHandler {
+
+        final AsyncContext proxy;
+        final HttpServletRequest request;
+        final HttpServletResponse response;
+        final List<AsyncListener> listeners = new ArrayList<AsyncListener>();
+        final CountDownLatch completed = new CountDownLatch(1);
+
+        Async(HttpServletRequest request, HttpServletResponse response) {
+            this.request = request;
+            this.response = response;
+            this.proxy = FakeExchange.proxy(AsyncContext.class, this);
+        }
+
+        /**
+         * Fires the timeout on the calling thread, as a container would.
+         */
+        void timeout() throws IOException {
+            for (AsyncListener l : new ArrayList<AsyncListener>(listeners)) {
+                l.onTimeout(new AsyncEvent(proxy, request, response));
+            }
+        }
+
+        boolean awaitCompletion() throws InterruptedException {
+            return completed.await(10, TimeUnit.SECONDS);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws IOException {
+            String name = method.getName();
+            if ("addListener".equals(name)) {
+                listeners.add((AsyncListener) args[0]);
+                return null;
+            } else if ("complete".equals(name)) {
+                if (completed.getCount() > 0) {
+                    completed.countDown();
+                    for (AsyncListener l : new ArrayList<AsyncListener>(listeners)) {
+                        l.onComplete(new AsyncEvent(this.proxy, request, response));
+                    }
+                }
+                return null;
+            } else if ("getRequest".equals(name)) {
+                return (ServletRequest) request;
+            } else if ("getResponse".equals(name)) {
+                return (ServletResponse) response;
+            }
+            return defaultValue(proxy, method, args);
+        }
+    }
+
+    /**
+     * A response whose output, written through its writer or its stream, is
+     * held in a buffer of {@link #bufferSize} characters, and sent to the
+     * client, i.e., appended to {@link #sent}, when the buffer fills up or is
+     * flushed. The response
+     * is committed once anything has been sent.
+     */
+    static final class Response implements InvocationHandler {
+
+        final StringBuilder sent = new StringBuilder();
+        final StringBuilder buffer = new StringBuilder();
+        final Map<String, String> headers = new LinkedHashMap<String, String>();
+        int bufferSize = 8192;
+        int status = HttpServletResponse.SC_OK;
+        String contentType;
+        boolean committed;
+        private PrintWriter writer;
+        private HttpServletResponse proxy;
+
+        HttpServletResponse proxy() {
+            if (proxy == null) {
+                proxy = FakeExchange.proxy(HttpServletResponse.class, this);
+            }
+            return proxy;
+        }
+
+        /**
+         * Returns all the output, as the client would receive it once the
+         * response is complete.
+         */
+        synchronized String body() {
+            return sent.toString() + buffer;
+        }
+
+        private synchronized void flush() {
+            sent.append(buffer);
+            buffer.setLength(0);
+            committed = true;
+        }
+
+        @Override
+        public synchronized Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if ("getWriter".equals(name)) {
+                if (writer == null) {
+                    writer = new PrintWriter(new Writer() {
+                        @Override
+                        public void write(char[] buf, int off, int len) {
+                            synchronized (Response.this) {
+                                buffer.append(buf, off, len);
+                                if (buffer.length() > bufferSize) {
+                                    Response.this.flush();
+                                }
+                            }
+                        }
+
+                        @Override
+                        public void flush() {
+                            Response.this.flush();
+                        }
+
+                        @Override
+                        public void close() {
+                            Response.this.flush();
+                        }
+                    });
+                }
+                return writer;
+            } else if ("getOutputStream".equals(name)) {
+                return new ServletOutputStream() {
+                    @Override
+                    public void write(int b) {
+                        write(new byte[]{(byte) b}, 0, 1);
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) {
+                        synchronized (Response.this) {
+                            buffer.append(new String(b, off, len, StandardCharsets.UTF_8));
+                            if (buffer.length() > bufferSize) {
+                                Response.this.flush();
+                            }
+                        }
+                    }
+                };
+            } else if ("flushBuffer".equals(name)) {
+                if (writer != null) {
+                    writer.flush();
+                }
+                flush();
+                return null;
+            } else if ("isCommitted".equals(name)) {
+                return committed;
+            } else if ("getBufferSize".equals(name)) {
+                return bufferSize;
+            } else if ("setBufferSize".equals(name)) {
+                bufferSize = (Integer) args[0];
+                return null;
+            } else if ("resetBuffer".equals(name) || "reset".equals(name)) {
+                if (committed) {
+                    throw new IllegalStateException("Response is committed");
+                }
+                buffer.setLength(0);
+                if ("reset".equals(name)) {
+                    headers.clear();
+                    status = HttpServletResponse.SC_OK;
+                    contentType = null;
+                }
+                return null;
+            } else if ("setStatus".equals(name) || "sendError".equals(name)) {
+                if (!committed) {
+                    status = (Integer) args[0];
+                }
+                return null;
+            } else if ("getStatus".equals(name)) {
+                return status;
+            } else if ("setContentType".equals(name)) {
+                if (!committed) {
+                    contentType = (String) args[0];
+                }
+                return null;
+            } else if ("getContentType".equals(name)) {
+                return contentType;
+            } else if ("getCharacterEncoding".equals(name)) {
+                return "UTF-8";
+            } else if ("setHeader".equals(name) || "addHeader".equals(name)) {
+                if (!committed) {
+                    headers.put((String) args[0], (String) args[1]);
+                }
+                return null;
+            } else if ("setDateHeader".equals(name) || "setIntHeader".equals(name)) {
+                if (!committed) {
+                    headers.put((String) args[0], String.valueOf(args[1]));
+                }
+                return null;
+            } else if ("getHeader".equals(name)) {
+                return headers.get((String) args[0]);
+            }
+            return defaultValue(proxy, method, args);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Map;
+import javax.servlet.ServletConfig;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of the production mode of {@link FreemarkerViewProvider}.
+ *
+ * @author Balwinder Sodhi
+ */
+public class FreemarkerViewProviderTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+    private File webRoot;
+    private final Map<String, Object> model = Collections.<String, Object>singletonMap("name", "World");
+
+    @Before
+    public void setUp() throws IOException {
+        webRoot = tmp.newFolder("web");
+    }
+
+    private File write(String path, String content) throws IOException {
+        File file = new File(webRoot, path);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private FreemarkerViewProvider production(String... params) {
+        String[] all = new String[params.length + 2];
+        all[0] = "template.production.mode";
+        all[1] = "true";
+        System.arraycopy(params, 0, all, 2, params.length);
+        ServletConfig config = FakeExchange.config(webRoot, all);
+        FreemarkerViewProvider provider = new FreemarkerViewProvider();
+        provider.init(config.getServletContext(), config);
+        return provider;
+    }
+
+    @Test
+    public void viewsAreCompiledAndPinnedAtStartup() throws IOException {
+        File index = write("Views/Home/index.html", "Hello ${name}!");
+        write("Views/Home/Parts/footer.html", "Bye ${name}.");
+        // Rendering with an empty model fails, so warmup skips the templates
+        FreemarkerViewProvider provider = production("template.warmup.iterations", "2");
+        // The template is deleted and the template cache is replaced by
+        // another application, so only the pinned copy can be rendered
+        assertEquals(true, index.delete());
+        webRoot = tmp.newFolder("other");
+        production();
+        assertEquals("Hello World!", provider.renderView("Views/Home/index", model));
+        assertEquals("Bye World.", provider.renderView("Views/Home/Parts/footer", model));
+    }
+
+    @Test
+    public void brokenTemplateFailsInitialization() throws IOException {
+        write("Views/Home/index.html", "Hello ${name");
+        try {
+            production();
+            fail("Initialization succeeded with a broken template.");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void templatesAreNotCheckedForModifications() throws Exception {
+        File other = write("Other/page.html", "First ${name}");
+        FreemarkerViewProvider provider = production();
+        assertEquals("First World", provider.renderView("Other/page", model));
+        write("Other/page.html", "Second ${name}");
+        assertEquals(true, other.setLastModified(other.lastModified() + 60000));
+        // Outlast the default update delay of Freemarker, of 5 seconds
+        Thread.sleep(5500);
+        assertEquals("First World", provider.renderView("Other/page", model));
+    }
+
+    @Test
+    public void templateErrorsAreThrown() throws IOException {
+        write("Views/Home/index.html", "Hello ${missing}!");
+        FreemarkerViewProvider provider = production();
+        StringWriter out = new StringWriter();
+        try {
+            provider.renderView("Views/Home/index", model, out);
+            fail("Rendering succeeded with a missing value.");
+        } catch (IOException expected) {
+        }
+        // The error is not printed into the page
+        assertFalse(out.toString().contains("missing"));
+    }
+}
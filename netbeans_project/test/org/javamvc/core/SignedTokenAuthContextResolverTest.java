@@ -0,0 +1,126 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import java.util.Arrays;
+import java.util.Collections;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Tests of issuing and verifying tokens via
+ * {@link SignedTokenAuthContextResolver}.
+ *
+ * @author Balwinder Sodhi
+ */
+public class SignedTokenAuthContextResolverTest {
+
+    private static final long HOUR = 3600 * 1000L;
+
+    private static SignedTokenAuthContextResolver resolver(String secret) {
+        SignedTokenAuthContextResolver r = new SignedTokenAuthContextResolver();
+        r.init(null, FakeExchange.config("auth.token.secret", secret,
+                "auth.token.cache.ttl", "0"));
+        return r;
+    }
+
+    private static AuthContext resolve(SignedTokenAuthContextResolver r, String token) {
+        FakeExchange.Request req = new FakeExchange.Request("/app/a");
+        req.headers.put("X-Auth-Token", token);
+        return r.resolve(req.proxy());
+    }
+
+    @Test
+    public void issuedTokenIsResolved() {
+        SignedTokenAuthContextResolver r = resolver("s3cret");
+        String token = r.issue("bob", Arrays.asList("user", "editor"),
+                System.currentTimeMillis() + HOUR);
+        AuthContext ctx = resolve(r, token);
+        assertNotNull(ctx);
+        assertEquals("bob", ctx.getLoginName());
+        assertEquals(Arrays.asList("user", "editor"), ctx.getRoles());
+        assertTrue(ctx.hasRole("editor"));
+        assertTrue(ctx.isAuthenticated());
+        assertNull(resolve(r, null));
+        // A token issued by an application holding the same secret
+        String other = new SignedTokenAuthContextResolver("s3cret").issue("ann",
+                Collections.<String>emptyList(), System.currentTimeMillis() + HOUR);
+        assertEquals(Collections.<String>emptyList(), resolve(r, other).getRoles());
+    }
+
+    @Test
+    public void tamperedTokenIsRejected() {
+        SignedTokenAuthContextResolver r = resolver("s3cret");
+        String token = r.issue("bob", Arrays.asList("user"), System.currentTimeMillis() + HOUR);
+        int dot = token.indexOf('.');
+        String forged = new SignedTokenAuthContextResolver("s3cret").issue("bob",
+                Arrays.asList("admin"), System.currentTimeMillis() + HOUR);
+        // The payload of another token with the signature of this one
+        assertNull(resolve(r, forged.substring(0, forged.indexOf('.')) + token.substring(dot)));
+        char c = token.charAt(dot + 1);
+        assertNull(resolve(r, token.substring(0, dot + 1) + (c == 'A' ? 'B' : 'A')
+                + token.substring(dot + 2)));
+        assertNull(resolve(resolver("other"), token));
+        assertNull(resolve(r, "garbage"));
+        assertNull(resolve(r, "!!.!!"));
+    }
+
+    @Test
+    public void expiredTokenIsRejected() {
+        SignedTokenAuthContextResolver r = resolver("s3cret");
+        String token = r.issue("bob", Arrays.asList("user"), System.currentTimeMillis() - 1);
+        assertNull(resolve(r, token));
+    }
+
+    @Test
+    public void fieldsCannotBeInjected() {
+        SignedTokenAuthContextResolver r = resolver("s3cret");
+        long expiresAt = System.currentTimeMillis() + HOUR;
+        String[][] invalid = {
+            {"bob\n99999999999\nadmin", "user"},
+            {"bob\r", "user"},
+            {"bob", "user,admin"},
+            {"bob", "user\nadmin"},
+            {"bob", ""},
+            {null, "user"}};
+        for (String[] c : invalid) {
+            try {
+                r.issue(c[0], Arrays.asList(c[1]), expiresAt);
+                fail(c[0] + " / " + c[1]);
+            } catch (IllegalArgumentException ex) {
+                // Expected
+            }
+        }
+        // Commas are allowed in the login name, being a separate field
+        AuthContext ctx = resolve(r, r.issue("doe, john", Arrays.asList("user"), expiresAt));
+        assertEquals("doe, john", ctx.getLoginName());
+        assertEquals(Arrays.asList("user"), ctx.getRoles());
+    }
+
+    @Test
+    public void missingSecretIsRejected() {
+        try {
+            new SignedTokenAuthContextResolver().init(null, FakeExchange.config());
+            fail();
+        } catch (IllegalArgumentException ex) {
+            assertTrue(ex.getMessage().contains("auth.token.secret"));
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the time a restarted {@link LocalMemCache} takes to serve every
+ * key once, i.e., to reach its steady state: cold, with each value loaded
+ * from a backend costing some tens of microseconds per value, and warm,
+ * restored from a snapshot. Also measures writing the snapshot, including
+ * syncing its files to the disk. Run with:
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ * java -cp target/test-classes:target/classes:$(cat target/cp.txt) \
+ *     org.openjdk.jmh.Main SnapshotRestartBenchmark
+ * </pre>
+ * Results on JDK 17.0.9, 1 CPU (single shot time, lower is better):
+ * <pre>
+ * Benchmark                               (entries)  (valueSize)  Mode  Cnt    Score    Error  Units
+ * SnapshotRestartBenchmark.coldRestart        10000         1024    ss   10  192.687 ± 32.110  ms/op
+ * SnapshotRestartBenchmark.warmRestart        10000         1024    ss   10   92.170 ± 36.848  ms/op
+ * SnapshotRestartBenchmark.writeSnapshot      10000         1024    ss   10   42.701 ± 12.341  ms/op
+ * </pre>
+ *
+ * @author Balwinder Sodhi
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class SnapshotRestartBenchmark {
+
+    @Param({"10000"})
+    int entries;
+    @Param({"1024"})
+    int valueSize;
+    private File dir;
+    private LocalMemCache saved;
+    private final MemCacheProvider.Loader<Object, Object> backend
+            = new MemCacheProvider.Loader<Object, Object>() {
+        @Override
+        public Object load(Object key) {
+            Blackhole.consumeCPU(10000);
+            return new byte[valueSize];
+        }
+    };
+
+    private LocalMemCache newCache(boolean snapshot) {
+        LocalMemCache cache = new LocalMemCache();
+        cache.init(null, snapshot
+                ? FakeExchange.config("memcache.snapshot.dir", dir.getPath(),
+                        "memcache.snapshot.interval", "0")
+                : FakeExchange.config());
+        return cache;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("snapshot-bench").toFile();
+        saved = newCache(true);
+        for (int i = 0; i < entries; i++) {
+            saved.getOrCompute("key" + i, backend);
+        }
+        saved.destroy();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    private int serveAll(LocalMemCache cache) throws Exception {
+        int bytes = 0;
+        for (int i = 0; i < entries; i++) {
+            bytes += ((byte[]) cache.getOrCompute("key" + i, backend)).length;
+        }
+        return bytes;
+    }
+
+    @Benchmark
+    public int coldRestart() throws Exception {
+        return serveAll(newCache(false));
+    }
+
+    @Benchmark
+    public int warmRestart() throws Exception {
+        return serveAll(newCache(true));
+    }
+
+    @Benchmark
+    public void writeSnapshot() {
+        saved.destroy();
+    }
+}
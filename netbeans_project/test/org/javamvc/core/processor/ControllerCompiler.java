@@ -0,0 +1,108 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core.processor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import javax.servlet.http.HttpServlet;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import org.javamvc.core.Controller;
+
+/**
+ * Compiles controller sources with {@link RouteRegistryProcessor}, for the
+ * tests.
+ *
+ * @author Balwinder Sodhi
+ */
+public final class ControllerCompiler {
+
+    private final File work;
+    private final DiagnosticCollector<JavaFileObject> diagnostics
+            = new DiagnosticCollector<JavaFileObject>();
+    private int runs;
+
+    /**
+     * @param work Directory for the source files.
+     */
+    public ControllerCompiler(File work) {
+        this.work = work;
+    }
+
+    /**
+     * Compiles given sources of top level classes of package
+     * <code>app</code> into given directory, which is also on the classpath.
+     *
+     * @param out
+     * @param sources
+     * @return True if compilation succeeded.
+     * @throws IOException
+     */
+    public boolean compile(File out, String... sources) throws IOException {
+        File src = new File(work, "src" + (++runs));
+        File gen = new File(work, "gen" + runs);
+        if (!src.mkdirs() || !gen.mkdirs()) {
+            throw new IOException("Could not create " + src);
+        }
+        List<File> files = new ArrayList<File>();
+        for (String s : sources) {
+            int i = s.indexOf("class ") + 6;
+            File f = new File(src, s.substring(i, s.indexOf(' ', i)) + ".java");
+            Files.write(f.toPath(), s.getBytes(StandardCharsets.UTF_8));
+            files.add(f);
+        }
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        StandardJavaFileManager fm = javac.getStandardFileManager(null, null, null);
+        try {
+            String cp = location(Controller.class) + File.pathSeparator
+                    + location(HttpServlet.class) + File.pathSeparator + out;
+            JavaCompiler.CompilationTask task = javac.getTask(null, fm, diagnostics,
+                    Arrays.asList("-d", out.getPath(), "-cp", cp, "-s", gen.getPath()),
+                    null, fm.getJavaFileObjectsFromFiles(files));
+            task.setProcessors(Collections.singletonList(new RouteRegistryProcessor()));
+            return task.call();
+        } finally {
+            fm.close();
+        }
+    }
+
+    /**
+     * Returns the diagnostics of all the compilations so far.
+     *
+     * @return
+     */
+    public DiagnosticCollector<JavaFileObject> diagnostics() {
+        return diagnostics;
+    }
+
+    private static String location(Class<?> type) {
+        try {
+            return new File(type.getProtectionDomain().getCodeSource()
+                    .getLocation().toURI()).getPath();
+        } catch (Exception ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
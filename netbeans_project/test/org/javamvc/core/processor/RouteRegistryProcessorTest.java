@@ -0,0 +1,158 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core.processor;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import org.javamvc.core.RouteRegistry;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Compiles controllers with {@link RouteRegistryProcessor} and checks the
+ * generated registries.
+ *
+ * @author Balwinder Sodhi
+ */
+public class RouteRegistryProcessorTest {
+
+    public static final String ORDERS = "package app;\n"
+            + "import org.javamvc.core.annotations.*;\n"
+            + "public class Orders extends org.javamvc.core.Controller {\n"
+            + "    public enum Kind { A, B }\n"
+            + "    @Action(path = \"/o/{c}/{k}\")\n"
+            + "    public void view(@PathParam(\"c\") char c, @PathParam(\"k\") Kind k) {\n"
+            + "    }\n"
+            + "    @Action(path = \"/o/list/{l}\")\n"
+            + "    public void list(@PathParam(\"l\") java.util.List<String> l) {\n"
+            + "    }\n"
+            + "    @Action\n"
+            + "    public void index() {\n"
+            + "    }\n"
+            + "}\n";
+    public static final String USERS = "package app;\n"
+            + "import org.javamvc.core.annotations.*;\n"
+            + "public class Users extends org.javamvc.core.Controller {\n"
+            + "    @Action\n"
+            + "    public void index() {\n"
+            + "    }\n"
+            + "}\n";
+    /**
+     * A controller not extending Controller, which the runtime scan accepts
+     * for its init method.
+     */
+    public static final String LEGACY = "package app;\n"
+            + "import org.javamvc.core.*;\n"
+            + "import org.javamvc.core.annotations.*;\n"
+            + "import javax.servlet.ServletContext;\n"
+            + "import javax.servlet.http.*;\n"
+            + "public class Legacy {\n"
+            + "    public void init(MemCacheProvider<Object, Object> cache, ServletContext ctx,\n"
+            + "            HttpServletRequest req, HttpServletResponse res, ViewProvider vp) {\n"
+            + "    }\n"
+            + "    @Action\n"
+            + "    public void index() {\n"
+            + "    }\n"
+            + "}\n";
+    public static final String HELPER = "package app;\n"
+            + "public class Helper {\n"
+            + "}\n";
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+    private ControllerCompiler javac;
+
+    @Before
+    public void setUp() throws Exception {
+        javac = new ControllerCompiler(tmp.newFolder());
+    }
+
+    private RouteRegistry registry(File out) throws Exception {
+        ClassLoader loader = new URLClassLoader(new URL[]{out.toURI().toURL()},
+                getClass().getClassLoader());
+        return (RouteRegistry) loader.loadClass("app." + RouteRegistry.CLASS_NAME)
+                .getDeclaredConstructor().newInstance();
+    }
+
+    private static List<String> controllers(RouteRegistry registry) {
+        List<RouteRegistry.Route> routes = new ArrayList<RouteRegistry.Route>();
+        registry.registerRoutes(routes);
+        List<String> names = new ArrayList<String>();
+        for (RouteRegistry.Route r : routes) {
+            names.add(r.toString());
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    @Test
+    public void charAndValueOfParametersAreBound() throws Exception {
+        File out = tmp.newFolder();
+        assertTrue(javac.diagnostics().getDiagnostics().toString(),
+                javac.compile(out, ORDERS));
+        RouteRegistry registry = registry(out);
+        assertEquals(Arrays.asList("app.Orders.index", "app.Orders.view"),
+                controllers(registry));
+        assertArrayEquals(new String[]{"Orders"}, registry.compiledTypes());
+    }
+
+    @Test
+    public void unsupportedParameterTypeSkipsAction() throws Exception {
+        assertTrue(javac.compile(tmp.newFolder(), ORDERS));
+        boolean warned = false;
+        for (Diagnostic<? extends JavaFileObject> d : javac.diagnostics().getDiagnostics()) {
+            if (d.getKind() == Diagnostic.Kind.WARNING
+                    && d.getMessage(null).contains("java.util.List<java.lang.String>")) {
+                warned = true;
+            }
+        }
+        assertTrue(javac.diagnostics().getDiagnostics().toString(), warned);
+    }
+
+    @Test
+    public void incrementalBuildListsOnlyCompiledTypes() throws Exception {
+        File out = tmp.newFolder();
+        assertTrue(javac.compile(out, ORDERS, USERS));
+        // Recompile one controller alone, as an incremental build would
+        assertTrue(javac.compile(out, USERS));
+        RouteRegistry registry = registry(out);
+        assertEquals(Arrays.asList("app.Users.index"), controllers(registry));
+        assertArrayEquals(new String[]{"Users"}, registry.compiledTypes());
+    }
+
+    @Test
+    public void unregisteredTypesWithActionsAreLeftToTheScan() throws Exception {
+        File out = tmp.newFolder();
+        assertTrue(javac.diagnostics().getDiagnostics().toString(),
+                javac.compile(out, USERS, LEGACY, HELPER));
+        RouteRegistry registry = registry(out);
+        assertEquals(Arrays.asList("app.Users.index"), controllers(registry));
+        List<String> compiled = Arrays.asList(registry.compiledTypes());
+        Collections.sort(compiled);
+        assertEquals(Arrays.asList("Helper", "Users"), compiled);
+    }
+}
@@ -0,0 +1,72 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core.sample;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import org.javamvc.core.ViewProvider;
+
+/**
+ * View provider which renders a {@link Page} in chunks, flushing after each,
+ * and fails at the end if the page says so.
+ *
+ * @author Balwinder Sodhi
+ */
+public class ChunkedViewProvider implements ViewProvider {
+
+    /**
+     * Model of the views: the text is rendered the given number of times.
+     */
+    public static final class Page {
+
+        final String text;
+        final int chunks;
+        final boolean fail;
+
+        public Page(String text, int chunks, boolean fail) {
+            this.text = text;
+            this.chunks = chunks;
+            this.fail = fail;
+        }
+    }
+
+    @Override
+    public void init(ServletContext servletContext, ServletConfig servletConfig) {
+        // Do nothing
+    }
+
+    @Override
+    public String renderView(String view, Object model) throws IOException {
+        StringWriter w = new StringWriter();
+        renderView(view, model, w);
+        return w.toString();
+    }
+
+    @Override
+    public void renderView(String view, Object model, Writer out) throws IOException {
+        Page page = (Page) model;
+        for (int i = 0; i < page.chunks; i++) {
+            out.write(page.text);
+            out.flush();
+        }
+        if (page.fail) {
+            throw new IOException("Template error in " + view);
+        }
+    }
+}
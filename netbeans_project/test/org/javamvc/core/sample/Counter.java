@@ -0,0 +1,47 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core.sample;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.javamvc.core.Controller;
+import org.javamvc.core.annotations.Action;
+import org.javamvc.core.annotations.ControllerScope;
+
+/**
+ * Controller shared by all the requests, which records its instances.
+ *
+ * @author Balwinder Sodhi
+ */
+@ControllerScope(ControllerScope.Scope.SINGLETON)
+public class Counter extends Controller {
+
+    public static final Set<Object> instances
+            = Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+
+    @Action
+    public void count() throws IOException {
+        instances.add(this);
+        Json("n=" + getRequest().getParameter("n"));
+    }
+
+    @Action
+    public void field() throws IOException {
+        Json("n=" + request.getParameter("n"));
+    }
+}
@@ -0,0 +1,56 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core.sample;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.javamvc.core.Controller;
+import org.javamvc.core.annotations.Action;
+import org.javamvc.core.annotations.OutputCache;
+
+/**
+ * Controller with cached actions: one which reads the request body, so that
+ * it cannot be refreshed in background, and one tagged with
+ * <code>news</code>, which is invalidated by publishing.
+ *
+ * @author Balwinder Sodhi
+ */
+public class Feed extends Controller {
+
+    public static final AtomicInteger runs = new AtomicInteger();
+    public static final AtomicInteger headlineRuns = new AtomicInteger();
+
+    @Action
+    @OutputCache(ttl = 1, hardTtl = 60)
+    public void latest() throws IOException {
+        getRequest().getInputStream();
+        Json("run " + runs.incrementAndGet());
+    }
+
+    @Action
+    @OutputCache(ttl = 60, varyByParams = "page", tags = "news")
+    public void headlines() throws IOException {
+        getResponse().setHeader("X-Page", getRequest().getParameter("page"));
+        Json("page " + getRequest().getParameter("page") + " run "
+                + headlineRuns.incrementAndGet());
+    }
+
+    @Action
+    public void publish() throws IOException {
+        getCacheTags().invalidateTag("news");
+        Json("published");
+    }
+}
@@ -0,0 +1,35 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core.sample;
+
+import java.io.IOException;
+import org.javamvc.core.Controller;
+import org.javamvc.core.annotations.Action;
+import org.javamvc.core.annotations.PathParam;
+
+/**
+ * Controller rendering views via {@link ChunkedViewProvider}.
+ *
+ * @author Balwinder Sodhi
+ */
+public class Pages extends Controller {
+
+    @Action(path = "/pages/{chunks}/{fail}")
+    public void page(@PathParam("chunks") int chunks, @PathParam("fail") boolean fail)
+            throws IOException {
+        View(new ChunkedViewProvider.Page("<p>0123456789</p>", chunks, fail));
+    }
+}
@@ -0,0 +1,48 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core.sample;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.javamvc.core.Controller;
+import org.javamvc.core.annotations.Action;
+import org.javamvc.core.annotations.ControllerScope;
+
+/**
+ * Controller reused from a pool of one instance, which records its instances.
+ *
+ * @author Balwinder Sodhi
+ */
+@ControllerScope(value = ControllerScope.Scope.POOLED, poolSize = 1)
+public class Pooled extends Controller {
+
+    public static final Set<Object> instances
+            = Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+
+    @Action
+    public void who() throws IOException {
+        instances.add(this);
+        Json("n=" + getRequest().getParameter("n"));
+    }
+
+    @Action(async = true)
+    public void later() throws IOException {
+        instances.add(this);
+        Json("n=" + getRequest().getParameter("n") + " on " + Thread.currentThread().getName());
+    }
+}
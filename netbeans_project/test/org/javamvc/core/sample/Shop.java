@@ -0,0 +1,44 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core.sample;
+
+import java.io.IOException;
+import org.javamvc.core.Controller;
+import org.javamvc.core.annotations.Action;
+import org.javamvc.core.annotations.PathParam;
+
+/**
+ * Controller dispatched to by the servlet tests.
+ *
+ * @author Balwinder Sodhi
+ */
+public class Shop extends Controller {
+
+    @Action
+    public void hello() throws IOException {
+        Json("hello");
+    }
+
+    @Action(path = "/items/{id}")
+    public void item(@PathParam("id") int id) throws IOException {
+        Json("item " + id);
+    }
+
+    @Action(path = "/fail/{id}")
+    public void fail(@PathParam("id") int id) {
+        throw new IllegalArgumentException("Rejected " + id);
+    }
+}
@@ -0,0 +1,43 @@
+/*
+Copyright 2015 Balwinder Sodhi
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.javamvc.core.sample;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.javamvc.core.Controller;
+import org.javamvc.core.annotations.Action;
+
+/**
+ * Asynchronous controller whose action waits for the test to release it.
+ *
+ * @author Balwinder Sodhi
+ */
+public class Slow extends Controller {
+
+    public static volatile CountDownLatch release = new CountDownLatch(0);
+    public static volatile CountDownLatch finished = new CountDownLatch(0);
+
+    @Action(async = true)
+    public void late() throws Exception {
+        try {
+            release.await(10, TimeUnit.SECONDS);
+            getResponse().setHeader("X-Late", "yes");
+            Json("late");
+        } finally {
+            finished.countDown();
+        }
+    }
+}